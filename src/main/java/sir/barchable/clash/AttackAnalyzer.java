@@ -2,16 +2,25 @@ package sir.barchable.clash;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import sir.barchable.clash.model.ColumnHandle;
 import sir.barchable.clash.model.Logic;
 import sir.barchable.clash.model.LootCalculator.Loot;
 import sir.barchable.clash.model.LootCalculator.LootCollection;
 import sir.barchable.clash.model.SessionState;
 import sir.barchable.clash.protocol.Message;
+import sir.barchable.clash.protocol.Pdu;
 import sir.barchable.clash.proxy.MessageTap;
 import sir.barchable.clash.proxy.ProxySession;
 
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import static sir.barchable.clash.protocol.Pdu.Type.*;
 
 /**
  * What did an attack cost?
@@ -23,12 +32,46 @@ public class AttackAnalyzer implements MessageTap {
     private static final Logger log = LoggerFactory.getLogger(AttackAnalyzer.class);
     public static final String ATTACK_STATE_KEY = "attack.state";
 
-    private Logic logic;
-    private VillageAnalyzer villageAnalyzer;
+    private final Supplier<Logic> logicSource;
+    private final VillageAnalyzer villageAnalyzer;
+
+    private volatile LogicView logicView;
 
     public AttackAnalyzer(Logic logic) {
-        this.logic = logic;
-        this.villageAnalyzer = new VillageAnalyzer(logic);
+        this(() -> logic);
+    }
+
+    /**
+     * @param logicSource source of the current logic. If it changes, the analyzer switches to the new logic at the
+     * start of the next message.
+     */
+    public AttackAnalyzer(Supplier<Logic> logicSource) {
+        this.logicSource = logicSource;
+        this.villageAnalyzer = new VillageAnalyzer(logicSource);
+        getLogicView();
+    }
+
+    /**
+     * The current logic, and the lookups resolved against it.
+     */
+    private LogicView getLogicView() {
+        Logic logic = logicSource.get();
+        LogicView view = logicView;
+        if (view == null || view.logic != logic) {
+            view = new LogicView(logic);
+            logicView = view;
+        }
+        return view;
+    }
+
+    @Override
+    public Set<Pdu.Type> getMessageTypes() {
+        return EnumSet.of(EnemyHomeData, OwnHomeData, EndClientTurn);
+    }
+
+    @Override
+    public Set<String> getFields() {
+        return new HashSet<>(Arrays.asList("attackerResources", "resources", "commands"));
     }
 
     @Override
@@ -36,12 +79,12 @@ public class AttackAnalyzer implements MessageTap {
         switch (message.getType()) {
             case EnemyHomeData:
                 // Set up for attack
-                setup(message.getMessage("attackerResources"));
+                setup(message);
                 break;
 
             case OwnHomeData:
                 // Check for completed attack
-                summarize(message.getMessage("resources"));
+                summarize(message);
                 break;
 
             case EndClientTurn:
@@ -76,13 +119,14 @@ public class AttackAnalyzer implements MessageTap {
     }
 
     /**
-     * @param resources resources before attack
+     * @param message EnemyHomeData, with the resources before the attack
      */
-    private void setup(Message resources) {
+    private void setup(Message message) {
         SessionState state = ProxySession.getSession().getSessionState();
         AttackState attackState = (AttackState) state.getAttribute(ATTACK_STATE_KEY);
         if (attackState == null) {
-            LootCollection loot = villageAnalyzer.sumStorage(resources);
+            LootCollection loot = villageAnalyzer.sumStorage(message, "attackerResources");
+            Message resources = message.getMessage("attackerResources");
 
             Map<Integer, Integer> levelMap = new HashMap<>();
 
@@ -97,7 +141,8 @@ public class AttackAnalyzer implements MessageTap {
                 levelMap.put(spellLevel.getInt("type"), spellLevel.getInt("value"));
             }
 
-            int matchCost = logic.getInt("townhall_levels:" + state.getTownHallLevel(), "AttackCost");
+            LogicView view = getLogicView();
+            int matchCost = view.attackCostColumn.getInt(view.logic.getTownHallLevelTypeId(state.getTownHallLevel()));
 
             attackState = new AttackState(matchCost, loot.getStorageLoot(), levelMap);
             state.setAttribute(ATTACK_STATE_KEY, attackState);
@@ -105,13 +150,13 @@ public class AttackAnalyzer implements MessageTap {
     }
 
     /**
-     * @param resources resources after attack
+     * @param message OwnHomeData, with the resources after the attack
      */
-    private void summarize(Message resources) {
+    private void summarize(Message message) {
         SessionState state = ProxySession.getSession().getSessionState();
         AttackState attackState = (AttackState) state.getAttribute(ATTACK_STATE_KEY);
         if (attackState != null) {
-            Loot loot = villageAnalyzer.sumStorage(resources).getStorageLoot().addGold(attackState.getTotalMatchCost());
+            Loot loot = villageAnalyzer.sumStorage(message, "resources").getStorageLoot().addGold(attackState.getTotalMatchCost());
             if (!loot.isEmpty()) {
                 Loot gross = loot.subtract(attackState.getInitialLoot());
                 log.info("Raided: {}", gross);
@@ -164,6 +209,7 @@ public class AttackAnalyzer implements MessageTap {
          * @param typeId the unit type (troop or spell)
          */
         public void accumulateCost(int typeId) {
+            Logic logic = getLogicView().logic;
             int cost = logic.getInt(typeId, "TrainingCost", getLevel(typeId));
             String resourceType = logic.getString(typeId, "TrainingResource");
             int e = 0;
@@ -207,4 +253,17 @@ public class AttackAnalyzer implements MessageTap {
             return level;
         }
     }
+
+    /**
+     * Lookups resolved against one version of the logic.
+     */
+    private static class LogicView {
+        private final Logic logic;
+        private final ColumnHandle attackCostColumn;
+
+        private LogicView(Logic logic) {
+            this.logic = logic;
+            this.attackCostColumn = logic.getColumn("townhall_levels", "AttackCost");
+        }
+    }
 }
@@ -0,0 +1,317 @@
+package sir.barchable.clash;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sir.barchable.clash.VillageStats.Defense;
+import sir.barchable.util.Json;
+import sir.barchable.util.ThreadPools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility.ANY;
+import static com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility.NONE;
+
+/**
+ * Defense stats for every village seen in every session, by player, kept for the life of the process and optionally
+ * saved to disk so they survive a restart. Players are grouped into clans by the clan they were last seen in, so a
+ * player who changes clan moves with their history.
+ * <p>
+ * Villages are recorded as they arrive, from any session on any thread. Each player's {@link History} is immutable
+ * and replaced as a whole on update, so reads don't lock and always see a consistent history.
+ *
+ * @author Sir Barchable
+ */
+public class ClanStats implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ClanStats.class);
+
+    /**
+     * How long {@link #close()} waits for a periodic save to finish.
+     */
+    private static final long SAVE_TIMEOUT_SECONDS = 30;
+
+    /**
+     * User id -> history.
+     */
+    private final Map<Long, History> players = new ConcurrentHashMap<>();
+
+    /**
+     * Bumped on every update, so snapshots are only written when something has changed.
+     */
+    private final AtomicLong version = new AtomicLong();
+    private volatile long savedVersion;
+
+    private ScheduledExecutorService snapshotExecutor;
+    private File snapshotFile;
+
+    /**
+     * Record a village.
+     */
+    public void record(String clanName, long userId, VillageStats stats) {
+        long now = System.currentTimeMillis();
+        History latest = new History(clanName, userId, stats.getUserName(), stats.getDefense(), now);
+        players.merge(userId, latest, History::update);
+        version.incrementAndGet();
+    }
+
+    /**
+     * The clans the players were last seen in.
+     */
+    public Set<String> getClanNames() {
+        return players.values().stream().map(History::getClanName).collect(Collectors.toSet());
+    }
+
+    /**
+     * The players last seen in a clan.
+     *
+     * @return the player histories, empty if the clan hasn't been seen
+     */
+    public Collection<History> getClan(String clanName) {
+        return players
+            .values()
+            .stream()
+            .filter(history -> clanName.equals(history.getClanName()))
+            .collect(Collectors.toList());
+    }
+
+    /**
+     * @return the player's history, or null if they haven't been seen
+     */
+    public History getPlayer(long userId) {
+        return players.get(userId);
+    }
+
+    /**
+     * The sum of the latest defenses of the players in a clan.
+     */
+    public Defense getTotal(String clanName) {
+        return getClan(clanName).stream().map(History::getLatest).reduce(new Defense(), Defense::add);
+    }
+
+    //
+    // Snapshots
+    //
+
+    /**
+     * Load a snapshot. A snapshot that can't be parsed is moved aside to a .bad file, to be looked at later, and
+     * empty stats are returned in its place.
+     *
+     * @return the stats from the file, or empty stats if there's no file
+     */
+    public static ClanStats load(File file) throws IOException {
+        ClanStats stats = new ClanStats();
+        if (file.isFile()) {
+            History[] histories;
+            try {
+                histories = Json.read(file, History[].class);
+            } catch (JsonProcessingException e) {
+                File bad = new File(file.getPath() + ".bad");
+                log.warn("Couldn't parse clan stats in {}, moving it to {}: {}", file, bad, e.toString());
+                Files.move(file.toPath(), bad.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return stats;
+            }
+            if (histories != null) {
+                for (History history : histories) {
+                    if (history != null) {
+                        stats.players.put(history.userId, history);
+                    }
+                }
+            }
+            log.info("Loaded clan stats for {} players from {}", stats.players.size(), file);
+        }
+        return stats;
+    }
+
+    /**
+     * Save a snapshot. The file is replaced in one step, so a reader never sees half a snapshot.
+     */
+    public void save(File file) throws IOException {
+        long saving = version.get();
+        List<History> histories = new ArrayList<>(players.values());
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            Json.writePretty(histories, out);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        savedVersion = saving;
+    }
+
+    /**
+     * Save a snapshot periodically, if anything has changed, and again on {@link #close()}.
+     */
+    public synchronized void saveEvery(File file, long period, TimeUnit unit) {
+        if (snapshotExecutor != null) {
+            throw new IllegalStateException("Already saving");
+        }
+        snapshotExecutor = new ScheduledThreadPoolExecutor(1, ThreadPools.newThreadFactory("ClanStats", true));
+        snapshotFile = file;
+        snapshotExecutor.scheduleWithFixedDelay(() -> saveIfChanged(file), period, period, unit);
+    }
+
+    private void saveIfChanged(File file) {
+        if (version.get() != savedVersion) {
+            try {
+                save(file);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Couldn't save clan stats to {}: {}", file, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Stop saving periodically, and save once more. Waits for a periodic save that's under way to finish first, so
+     * the two saves don't both write the temporary file.
+     */
+    @Override
+    public synchronized void close() {
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdown();
+            try {
+                if (!snapshotExecutor.awaitTermination(SAVE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    log.warn("Clan stats save to {} didn't finish, not saving again", snapshotFile);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted waiting for clan stats save to {}, not saving again", snapshotFile);
+                return;
+            } finally {
+                snapshotExecutor = null;
+            }
+            saveIfChanged(snapshotFile);
+        }
+    }
+
+    /**
+     * What we know about a player's village. Immutable.
+     */
+    @JsonAutoDetect(fieldVisibility = ANY, getterVisibility = NONE, isGetterVisibility = NONE)
+    public static class History {
+        private String clanName;
+        private long userId;
+        private String userName;
+
+        private Defense first;
+        private Defense latest;
+        private Defense min;
+        private Defense max;
+        private int count;
+        private long firstSeen;
+        private long lastSeen;
+
+        /**
+         * For Jackson.
+         */
+        private History() { }
+
+        History(String clanName, long userId, String userName, Defense defense, long time) {
+            this.clanName = clanName;
+            this.userId = userId;
+            this.userName = userName;
+            this.first = this.latest = this.min = this.max = defense;
+            this.count = 1;
+            this.firstSeen = this.lastSeen = time;
+        }
+
+        /**
+         * Add a later sighting of the village.
+         */
+        History update(History later) {
+            History history = new History();
+            history.clanName = later.clanName;
+            history.userId = userId;
+            history.userName = later.userName;
+            history.first = first;
+            history.latest = later.latest;
+            history.min = min.min(later.min);
+            history.max = max.max(later.max);
+            history.count = count + later.count;
+            history.firstSeen = Math.min(firstSeen, later.firstSeen);
+            history.lastSeen = Math.max(lastSeen, later.lastSeen);
+            return history;
+        }
+
+        /**
+         * The clan the player was last seen in.
+         */
+        public String getClanName() {
+            return clanName;
+        }
+
+        public long getUserId() {
+            return userId;
+        }
+
+        /**
+         * The most recent name.
+         */
+        public String getUserName() {
+            return userName;
+        }
+
+        public Defense getLatest() {
+            return latest;
+        }
+
+        /**
+         * The smallest of each stat seen.
+         */
+        public Defense getMin() {
+            return min;
+        }
+
+        /**
+         * The largest of each stat seen.
+         */
+        public Defense getMax() {
+            return max;
+        }
+
+        /**
+         * How much each stat has changed since the village was first seen.
+         */
+        @JsonIgnore
+        public Defense getTrend() {
+            return latest.subtract(first);
+        }
+
+        /**
+         * The number of times the village has been seen.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        public long getFirstSeen() {
+            return firstSeen;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+
+        @Override
+        public String toString() {
+            return "History[" + clanName + ":" + userName + ", latest=" + latest + ", trend=" + getTrend() + ']';
+        }
+    }
+}
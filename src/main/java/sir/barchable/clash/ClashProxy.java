@@ -3,19 +3,21 @@ package sir.barchable.clash;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sir.barchable.clash.protocol.Connection;
-import sir.barchable.clash.proxy.MessageSaver;
-import sir.barchable.clash.proxy.MessageTapFilter;
-import sir.barchable.clash.proxy.PduFilterChain;
-import sir.barchable.clash.proxy.ProxySession;
+import sir.barchable.clash.proxy.*;
 import sir.barchable.util.Dns;
+import sir.barchable.util.ThreadPools;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -44,14 +46,60 @@ public class ClashProxy {
      */
     private ExecutorService executor = Executors.newCachedThreadPool();
 
+    /**
+     * Runs the analysis filters when --async-analysis is set, otherwise null.
+     */
+    private AsyncPduFilter asyncAnalysis;
+
+    /**
+     * Worker threads for the asynchronous analysis.
+     */
+    private ExecutorService analysisExecutor;
+
+    /**
+     * Source of pipe threads, or null for the default platform threads.
+     */
+    private ThreadFactory pipeThreads;
+
     /**
      * Source for the address of the real server.
      */
     private Dns dns;
 
+    /**
+     * Command line config.
+     */
+    private final Main.ProxyCommand command;
+
+    /**
+     * Clan village stats from every session, saved to the working directory.
+     */
+    private final ClanStats clanStats;
+
+    /**
+     * Writes captured villages when --save is set, otherwise null.
+     */
+    private MessageSaver messageSaver;
+
+    /**
+     * The non-blocking proxy core, when running with --nio.
+     */
+    private volatile NioProxy nioProxy;
+
     public ClashProxy(ClashServices services, Main.ProxyCommand command) throws IOException {
 
         this.services = services;
+        this.command = command;
+
+        if (command.getVirtualThreads()) {
+            if (ThreadPools.hasVirtualThreads()) {
+                log.info("Using virtual threads");
+                pipeThreads = ThreadPools.newVirtualThreadFactory("Pipe");
+                executor = ThreadPools.newExecutor(ThreadPools.newVirtualThreadFactory("Session"));
+            } else {
+                log.warn("Virtual threads need Java 21 or later, using platform threads");
+            }
+        }
 
         //
         // Look up the server using an external DNS because the internal one is probably being used to redirect
@@ -61,13 +109,21 @@ public class ClashProxy {
         this.dns = new Dns(command.getNameServer());
 
         //
-        // This filter prints stuff
+        // This filter prints stuff. The analyzers read the logic through the services, to pick up reloads.
         //
 
-        filterChain = filterChain.addAfter(new MessageTapFilter(
+        if (command.getWatchLogic()) {
+            services.watchLogic();
+        }
+
+        File clanStatsFile = new File(services.getWorkingDir(), "clan-stats.json");
+        clanStats = ClanStats.load(clanStatsFile);
+        clanStats.saveEvery(clanStatsFile, 1, TimeUnit.MINUTES);
+
+        PduFilterChain analysis = new PduFilterChain(new MessageTapFilter(
             services.getMessageFactory(),
-            new VillageAnalyzer(services.getLogic()),
-            new AttackAnalyzer(services.getLogic())
+            new VillageAnalyzer(services::getLogic, clanStats),
+            new AttackAnalyzer(services::getLogic)
 //            logger.tapFor(EndClientTurn),
 //            logger.tapFor(WarHomeData, "warVillage")
         ));
@@ -81,9 +137,26 @@ public class ClashProxy {
             if (villageDir.mkdir()) {
                 log.info("Created save directory for villages: {}", villageDir);
             }
-            filterChain = filterChain.addAfter(
-                new MessageSaver(services.getMessageFactory(), villageDir)
+            messageSaver = new MessageSaver(services.getMessageFactory(), villageDir);
+            analysis = analysis.addAfter(messageSaver);
+        }
+
+        //
+        // Analysis can run after the PDUs have been forwarded, so it doesn't hold up the game
+        //
+
+        if (command.getAsyncAnalysis()) {
+            analysisExecutor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(),
+                ThreadPools.newThreadFactory("Analysis", true)
             );
+            asyncAnalysis = new AsyncPduFilter(
+                analysis, analysisExecutor, command.getAnalysisQueue(), command.getAnalysisOverflow()
+            );
+            log.info("Analyzing asynchronously, {} on overflow", command.getAnalysisOverflow());
+            filterChain = filterChain.addAfter(asyncAnalysis);
+        } else {
+            filterChain = filterChain.addAfter(analysis);
         }
     }
 
@@ -91,6 +164,11 @@ public class ClashProxy {
         // Clean-up thread
         Runtime.getRuntime().addShutdownHook(new Thread((this::shutdownNow)));
 
+        if (command.getNio()) {
+            runNio();
+            return;
+        }
+
         try (ServerSocket listener = new ServerSocket(CLASH_PORT)) {
             log.info("Listening on {}", CLASH_PORT);
             while (running.get()) {
@@ -121,10 +199,10 @@ public class ClashProxy {
                 Connection serverConnection = new Connection(new Socket(serverAddress, CLASH_PORT))
             ) {
                 ProxySession session = ProxySession.newSession(
-                    services.getMessageFactory(), clientConnection, serverConnection, filterChain
+                    pipeThreads, services.getMessageFactory(), clientConnection, serverConnection, filterChain
                 );
                 log.info("Client {} disconnected", socket);
-                VillageAnalyzer.logSession(session);
+                logSession(session);
             }
         } catch (IOException e) {
             log.info("Could not proxy connection from {}: {}", socket.getInetAddress(), e.toString());
@@ -137,16 +215,98 @@ public class ClashProxy {
         }
     }
 
+    /**
+     * Accept connections on this thread and hand them off to the event loops of a {@link NioProxy}.
+     */
+    private void runNio() {
+        try (
+            NioProxy proxy = new NioProxy(services.getMessageFactory(), command.getEventLoops(), filterChain);
+            ServerSocketChannel listener = ServerSocketChannel.open()
+        ) {
+            nioProxy = proxy;
+            listener.bind(new InetSocketAddress(CLASH_PORT));
+            log.info("Listening on {} with {} event loops", CLASH_PORT, command.getEventLoops());
+            while (running.get()) {
+                SocketChannel channel = listener.accept();
+                if (running.get()) {
+                    accept(proxy, channel);
+                } else {
+                    channel.close();
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Terminated with exception: {}", e.toString());
+        }
+    }
+
+    /**
+     * Accept a connection from a client and proxy it to the server. Returns once the session has been handed to an
+     * event loop. The channel will be closed when processing completes.
+     */
+    private void accept(NioProxy proxy, SocketChannel channel) {
+        Socket socket = channel.socket();
+        log.info("Client connected from {}", socket.getInetAddress());
+        try {
+            InetAddress serverAddress = dns.getAddress("gamea.clashofclans.com");
+            proxy.newSession(channel, new InetSocketAddress(serverAddress, CLASH_PORT)).thenAcceptAsync(session -> {
+                log.info("Client {} disconnected", socket);
+                logSession(session);
+            }, executor);
+        } catch (IOException e) {
+            log.info("Could not proxy connection from {}: {}", socket.getInetAddress(), e.toString());
+            try {
+                channel.close();
+            } catch (IOException x) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Log the session summary, once any queued analysis has caught up.
+     */
+    private void logSession(ProxySession session) {
+        if (asyncAnalysis != null) {
+            try {
+                if (!asyncAnalysis.awaitIdle(session, 5, TimeUnit.SECONDS)) {
+                    log.warn("Analysis still running for session, summary may be incomplete");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (asyncAnalysis.getDropped() > 0) {
+                log.info("{} messages dropped from analysis so far", asyncAnalysis.getDropped());
+            }
+        }
+        VillageAnalyzer.logSession(session, clanStats);
+    }
+
     private void shutdownNow() {
         if (running.compareAndSet(true, false)) {
             log.info("Exiting...");
 
+            if (nioProxy != null) {
+                nioProxy.close();
+            }
+
             executor.shutdownNow();
+            if (analysisExecutor != null) {
+                analysisExecutor.shutdownNow();
+            }
             try {
                 executor.awaitTermination(5, TimeUnit.SECONDS);
             } catch (InterruptedException e) {
                 // ignore
             }
+            clanStats.close();
+            if (messageSaver != null) {
+                try {
+                    messageSaver.close();
+                } catch (IOException e) {
+                    log.warn("Couldn't finish saving villages: {}", e.toString());
+                }
+            }
         }
     }
 }
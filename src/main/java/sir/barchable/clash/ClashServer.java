@@ -7,12 +7,16 @@ import sir.barchable.clash.Main;
 import sir.barchable.clash.protocol.Connection;
 import sir.barchable.clash.ClashProxy;
 import sir.barchable.clash.server.ServerSession;
+import sir.barchable.clash.server.VillageRepository;
+import sir.barchable.util.ThreadPools;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -35,6 +39,11 @@ public class ClashServer {
      */
     private final Main.ServerCommand command;
 
+    /**
+     * Saved villages, shared by the sessions.
+     */
+    private final VillageRepository villages;
+
     private AtomicBoolean running = new AtomicBoolean(true);
 
     /**
@@ -42,9 +51,29 @@ public class ClashServer {
      */
     private ExecutorService executor = Executors.newCachedThreadPool();
 
-    public ClashServer(ClashServices services, Main.ServerCommand command) {
+    /**
+     * Source of threads for the session request loops.
+     */
+    private ThreadFactory sessionThreads = Thread::new;
+
+    public ClashServer(ClashServices services, Main.ServerCommand command) throws IOException {
         this.services = services;
         this.command = command;
+        this.villages = new VillageRepository(
+            services.getMessageFactory(),
+            new File(services.getWorkingDir(), "villages"),
+            command.getVillageCacheSize()
+        );
+
+        if (command.getVirtualThreads()) {
+            if (ThreadPools.hasVirtualThreads()) {
+                log.info("Using virtual threads");
+                sessionThreads = ThreadPools.newVirtualThreadFactory("Server");
+                executor = ThreadPools.newExecutor(ThreadPools.newVirtualThreadFactory("Session"));
+            } else {
+                log.warn("Virtual threads need Java 21 or later, using platform threads");
+            }
+        }
     }
 
     public void run() throws IOException {
@@ -77,7 +106,9 @@ public class ClashServer {
             try (
                 Connection clientConnection = new Connection(socket);
             ) {
-                ServerSession session = ServerSession.newSession(services, clientConnection, command);
+                ServerSession session = ServerSession.newSession(
+                    sessionThreads, services, villages, clientConnection, command
+                );
                 log.info("Client {} disconnected", socket);
             }
         } catch (IOException e) {
@@ -1,14 +1,19 @@
 package sir.barchable.clash;
 
 import com.beust.jcommander.ParameterException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import sir.barchable.clash.model.Logic;
 import sir.barchable.clash.model.LogicParser;
+import sir.barchable.clash.model.LogicSnapshot;
 import sir.barchable.clash.protocol.MessageFactory;
 import sir.barchable.clash.protocol.ProtocolTool;
 import sir.barchable.clash.protocol.TypeFactory;
+import sir.barchable.util.FileWatcher;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Shared environment for the proxy and server.
@@ -17,7 +22,16 @@ import java.io.IOException;
  *         Date: 12/05/15
  */
 public class ClashServices {
-    private Logic logic;
+    private static final Logger log = LoggerFactory.getLogger(ClashServices.class);
+
+    /**
+     * Snapshot of the parsed logic, in the working directory.
+     */
+    private static final String LOGIC_SNAPSHOT = "logic.snapshot";
+
+    private volatile Logic logic;
+    private File logicFile;
+    private FileWatcher logicWatcher;
     private MessageFactory messageFactory;
     private File workingDir;
 
@@ -43,7 +57,6 @@ public class ClashServices {
         // Load the logic files
         //
 
-        File logicFile;
         if (env.getLogicFile() != null) {
             logicFile = env.getLogicFile();
         } else {
@@ -54,9 +67,94 @@ public class ClashServices {
                 logicFile = apks[0];
             }
         }
-        logic = LogicParser.loadLogic(logicFile);
+        logic = loadLogic(logicFile, env.isNoLogicCache());
+
+        // Tables are loaded on first use, unless they're wanted up front
+        if (!env.getLogicWarmup().isEmpty()) {
+            long start = System.nanoTime();
+            logic.warmUp(env.getLogicWarmup());
+            log.info("Loaded {} in {} ms", env.getLogicWarmup(), millisSince(start));
+        }
+    }
+
+    /**
+     * Load the logic from the snapshot in the working directory if it was made from the same logic file. Otherwise
+     * parse the file, and save a new snapshot for next time.
+     *
+     * @param rebuild parse the logic file even if there's a snapshot for it
+     */
+    private Logic loadLogic(File logicFile, boolean rebuild) throws IOException {
+        long start = System.nanoTime();
+        File snapshotFile = new File(workingDir, LOGIC_SNAPSHOT);
+        byte[] key = LogicSnapshot.hash(logicFile);
+        log.debug("Hashed {} in {} ms", logicFile, millisSince(start));
+
+        if (!rebuild) {
+            try {
+                Logic snapshot = LogicSnapshot.read(snapshotFile, key);
+                if (snapshot != null) {
+                    log.info("Opened logic snapshot in {} ms", millisSince(start));
+                    return snapshot;
+                }
+            } catch (RuntimeException | IOException e) {
+                log.warn("Couldn't read logic snapshot, rebuilding: {}", e.toString());
+            }
+        }
+
+        Logic parsed = LogicParser.loadLogic(logicFile);
+        try {
+            // Parses every table
+            LogicSnapshot.write(parsed, key, snapshotFile);
+            log.info("Parsed logic from {} and saved a snapshot in {} ms", logicFile, millisSince(start));
+        } catch (IOException e) {
+            log.warn("Couldn't save logic snapshot: {}", e.toString());
+        }
+        return parsed;
+    }
+
+    private static long millisSince(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /**
+     * Watch the logic file, and reload the logic when it changes.
+     *
+     * @see #reloadLogic()
+     */
+    public synchronized void watchLogic() throws IOException {
+        if (logicWatcher == null) {
+            logicWatcher = new FileWatcher(logicFile, 2, TimeUnit.SECONDS, () -> {
+                log.info("Logic changed, reloading");
+                try {
+                    reloadLogic();
+                } catch (RuntimeException | IOException e) {
+                    log.warn("Couldn't reload logic, keeping the old version: {}", e.toString());
+                }
+            });
+            log.info("Watching {} for logic updates", logicFile);
+        }
+    }
+
+    /**
+     * Rebuild the logic from the logic file and swap it in. Every table of the new logic is loaded before the swap, so
+     * users of {@link #getLogic()} see either the old logic or all of the new.
+     */
+    public synchronized void reloadLogic() throws IOException {
+        long start = System.nanoTime();
+        Logic newLogic = loadLogic(logicFile, false);
+        newLogic.loadAll();
+        Logic oldLogic = logic;
+        logic = newLogic;
+        log.info(
+            "Swapped in new logic {} ms after the change. Size: old ~{} KB, new ~{} KB",
+            millisSince(start), oldLogic.estimateSize() / 1024, newLogic.estimateSize() / 1024
+        );
     }
 
+    /**
+     * The current logic. This changes if the logic is reloaded, so hold on to it only for as long as it needs to stay
+     * consistent, e.g. for one message.
+     */
     public Logic getLogic() {
         return logic;
     }
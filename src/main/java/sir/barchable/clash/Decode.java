@@ -106,7 +106,7 @@ public class Decode {
 
         void dumpJson(Pdu pdu) throws IOException {
             try {
-                Message message = services.getMessageFactory().fromPdu(pdu);
+                Message message = pdu.getDecodeContext().getMessage(services.getMessageFactory());
                 if (message != null) {
                     out.write('"' + pdu.getType().name() + "\": ");
                     Json.writePretty(message.getFields(), out);
@@ -3,6 +3,8 @@ package sir.barchable.clash;
 import com.beust.jcommander.Parameter;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Shared environment config.
@@ -20,6 +22,12 @@ public class Env {
     @Parameter(names = {"-w", "--working-dir"}, description = "Directory to read streams from")
     private File workingDir = new File(".");
 
+    @Parameter(names = {"--no-logic-cache"}, description = "Parse the game logic even if there's a snapshot of it in the working directory")
+    private boolean noLogicCache;
+
+    @Parameter(names = {"--logic-warmup"}, description = "Logic tables to load at startup, rather than when they're first used, e.g. buildings,characters")
+    private List<String> logicWarmup = new ArrayList<>();
+
     public File getResourceDir() {
         return resourceDir;
     }
@@ -31,4 +39,12 @@ public class Env {
     public File getWorkingDir() {
         return workingDir;
     }
+
+    public boolean isNoLogicCache() {
+        return noLogicCache;
+    }
+
+    public List<String> getLogicWarmup() {
+        return logicWarmup;
+    }
 }
@@ -0,0 +1,154 @@
+package sir.barchable.clash;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sir.barchable.clash.protocol.CaptureLogWriter;
+import sir.barchable.clash.protocol.Pdu;
+import sir.barchable.clash.protocol.PduException;
+import sir.barchable.clash.protocol.PduInputStream;
+import sir.barchable.clash.proxy.MessageSaver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static sir.barchable.clash.protocol.Pdu.Type.*;
+import static sir.barchable.util.NoopCipher.NOOP_CIPHER;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Move villages saved one per .pdu file by older versions of the proxy into the capture log.
+ * <p>
+ * Files that are imported but not deleted are listed in {@value #IMPORTED_NAME}, by modification time and path, so
+ * they aren't imported again, and the server doesn't load them as well as their copies in the log.
+ *
+ * @author Sir Barchable
+ */
+public class Import {
+    private static final Logger log = LoggerFactory.getLogger(Import.class);
+
+    public static final String IMPORTED_NAME = "imported.txt";
+
+    private ClashServices services;
+    private Main.ImportCommand command;
+
+    public Import(ClashServices services, Main.ImportCommand command) {
+        this.services = services;
+        this.command = command;
+    }
+
+    public void run() throws IOException {
+        File villageDir = new File(services.getWorkingDir(), "villages");
+        if (!villageDir.isDirectory()) {
+            throw new FileNotFoundException(villageDir.toString());
+        }
+
+        // Oldest first, so the log is in capture order
+        List<File> files;
+        try (Stream<Path> walk = Files.walk(villageDir.toPath())) {
+            files = walk
+                .map(Path::toFile)
+                .filter(file -> file.isFile() && file.getName().endsWith(".pdu"))
+                .sorted(Comparator.comparingLong(File::lastModified))
+                .collect(Collectors.toList());
+        }
+        Set<String> done = getImported(villageDir);
+        int found = files.size();
+        files.removeIf(file -> done.contains(importedKey(villageDir, file)));
+        if (files.size() < found) {
+            log.info("Skipping {} .pdu files that have already been imported", found - files.size());
+        }
+
+        CaptureLogWriter captureLog = new CaptureLogWriter(villageDir);
+        captureLog.setBlockWhenFull(true);
+        // Files are only counted once their villages are synced to the log, on the writer thread
+        List<File> imported = Collections.synchronizedList(new ArrayList<>());
+        try (MessageSaver saver = new MessageSaver(
+            services.getMessageFactory(),
+            captureLog,
+            OwnHomeData, VisitedHomeData, EnemyHomeData, WarHomeData, HomeBattleReplayData
+        )) {
+            for (File file : files) {
+                try (PduInputStream in = new PduInputStream(new FileInputStream(file), NOOP_CIPHER)) {
+                    Pdu pdu = in.read();
+                    if (!saver.save(pdu, file.lastModified(), () -> imported.add(file))) {
+                        log.warn("Skipped {}", file);
+                    }
+                } catch (PduException | IOException e) {
+                    log.warn("Couldn't import {}: {}", file, e.toString());
+                }
+            }
+        }
+        log.info("Imported {} of {} .pdu files", imported.size(), files.size());
+        if (captureLog.getFailureCount() > 0) {
+            log.warn("{} records couldn't be written to the log", captureLog.getFailureCount());
+        }
+
+        // Only delete once the log has been written and closed, and everything made it
+        if (command.getDelete() && imported.size() == files.size() && captureLog.getFailureCount() == 0) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    log.warn("Couldn't delete {}", file);
+                }
+            }
+        } else {
+            if (command.getDelete()) {
+                log.warn("Not deleting .pdu files, some couldn't be imported");
+            }
+            recordImported(villageDir, imported);
+        }
+    }
+
+    /**
+     * Add files to the list of imported files.
+     *
+     * @param villageDir the directory the files were imported from
+     */
+    public static void recordImported(File villageDir, Collection<File> files) throws IOException {
+        List<String> lines = new ArrayList<>();
+        for (File file : files) {
+            lines.add(importedKey(villageDir, file));
+        }
+        Files.write(
+            new File(villageDir, IMPORTED_NAME).toPath(), lines, UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND
+        );
+    }
+
+    /**
+     * The .pdu files that have been imported, and not changed since.
+     *
+     * @param villageDir the directory the files were imported from
+     * @return the keys of the imported files, see {@link #importedKey(File, File)}
+     */
+    public static Set<String> getImported(File villageDir) throws IOException {
+        File list = new File(villageDir, IMPORTED_NAME);
+        if (!list.isFile()) {
+            return Collections.emptySet();
+        }
+        return new HashSet<>(Files.readAllLines(list.toPath(), UTF_8));
+    }
+
+    /**
+     * Identify an imported file by its modification time and its path relative to the village directory, so a file
+     * that's replaced is imported again.
+     */
+    public static String importedKey(File villageDir, File file) {
+        String path = villageDir.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/');
+        return file.lastModified() + " " + path;
+    }
+}
@@ -3,6 +3,7 @@ package sir.barchable.clash;
 import com.beust.jcommander.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import sir.barchable.clash.proxy.AsyncPduFilter;
 
 import java.io.*;
 
@@ -21,6 +22,7 @@ public class Main {
     private ServerCommand serverCommand = new ServerCommand();
     private DecodeCommand decodeCommand = new DecodeCommand();
     private LoadCommand loadCommand = new LoadCommand();
+    private ImportCommand importCommand = new ImportCommand();
 
     @Parameters(commandDescription = "Run the clash proxy")
     public static class ProxyCommand {
@@ -30,6 +32,27 @@ public class Main {
         @Parameter(names = {"-n", "--name-server"}, description = "Name server to read up-stream server address from")
         private String nameServer = "8.8.8.8";
 
+        @Parameter(names = {"--nio"}, description = "Use non-blocking I/O instead of a pair of threads per client")
+        private boolean nio;
+
+        @Parameter(names = {"--event-loops"}, description = "Number of event loop threads in --nio mode")
+        private int eventLoops = Runtime.getRuntime().availableProcessors();
+
+        @Parameter(names = {"--virtual-threads"}, description = "Run sessions on virtual threads (Java 21+)")
+        private boolean virtualThreads;
+
+        @Parameter(names = {"--async-analysis"}, description = "Forward messages before analyzing them, on a worker pool")
+        private boolean asyncAnalysis;
+
+        @Parameter(names = {"--analysis-queue"}, description = "Messages each session can queue for --async-analysis")
+        private int analysisQueue = 256;
+
+        @Parameter(names = {"--analysis-overflow"}, description = "What --async-analysis does with a full queue: BLOCK, DROP_NEWEST or DROP_OLDEST")
+        private AsyncPduFilter.OverflowPolicy analysisOverflow = AsyncPduFilter.OverflowPolicy.DROP_OLDEST;
+
+        @Parameter(names = {"--watch-logic"}, description = "Reload the game logic when the logic file changes")
+        private boolean watchLogic;
+
         public boolean getSave() {
             return save;
         }
@@ -37,6 +60,34 @@ public class Main {
         public String getNameServer() {
             return nameServer;
         }
+
+        public boolean getNio() {
+            return nio;
+        }
+
+        public int getEventLoops() {
+            return eventLoops;
+        }
+
+        public boolean getVirtualThreads() {
+            return virtualThreads;
+        }
+
+        public boolean getAsyncAnalysis() {
+            return asyncAnalysis;
+        }
+
+        public int getAnalysisQueue() {
+            return analysisQueue;
+        }
+
+        public AsyncPduFilter.OverflowPolicy getAnalysisOverflow() {
+            return analysisOverflow;
+        }
+
+        public boolean getWatchLogic() {
+            return watchLogic;
+        }
     }
 
     @Parameters(commandDescription = "Run the clash server")
@@ -50,6 +101,12 @@ public class Main {
         @Parameter(names = {"--war"}, description = "Attack war layouts")
         private boolean war;
 
+        @Parameter(names = {"--virtual-threads"}, description = "Run sessions on virtual threads (Java 21+)")
+        private boolean virtualThreads;
+
+        @Parameter(names = {"--village-cache"}, description = "Megabytes of decoded villages to keep in memory")
+        private int villageCache = 64;
+
         public File getHomeFile() {
             return homeFile;
         }
@@ -61,6 +118,17 @@ public class Main {
         public boolean getWar() {
             return war;
         }
+
+        public boolean getVirtualThreads() {
+            return virtualThreads;
+        }
+
+        /**
+         * The size of the decoded village cache, in bytes.
+         */
+        public long getVillageCacheSize() {
+            return villageCache * 1024L * 1024L;
+        }
     }
 
     @Parameters(commandDescription = "Decode captured tcp dumps")
@@ -90,6 +158,16 @@ public class Main {
         }
     }
 
+    @Parameters(commandDescription = "Import villages saved as .pdu files into the capture log")
+    public static class ImportCommand {
+        @Parameter(names = {"--delete"}, description = "Delete the .pdu files once they've been imported")
+        private boolean delete;
+
+        public boolean getDelete() {
+            return delete;
+        }
+    }
+
     public static void main(String[] args) throws IOException {
         Main main = new Main();
         JCommander commander = new JCommander(main);
@@ -98,6 +176,7 @@ public class Main {
         commander.addCommand("server", main.serverCommand);
         commander.addCommand("dump", main.decodeCommand);
         commander.addCommand("load", main.loadCommand);
+        commander.addCommand("import", main.importCommand);
 
         try {
             commander.parse(args);
@@ -140,6 +219,11 @@ public class Main {
                 load.run();
                 break;
 
+            case "import":
+                Import importer = new Import(services, importCommand);
+                importer.run();
+                break;
+
             default:
                 throw new ParameterException("Unknown command '" + command + "'");
         }
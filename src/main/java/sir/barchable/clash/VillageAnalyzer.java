@@ -6,19 +6,20 @@ import sir.barchable.clash.VillageStats.Defense;
 import sir.barchable.clash.model.*;
 import sir.barchable.clash.model.LootCalculator.Loot;
 import sir.barchable.clash.model.LootCalculator.LootCollection;
-import sir.barchable.clash.model.json.Village;
-import sir.barchable.clash.model.json.WarVillage;
+import sir.barchable.clash.model.json.VillageParser;
+import sir.barchable.clash.protocol.DecodeContext;
 import sir.barchable.clash.protocol.Message;
+import sir.barchable.clash.protocol.Pdu;
 import sir.barchable.clash.proxy.MessageTap;
 import sir.barchable.clash.proxy.ProxySession;
 import sir.barchable.util.Dates;
-import sir.barchable.util.Json;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.function.Supplier;
 
 import static java.lang.Math.min;
-import static sir.barchable.clash.protocol.Pdu.Type.OwnHomeData;
+import static sir.barchable.clash.protocol.Pdu.Type.*;
 
 /**
  * Sum hit-points, dps, and resources for a village.
@@ -30,12 +31,53 @@ public class VillageAnalyzer implements MessageTap {
     private static final Logger log = LoggerFactory.getLogger(VillageAnalyzer.class);
     public static final String CLAN_STATS_PREFIX = "clan.stats.";
 
-    private Logic logic;
-    private LootCalculator lootCalculator;
+    private final Supplier<Logic> logicSource;
+    private volatile LogicView logicView;
+    private final ClanStats clanStats;
 
     public VillageAnalyzer(Logic logic) {
-        this.logic = logic;
-        this.lootCalculator = new LootCalculator(logic);
+        this(() -> logic);
+    }
+
+    /**
+     * @param logicSource source of the current logic. If it changes, the analyzer switches to the new logic at the
+     * start of the next message.
+     */
+    public VillageAnalyzer(Supplier<Logic> logicSource) {
+        this(logicSource, null);
+    }
+
+    /**
+     * @param clanStats where to keep the stats of clan villages across sessions, or null to keep them just for the
+     * session
+     */
+    public VillageAnalyzer(Supplier<Logic> logicSource, ClanStats clanStats) {
+        this.logicSource = logicSource;
+        this.clanStats = clanStats;
+        getLogicView();
+    }
+
+    /**
+     * The current logic, and the lookups resolved against it.
+     */
+    private LogicView getLogicView() {
+        Logic logic = logicSource.get();
+        LogicView view = logicView;
+        if (view == null || view.logic != logic) {
+            view = new LogicView(logic);
+            logicView = view;
+        }
+        return view;
+    }
+
+    @Override
+    public Set<Pdu.Type> getMessageTypes() {
+        return EnumSet.of(OwnHomeData, VisitedHomeData, EnemyHomeData, WarHomeData);
+    }
+
+    @Override
+    public Set<String> getFields() {
+        return new HashSet<>(Arrays.asList("age", "timeStamp", "homeVillage", "user", "resources"));
     }
 
     @Override
@@ -47,8 +89,7 @@ public class VillageAnalyzer implements MessageTap {
             case VisitedHomeData:
             case EnemyHomeData:
                 try {
-                    Village village = Json.valueOf(homeVillage, Village.class);
-                    analyzeHomeVillage(message, village);
+                    analyzeHomeVillage(message, homeVillage);
                 } catch (RuntimeException | IOException e) {
                     log.warn("Could not read village", e);
                 }
@@ -56,8 +97,7 @@ public class VillageAnalyzer implements MessageTap {
 
             case WarHomeData:
                 try {
-                    WarVillage village = Json.valueOf(homeVillage, WarVillage.class);
-                    analyzeWarVillage(message, village);
+                    analyzeWarVillage(message, homeVillage);
                 } catch (IOException e) {
                     log.warn("Could not read village", e);
                 }
@@ -65,8 +105,10 @@ public class VillageAnalyzer implements MessageTap {
         }
     }
 
-    private void analyzeHomeVillage(Message message, Village village) {
+    private void analyzeHomeVillage(Message message, String homeVillage) throws IOException {
         SessionState sessionState = ProxySession.getSession().getSessionState();
+        LogicView view = getLogicView();
+        Logic logic = view.logic;
 
         int age = message.getInt("age");
         Integer timeStamp = message.getInt("timeStamp");
@@ -81,94 +123,29 @@ public class VillageAnalyzer implements MessageTap {
             clanName = (String) clan.get("clanName");
         }
 
-        int townHallLevel = 0;
-        int dpsTotal = 0;
-        int hpTotal = 0;
-        int wallHpTotal = 0;
+        //
+        // Sum defenses and collected resources for all buildings. Count teslas as traps.
+        //
 
+        DefenseProfile.Totals defense = new DefenseProfile.Totals();
         Map<String, Integer> collectorTotals = new LinkedHashMap<>();
         collectorTotals.put("Elixir", 0);
         collectorTotals.put("Gold", 0);
         collectorTotals.put("DarkElixir", 0);
 
-        //
-        // Sum stats for all buildings
-        //
-
-        for (Village.Building building : village.buildings) {
-            int typeId = building.data;
-            String buildingName;
-            try {
-                buildingName = logic.getSubTypeName(typeId);
-            } catch (IllegalArgumentException e) {
-                log.warn("Unknown building of type {}. Perhaps you need a logic update.", typeId);
-                continue;
+        VillageParser.Summary village = VillageParser.parse(homeVillage, building -> {
+            view.defenseProfile.add(defense, building.data, building.level, false);
+            if (building.hasResTime && !building.underConstruction && view.defenseProfile.isBuilding(building.data)) {
+                addCollectorResources(view, building, age, collectorTotals);
             }
+        });
+        putSummary(message, village);
 
-            int level = building.lvl == null || building.lvl == -1 ? 0 : building.lvl;
-
-            if (typeId == ObjectType.TOWN_HALL) {
-                townHallLevel = level + 1;
-            }
-
-            //
-            // Hit points and damage
-            //
-
-            int dps = logic.getInt(typeId, "Damage", level);
-
-            if (!"Tesla Tower".equals(buildingName)) { // Count teslas as traps
-                dpsTotal += dps;
-
-                int hp = logic.getInt(typeId, "Hitpoints", level);
-                if (typeId == ObjectType.WALL) {
-                    wallHpTotal += hp;
-                } else {
-                    hpTotal += hp;
-                }
-            }
-
-            //
-            // Collectors
-            //
-
-            if (building.res_time != null && building.const_t == null) {
-                // res_time needs to be adjusted by the age of the data
-                int resTime = building.res_time - age;
-                // fetch generation parameters for the collector
-                String resourceName = logic.getString(typeId, "ProducesResource");
-                int resourcePerHour = logic.getInt(typeId, "ResourcePerHour", level);
-                int resourceMax = logic.getInt(typeId, "ResourceMax", level);
-
-                // Total time to fill
-                int maxTime = 3600 * resourceMax / resourcePerHour;
-
-                int resourceValue;
-                if (resTime >= maxTime) {
-                    resourceValue = 0;
-                } else if (resTime <= 0) {
-                    resourceValue = resourceMax;
-                } else {
-                    // Time passed since reset
-                    int timePassed = maxTime - resTime;
-
-                    // Resources produced during that time
-
-                    // resourceValue = timePassed * resourcePerHour / 3600;
-                    int h = timePassed / 3600;
-                    int m = timePassed % 3600 / 60;
-                    int s = timePassed % 60;
-                    resourceValue = h * resourcePerHour + m * resourcePerHour / 60 + s * resourcePerHour / 3600;
-                }
-
-                if (building.boost_t != null) {
-                    resourceValue *= logic.getInt("globals:RESOURCE_PRODUCTION_BOOST_MULTIPLIER", "NumberValue");
-                }
-
-                // Accumulate total
-                collectorTotals.put(resourceName, collectorTotals.get(resourceName) + resourceValue);
-            }
-        }
+        logUnknownBuildings(defense);
+        int townHallLevel = defense.getTownHallLevel();
+        int dpsTotal = defense.getDps();
+        int hpTotal = defense.getHp();
+        int wallHpTotal = defense.getWallHp();
 
         VillageStats villageStats = new VillageStats(userName, new Defense(hpTotal, wallHpTotal, dpsTotal));
 
@@ -177,11 +154,11 @@ public class VillageAnalyzer implements MessageTap {
         //
 
         Message resources = message.getMessage("resources");
-        LootCollection loot = sumStorage(resources).withCollectorLoot(
+        LootCollection loot = sumStorage(message, "resources").withCollectorLoot(
             new Loot(collectorTotals.get("Gold"), collectorTotals.get("Elixir"), collectorTotals.get("DarkElixir"))
         );
 
-        int timeToGemboxDrop = village.respawnVars.time_to_gembox_drop < 0 ? 0 : village.respawnVars.time_to_gembox_drop;
+        int timeToGemboxDrop = village.timeToGemboxDrop < 0 ? 0 : village.timeToGemboxDrop;
         if (message.getType() == OwnHomeData) {
             if (sessionState.getUserId() == 0) {
                 log.info("Welcome {}", userName);
@@ -189,12 +166,12 @@ public class VillageAnalyzer implements MessageTap {
                 sessionState.setUserId(userId);
                 // Log startup info
                 log.info("Clock skew is {}ms", System.currentTimeMillis() - timeStamp * 1000l);
-                log.info("Gem box time in period {}", Dates.formatInterval(village.respawnVars.time_in_gembox_period));
+                log.info("Gem box time in period {}", Dates.formatInterval(village.timeInGemboxPeriod));
             }
             sessionState.setUserName(userName);
             sessionState.setTownHallLevel(townHallLevel);
         } else {
-            loot = lootCalculator.calculateAvailableLoot(loot, townHallLevel);
+            loot = view.lootCalculator.calculateAvailableLoot(loot, townHallLevel);
         }
 
         //
@@ -234,7 +211,7 @@ public class VillageAnalyzer implements MessageTap {
             if (sessionState.getTownHallLevel() == 0) {
                 log.warn("User town hall level not set, can't calculate loot penalty.");
             } else {
-                int penalty = lootCalculator.getLevelPenalty(sessionState.getTownHallLevel(), townHallLevel);
+                int penalty = view.lootCalculator.getLevelPenalty(sessionState.getTownHallLevel(), townHallLevel);
                 if (penalty != 100) {
                     log.info("After penalty of {}%: {}", 100 - penalty, loot.total().percent(penalty));
                 }
@@ -245,16 +222,93 @@ public class VillageAnalyzer implements MessageTap {
         if (clanName != null) {
             // We keep the collection of stats for each clan in a a map from village ID -> stats
             String statKey = CLAN_STATS_PREFIX + clanName;
-            Map<Long, VillageStats> clanStats = (Map<Long, VillageStats>) sessionState.getAttribute(statKey);
-            if (clanStats == null) {
-                clanStats = new HashMap<>();
-                sessionState.setAttribute(statKey, clanStats);
+            Map<Long, VillageStats> sessionClanStats = (Map<Long, VillageStats>) sessionState.getAttribute(statKey);
+            if (sessionClanStats == null) {
+                sessionClanStats = new HashMap<>();
+                sessionState.setAttribute(statKey, sessionClanStats);
+            }
+            sessionClanStats.put(userId, villageStats);
+            if (clanStats != null) {
+                clanStats.record(clanName, userId, villageStats);
             }
-            clanStats.put(userId, villageStats);
         }
     }
 
-    public LootCollection sumStorage(Message resources) {
+    private void addCollectorResources(
+        LogicView view, VillageParser.BuildingFields building, int age, Map<String, Integer> collectorTotals
+    ) {
+        int typeId = building.data;
+        int level = building.level;
+
+        // res_time needs to be adjusted by the age of the data
+        int resTime = building.resTime - age;
+        // fetch generation parameters for the collector
+        String resourceName = view.producesResourceColumn.getString(typeId);
+        int resourcePerHour = view.resourcePerHourColumn.getInt(typeId, level);
+        int resourceMax = view.resourceMaxColumn.getInt(typeId, level);
+
+        // Total time to fill
+        int maxTime = 3600 * resourceMax / resourcePerHour;
+
+        int resourceValue;
+        if (resTime >= maxTime) {
+            resourceValue = 0;
+        } else if (resTime <= 0) {
+            resourceValue = resourceMax;
+        } else {
+            // Time passed since reset
+            int timePassed = maxTime - resTime;
+
+            // Resources produced during that time
+
+            // resourceValue = timePassed * resourcePerHour / 3600;
+            int h = timePassed / 3600;
+            int m = timePassed % 3600 / 60;
+            int s = timePassed % 60;
+            resourceValue = h * resourcePerHour + m * resourcePerHour / 60 + s * resourcePerHour / 3600;
+        }
+
+        if (building.boosted) {
+            resourceValue *= view.boostMultiplier;
+        }
+
+        // Accumulate total
+        collectorTotals.put(resourceName, collectorTotals.get(resourceName) + resourceValue);
+    }
+
+    private static void logUnknownBuildings(DefenseProfile.Totals defense) {
+        if (defense.getUnknownCount() > 0) {
+            log.warn(
+                "{} unknown buildings, e.g. type {}. Perhaps you need a logic update.",
+                defense.getUnknownCount(), defense.getUnknownType()
+            );
+        }
+    }
+
+    /**
+     * Share the village summary with later readers of the PDU.
+     */
+    private static void putSummary(Message message, VillageParser.Summary village) {
+        DecodeContext context = message.getDecodeContext();
+        if (context != null) {
+            context.put(VillageParser.SUMMARY_KEY, village);
+        }
+    }
+
+    /**
+     * Sum the resources in storage.
+     *
+     * @param message a message with resources
+     * @param field the name of the resources field, e.g. "resources" or "attackerResources"
+     */
+    public LootCollection sumStorage(Message message, String field) {
+        Logic logic = getLogicView().logic;
+        return DecodeContext.computeIfAbsent(
+            message, "storage." + field, () -> sumStorage(logic, message.getMessage(field))
+        );
+    }
+
+    private LootCollection sumStorage(Logic logic, Message resources) {
         Map<String, Integer> storageTotals = new LinkedHashMap<>();
         storageTotals.put("Elixir", 0);
         storageTotals.put("Gold", 0);
@@ -284,46 +338,30 @@ public class VillageAnalyzer implements MessageTap {
         );
     }
 
-    private void analyzeWarVillage(Message message, WarVillage village) {
+    private void analyzeWarVillage(Message message, String homeVillage) throws IOException {
         SessionState sessionState = ProxySession.getSession().getSessionState();
-
-        long homeId = (long) village.avatar_id_high << 32 | village.avatar_id_low & 0xffffffffl;
-        String userName = village.name;
-        String clanName = village.alliance_name;
-
-        int dpsTotal = 0;
-        int hpTotal = 0;
-        int wallHpTotal = 0;
+        LogicView view = getLogicView();
+        Logic logic = view.logic;
 
         //
-        // Sum stats for all buildings
+        // Sum defenses for all buildings
         //
 
-        for (WarVillage.Building building : village.buildings) {
-            int typeId = building.data;
-            String buildingName;
-            try {
-                buildingName = logic.getSubTypeName(typeId);
-            } catch (IllegalArgumentException e) {
-                log.warn("Unknown building of type {}. Perhaps you need a logic update.", typeId);
-                continue;
-            }
-            int level = building.lvl == null || building.lvl == -1 ? 0 : building.lvl;
-
-            //
-            // Hit points and damage
-            //
+        DefenseProfile.Totals defense = new DefenseProfile.Totals();
+        VillageParser.Summary village = VillageParser.parse(
+            homeVillage,
+            building -> view.defenseProfile.add(defense, building.data, building.level, true)
+        );
+        putSummary(message, village);
 
-            int dps = logic.getInt(typeId, "Damage", level);
-            dpsTotal += dps;
+        long homeId = (long) village.avatarIdHigh << 32 | village.avatarIdLow & 0xffffffffl;
+        String userName = village.name;
+        String clanName = village.allianceName;
 
-            int hp = logic.getInt(typeId, "Hitpoints", level);
-            if (typeId == ObjectType.WALL) {
-                wallHpTotal += hp;
-            } else {
-                hpTotal += hp;
-            }
-        }
+        logUnknownBuildings(defense);
+        int dpsTotal = defense.getDps();
+        int hpTotal = defense.getHp();
+        int wallHpTotal = defense.getWallHp();
 
         VillageStats villageStats = new VillageStats(userName, new Defense(hpTotal, wallHpTotal, dpsTotal));
 
@@ -332,16 +370,13 @@ public class VillageAnalyzer implements MessageTap {
         //
 
         List<String> unitDescriptions = new ArrayList<>();
-        Unit[] castleUnits = village.alliance_units;
-        if (castleUnits != null) {
-            for (Unit unit : castleUnits) {
-                int count = unit.getCnt();
-                if (count > 0) {
-                    int level = unit.getLvl() + 1;
-                    int typeId = unit.getId();
-                    String unitName = logic.getSubTypeName(typeId);
-                    unitDescriptions.add("lvl " + level + " " + unitName + " x " + count);
-                }
+        for (Unit unit : village.allianceUnits) {
+            int count = unit.getCnt();
+            if (count > 0) {
+                int level = unit.getLvl() + 1;
+                int typeId = unit.getId();
+                String unitName = logic.getSubTypeName(typeId);
+                unitDescriptions.add("lvl " + level + " " + unitName + " x " + count);
             }
         }
 
@@ -357,12 +392,15 @@ public class VillageAnalyzer implements MessageTap {
         if (clanName != null) {
             // We keep the collection of stats for each clan in a a map from village ID -> stats
             String statKey = CLAN_STATS_PREFIX + clanName;
-            Map<Long, VillageStats> clanStats = (Map<Long, VillageStats>) sessionState.getAttribute(statKey);
-            if (clanStats == null) {
-                clanStats = new HashMap<>();
-                sessionState.setAttribute(statKey, clanStats);
+            Map<Long, VillageStats> sessionClanStats = (Map<Long, VillageStats>) sessionState.getAttribute(statKey);
+            if (sessionClanStats == null) {
+                sessionClanStats = new HashMap<>();
+                sessionState.setAttribute(statKey, sessionClanStats);
+            }
+            sessionClanStats.put(homeId, villageStats);
+            if (clanStats != null) {
+                clanStats.record(clanName, homeId, villageStats);
             }
-            clanStats.put(homeId, villageStats);
         }
     }
 
@@ -393,4 +431,54 @@ public class VillageAnalyzer implements MessageTap {
                 }
             });
     }
+
+    /**
+     * Summarise collected stats on session end, with the totals from every session for the clans seen in this one.
+     */
+    public static void logSession(ProxySession session, ClanStats clanStats) {
+        logSession(session);
+        session
+            .getSessionState()
+            .getAttributes()
+            .keySet()
+            .stream()
+            .filter(key -> key.startsWith(CLAN_STATS_PREFIX))
+            .map(key -> key.substring(CLAN_STATS_PREFIX.length()))
+            .forEach(clanName -> {
+                Collection<ClanStats.History> players = clanStats.getClan(clanName);
+                log.info(
+                    "{} villages in {} seen in all sessions, with total {}",
+                    players.size(), clanName, clanStats.getTotal(clanName)
+                );
+            });
+    }
+
+    /**
+     * Lookups resolved against one version of the logic.
+     */
+    private static class LogicView {
+        private final Logic logic;
+        private final LootCalculator lootCalculator;
+
+        //
+        // Building stats, looked up for every building of every village
+        //
+
+        private final DefenseProfile defenseProfile;
+        private final ColumnHandle producesResourceColumn;
+        private final ColumnHandle resourcePerHourColumn;
+        private final ColumnHandle resourceMaxColumn;
+
+        private final int boostMultiplier;
+
+        private LogicView(Logic logic) {
+            this.logic = logic;
+            this.lootCalculator = new LootCalculator(logic);
+            this.defenseProfile = new DefenseProfile(logic);
+            this.producesResourceColumn = logic.getColumn("buildings", "ProducesResource");
+            this.resourcePerHourColumn = logic.getColumn("buildings", "ResourcePerHour");
+            this.resourceMaxColumn = logic.getColumn("buildings", "ResourceMax");
+            this.boostMultiplier = logic.getInt("globals:RESOURCE_PRODUCTION_BOOST_MULTIPLIER", "NumberValue");
+        }
+    }
 }
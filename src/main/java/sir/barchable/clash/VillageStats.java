@@ -1,5 +1,9 @@
 package sir.barchable.clash;
 
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+
+import static com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility.ANY;
+
 /**
  * @author Sir Barchable
  *         Date: 27/04/15
@@ -21,6 +25,7 @@ public class VillageStats {
         return defense;
     }
 
+    @JsonAutoDetect(fieldVisibility = ANY)
     public static class Defense {
         private int hp;
         private int wallHp;
@@ -38,6 +43,10 @@ public class VillageStats {
             return hp;
         }
 
+        public int getWallHp() {
+            return wallHp;
+        }
+
         public int getDps() {
             return dps;
         }
@@ -46,6 +55,24 @@ public class VillageStats {
             return new Defense(hp + addend.hp, wallHp + addend.wallHp, dps + addend.dps);
         }
 
+        public Defense subtract(Defense subtrahend) {
+            return new Defense(hp - subtrahend.hp, wallHp - subtrahend.wallHp, dps - subtrahend.dps);
+        }
+
+        /**
+         * The smaller of each stat.
+         */
+        public Defense min(Defense other) {
+            return new Defense(Math.min(hp, other.hp), Math.min(wallHp, other.wallHp), Math.min(dps, other.dps));
+        }
+
+        /**
+         * The larger of each stat.
+         */
+        public Defense max(Defense other) {
+            return new Defense(Math.max(hp, other.hp), Math.max(wallHp, other.wallHp), Math.max(dps, other.dps));
+        }
+
         @Override
         public String toString() {
             return "Defense[" + "hp=" + hp + ", wallHp=" + wallHp + ", dps=" + dps + ']';
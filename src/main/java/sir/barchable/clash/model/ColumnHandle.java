@@ -0,0 +1,95 @@
+package sir.barchable.clash.model;
+
+import sir.barchable.clash.server.LogicException;
+
+/**
+ * A column of a logic table, resolved once so that repeated lookups are plain array reads.
+ * <p>
+ * Handles belong to the {@link Logic} they came from. Get them up front, for the columns you read in a loop:
+ * <pre>
+ *     ColumnHandle hitpoints = logic.getColumn("buildings", "Hitpoints");
+ *     ...
+ *     int hp = hitpoints.getInt(building.data, building.lvl);
+ * </pre>
+ *
+ * @author Sir Barchable
+ * @see Logic#getColumn(String, String)
+ */
+public final class ColumnHandle {
+    private final LogicTable table;
+    private final String column;
+    private final int typeBase;
+    private final int[] offsets;
+    private final int[] ints;
+    private final Object[] objects;
+
+    ColumnHandle(LogicTable table, String column, int typeBase, int[] offsets, int[] ints, Object[] objects) {
+        this.table = table;
+        this.column = column;
+        this.typeBase = typeBase;
+        this.offsets = offsets;
+        this.ints = ints;
+        this.objects = objects;
+    }
+
+    /**
+     * Get the level zero integer value for a type.
+     */
+    public int getInt(int typeId) {
+        return getInt(typeId, 0);
+    }
+
+    /**
+     * Get an integer value.
+     *
+     * @param typeId the type, which must be in this column's table
+     * @param level the object level
+     * @throws LogicException if the type isn't in the table
+     * @throws IllegalArgumentException if the type doesn't have the level
+     */
+    public int getInt(int typeId, int level) {
+        int row = getRow(typeId, level);
+        if (ints != null) {
+            return ints[row];
+        }
+        Object value = objects[row];
+        return value == null ? 0 : (Integer) value;
+    }
+
+    /**
+     * Get the level zero String value for a type.
+     */
+    public String getString(int typeId) {
+        return getString(typeId, 0);
+    }
+
+    /**
+     * Get a String value.
+     *
+     * @see #getInt(int, int)
+     */
+    public String getString(int typeId, int level) {
+        int row = getRow(typeId, level);
+        if (ints != null) {
+            throw new LogicException(column + " is an integer column");
+        }
+        return (String) objects[row];
+    }
+
+    private int getRow(int typeId, int level) {
+        int index = typeId - typeBase;
+        if (index < 0 || index >= offsets.length - 1) {
+            throw new LogicException("No data for " + table.getName() + ":" + index);
+        }
+        int row = offsets[index] + level;
+        if (level < 0 || row >= offsets[index + 1]) {
+            throw new IllegalArgumentException("" + level);
+        }
+        return row;
+    }
+
+    @Override
+    public String toString() {
+        return "ColumnHandle[" + table.getName() + ":" + column + ']';
+    }
+}
@@ -0,0 +1,191 @@
+package sir.barchable.clash.model;
+
+import sir.barchable.clash.model.json.Village;
+import sir.barchable.clash.model.json.WarVillage;
+
+/**
+ * Damage and hit points for every level of every building, copied out of the logic into flat arrays so that summing
+ * the defenses of a village is a loop over ints, with no name lookups.
+ * <p>
+ * A profile belongs to the {@link Logic} it was built from.
+ *
+ * @author Sir Barchable
+ */
+public final class DefenseProfile {
+    private static final byte WALL = 1;
+    private static final byte TESLA = 2;
+
+    /**
+     * The type id of the first building.
+     */
+    private final int typeBase;
+
+    /**
+     * The first row of each building, by index, followed by the total row count.
+     */
+    private final int[] offsets;
+
+    /**
+     * WALL and TESLA flags, by index.
+     */
+    private final byte[] flags;
+
+    /**
+     * Values by row, one row per building level.
+     */
+    private final int[] dps;
+    private final int[] hp;
+
+    public DefenseProfile(Logic logic) {
+        String[] names = logic.getSubTypeNames("buildings");
+        this.typeBase = logic.getTypeBase("buildings");
+        this.offsets = new int[names.length + 1];
+        this.flags = new byte[names.length];
+        for (int i = 0; i < names.length; i++) {
+            offsets[i + 1] = offsets[i] + logic.getMaxLevel(typeBase + i) + 1;
+            if (typeBase + i == ObjectType.WALL) {
+                flags[i] |= WALL;
+            }
+            if ("Tesla Tower".equals(names[i])) {
+                flags[i] |= TESLA;
+            }
+        }
+
+        ColumnHandle damageColumn = logic.getColumn("buildings", "Damage");
+        ColumnHandle hitpointsColumn = logic.getColumn("buildings", "Hitpoints");
+        this.dps = new int[offsets[names.length]];
+        this.hp = new int[offsets[names.length]];
+        for (int i = 0; i < names.length; i++) {
+            for (int row = offsets[i]; row < offsets[i + 1]; row++) {
+                dps[row] = damageColumn.getInt(typeBase + i, row - offsets[i]);
+                hp[row] = hitpointsColumn.getInt(typeBase + i, row - offsets[i]);
+            }
+        }
+    }
+
+    /**
+     * Is this the type id of a building?
+     */
+    public boolean isBuilding(int typeId) {
+        int index = typeId - typeBase;
+        return index >= 0 && index < flags.length;
+    }
+
+    /**
+     * Sum the defenses of a home village.
+     *
+     * @param buildings the village buildings
+     * @param countTeslas false to leave hidden teslas out, as they're not visible to an attacker
+     * @throws IllegalArgumentException if a building's level isn't in the logic
+     */
+    public Totals sum(Village.Building[] buildings, boolean countTeslas) {
+        Totals totals = new Totals();
+        for (Village.Building building : buildings) {
+            add(totals, building.data, level(building.lvl), countTeslas);
+        }
+        return totals;
+    }
+
+    /**
+     * Sum the defenses of a war village.
+     *
+     * @see #sum(Village.Building[], boolean)
+     */
+    public Totals sum(WarVillage.Building[] buildings, boolean countTeslas) {
+        Totals totals = new Totals();
+        for (WarVillage.Building building : buildings) {
+            add(totals, building.data, level(building.lvl), countTeslas);
+        }
+        return totals;
+    }
+
+    private static int level(Integer lvl) {
+        return lvl == null || lvl == -1 ? 0 : lvl;
+    }
+
+    /**
+     * Add a building to a running total, for villages that are read a building at a time.
+     *
+     * @param level the zero based level
+     * @see #sum(Village.Building[], boolean)
+     */
+    public void add(Totals totals, int typeId, int level, boolean countTeslas) {
+        int index = typeId - typeBase;
+        if (index < 0 || index >= flags.length) {
+            if (totals.unknownType == 0) {
+                totals.unknownType = typeId;
+            }
+            totals.unknownCount++;
+            return;
+        }
+
+        int row = offsets[index] + level;
+        if (level < 0 || row >= offsets[index + 1]) {
+            throw new IllegalArgumentException("" + level);
+        }
+
+        if (typeId == ObjectType.TOWN_HALL) {
+            totals.townHallLevel = level + 1;
+        }
+
+        int flag = flags[index];
+        if (countTeslas || (flag & TESLA) == 0) {
+            totals.dps += dps[row];
+            if ((flag & WALL) != 0) {
+                totals.wallHp += hp[row];
+            } else {
+                totals.hp += hp[row];
+            }
+        }
+    }
+
+    /**
+     * Defense totals for a village.
+     */
+    public static final class Totals {
+        private int hp;
+        private int wallHp;
+        private int dps;
+        private int townHallLevel;
+        private int unknownCount;
+        private int unknownType;
+
+        public Totals() { }
+
+        /**
+         * Hit points, not counting walls.
+         */
+        public int getHp() {
+            return hp;
+        }
+
+        public int getWallHp() {
+            return wallHp;
+        }
+
+        public int getDps() {
+            return dps;
+        }
+
+        /**
+         * The town hall level, one based, or 0 if there's no town hall.
+         */
+        public int getTownHallLevel() {
+            return townHallLevel;
+        }
+
+        /**
+         * The number of buildings that weren't in the logic, and were left out of the totals.
+         */
+        public int getUnknownCount() {
+            return unknownCount;
+        }
+
+        /**
+         * The type of the first building that wasn't in the logic.
+         */
+        public int getUnknownType() {
+            return unknownType;
+        }
+    }
+}
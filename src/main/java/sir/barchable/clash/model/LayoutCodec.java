@@ -0,0 +1,132 @@
+package sir.barchable.clash.model;
+
+import sir.barchable.clash.protocol.CaptureRecord;
+import sir.barchable.util.Delta;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Payloads of the {@link CaptureRecord.Kind#LAYOUT}, {@link CaptureRecord.Kind#LAYOUT_DELTA} and
+ * {@link CaptureRecord.Kind#SIGHTING} records in a capture log.
+ *
+ * @author Sir Barchable
+ */
+public final class LayoutCodec {
+    /**
+     * Static API.
+     */
+    private LayoutCodec() { }
+
+    /**
+     * @param json village JSON
+     * @return a layout record payload: the deflated JSON
+     */
+    public static byte[] encodeLayout(String json) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length() / 4);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_COMPRESSION))) {
+            out.write(json.getBytes(UTF_8));
+        } catch (IOException e) {
+            // Not from a byte array
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static String decodeLayout(byte[] payload) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(payload);
+            ByteArrayOutputStream json = new ByteArrayOutputStream(payload.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated layout");
+                }
+                json.write(buffer, 0, n);
+            }
+            return new String(json.toByteArray(), UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Bad layout", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @param base the layout hash of the base
+     * @param baseJson the base village JSON, exactly as it was stored
+     * @param json the new village JSON
+     * @return a layout delta record payload: the hash of the base, then the delta of the JSON
+     */
+    public static byte[] encodeDelta(long base, String baseJson, String json) {
+        byte[] delta = Delta.diff(baseJson.getBytes(UTF_8), json.getBytes(UTF_8));
+        return ByteBuffer.allocate(8 + delta.length).putLong(base).put(delta).array();
+    }
+
+    /**
+     * The layout hash of the base of a delta.
+     */
+    public static long getDeltaBase(byte[] payload) {
+        return ByteBuffer.wrap(payload).getLong();
+    }
+
+    /**
+     * @param baseJson the base village JSON
+     * @return the village JSON the delta was taken from
+     */
+    public static String applyDelta(String baseJson, byte[] payload) {
+        byte[] delta = new byte[payload.length - 8];
+        System.arraycopy(payload, 8, delta, 0, delta.length);
+        return new String(Delta.apply(baseJson.getBytes(UTF_8), delta), UTF_8);
+    }
+
+    /**
+     * @param message the encoded village message, without the village JSON
+     * @param layoutJson the village JSON of the sighting's layout, exactly as it was stored
+     * @param json the village JSON of the sighting, with its own timers
+     * @return a sighting record payload: the length of the message, the message, then the delta of the JSON from the
+     * layout's
+     */
+    public static byte[] encodeSighting(byte[] message, String layoutJson, String json) {
+        byte[] delta = Delta.diff(layoutJson.getBytes(UTF_8), json.getBytes(UTF_8));
+        ByteBuffer payload = ByteBuffer.allocate(4 + message.length + delta.length);
+        return payload.putInt(message.length).put(message).put(delta).array();
+    }
+
+    /**
+     * The encoded village message of a sighting, without the village JSON.
+     */
+    public static byte[] getSightingMessage(byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Bad sighting");
+        }
+        byte[] message = new byte[length];
+        buffer.get(message);
+        return message;
+    }
+
+    /**
+     * @param layoutJson the village JSON of the sighting's layout
+     * @return the village JSON of the sighting
+     */
+    public static String applySighting(String layoutJson, byte[] payload) {
+        int offset = 4 + ByteBuffer.wrap(payload).getInt();
+        if (offset < 4 || offset > payload.length) {
+            throw new IllegalArgumentException("Bad sighting");
+        }
+        byte[] delta = new byte[payload.length - offset];
+        System.arraycopy(payload, offset, delta, 0, delta.length);
+        return new String(Delta.apply(layoutJson.getBytes(UTF_8), delta), UTF_8);
+    }
+}
@@ -1,10 +1,15 @@
 package sir.barchable.clash.model;
 
+import sir.barchable.clash.ResourceException;
 import sir.barchable.clash.server.LogicException;
 
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static sir.barchable.clash.model.ObjectType.OID_RADIX;
 
@@ -31,6 +36,11 @@ import static sir.barchable.clash.model.ObjectType.OID_RADIX;
  * The last digits of the type ID identify the the group of lines within the file where the object is defined.
  * <p>
  * For example, the ID 1000010 identifies the 10th object defined in "buildings.csv", a wall unit.
+ * <p>
+ * Each file is held as a {@link LogicTable}, stored by column. Code that reads the same column over and over, such as
+ * the stats of every building in a village, should get a {@link ColumnHandle} for it once.
+ * <p>
+ * Tables can be loaded on first use, since most of them are never looked at. Loading is thread safe.
  *
  * @author Sir Barchable
  *         Date: 22/04/15
@@ -70,10 +80,161 @@ public class Logic {
         set(30, "news");
     }};
 
-    private Map<String, List<Data>> dataMap;
+    /**
+     * Inverse of {@link #objectTypes}.
+     */
+    private static final Map<String, Integer> typeBases = new HashMap<>();
+
+    static {
+        for (int i = 0; i < objectTypes.size(); i++) {
+            if (objectTypes.get(i) != null) {
+                typeBases.put(objectTypes.get(i), i);
+            }
+        }
+    }
+
+    /**
+     * Tables by name.
+     */
+    private final Map<String, LazyTable> tables = new LinkedHashMap<>();
+
+    /**
+     * Tables by type, the type id divided by {@link ObjectType#OID_RADIX}.
+     */
+    private final LazyTable[] tablesByType = new LazyTable[objectTypes.size()];
+
+    /**
+     * Objects by full type name, &lt;type&gt;:&lt;subtype&gt;, and by plain type name for the first object of each type.
+     * Filled in as tables are loaded.
+     */
+    private final Map<String, ObjectRef> objectsByFullName = new ConcurrentHashMap<>();
+
+    /**
+     * Town hall level type ids, by level. Filled in when the town hall levels are loaded.
+     */
+    private volatile int[] townHallLevelTypeIds = new int[0];
 
     public Logic(Map<String, List<Data>> dataMap) {
-        this.dataMap = dataMap;
+        this(toTables(dataMap));
+    }
+
+    public Logic(Collection<LogicTable> tables) {
+        Map<String, LogicTable> tablesByName = new LinkedHashMap<>();
+        for (LogicTable table : tables) {
+            tablesByName.put(table.getName(), table);
+        }
+        addTables(tablesByName.keySet(), tablesByName::get);
+    }
+
+    /**
+     * Logic that loads each of its tables the first time it's used.
+     *
+     * @param tableNames the names of the tables the loader can load
+     * @param loader loads a table by name. Tables may be loaded concurrently, but each is loaded at most once.
+     */
+    public Logic(Collection<String> tableNames, LogicTableLoader loader) {
+        addTables(tableNames, loader);
+    }
+
+    private void addTables(Collection<String> tableNames, LogicTableLoader loader) {
+        for (String name : tableNames) {
+            int type = objectTypes.indexOf(name);
+            LazyTable table = new LazyTable(name, type, loader);
+            tables.put(name, table);
+            if (type != -1) {
+                tablesByType[type] = table;
+            }
+        }
+    }
+
+    /**
+     * Load tables now, rather than on first use.
+     *
+     * @param typeNames the names of the tables to load, e.g. "buildings"
+     * @throws LogicException if there's no such table
+     */
+    public void warmUp(Collection<String> typeNames) {
+        typeNames.parallelStream().forEach(this::getTable);
+    }
+
+    /**
+     * Load every table now.
+     */
+    public void loadAll() {
+        getTables();
+    }
+
+    /**
+     * Roughly how much heap the loaded tables take.
+     *
+     * @return the size in bytes
+     * @see LogicTable#estimateSize()
+     */
+    public long estimateSize() {
+        long size = 0;
+        for (LazyTable table : tables.values()) {
+            if (table.isLoaded()) {
+                size += table.get().estimateSize();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Build the name indexes for a table, so that full name lookups don't have to split the name and search for it.
+     *
+     * @param type the type of the table's objects, or -1 if the objects don't have type ids
+     */
+    private void indexObjects(LogicTable table, int type) {
+        String typeName = table.getName();
+        objectsByFullName.put(typeName, new ObjectRef(table, 0, type == -1 ? -1 : type * OID_RADIX));
+        for (int i = table.size() - 1; i >= 0; i--) {
+            // First object wins if the names aren't unique
+            String fullName = typeName + ':' + table.getObjectName(i);
+            objectsByFullName.put(fullName, new ObjectRef(table, i, type == -1 ? -1 : type * OID_RADIX + i));
+        }
+
+        if (typeName.equals("townhall_levels") && type != -1) {
+            // Town hall levels are named after the level
+            int[] typeIds = new int[table.size() + 1];
+            for (int i = 0; i < table.size(); i++) {
+                try {
+                    int level = Integer.parseInt(table.getObjectName(i));
+                    if (level > 0 && level < typeIds.length && typeIds[level] == 0) {
+                        typeIds[level] = type * OID_RADIX + i;
+                    }
+                } catch (NumberFormatException e) {
+                    // Not a level
+                }
+            }
+            townHallLevelTypeIds = typeIds;
+        }
+    }
+
+    /**
+     * All of the tables, in the order they were added. Tables that haven't been used yet are loaded in parallel.
+     */
+    Collection<LogicTable> getTables() {
+        return tables.values().parallelStream().map(LazyTable::get).collect(Collectors.toList());
+    }
+
+    private static List<LogicTable> toTables(Map<String, List<Data>> dataMap) {
+        List<LogicTable> tables = new ArrayList<>();
+        for (Map.Entry<String, List<Data>> entry : dataMap.entrySet()) {
+            tables.add(LogicTable.of(entry.getKey(), entry.getValue()));
+        }
+        return tables;
+    }
+
+    /**
+     * Get a handle for fast repeated lookups of a column.
+     *
+     * @param typeName the type name, e.g. "buildings"
+     * @param column the property name
+     * @throws LogicException if there's no such type or column
+     */
+    public ColumnHandle getColumn(String typeName, String column) {
+        return getTable(typeName).getColumn(column, getTypeBase(typeName));
     }
 
     /**
@@ -99,8 +260,8 @@ public class Logic {
      */
 
     public int getInt(int typeId, String column, int level) {
-        Object value = getData(typeId).get(column, level);
-        return value == null ? 0 : (Integer) value;
+        LogicTable table = getTable(typeId);
+        return table.getInt(table.getColumnIndex(column), table.getRow(typeId % OID_RADIX, level));
     }
 
     /**
@@ -127,8 +288,9 @@ public class Logic {
      */
 
     public int getInt(String typeName, String column, int level) {
-        Object value = getData(typeName).get(column, level);
-        return value == null ? 0 : (Integer) value;
+        ObjectRef object = getObject(typeName);
+        LogicTable table = object.table;
+        return table.getInt(table.getColumnIndex(column), table.getRow(object.index, level));
     }
 
     /**
@@ -153,42 +315,46 @@ public class Logic {
      * @return the property value
      */
     public String getString(int typeId, String column, int level) {
-        return (String) getData(typeId).get(column, level);
+        LogicTable table = getTable(typeId);
+        return (String) table.get(table.getColumnIndex(column), table.getRow(typeId % OID_RADIX, level));
     }
 
-    private Data getData(int typeId) {
-        String type = getTypeName(typeId);
-        int subtype = typeId % OID_RADIX;
-        List<Data> data = dataMap.get(type);
-        if (subtype > data.size() - 1) {
-            throw new LogicException("No data for " + type + ":" + subtype);
+    private LogicTable getTable(int typeId) {
+        int type = typeId / OID_RADIX;
+        LazyTable table = type >= 0 && type < tablesByType.length ? tablesByType[type] : null;
+        if (table == null) {
+            throw new LogicException("No data for " + getTypeName(typeId));
         }
-        return data.get(subtype);
+        return table.get();
     }
 
-    private Data getData(String fullTypeName) {
-        int i = fullTypeName.indexOf(':');
+    private LogicTable getTable(String typeName) {
+        LazyTable table = tables.get(typeName);
+        if (table == null) {
+            throw new LogicException("No type " + typeName);
+        }
+        return table.get();
+    }
 
-        if (i == -1) {
-            List<Data> data = dataMap.get(fullTypeName);
-            if (data == null) {
-                throw new LogicException("No type " + fullTypeName);
-            }
-            return data.get(0);
-        } else {
-            String type = fullTypeName.substring(0, i);
-            List<Data> data = dataMap.get(type);
-            if (data == null) {
-                throw new LogicException("No type " + type);
+    /**
+     * Find an object by full type name, &lt;type&gt;:&lt;subtype&gt;, or by plain type name for the first object of the
+     * type.
+     */
+    private ObjectRef getObject(String fullTypeName) {
+        ObjectRef object = objectsByFullName.get(fullTypeName);
+        if (object == null) {
+            // The table may not have been loaded yet
+            int i = fullTypeName.indexOf(':');
+            LazyTable table = tables.get(i == -1 ? fullTypeName : fullTypeName.substring(0, i));
+            if (table != null && !table.isLoaded()) {
+                table.get();
+                object = objectsByFullName.get(fullTypeName);
             }
-            String subType = fullTypeName.substring(i + 1);
-            for (Data objectData : data) {
-                if (objectData.getName().equals(subType)) {
-                    return objectData;
-                }
+            if (object == null) {
+                throw new LogicException("No type " + fullTypeName);
             }
-            throw new LogicException("No type " + type);
         }
+        return object;
     }
 
     /**
@@ -215,7 +381,7 @@ public class Logic {
      * @param id type id
      */
     public String getSubTypeName(int id) {
-        return (String) getData(id).get("Name", 0);
+        return getTable(id).getObjectName(id % OID_RADIX);
     }
 
     /**
@@ -232,20 +398,29 @@ public class Logic {
      * @return the max level of the type, counting 0 as the first level
      */
     public int getMaxLevel(int typeId) {
-        return getData(typeId).size() - 1;
+        return getTable(typeId).getLevels(typeId % OID_RADIX) - 1;
     }
 
     public String[] getSubTypeNames(String typeName) {
-        return getSubTypeNames(typeName, x -> true);
+        if (!tables.containsKey(typeName)) {
+            return new String[0];
+        } else {
+            LogicTable table = getTable(typeName);
+            String[] names = new String[table.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = table.getObjectName(i);
+            }
+            return names;
+        }
     }
 
     public String[] getSubTypeNames(String typeName, Predicate<Data> filter) {
-        List<Data> dataList = dataMap.get(typeName);
-
-        if (dataList == null) {
+        if (!tables.containsKey(typeName)) {
             return new String[0];
         } else {
-            return dataList.stream()
+            LogicTable table = getTable(typeName);
+            return IntStream.range(0, table.size())
+                .mapToObj(table::getData)
                 .filter(filter)
                 .map(Data::getName).toArray(String[]::new);
         }
@@ -257,26 +432,54 @@ public class Logic {
      * @param subTypeName the subtype name
      */
     public int getTypeId(String typeName, String subTypeName) {
-        List<Data> dataList = dataMap.get(typeName);
-        if (dataList == null) {
+        if (!tables.containsKey(typeName)) {
             throw new LogicException("Unknown object type " + typeName);
         }
-        for (int i = 0; i < dataList.size(); i++) {
-            Data data = dataList.get(i);
-            if (data.getName().equalsIgnoreCase(resolveAlias(subTypeName))) {
-                return getTypeId(typeName) + i;
-            }
+        int index = getTable(typeName).indexOfIgnoreCase(resolveAlias(subTypeName));
+        if (index == -1) {
+            throw new LogicException("Unknown subtype " + subTypeName);
         }
-        throw new LogicException("Unknown subtype " + subTypeName);
+        return getTypeBase(typeName) + index;
     }
 
-    private int getTypeId(String key) {
-        for (int i = 0; i < objectTypes.size(); i++) {
-            if (key.equals(objectTypes.get(i))) {
-                return i * OID_RADIX;
-            }
+    /**
+     * Resolve a type id given a full type name.
+     *
+     * @param fullTypeName the full type name, &lt;type&gt;:&lt;subtype&gt;, e.g. "globals:WAR_LOOT_PERCENTAGE"
+     * @throws LogicException if there's no such type, or it doesn't have type ids
+     */
+    public int getTypeId(String fullTypeName) {
+        ObjectRef object = getObject(fullTypeName);
+        if (object.typeId == -1) {
+            throw new LogicException("Unknown object type " + object.table.getName());
+        }
+        return object.typeId;
+    }
+
+    /**
+     * Get the type id of a town hall level, for reading the townhall_levels table with a {@link ColumnHandle}.
+     *
+     * @param townHallLevel the town hall level, one based
+     * @throws LogicException if there's no such level
+     */
+    public int getTownHallLevelTypeId(int townHallLevel) {
+        LazyTable table = tables.get("townhall_levels");
+        if (table != null) {
+            table.get();
+        }
+        int[] townHallLevelTypeIds = this.townHallLevelTypeIds;
+        if (townHallLevel <= 0 || townHallLevel >= townHallLevelTypeIds.length || townHallLevelTypeIds[townHallLevel] == 0) {
+            throw new LogicException("No type townhall_levels:" + townHallLevel);
+        }
+        return townHallLevelTypeIds[townHallLevel];
+    }
+
+    int getTypeBase(String typeName) {
+        Integer type = typeBases.get(typeName);
+        if (type == null) {
+            throw new LogicException("Unknown object type " + typeName);
         }
-        throw new LogicException("Unknown object type " + key);
+        return type * OID_RADIX;
     }
 
     /**
@@ -308,7 +511,7 @@ public class Logic {
      * Alias map.
      * @see #resolveAlias(String)
      */
-    private static final Map<String, String> aliases = new HashMap<String, String>() {{
+    private static final Map<String, String> aliases = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER) {{
         put("MINION", "Gargoyle");
         put("VALKYRIE", "Warrior Girl");
         put("HOG RIDER", "Boar Rider");
@@ -327,7 +530,7 @@ public class Logic {
      * @return the canonical name, or the name if no match for the alias was found
      */
     public String resolveAlias(String name) {
-        String alias = aliases.get(name.toUpperCase());
+        String alias = aliases.get(name);
         return alias == null ? name : alias;
     }
 
@@ -338,7 +541,7 @@ public class Logic {
      * @param typeId the type id
      */
     public boolean checkType(String typeName, int typeId) {
-        int type = getTypeId(typeName);
+        int type = getTypeBase(typeName);
         return type / OID_RADIX == typeId / OID_RADIX;
     }
 
@@ -353,6 +556,63 @@ public class Logic {
         }
     }
 
+    /**
+     * A table that's loaded the first time it's used.
+     */
+    private final class LazyTable {
+        private final String name;
+        private final int type;
+        private final LogicTableLoader loader;
+        private volatile LogicTable table;
+
+        private LazyTable(String name, int type, LogicTableLoader loader) {
+            this.name = name;
+            this.type = type;
+            this.loader = loader;
+        }
+
+        boolean isLoaded() {
+            return table != null;
+        }
+
+        /**
+         * @throws ResourceException if the table can't be loaded
+         */
+        LogicTable get() {
+            LogicTable loaded = table;
+            if (loaded == null) {
+                synchronized (this) {
+                    loaded = table;
+                    if (loaded == null) {
+                        try {
+                            loaded = loader.load(name);
+                        } catch (IOException e) {
+                            throw new ResourceException("Could not load logic table " + name, e);
+                        }
+                        indexObjects(loaded, type);
+                        table = loaded;
+                    }
+                }
+            }
+            return loaded;
+        }
+    }
+
+    /**
+     * An object located by name.
+     */
+    private static final class ObjectRef {
+        private final LogicTable table;
+        private final int index;
+        private final int typeId;
+
+        private ObjectRef(LogicTable table, int index, int typeId) {
+            this.table = table;
+            this.index = index;
+            this.typeId = typeId;
+        }
+    }
+
     public static class Data {
         public enum Type {
             STRING(String::valueOf), INT(Integer::valueOf), BOOLEAN(Boolean::valueOf);
@@ -384,6 +644,14 @@ public class Logic {
             return (String) lines.get(0)[0];
         }
 
+        String[] getHeader() {
+            return header;
+        }
+
+        List<Object[]> getLines() {
+            return lines;
+        }
+
         public int getColumnIndex(String name) {
             if (name == null) {
                 throw new NullPointerException();
@@ -411,10 +679,6 @@ public class Logic {
             return lines.size();
         }
 
-        void addLine(Object[] values) {
-            lines.add(values);
-        }
-
         @Override
         public String toString() {
             return "Data[" + getName() + ", size=" + lines.size() + ']';
@@ -8,13 +8,14 @@ import sir.barchable.clash.ResourceException;
 
 import java.io.*;
 import java.nio.file.Files;
-import java.util.ArrayList;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.jar.JarFile;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import static com.google.common.base.Strings.isNullOrEmpty;
 
@@ -26,6 +27,7 @@ public final class LogicParser {
     private static final Logger log = LoggerFactory.getLogger(LogicParser.class);
     private static final String NAME_KEY = "Name";
     private static Pattern CSV_ENTRY_PATTERN = Pattern.compile("^.*logic.(\\w+)\\.csv$");
+    private static final int BUFFER_SIZE = 64 * 1024;
 
     public static void main(String[] args) throws IOException {
         Logic logic = loadLogic(new File("apk/assets/logic"));
@@ -44,53 +46,64 @@ public final class LogicParser {
         }
     }
 
+    /**
+     * Files are parsed the first time they're used.
+     */
     private static Logic loadLogicFromDir(File dir) throws IOException {
-        Map<String, List<Logic.Data>> logic = new LinkedHashMap<>();
-
-        Files.walk(dir.toPath())
-            .forEach(entry -> {
-                String path = entry.toString();
-                Matcher matcher = CSV_ENTRY_PATTERN.matcher(path);
+        Map<String, Path> files = new LinkedHashMap<>();
+        try (Stream<Path> walk = Files.walk(dir.toPath())) {
+            walk.forEach(entry -> {
+                Matcher matcher = CSV_ENTRY_PATTERN.matcher(entry.toString());
                 if (matcher.matches()) {
-                    log.debug("Loading {}", path);
-                    try {
-                        try (FileInputStream in = new FileInputStream(entry.toFile())) {
-                            logic.put(matcher.group(1), loadLogicFile(in));
-                        }
-                    } catch (RuntimeException | IOException e) {
-                        throw new ResourceException("Could not read logic file " + path, e);
-                    }
+                    files.put(matcher.group(1), entry);
                 }
             });
+        }
 
-        return new Logic(logic);
+        return new Logic(files.keySet(), name -> {
+            Path path = files.get(name);
+            log.debug("Loading {}", path);
+            try (InputStream in = new BufferedInputStream(new FileInputStream(path.toFile()))) {
+                return loadLogicFile(name, in);
+            } catch (RuntimeException | IOException e) {
+                throw new ResourceException("Could not read logic file " + path, e);
+            }
+        });
     }
 
+    /**
+     * Entries are decompressed and parsed the first time they're used. Each load opens the jar again, so the APK isn't
+     * held open, and concurrent loads don't interfere with each other.
+     */
     private static Logic loadLogicFromApk(File apk) throws IOException {
-        Map<String, List<Logic.Data>> logic = new LinkedHashMap<>();
-
-        JarFile jar = new JarFile(apk);
-        jar.stream()
-            .forEach(entry -> {
-                String path = entry.getName();
-                Matcher matcher = CSV_ENTRY_PATTERN.matcher(path);
+        Map<String, String> entries = new LinkedHashMap<>();
+        try (JarFile jar = new JarFile(apk)) {
+            jar.stream().forEach(entry -> {
+                Matcher matcher = CSV_ENTRY_PATTERN.matcher(entry.getName());
                 if (matcher.matches()) {
-                    log.debug("Loading {}", path);
-                    try (
-                        InputStream in = newClashLzmaInputStream(jar.getInputStream(entry))
-                    ) {
-                        logic.put(matcher.group(1), loadLogicFile(in));
-                    } catch (IOException e) {
-                        throw new ResourceException(e);
-                    }
+                    entries.put(matcher.group(1), entry.getName());
                 }
             });
+        }
 
-        return new Logic(logic);
+        return new Logic(entries.keySet(), name -> {
+            String path = entries.get(name);
+            log.debug("Loading {}", path);
+            try (
+                JarFile jar = new JarFile(apk);
+                InputStream in = newClashLzmaInputStream(jar.getInputStream(jar.getJarEntry(path)))
+            ) {
+                return loadLogicFile(name, in);
+            }
+        });
     }
 
+    /**
+     * The LZMA decoder reads its input a byte at a time, so buffer the compressed stream to keep those reads off the
+     * inflater underneath.
+     */
     public static InputStream newClashLzmaInputStream(InputStream in) throws IOException {
-        return new LZMAInputStream(new PatchStream(in));
+        return new LZMAInputStream(new BufferedInputStream(new PatchStream(in), BUFFER_SIZE));
     }
 
     /**
@@ -118,38 +131,59 @@ public final class LogicParser {
             return c;
         }
 
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (i >= 8 && i < 12) {
+                // In the patch, fill with zeros up to the end of it
+                int n = Math.min(len, 12 - i);
+                Arrays.fill(b, off, off + n, (byte) 0);
+                i += n;
+                return n;
+            }
+            if (i < 8) {
+                // Don't read past the start of the patch
+                len = Math.min(len, 8 - i);
+            }
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                i += n;
+            }
+            return n;
+        }
+
         @Override
         public void close() throws IOException {
             in.close();
         }
     }
 
-    static ArrayList<Logic.Data> loadLogicFile(InputStream in) throws IOException {
+    /**
+     * Parse a logic csv file. Lines are parsed as they're read, straight into the table.
+     */
+    static LogicTable loadLogicFile(String name, InputStream in) throws IOException {
         CSVReader reader = new CSVReader(new InputStreamReader(in));
-        List<String[]> lines = reader.readAll();
-        String[] header = lines.get(0);
-        Logic.Data.Type[] types = parseTypes(lines.get(1));
+        String[] header = reader.readNext();
+        String[] typeNames = reader.readNext();
+        if (header == null || typeNames == null) {
+            throw new ResourceException("Missing header in " + name);
+        }
+        Logic.Data.Type[] types = parseTypes(typeNames);
         if (!NAME_KEY.equals(header[0]) || types[0] != Logic.Data.Type.STRING) {
             log.debug("Forcing Name column");
             header[0] = NAME_KEY;
             types[0] = Logic.Data.Type.STRING;
         }
 
-        ArrayList<Logic.Data> logic = new ArrayList<>();
-
-        Logic.Data data = null;
-        for (int i = 2; i < lines.size(); i++) {
-            String[] line = lines.get(i);
-            if (!isNullOrEmpty(line[0])) {
-                data = new Logic.Data(header);
-                logic.add(data);
-            } else if (data == null) {
-                throw new ResourceException("Sub-header not found");
-            }
-            data.addLine(parseValues(types, line));
+        LogicTable.Builder table = new LogicTable.Builder(name, header, types);
+        String[] line;
+        while ((line = reader.readNext()) != null) {
+            table.addLine(parseValues(types, line));
         }
 
-        return logic;
+        return table.build();
     }
 
     private static Logic.Data.Type[] parseTypes(String[] typeNames) {
@@ -0,0 +1,373 @@
+package sir.barchable.clash.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sir.barchable.clash.ResourceException;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A binary copy of a parsed {@link Logic}, so that later runs can skip decompressing and parsing the csv files.
+ * <p>
+ * A snapshot is keyed by a hash of the logic it was made from, and is only read back for the same key. The tables are
+ * written column by column, as they're held in memory, and read back from a memory mapped file with bulk copies. A
+ * directory at the start of the file locates each table, so tables are only read when they're first used.
+ * <p>
+ * Layout, big endian:
+ * <pre>
+ *     magic, version
+ *     key length, key
+ *     table count
+ *     for each table: name, offset of the table from the start of the file, length
+ *     for each table:
+ *         column names, object names, row offsets
+ *         for each column: kind (int or object), values by row
+ * </pre>
+ * Strings are a byte count (-1 for null) followed by UTF-8. Object values are a tag followed by the value.
+ *
+ * @author Sir Barchable
+ */
+public final class LogicSnapshot {
+    private static final Logger log = LoggerFactory.getLogger(LogicSnapshot.class);
+
+    private static final int MAGIC = 0x424c4743; // "BLGC"
+
+    /**
+     * Bump this when the layout changes, to invalidate old snapshots.
+     */
+    private static final int VERSION = 2;
+
+    private static final byte INT_COLUMN = 0;
+    private static final byte OBJECT_COLUMN = 1;
+
+    private static final byte NULL_TAG = 0;
+    private static final byte STRING_TAG = 1;
+    private static final byte INTEGER_TAG = 2;
+    private static final byte BOOLEAN_TAG = 3;
+
+    private LogicSnapshot() { }
+
+    /**
+     * Hash the content of a logic file, or of all the files in a logic directory, to key a snapshot.
+     *
+     * @return a SHA-256 hash
+     */
+    public static byte[] hash(File logicFile) throws IOException {
+        MessageDigest digest = newDigest();
+        if (logicFile.isDirectory()) {
+            Path root = logicFile.toPath();
+            List<Path> files;
+            try (Stream<Path> walk = Files.walk(root)) {
+                files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                digest.update(root.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                update(digest, file.toFile());
+            }
+        } else {
+            update(digest, logicFile);
+        }
+        return digest.digest();
+    }
+
+    private static void update(MessageDigest digest, File file) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write a snapshot. The file is replaced in one step, so a reader never sees half a snapshot.
+     *
+     * @param key the hash of the logic source
+     */
+    public static void write(Logic logic, byte[] key, File file) throws IOException {
+        // Serialize the tables first, to size the directory
+        Collection<LogicTable> tables = logic.getTables();
+        List<byte[]> bodies = new ArrayList<>(tables.size());
+        ByteArrayOutputStream directory = new ByteArrayOutputStream();
+        DataOutputStream directoryOut = new DataOutputStream(directory);
+        for (LogicTable table : tables) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(body)) {
+                writeTable(out, table);
+            }
+            bodies.add(body.toByteArray());
+            writeString(directoryOut, table.getName());
+            directoryOut.writeInt(0); // Offset, filled in below
+            directoryOut.writeInt(body.size());
+        }
+
+        int offset = 4 + 4 + 4 + key.length + 4 + directory.size();
+        ByteBuffer entries = ByteBuffer.wrap(directory.toByteArray());
+        for (byte[] body : bodies) {
+            int nameLength = entries.getInt();
+            entries.position(entries.position() + nameLength);
+            entries.putInt(offset);
+            entries.getInt();
+            offset += body.length;
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(key.length);
+            out.write(key);
+            out.writeInt(tables.size());
+            out.write(entries.array());
+            for (byte[] body : bodies) {
+                out.write(body);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeTable(DataOutputStream out, LogicTable table) throws IOException {
+        writeStrings(out, table.getHeader());
+        writeStrings(out, table.getNames());
+        writeInts(out, table.getOffsets());
+        for (int column = 0; column < table.getHeader().length; column++) {
+            int[] ints = table.getIntColumn(column);
+            if (ints != null) {
+                out.writeByte(INT_COLUMN);
+                writeInts(out, ints);
+            } else {
+                out.writeByte(OBJECT_COLUMN);
+                Object[] values = table.getObjectColumn(column);
+                out.writeInt(values.length);
+                for (Object value : values) {
+                    writeValue(out, value);
+                }
+            }
+        }
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL_TAG);
+        } else if (value instanceof String) {
+            out.writeByte(STRING_TAG);
+            writeString(out, (String) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER_TAG);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN_TAG);
+            out.writeBoolean((Boolean) value);
+        } else {
+            throw new IllegalArgumentException("Can't snapshot " + value.getClass().getName());
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] ints) throws IOException {
+        out.writeInt(ints.length);
+        for (int i : ints) {
+            out.writeInt(i);
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        out.writeInt(strings.length);
+        for (String s : strings) {
+            writeString(out, s);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Read a snapshot. Only the directory is read now; the tables are read when they're first used, and the file stays
+     * mapped while the logic is in use.
+     *
+     * @param key the hash of the logic source
+     * @return the logic, or null if there's no snapshot, or it was made from different logic or by a different version
+     * @throws ResourceException if the snapshot is corrupt. A table that turns out to be corrupt when it's read throws
+     * the same.
+     */
+    public static Logic read(File file, byte[] key) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new ResourceException(file + " is not a logic snapshot");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                log.debug("Ignoring version {} logic snapshot", version);
+                return null;
+            }
+            byte[] snapshotKey = new byte[buffer.getInt()];
+            buffer.get(snapshotKey);
+            if (!Arrays.equals(key, snapshotKey)) {
+                log.debug("Ignoring logic snapshot of different logic");
+                return null;
+            }
+
+            Reader directory = new Reader(buffer);
+            int count = buffer.getInt();
+            Map<String, ByteBuffer> bodies = new LinkedHashMap<>();
+            int end = buffer.position();
+            for (int i = 0; i < count; i++) {
+                String name = directory.readString();
+                int offset = buffer.getInt();
+                int length = buffer.getInt();
+                ByteBuffer body = buffer.duplicate();
+                body.position(offset);
+                body.limit(offset + length);
+                bodies.put(name, body.slice());
+                end = Math.max(end, offset + length);
+            }
+            if (end != buffer.limit()) {
+                throw new ResourceException("Logic snapshot " + file + " is the wrong size");
+            }
+
+            return new Logic(bodies.keySet(), name -> readTable(file, name, bodies.get(name).duplicate()));
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new ResourceException("Corrupt logic snapshot " + file, e);
+        }
+    }
+
+    private static LogicTable readTable(File file, String name, ByteBuffer body) {
+        try {
+            LogicTable table = new Reader(body).readTable(name);
+            if (body.hasRemaining()) {
+                throw new ResourceException("Trailing data after " + name);
+            }
+            return table;
+        } catch (RuntimeException e) {
+            throw new ResourceException("Corrupt logic snapshot " + file, e);
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer buffer;
+
+        /**
+         * Values repeat a lot (resource names, file names...) so share the strings.
+         */
+        private final Map<String, String> strings = new HashMap<>();
+
+        private Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        LogicTable readTable(String name) {
+            String[] header = readStrings();
+            String[] names = readStrings();
+            int[] offsets = readInts();
+            if (offsets.length != names.length + 1) {
+                throw new ResourceException("Bad row offsets for " + name);
+            }
+            int rows = offsets[names.length];
+
+            int[][] intColumns = new int[header.length][];
+            Object[][] objectColumns = new Object[header.length][];
+            for (int column = 0; column < header.length; column++) {
+                byte kind = buffer.get();
+                int length;
+                if (kind == INT_COLUMN) {
+                    intColumns[column] = readInts();
+                    length = intColumns[column].length;
+                } else if (kind == OBJECT_COLUMN) {
+                    Object[] values = new Object[buffer.getInt()];
+                    for (int row = 0; row < values.length; row++) {
+                        values[row] = readValue();
+                    }
+                    objectColumns[column] = values;
+                    length = values.length;
+                } else {
+                    throw new ResourceException("Bad column kind " + kind);
+                }
+                if (length != rows) {
+                    throw new ResourceException("Bad column length for " + name + ":" + header[column]);
+                }
+            }
+
+            return new LogicTable(name, header, names, offsets, intColumns, objectColumns);
+        }
+
+        private Object readValue() {
+            byte tag = buffer.get();
+            switch (tag) {
+                case NULL_TAG:
+                    return null;
+                case STRING_TAG:
+                    return readString();
+                case INTEGER_TAG:
+                    return buffer.getInt();
+                case BOOLEAN_TAG:
+                    return buffer.get() != 0;
+                default:
+                    throw new ResourceException("Bad value tag " + tag);
+            }
+        }
+
+        private int[] readInts() {
+            int[] ints = new int[buffer.getInt()];
+            buffer.asIntBuffer().get(ints);
+            buffer.position(buffer.position() + ints.length * 4);
+            return ints;
+        }
+
+        private String[] readStrings() {
+            String[] strings = new String[buffer.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString();
+            }
+            return strings;
+        }
+
+        private String readString() {
+            int length = buffer.getInt();
+            if (length == -1) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            String s = new String(bytes, StandardCharsets.UTF_8);
+            String shared = strings.putIfAbsent(s, s);
+            return shared == null ? s : shared;
+        }
+    }
+}
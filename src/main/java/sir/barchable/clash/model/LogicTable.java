@@ -0,0 +1,431 @@
+package sir.barchable.clash.model;
+
+import sir.barchable.clash.ResourceException;
+import sir.barchable.clash.server.LogicException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The contents of one logic csv file, stored by column.
+ * <p>
+ * Each object in the file has one row for each of its levels, and the rows of all objects are stored end to end. Row
+ * offsets map an object index (the last digits of a type id) to its first row. Integer columns are held in int
+ * arrays, and everything else in object arrays.
+ * <p>
+ * In the csv files only the first level of an object fills in every column; higher levels leave a column empty if the
+ * value is unchanged. Those gaps are filled from the first level when the table is built, so a lookup is a single
+ * array read. Missing integers read as zero.
+ *
+ * @author Sir Barchable
+ */
+public final class LogicTable {
+    private final String name;
+    private final String[] header;
+    private final Map<String, Integer> columnIndexes;
+
+    /**
+     * Object names, by index.
+     */
+    private final String[] names;
+
+    /**
+     * Object indexes, by name, and by lower case name for case insensitive lookups.
+     */
+    private final Map<String, Integer> nameIndexes;
+    private final Map<String, Integer> foldedNameIndexes;
+
+    /**
+     * The first row of each object, by index, followed by the total row count.
+     */
+    private final int[] offsets;
+
+    /**
+     * Integer column values, by column then row. Null for other columns.
+     */
+    private final int[][] intColumns;
+
+    /**
+     * Other column values, by column then row. Null for integer columns.
+     */
+    private final Object[][] objectColumns;
+
+    LogicTable(String name, String[] header, String[] names, int[] offsets, int[][] intColumns, Object[][] objectColumns) {
+        this.name = name;
+        this.header = header;
+        this.names = names;
+        this.offsets = offsets;
+        this.intColumns = intColumns;
+        this.objectColumns = objectColumns;
+        this.columnIndexes = new HashMap<>();
+        for (int i = header.length - 1; i >= 0; i--) {
+            // First column wins if the names aren't unique
+            columnIndexes.put(header[i], i);
+        }
+        this.nameIndexes = new HashMap<>();
+        this.foldedNameIndexes = new HashMap<>();
+        for (int i = names.length - 1; i >= 0; i--) {
+            // First object wins, as it did for a scan
+            nameIndexes.put(names[i], i);
+            foldedNameIndexes.put(fold(names[i]), i);
+        }
+    }
+
+    /**
+     * Build a table from row data.
+     */
+    public static LogicTable of(String name, List<Logic.Data> data) {
+        if (data.isEmpty()) {
+            return new Builder(name, new String[] {"Name"}, new Logic.Data.Type[] {Logic.Data.Type.STRING}).build();
+        }
+        String[] header = data.get(0).getHeader();
+        Logic.Data.Type[] types = new Logic.Data.Type[header.length];
+        for (int column = 0; column < header.length; column++) {
+            // A column is an integer column if everything in it is an integer
+            types[column] = Logic.Data.Type.INT;
+            boolean empty = true;
+            for (Logic.Data object : data) {
+                for (Object[] line : object.getLines()) {
+                    Object value = column < line.length ? line[column] : null;
+                    if (value != null) {
+                        empty = false;
+                        if (!(value instanceof Integer)) {
+                            types[column] = Logic.Data.Type.STRING;
+                        }
+                    }
+                }
+            }
+            if (empty) {
+                types[column] = Logic.Data.Type.STRING;
+            }
+        }
+        Builder builder = new Builder(name, header, types);
+        for (Logic.Data object : data) {
+            for (Object[] line : object.getLines()) {
+                builder.addLine(line);
+            }
+        }
+        return builder.build();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The number of objects in the table.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * The name of an object.
+     *
+     * @param index the object index
+     */
+    public String getObjectName(int index) {
+        checkIndex(index);
+        return names[index];
+    }
+
+    /**
+     * The number of levels of an object.
+     *
+     * @param index the object index
+     */
+    public int getLevels(int index) {
+        checkIndex(index);
+        return offsets[index + 1] - offsets[index];
+    }
+
+    /**
+     * Find an object by name.
+     *
+     * @return the object index, or -1 if there's no object with the name
+     */
+    public int indexOf(String objectName) {
+        Integer index = nameIndexes.get(objectName);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Find an object by name, ignoring case.
+     *
+     * @return the object index, or -1 if there's no object with the name
+     */
+    public int indexOfIgnoreCase(String objectName) {
+        // Names usually arrive in the right case, so try that before folding
+        Integer index = nameIndexes.get(objectName);
+        if (index == null) {
+            index = foldedNameIndexes.get(fold(objectName));
+        }
+        return index == null ? -1 : index;
+    }
+
+    private static String fold(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @throws LogicException if there's no such column
+     */
+    public int getColumnIndex(String column) {
+        if (column == null) {
+            throw new NullPointerException();
+        }
+        Integer index = columnIndexes.get(column);
+        if (index == null) {
+            throw new LogicException("No column " + column);
+        }
+        return index;
+    }
+
+    /**
+     * Roughly how much heap the table takes, assuming a 64 bit VM with compressed references. Strings are counted once
+     * however many times they appear. The name indexes aren't counted.
+     *
+     * @return the size in bytes
+     */
+    public long estimateSize() {
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        long size = arraySize(offsets.length, 4) + sizeOf(header, seen) + sizeOf(names, seen);
+        for (int column = 0; column < header.length; column++) {
+            if (intColumns[column] != null) {
+                size += arraySize(intColumns[column].length, 4);
+            } else {
+                size += sizeOf(objectColumns[column], seen);
+            }
+        }
+        return size;
+    }
+
+    private static long sizeOf(Object[] values, Set<Object> seen) {
+        long size = arraySize(values.length, 4);
+        for (Object value : values) {
+            if (value != null && seen.add(value)) {
+                if (value instanceof String) {
+                    // String object, and its char array
+                    size += 24 + arraySize(((String) value).length(), 2);
+                } else if (value instanceof Integer) {
+                    size += 16;
+                }
+            }
+        }
+        return size;
+    }
+
+    private static long arraySize(int length, int elementSize) {
+        return (16 + (long) length * elementSize + 7) / 8 * 8;
+    }
+
+    /**
+     * Get a handle that reads a column without looking it up again.
+     *
+     * @param typeBase the type id of the first object in the table
+     */
+    ColumnHandle getColumn(String column, int typeBase) {
+        int index = getColumnIndex(column);
+        return new ColumnHandle(this, column, typeBase, offsets, intColumns[index], objectColumns[index]);
+    }
+
+    /**
+     * The row holding a level of an object.
+     *
+     * @throws LogicException if there's no such object
+     * @throws IllegalArgumentException if the object doesn't have the level
+     */
+    int getRow(int index, int level) {
+        checkIndex(index);
+        int row = offsets[index] + level;
+        if (level < 0 || row >= offsets[index + 1]) {
+            throw new IllegalArgumentException("" + level);
+        }
+        return row;
+    }
+
+    int getInt(int column, int row) {
+        int[] ints = intColumns[column];
+        if (ints != null) {
+            return ints[row];
+        }
+        Object value = objectColumns[column][row];
+        return value == null ? 0 : (Integer) value;
+    }
+
+    Object get(int column, int row) {
+        int[] ints = intColumns[column];
+        return ints != null ? ints[row] : objectColumns[column][row];
+    }
+
+    //
+    // Raw storage, for snapshots
+    //
+
+    String[] getHeader() {
+        return header;
+    }
+
+    String[] getNames() {
+        return names;
+    }
+
+    int[] getOffsets() {
+        return offsets;
+    }
+
+    int[] getIntColumn(int column) {
+        return intColumns[column];
+    }
+
+    Object[] getObjectColumn(int column) {
+        return objectColumns[column];
+    }
+
+    /**
+     * Copy an object back out into row form.
+     */
+    Logic.Data getData(int index) {
+        checkIndex(index);
+        List<Object[]> lines = new ArrayList<>();
+        for (int row = offsets[index]; row < offsets[index + 1]; row++) {
+            Object[] line = new Object[header.length];
+            for (int column = 0; column < header.length; column++) {
+                line[column] = get(column, row);
+            }
+            lines.add(line);
+        }
+        return new Logic.Data(header, lines);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= names.length) {
+            throw new LogicException("No data for " + name + ":" + index);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "LogicTable[" + name + ", size=" + names.length + ']';
+    }
+
+    /**
+     * Builds a table line by line, in csv order. A line with a name in the first column starts a new object, and the
+     * lines that follow are its higher levels.
+     */
+    public static class Builder {
+        private final String name;
+        private final String[] header;
+        private final boolean[] intColumn;
+
+        private final List<String> names = new ArrayList<>();
+        private int[] offsets = new int[16];
+        private int rows;
+
+        private final int[][] ints;
+        private final BitSet[] present;
+        private final List<List<Object>> objects = new ArrayList<>();
+
+        /**
+         * @param header the column names
+         * @param types the column types
+         */
+        public Builder(String name, String[] header, Logic.Data.Type[] types) {
+            this.name = name;
+            this.header = header;
+            this.intColumn = new boolean[header.length];
+            this.ints = new int[header.length][];
+            this.present = new BitSet[header.length];
+            for (int i = 0; i < header.length; i++) {
+                intColumn[i] = i < types.length && types[i] == Logic.Data.Type.INT;
+                if (intColumn[i]) {
+                    ints[i] = new int[64];
+                    present[i] = new BitSet();
+                    objects.add(null);
+                } else {
+                    objects.add(new ArrayList<>());
+                }
+            }
+        }
+
+        /**
+         * Add a line of parsed values. Nulls are empty cells.
+         *
+         * @throws ResourceException if the first line doesn't start an object
+         */
+        public Builder addLine(Object[] values) {
+            Object first = values.length > 0 ? values[0] : null;
+            if (first != null && !"".equals(first)) {
+                if (names.size() + 1 >= offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                offsets[names.size()] = rows;
+                names.add(first.toString());
+            } else if (names.isEmpty()) {
+                throw new ResourceException("Sub-header not found");
+            }
+            for (int column = 0; column < header.length; column++) {
+                Object value = column < values.length ? values[column] : null;
+                if (intColumn[column]) {
+                    if (rows == ints[column].length) {
+                        ints[column] = Arrays.copyOf(ints[column], rows * 2);
+                    }
+                    if (value != null) {
+                        ints[column][rows] = (Integer) value;
+                        present[column].set(rows);
+                    }
+                } else {
+                    objects.get(column).add(value);
+                }
+            }
+            rows++;
+            return this;
+        }
+
+        public LogicTable build() {
+            int size = names.size();
+            int[] tableOffsets = Arrays.copyOf(offsets, size + 1);
+            tableOffsets[size] = rows;
+
+            int[][] intColumns = new int[header.length][];
+            Object[][] objectColumns = new Object[header.length][];
+            for (int column = 0; column < header.length; column++) {
+                if (intColumn[column]) {
+                    int[] values = Arrays.copyOf(ints[column], rows);
+                    for (int i = 0; i < size; i++) {
+                        int base = tableOffsets[i];
+                        for (int row = base + 1; row < tableOffsets[i + 1]; row++) {
+                            if (!present[column].get(row)) {
+                                values[row] = values[base];
+                            }
+                        }
+                    }
+                    intColumns[column] = values;
+                } else {
+                    Object[] values = objects.get(column).toArray();
+                    for (int i = 0; i < size; i++) {
+                        int base = tableOffsets[i];
+                        for (int row = base + 1; row < tableOffsets[i + 1]; row++) {
+                            if (values[row] == null) {
+                                values[row] = values[base];
+                            }
+                        }
+                    }
+                    objectColumns[column] = values;
+                }
+            }
+
+            return new LogicTable(
+                name, header, names.toArray(new String[size]), tableOffsets, intColumns, objectColumns
+            );
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package sir.barchable.clash.model;
+
+import java.io.IOException;
+
+/**
+ * Loads a {@link LogicTable} on demand.
+ *
+ * @author Sir Barchable
+ * @see Logic#Logic(java.util.Collection, LogicTableLoader)
+ */
+public interface LogicTableLoader {
+    /**
+     * @param name the table name, e.g. "buildings"
+     */
+    LogicTable load(String name) throws IOException;
+}
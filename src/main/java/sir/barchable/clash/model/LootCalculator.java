@@ -13,8 +13,32 @@ public class LootCalculator {
 
     private Logic logic;
 
+    //
+    // Globals, which don't change for the life of the logic
+    //
+
+    private final int collectorLootPercent;
+    private final int collectorDarkElixirLootPercent;
+    private final int castleLootPercent;
+
+    //
+    // Storage loot limits, by town hall level
+    //
+
+    private final ColumnHandle storageLootPercentColumn;
+    private final ColumnHandle storageLootCapColumn;
+    private final ColumnHandle darkElixirStorageLootPercentColumn;
+    private final ColumnHandle darkElixirStorageLootCapColumn;
+
     public LootCalculator(Logic logic) {
         this.logic = logic;
+        this.collectorLootPercent = logic.getInt("globals:RESOURCE_PRODUCTION_LOOT_PERCENTAGE", "NumberValue");
+        this.collectorDarkElixirLootPercent = logic.getInt("globals:RESOURCE_PRODUCTION_LOOT_PERCENTAGE_DARK_ELIXIR", "NumberValue");
+        this.castleLootPercent = logic.getInt("globals:WAR_LOOT_PERCENTAGE", "NumberValue");
+        this.storageLootPercentColumn = logic.getColumn("townhall_levels", "ResourceStorageLootPercentage");
+        this.storageLootCapColumn = logic.getColumn("townhall_levels", "ResourceStorageLootCap");
+        this.darkElixirStorageLootPercentColumn = logic.getColumn("townhall_levels", "DarkElixirStorageLootPercentage");
+        this.darkElixirStorageLootCapColumn = logic.getColumn("townhall_levels", "DarkElixirStorageLootCap");
     }
 
     public LootCollection calculateAvailableLoot(LootCollection loot, int level) {
@@ -42,8 +66,8 @@ public class LootCalculator {
     }
 
     public Loot calculateAvailableCollectorLoot(Loot collectorLoot, int level) {
-        int rPercent = logic.getInt("globals:RESOURCE_PRODUCTION_LOOT_PERCENTAGE", "NumberValue");
-        int dePercent = logic.getInt("globals:RESOURCE_PRODUCTION_LOOT_PERCENTAGE_DARK_ELIXIR", "NumberValue");
+        int rPercent = collectorLootPercent;
+        int dePercent = collectorDarkElixirLootPercent;
 
         return new Loot(
             collectorLoot.getGold() * rPercent / 100,
@@ -53,10 +77,11 @@ public class LootCalculator {
     }
 
     public Loot calculateAvailableStorageLoot(Loot storageLoot, int level) {
-        int rPercent = logic.getInt("townhall_levels:" + level, "ResourceStorageLootPercentage");
-        int rCap = logic.getInt("townhall_levels:" + level, "ResourceStorageLootCap");
-        int dePercent = logic.getInt("townhall_levels:" + level, "DarkElixirStorageLootPercentage");
-        int deCap = logic.getInt("townhall_levels:" + level, "DarkElixirStorageLootCap");
+        int townHall = logic.getTownHallLevelTypeId(level);
+        int rPercent = storageLootPercentColumn.getInt(townHall);
+        int rCap = storageLootCapColumn.getInt(townHall);
+        int dePercent = darkElixirStorageLootPercentColumn.getInt(townHall);
+        int deCap = darkElixirStorageLootCapColumn.getInt(townHall);
 
         return new Loot(
             min(storageLoot.getGold() * rPercent / 100, rCap),
@@ -66,7 +91,7 @@ public class LootCalculator {
     }
 
     public Loot calculateAvailableCastleLoot(Loot castleLoot, int level) {
-        int rPercent = logic.getInt("globals:WAR_LOOT_PERCENTAGE", "NumberValue");
+        int rPercent = castleLootPercent;
 
         return new Loot(
             castleLoot.getGold() * rPercent / 100,
@@ -0,0 +1,772 @@
+package sir.barchable.clash.model;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sir.barchable.clash.model.json.VillageParser;
+import sir.barchable.clash.protocol.CaptureLog;
+import sir.barchable.clash.protocol.CaptureRecord;
+import sir.barchable.clash.protocol.CaptureRecord.Kind;
+import sir.barchable.clash.protocol.DecodeContext;
+import sir.barchable.clash.protocol.Message;
+import sir.barchable.clash.protocol.MessageFactory;
+import sir.barchable.clash.protocol.Pdu;
+import sir.barchable.clash.protocol.PduException;
+import sir.barchable.util.LruCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An index of the villages in a {@link CaptureLog}, by player, clan, town hall level and capture time.
+ * <p>
+ * The index is kept in a file next to the log segments, one entry per record, so it doesn't have to be rebuilt from
+ * the log at startup. Entries are added as the proxy saves villages (see {@link #append}). Records that made it into
+ * the log but not the index, because they were imported or the proxy crashed, are found by {@link #refresh()}, which
+ * only scans the log past the last indexed record of each segment.
+ * <p>
+ * The index also knows where each village layout is stored, so a {@link Kind#SIGHTING} can be put back together with
+ * its layout by {@link #load(Entry)}. Layouts aren't villages, and don't turn up in the queries.
+ * <p>
+ * The index file starts with the magic number {@code BIDX} and a format version. An index in an older format is
+ * rebuilt from the log. Entries:
+ * <pre>
+ *     int    length of the rest of the entry
+ *     byte   record kind
+ *     long   layout hash, or 0
+ *     int    segment number
+ *     long   record offset
+ *     int    record length
+ *     short  PDU id
+ *     long   capture time
+ *     long   user id
+ *     UTF    village name
+ *     UTF    clan name, empty if none
+ *     byte   town hall level, 0 if unknown
+ * </pre>
+ *
+ * @author Sir Barchable
+ */
+public class VillageIndex implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(VillageIndex.class);
+
+    public static final String INDEX_NAME = "capture.idx";
+
+    private static final int INDEX_MAGIC = 0x42494458;
+    private static final int INDEX_VERSION = 2;
+    private static final int INDEX_HEADER_LENGTH = 8;
+
+    /**
+     * Longest chain of layout deltas we'll follow, in case the log is damaged.
+     */
+    private static final int MAX_DELTA_CHAIN = 256;
+
+    /**
+     * The villages that can be attacked. The rest, such as the player's own home, are only for the record.
+     */
+    private static final Set<Pdu.Type> ATTACKABLE_TYPES = EnumSet.of(
+        Pdu.Type.EnemyHomeData, Pdu.Type.VisitedHomeData, Pdu.Type.WarHomeData, Pdu.Type.HomeBattleReplayData
+    );
+
+    private final File dir;
+    private final MessageFactory messageFactory;
+
+    /**
+     * Entries in the order they were indexed, which is capture order for each segment.
+     */
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<Entry> attackable = new ArrayList<>();
+    private final Map<Long, List<Entry>> byUserId = new HashMap<>();
+    private final Map<String, List<Entry>> byName = new HashMap<>();
+    private final Map<String, List<Entry>> byClan = new HashMap<>();
+    private final Map<Integer, List<Entry>> byTownHallLevel = new HashMap<>();
+    private final TreeMap<Long, List<Entry>> byTime = new TreeMap<>();
+
+    /**
+     * Layout and layout delta records, by layout hash.
+     */
+    private final Map<Long, Entry> layouts = new HashMap<>();
+
+    /**
+     * Indexed record positions, to skip entries that were written twice.
+     */
+    private final Set<Long> positions = new HashSet<>();
+
+    /**
+     * The end of the last indexed record in each segment, by segment number.
+     */
+    private final Map<Integer, Long> indexedTo = new HashMap<>();
+
+    /**
+     * Layout JSON, by hash, so the bases of deltas aren't rebuilt over and over.
+     */
+    private final LruCache<Long, String> layoutCache = new LruCache<>(8 * 1024 * 1024, json -> 2L * json.length());
+
+    /**
+     * Opened on the first write.
+     */
+    private Writer writer;
+
+    private VillageIndex(File dir, MessageFactory messageFactory) {
+        this.dir = dir;
+        this.messageFactory = messageFactory;
+    }
+
+    /**
+     * Load the index for a capture log, and add any records that aren't in it yet.
+     *
+     * @param dir the capture log directory
+     */
+    public static VillageIndex open(File dir, MessageFactory messageFactory) throws IOException {
+        VillageIndex index = new VillageIndex(dir, messageFactory);
+        long start = System.currentTimeMillis();
+        index.load();
+        int loaded = index.size();
+        int added = index.refresh();
+        log.info(
+            "Indexed {} villages with {} layouts ({} from the index, {} from the log) in {} ms",
+            index.size(), index.getLayoutCount(), loaded, added, System.currentTimeMillis() - start
+        );
+        return index;
+    }
+
+    /**
+     * Read the index file. A torn or damaged entry at the end, left by a crash, is cut off.
+     */
+    private void load() throws IOException {
+        File indexFile = new File(dir, INDEX_NAME);
+        if (!indexFile.isFile()) {
+            return;
+        }
+        byte[] bytes = Files.readAllBytes(indexFile.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < INDEX_HEADER_LENGTH || buffer.getInt() != INDEX_MAGIC || buffer.getInt() != INDEX_VERSION) {
+            log.info("Rebuilding index {}", indexFile);
+            Files.delete(indexFile.toPath());
+            return;
+        }
+        int good = buffer.position();
+        try {
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, buffer.position(), length));
+                add(Entry.read(in));
+                buffer.position(buffer.position() + length);
+                good = buffer.position();
+            }
+        } catch (IOException | RuntimeException e) {
+            log.debug("Bad index entry at {}: {}", good, e.toString());
+        }
+        if (good < bytes.length) {
+            log.warn("Truncating damaged index {} at {}", indexFile, good);
+            try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(good);
+            }
+        }
+    }
+
+    /**
+     * Index the records that have been added to the log since the index was last brought up to date.
+     *
+     * @return the number of villages added
+     */
+    public int refresh() throws IOException {
+        List<Entry> found = new ArrayList<>();
+        for (File segment : CaptureLog.getSegments(dir)) {
+            int number = CaptureLog.segmentNumber(segment);
+            long from;
+            synchronized (this) {
+                from = indexedTo.getOrDefault(number, 0L);
+            }
+            if (segment.length() > from) {
+                CaptureLog.scanSegment(segment, from, record -> {
+                    // Added as we go, so sightings can find the layouts before them
+                    Entry entry = describe(record);
+                    if (entry != null && add(entry)) {
+                        found.add(entry);
+                    }
+                });
+            }
+        }
+        int added = 0;
+        for (Entry entry : found) {
+            write(entry);
+            if (entry.isVillage()) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    private Entry describe(CaptureRecord record) {
+        Kind kind = record.getKind();
+        int segment = CaptureLog.segmentNumber(record.getSegment());
+        switch (kind) {
+            case LAYOUT:
+            case LAYOUT_DELTA:
+                return new Entry(
+                    kind, record.getLayout(), segment, record.getOffset(), record.getLength(),
+                    record.getPdu().getId(), record.getTimestamp(), record.getUserId(), record.getName(), null, 0
+                );
+
+            case SIGHTING:
+                if (!hasLayout(record.getLayout())) {
+                    log.warn("Missing layout for {}", record);
+                    return null;
+                }
+                try {
+                    return describe(messageFactory, restore(record), record.getTimestamp())
+                        .as(kind).at(segment, record.getOffset(), record.getLength());
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Couldn't restore {}: {}", record, e.toString());
+                    return null;
+                }
+
+            default:
+                return describe(messageFactory, record.getPdu(), record.getTimestamp())
+                    .at(segment, record.getOffset(), record.getLength());
+        }
+    }
+
+    /**
+     * Add an entry for a record that has just been written to the log, and save it to the index file.
+     *
+     * @param entry an entry with a position in the log
+     * @return false if there's already an entry for the record
+     */
+    public boolean append(Entry entry) throws IOException {
+        if (entry.segment < 0) {
+            throw new IllegalArgumentException("Not in the log");
+        }
+        if (!add(entry)) {
+            return false;
+        }
+        write(entry);
+        return true;
+    }
+
+    private synchronized void write(Entry entry) throws IOException {
+        if (writer == null) {
+            writer = new Writer(new File(dir, INDEX_NAME));
+        }
+        writer.write(entry);
+    }
+
+    /**
+     * Add an entry.
+     *
+     * @return false if there's already an entry for the record
+     */
+    private synchronized boolean add(Entry entry) {
+        if (!positions.add(entry.getPosition())) {
+            return false;
+        }
+        indexedTo.merge(entry.segment, entry.offset + entry.length, Math::max);
+        if (!entry.isVillage()) {
+            // The first copy of a layout is the one we use
+            layouts.putIfAbsent(entry.layout, entry);
+            return true;
+        }
+        entries.add(entry);
+        if (entry.isAttackable()) {
+            attackable.add(entry);
+        }
+        byUserId.computeIfAbsent(entry.userId, key -> new ArrayList<>()).add(entry);
+        byName.computeIfAbsent(fold(entry.name), key -> new ArrayList<>()).add(entry);
+        if (entry.clanName != null) {
+            byClan.computeIfAbsent(fold(entry.clanName), key -> new ArrayList<>()).add(entry);
+        }
+        byTownHallLevel.computeIfAbsent(entry.townHallLevel, key -> new ArrayList<>()).add(entry);
+        byTime.computeIfAbsent(entry.timestamp, key -> new ArrayList<>()).add(entry);
+        return true;
+    }
+
+    private static String fold(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    //
+    // Queries. Results are in index order, apart from findBetween, which is in time order.
+    //
+
+    /**
+     * The number of villages.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized Entry get(int index) {
+        return entries.get(index);
+    }
+
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    /**
+     * The number of villages that can be attacked.
+     */
+    public synchronized int getAttackableCount() {
+        return attackable.size();
+    }
+
+    /**
+     * The nth village that can be attacked, in index order.
+     */
+    public synchronized Entry getAttackable(int index) {
+        return attackable.get(index);
+    }
+
+    public synchronized List<Entry> findByUserId(long userId) {
+        return copy(byUserId.get(userId));
+    }
+
+    /**
+     * Find villages by name, ignoring case.
+     */
+    public synchronized List<Entry> findByName(String name) {
+        return copy(byName.get(fold(name)));
+    }
+
+    /**
+     * Find villages by clan name, ignoring case.
+     */
+    public synchronized List<Entry> findByClan(String clanName) {
+        return copy(byClan.get(fold(clanName)));
+    }
+
+    /**
+     * @param townHallLevel one based level, or 0 for villages where it isn't known
+     */
+    public synchronized List<Entry> findByTownHallLevel(int townHallLevel) {
+        return copy(byTownHallLevel.get(townHallLevel));
+    }
+
+    /**
+     * Find villages captured in a time range.
+     *
+     * @param from the start of the range, in millis since the epoch, inclusive
+     * @param to the end of the range, exclusive
+     */
+    public synchronized List<Entry> findBetween(long from, long to) {
+        List<Entry> found = new ArrayList<>();
+        for (List<Entry> atTime : byTime.subMap(from, to).values()) {
+            found.addAll(atTime);
+        }
+        return found;
+    }
+
+    private static List<Entry> copy(List<Entry> entries) {
+        return entries == null ? Collections.emptyList() : new ArrayList<>(entries);
+    }
+
+    /**
+     * Is a layout in the log?
+     */
+    public synchronized boolean hasLayout(long layout) {
+        return layouts.containsKey(layout);
+    }
+
+    /**
+     * The number of distinct layouts in the log.
+     */
+    public synchronized int getLayoutCount() {
+        return layouts.size();
+    }
+
+    /**
+     * Read an indexed village.
+     *
+     * @return the village message, as it was captured
+     * @throws PduException if the village or its layout can't be read back
+     */
+    public Message load(Entry entry) throws IOException {
+        CaptureRecord record = read(entry);
+        Pdu pdu = record.getKind() == Kind.SIGHTING ? restore(record) : record.getPdu();
+        return pdu.getDecodeContext().getMessage(messageFactory);
+    }
+
+    private CaptureRecord read(Entry entry) throws IOException {
+        return CaptureLog.read(CaptureLog.getSegment(dir, entry.segment), entry.offset, entry.length);
+    }
+
+    /**
+     * Put a sighting back together with its layout. The village is put together in the decode context of the PDU
+     * rather than encoded again, as it's only needed decoded.
+     *
+     * @return the sighting's message, without the village JSON, with the whole village in its decode context
+     */
+    private Pdu restore(CaptureRecord sighting) throws IOException {
+        byte[] payload = sighting.getPdu().getPayload();
+        Pdu pdu = new Pdu(sighting.getPdu().getId(), LayoutCodec.getSightingMessage(payload));
+        Message village = pdu.getDecodeContext().getMessage(messageFactory);
+        village.set("homeVillage", (Object) LayoutCodec.applySighting(getLayout(sighting.getLayout()), payload));
+        return pdu;
+    }
+
+    /**
+     * Get the village JSON of a layout, applying deltas as needed.
+     *
+     * @throws PduException if the layout isn't in the log
+     */
+    public String getLayout(long layout) throws IOException {
+        String json = layoutCache.get(layout);
+        if (json != null) {
+            return json;
+        }
+
+        // Walk back to a full layout, or one we have cached
+        List<byte[]> deltas = new ArrayList<>();
+        long hash = layout;
+        while (json == null) {
+            if (deltas.size() > MAX_DELTA_CHAIN) {
+                throw new PduException("Layout delta chain too long for " + Long.toHexString(layout));
+            }
+            Entry entry;
+            synchronized (this) {
+                entry = layouts.get(hash);
+            }
+            if (entry == null) {
+                throw new PduException("Layout " + Long.toHexString(hash) + " isn't in the log");
+            }
+            byte[] payload = read(entry).getPdu().getPayload();
+            if (entry.kind == Kind.LAYOUT) {
+                json = LayoutCodec.decodeLayout(payload);
+            } else {
+                deltas.add(payload);
+                hash = LayoutCodec.getDeltaBase(payload);
+                json = layoutCache.get(hash);
+            }
+        }
+        for (int i = deltas.size() - 1; i >= 0; i--) {
+            json = LayoutCodec.applyDelta(json, deltas.get(i));
+        }
+        layoutCache.put(layout, json);
+        return json;
+    }
+
+    /**
+     * Describe a village PDU. Anything the analyzers have already pulled out of the PDU is reused.
+     *
+     * @param timestamp capture time
+     * @return the description, as a {@link Kind#PDU} without a position in the log. Fields that can't be determined
+     * are left empty.
+     */
+    public static Entry describe(MessageFactory messageFactory, Pdu pdu, long timestamp) {
+        long layout = 0;
+        long userId = 0;
+        String name = null;
+        String clanName = null;
+        int townHallLevel = 0;
+
+        try {
+            DecodeContext context = pdu.getDecodeContext();
+            switch (pdu.getType()) {
+                case OwnHomeData:
+                case VisitedHomeData:
+                case EnemyHomeData: {
+                    Message message = context.getMessage(messageFactory, Arrays.asList("homeVillage", "user"));
+                    Message user = message.getMessage("user");
+                    Long id = user.getLong("userId");
+                    userId = id == null ? 0 : id;
+                    name = user.getString("userName");
+                    Map<String, Object> clan = user.getFields("clan");
+                    if (clan != null) {
+                        clanName = (String) clan.get("clanName");
+                    }
+                    townHallLevel = summarize(context, message).townHallLevel;
+                    layout = hashLayout(message);
+                    break;
+                }
+
+                case WarHomeData: {
+                    Message message = context.getMessage(messageFactory, Collections.singleton("homeVillage"));
+                    VillageParser.Summary village = summarize(context, message);
+                    userId = (long) village.avatarIdHigh << 32 | village.avatarIdLow & 0xffffffffL;
+                    name = village.name;
+                    clanName = village.allianceName;
+                    townHallLevel = village.townHallLevel;
+                    layout = hashLayout(message);
+                    break;
+                }
+
+                case HomeBattleReplayData: {
+                    String json = context.getMessage(messageFactory, Collections.singleton("replay")).getString("replay");
+                    name = VillageParser.readString(json, "defender", "name");
+                    clanName = VillageParser.readString(json, "defender", "alliance_name");
+                    break;
+                }
+            }
+        } catch (RuntimeException | IOException e) {
+            log.warn("Couldn't describe pdu {}: {}", pdu.getId(), e.toString());
+        }
+
+        return new Entry(
+            Kind.PDU, layout, -1, -1, 0,
+            pdu.getId(), timestamp, userId, name == null ? "anon" : name, clanName, townHallLevel
+        );
+    }
+
+    /**
+     * The summary of the home village, from the decode context if the analyzers have been at it.
+     */
+    private static VillageParser.Summary summarize(DecodeContext context, Message message) throws IOException {
+        VillageParser.Summary village = context.get(VillageParser.SUMMARY_KEY);
+        if (village == null) {
+            village = VillageParser.parse(message.getString("homeVillage"), building -> { });
+            context.put(VillageParser.SUMMARY_KEY, village);
+        }
+        return village;
+    }
+
+    /**
+     * @return the layout hash of the home village, or 0 if there isn't one
+     */
+    private static long hashLayout(Message message) throws IOException {
+        String json = message.getString("homeVillage");
+        return json == null || json.isEmpty() ? 0 : VillageParser.layoutHash(json);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /**
+     * An indexed village or layout. Immutable.
+     */
+    public static final class Entry {
+        private final Kind kind;
+        private final long layout;
+        private final int segment;
+        private final long offset;
+        private final int length;
+        private final int pduId;
+        private final long timestamp;
+        private final long userId;
+        private final String name;
+        private final String clanName;
+        private final int townHallLevel;
+
+        Entry(
+            Kind kind, long layout, int segment, long offset, int length,
+            int pduId, long timestamp, long userId, String name, String clanName, int townHallLevel
+        ) {
+            this.kind = kind;
+            this.layout = layout;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.pduId = pduId;
+            this.timestamp = timestamp;
+            this.userId = userId;
+            this.name = name;
+            this.clanName = clanName;
+            this.townHallLevel = townHallLevel;
+        }
+
+        /**
+         * A copy of the entry for a record at a position in the log.
+         */
+        public Entry at(int segment, long offset, int length) {
+            return new Entry(
+                kind, layout, segment, offset, length, pduId, timestamp, userId, name, clanName, townHallLevel
+            );
+        }
+
+        /**
+         * A copy of the entry for a different kind of record.
+         */
+        public Entry as(Kind kind) {
+            return new Entry(
+                kind, layout, segment, offset, length, pduId, timestamp, userId, name, clanName, townHallLevel
+            );
+        }
+
+        /**
+         * The segment number and offset, as one value.
+         */
+        long getPosition() {
+            return (long) segment << 40 | offset;
+        }
+
+        /**
+         * Is the record a village, rather than a layout?
+         */
+        boolean isVillage() {
+            return kind == Kind.PDU || kind == Kind.SIGHTING;
+        }
+
+        /**
+         * Is the record a village that can be attacked, rather than the player's own home?
+         */
+        public boolean isAttackable() {
+            return isVillage() && ATTACKABLE_TYPES.contains(getType());
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * The layout hash, or 0 if the village doesn't have a layout.
+         */
+        public long getLayout() {
+            return layout;
+        }
+
+        public int getSegment() {
+            return segment;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public Pdu.Type getType() {
+            return Pdu.Type.valueOf(pduId);
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * The id of the player, or 0 if it isn't known.
+         */
+        public long getUserId() {
+            return userId;
+        }
+
+        /**
+         * The village name, or "anon" if it isn't known.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * The clan name, or null if the player isn't in a clan or it isn't known.
+         */
+        public String getClanName() {
+            return clanName;
+        }
+
+        /**
+         * The one based town hall level, or 0 if it isn't known.
+         */
+        public int getTownHallLevel() {
+            return townHallLevel;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeByte(kind.ordinal());
+            out.writeLong(layout);
+            out.writeInt(segment);
+            out.writeLong(offset);
+            out.writeInt(length);
+            out.writeShort(pduId);
+            out.writeLong(timestamp);
+            out.writeLong(userId);
+            out.writeUTF(name);
+            out.writeUTF(clanName == null ? "" : clanName);
+            out.writeByte(townHallLevel);
+        }
+
+        private static Entry read(DataInputStream in) throws IOException {
+            Kind kind = Kind.values()[in.readUnsignedByte()];
+            long layout = in.readLong();
+            int segment = in.readInt();
+            long offset = in.readLong();
+            int length = in.readInt();
+            int pduId = in.readUnsignedShort();
+            long timestamp = in.readLong();
+            long userId = in.readLong();
+            String name = in.readUTF();
+            String clanName = in.readUTF();
+            int townHallLevel = in.readUnsignedByte();
+            return new Entry(
+                kind, layout, segment, offset, length,
+                pduId, timestamp, userId, name, clanName.isEmpty() ? null : clanName, townHallLevel
+            );
+        }
+
+        @Override
+        public String toString() {
+            return "Entry[" + kind + ", " + getType() + ", " + name + ", " + clanName + ", th" + townHallLevel
+                + ", " + segment + "@" + offset + ']';
+        }
+    }
+
+    /**
+     * Appends entries to an index file. Each entry goes to the file in a single append, so the proxy and a server
+     * catching up on the log can add to the index at the same time; any duplicates are dropped on load.
+     * <p>
+     * The index isn't synced. Entries lost in a crash are recovered from the log on the next {@link #refresh()}.
+     */
+    private static class Writer implements Closeable {
+        private final FileChannel channel;
+
+        Writer(File indexFile) throws IOException {
+            channel = FileChannel.open(
+                indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND
+            );
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_LENGTH);
+                header.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).flip();
+                write(header);
+            }
+        }
+
+        void write(Entry entry) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            entry.write(out);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            buffer.putInt(0, buffer.limit() - 4);
+            write(buffer);
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package sir.barchable.clash.model.json;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import sir.barchable.clash.model.ObjectType;
+import sir.barchable.clash.model.Unit;
+import sir.barchable.util.Json;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Reads the few village fields the analyzers use straight off a streaming parser, instead of binding the whole village
+ * to a {@link Village} or {@link WarVillage}. Buildings are handed over one at a time, in a {@link BuildingFields} that
+ * is reused from building to building. Everything else (layouts, obstacles, decorations, cooldowns...) is skipped
+ * without being turned into objects.
+ * <p>
+ * Home and war villages are read the same way. Fields a village doesn't have keep their defaults, and fields that
+ * aren't in the POJOs are ignored rather than rejected.
+ *
+ * @author Sir Barchable
+ */
+public final class VillageParser {
+
+    /**
+     * Where a village's {@link Summary} is kept in the {@link sir.barchable.clash.protocol.DecodeContext} of the
+     * message it came from.
+     */
+    public static final String SUMMARY_KEY = "homeVillage.summary";
+
+    /**
+     * Top level arrays of the objects in a layout, which can be listed in any order.
+     */
+    private static final Set<String> LAYOUT_FIELDS = new HashSet<>(Arrays.asList(
+        "buildings", "traps", "decos", "obstacles", "alliance_units"
+    ));
+
+    /**
+     * Timers, which change every time a village is seen, and the loot of war villages. Left out of the
+     * {@link #layoutHash layout hash}.
+     */
+    private static final Set<String> VOLATILE_FIELDS = new HashSet<>(Arrays.asList(
+        "res_time", "const_t", "const_t_end", "boost_t", "boost_pause", "clear_t", "t", "t_end",
+        "unit_req_time", "clan_mail_time", "share_replay_time", "cooldown", "cooldowns", "respawnVars", "resources"
+    ));
+
+    /**
+     * Static API.
+     */
+    private VillageParser() { }
+
+    public interface BuildingHandler {
+        void onBuilding(BuildingFields building);
+    }
+
+    /**
+     * The fields of a building the analyzers read.
+     */
+    public static final class BuildingFields {
+        /**
+         * Building type id.
+         */
+        public int data;
+
+        /**
+         * Zero based level. Missing levels, and the -1 of a building being built for the first time, read as 0.
+         */
+        public int level;
+
+        /**
+         * Seconds until a collector resets, if {@link #hasResTime}.
+         */
+        public int resTime;
+        public boolean hasResTime;
+
+        /**
+         * The building is being upgraded (const_t is set).
+         */
+        public boolean underConstruction;
+
+        /**
+         * The building is boosted (boost_t is set).
+         */
+        public boolean boosted;
+
+        private void reset() {
+            data = 0;
+            level = 0;
+            resTime = 0;
+            hasResTime = false;
+            underConstruction = false;
+            boosted = false;
+        }
+    }
+
+    /**
+     * The fields of a village the analyzers read, other than the buildings.
+     */
+    public static final class Summary {
+        /**
+         * War village fields.
+         */
+        public String name;
+        public String allianceName;
+        public int avatarIdHigh;
+        public int avatarIdLow;
+        public List<Unit> allianceUnits = new ArrayList<>();
+
+        /**
+         * One based town hall level, or 0 if the village doesn't have a town hall.
+         */
+        public int townHallLevel;
+
+        /**
+         * Home village fields, from respawnVars.
+         */
+        public int timeToGemboxDrop;
+        public int timeInGemboxPeriod;
+    }
+
+    /**
+     * Read a village.
+     *
+     * @param json home or war village JSON
+     * @param handler called for each building, in order
+     */
+    public static Summary parse(String json, BuildingHandler handler) throws IOException {
+        Summary summary = new Summary();
+        try (JsonParser parser = Json.newParser(json)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                switch (field) {
+                    case "buildings":
+                        readBuildings(parser, token, summary, handler);
+                        break;
+                    case "respawnVars":
+                        readRespawnVars(parser, token, summary);
+                        break;
+                    case "alliance_units":
+                        readUnits(parser, token, summary.allianceUnits);
+                        break;
+                    case "name":
+                        summary.name = parser.getValueAsString();
+                        break;
+                    case "alliance_name":
+                        summary.allianceName = parser.getValueAsString();
+                        break;
+                    case "avatar_id_high":
+                        summary.avatarIdHigh = parser.getValueAsInt();
+                        break;
+                    case "avatar_id_low":
+                        summary.avatarIdLow = parser.getValueAsInt();
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        }
+        return summary;
+    }
+
+    private static void readBuildings(
+        JsonParser parser, JsonToken token, Summary summary, BuildingHandler handler
+    ) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return;
+        }
+        expect(parser, token, JsonToken.START_ARRAY);
+        BuildingFields building = new BuildingFields();
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            expect(parser, token, JsonToken.START_OBJECT);
+            building.reset();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                token = parser.nextToken();
+                if (token == JsonToken.VALUE_NULL) {
+                    continue;
+                }
+                switch (field) {
+                    case "data":
+                        building.data = parser.getIntValue();
+                        break;
+                    case "lvl":
+                        building.level = Math.max(parser.getIntValue(), 0);
+                        break;
+                    case "res_time":
+                        building.resTime = parser.getIntValue();
+                        building.hasResTime = true;
+                        break;
+                    case "const_t":
+                        building.underConstruction = true;
+                        break;
+                    case "boost_t":
+                        building.boosted = true;
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            if (building.data == ObjectType.TOWN_HALL) {
+                summary.townHallLevel = building.level + 1;
+            }
+            handler.onBuilding(building);
+        }
+    }
+
+    private static void readRespawnVars(JsonParser parser, JsonToken token, Summary summary) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return;
+        }
+        expect(parser, token, JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "time_to_gembox_drop":
+                    summary.timeToGemboxDrop = parser.getValueAsInt();
+                    break;
+                case "time_in_gembox_period":
+                    summary.timeInGemboxPeriod = parser.getValueAsInt();
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+    }
+
+    private static void readUnits(JsonParser parser, JsonToken token, List<Unit> units) throws IOException {
+        if (token == JsonToken.VALUE_NULL) {
+            return;
+        }
+        expect(parser, token, JsonToken.START_ARRAY);
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            expect(parser, token, JsonToken.START_OBJECT);
+            int id = 0;
+            int cnt = 0;
+            int lvl = 0;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "id":
+                        id = parser.getValueAsInt();
+                        break;
+                    case "cnt":
+                        cnt = parser.getValueAsInt();
+                        break;
+                    case "lvl":
+                        lvl = parser.getValueAsInt();
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+            units.add(new Unit(id, cnt, lvl));
+        }
+    }
+
+    /**
+     * Hash the layout of a village: everything in the village JSON apart from its timers and loot, so war layouts,
+     * alternate layouts, defense modes and hero levels all count. The order the objects in the layout are listed in is left out
+     * too, so two sightings of a village that hasn't been changed hash the same.
+     *
+     * @param json home or war village JSON
+     * @return the first 64 bits of a SHA-256 of the normalized village. Never 0.
+     */
+    public static long layoutHash(String json) throws IOException {
+        byte[] normalized;
+        try (JsonParser parser = Json.newParser(json)) {
+            normalized = normalize(parser, parser.nextToken(), 0, null);
+        }
+        try {
+            long hash = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(normalized)).getLong();
+            return hash == 0 ? 1 : hash;
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write a JSON value in a normal form: object fields sorted by name with the timers left out, and the elements of
+     * the top level layout arrays sorted. Every value is tagged and length prefixed, so different values can't run
+     * together into the same bytes.
+     *
+     * @param depth the nesting depth of the value
+     * @param field the name of the field the value belongs to, or null
+     */
+    private static byte[] normalize(JsonParser parser, JsonToken token, int depth, String field) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        switch (token) {
+            case START_OBJECT: {
+                TreeMap<String, byte[]> fields = new TreeMap<>();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (VOLATILE_FIELDS.contains(name)) {
+                        parser.skipChildren();
+                    } else {
+                        fields.put(name, normalize(parser, value, depth + 1, name));
+                    }
+                }
+                out.writeByte('{');
+                out.writeInt(fields.size());
+                for (Map.Entry<String, byte[]> entry : fields.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.write(entry.getValue());
+                }
+                break;
+            }
+
+            case START_ARRAY: {
+                List<byte[]> elements = new ArrayList<>();
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    elements.add(normalize(parser, token, depth + 1, null));
+                }
+                if (depth == 1 && LAYOUT_FIELDS.contains(field)) {
+                    elements.sort(VillageParser::compare);
+                }
+                out.writeByte('[');
+                out.writeInt(elements.size());
+                for (byte[] element : elements) {
+                    out.write(element);
+                }
+                break;
+            }
+
+            case VALUE_STRING:
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+            case VALUE_NULL: {
+                byte[] text = parser.getText().getBytes(StandardCharsets.UTF_8);
+                out.writeByte(token.ordinal());
+                out.writeInt(text.length);
+                out.write(text);
+                break;
+            }
+
+            default:
+                throw new JsonParseException("Unexpected " + token, parser.getCurrentLocation());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length && i < b.length; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Read a string from a JSON document without parsing the rest of it.
+     *
+     * @param path field names, from the top level object down, e.g. "defender", "name"
+     * @return the value, or null if it's missing
+     */
+    public static String readString(String json, String... path) throws IOException {
+        try (JsonParser parser = Json.newParser(json)) {
+            JsonToken token = parser.nextToken();
+            for (int depth = 0; depth < path.length; depth++) {
+                if (token != JsonToken.START_OBJECT) {
+                    return null;
+                }
+                token = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (field.equals(path[depth])) {
+                        token = value;
+                        break;
+                    }
+                    parser.skipChildren();
+                }
+                if (token == null) {
+                    return null;
+                }
+            }
+            return token == JsonToken.VALUE_STRING ? parser.getText() : null;
+        }
+    }
+
+    private static void expect(JsonParser parser, JsonToken token, JsonToken expected) throws IOException {
+        if (token != expected) {
+            throw new JsonParseException("Expected " + expected + " but found " + token, parser.getCurrentLocation());
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package sir.barchable.clash.protocol;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of captured PDUs, split into numbered segment files in a directory.
+ * <p>
+ * A segment starts with an 8 byte header: the magic number {@code BCAP} and a format version. Records follow, end to
+ * end:
+ * <pre>
+ *     int    length of the rest of the record
+ *     int    CRC32 of the rest of the record
+ *     short  PDU id
+ *     short  PDU version
+ *     long   capture time, millis since the epoch
+ *     long   user id
+ *     byte   record kind, see {@link CaptureRecord.Kind}
+ *     long   layout hash, or 0
+ *     short  name length, then the UTF-8 name
+ *     ...    payload
+ * </pre>
+ * All big-endian. Version 1 segments don't have the kind and layout hash; all their records are plain PDUs.
+ * <p>
+ * Segments are only ever appended to, so a crash can at worst leave a torn record at the end of the last segment.
+ * Readers stop at the first record that doesn't check out.
+ * <p>
+ * Segments are written with a {@link CaptureLogWriter}, and read by mapping them into memory and scanning from the
+ * start, or from a known record. Single records can be read by position.
+ *
+ * @author Sir Barchable
+ */
+public final class CaptureLog {
+    private static final Logger log = LoggerFactory.getLogger(CaptureLog.class);
+
+    static final int MAGIC = 0x42434150;
+    static final int VERSION = 2;
+    static final int SEGMENT_HEADER_LENGTH = 8;
+
+    /**
+     * Record length and checksum.
+     */
+    static final int RECORD_PREFIX_LENGTH = 8;
+
+    /**
+     * Fixed length part of the record body, before the name.
+     */
+    static final int RECORD_FIXED_LENGTH = 2 + 2 + 8 + 8 + 1 + 8 + 2;
+
+    /**
+     * Fixed length part of a version 1 record body, which doesn't have the kind and layout hash.
+     */
+    private static final int V1_RECORD_FIXED_LENGTH = 2 + 2 + 8 + 8 + 2;
+
+    private static final Pattern SEGMENT_PATTERN = Pattern.compile("capture-(\\d+)\\.log");
+
+    /**
+     * Static API.
+     */
+    private CaptureLog() { }
+
+    static String segmentName(int number) {
+        return String.format("capture-%08d.log", number);
+    }
+
+    /**
+     * The file for a segment.
+     *
+     * @param number the segment's sequence number
+     */
+    public static File getSegment(File dir, int number) {
+        return new File(dir, segmentName(number));
+    }
+
+    /**
+     * The sequence number of a segment file.
+     *
+     * @return the number, or -1 if the file isn't a segment
+     */
+    public static int segmentNumber(File file) {
+        Matcher matcher = SEGMENT_PATTERN.matcher(file.getName());
+        return matcher.matches() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    /**
+     * The segments in a directory, oldest first.
+     */
+    public static List<File> getSegments(File dir) {
+        File[] files = dir.listFiles(file -> file.isFile() && segmentNumber(file) >= 0);
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        Arrays.sort(files, (a, b) -> Integer.compare(segmentNumber(a), segmentNumber(b)));
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Read every record in a directory, oldest first.
+     */
+    public static void scan(File dir, Consumer<CaptureRecord> consumer) throws IOException {
+        for (File segment : getSegments(dir)) {
+            scanSegment(segment, consumer);
+        }
+    }
+
+    /**
+     * Read the records in a segment, in order.
+     *
+     * @return the number of records read
+     */
+    public static int scanSegment(File segment, Consumer<CaptureRecord> consumer) throws IOException {
+        return scanSegment(segment, 0, consumer);
+    }
+
+    /**
+     * Read the records in a segment, in order, starting part way through.
+     *
+     * @param from the offset of a record, or of the end of the segment. Offsets inside the segment header are taken
+     * as the start of the first record.
+     * @return the number of records read
+     */
+    public static int scanSegment(File segment, long from, Consumer<CaptureRecord> consumer) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            // The mapping outlives the channel
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int version = checkHeader(segment, buffer);
+        if (from > buffer.position()) {
+            buffer.position((int) Math.min(from, buffer.limit()));
+        }
+
+        int count = 0;
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= RECORD_PREFIX_LENGTH) {
+            CaptureRecord record = readRecord(segment, buffer, crc, version);
+            if (record == null) {
+                return count;
+            }
+            consumer.accept(record);
+            count++;
+        }
+        if (buffer.hasRemaining()) {
+            log.warn("Torn record at {} in {}", buffer.position(), segment);
+        }
+        return count;
+    }
+
+    /**
+     * Read one record.
+     *
+     * @param offset the position of the record in the segment, from {@link CaptureRecord#getOffset()}
+     * @param length the length of the record, from {@link CaptureRecord#getLength()}
+     * @throws PduException if there isn't a good record there
+     */
+    public static CaptureRecord read(File segment, long offset, int length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            readFully(channel, header, 0);
+            readFully(channel, buffer, offset);
+        } catch (EOFException e) {
+            throw new PduException("No record at " + offset + " in " + segment);
+        }
+        header.flip();
+        int version = checkHeader(segment, header);
+        buffer.flip();
+        CaptureRecord record = readRecord(segment, buffer, new CRC32(), version);
+        if (record == null || record.getLength() != length) {
+            throw new PduException("No record at " + offset + " in " + segment);
+        }
+        return new CaptureRecord(record, offset);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Check the segment header.
+     *
+     * @return the format version
+     */
+    private static int checkHeader(File segment, ByteBuffer buffer) {
+        if (buffer.remaining() < SEGMENT_HEADER_LENGTH || buffer.getInt() != MAGIC) {
+            throw new PduException("Not a capture log segment: " + segment);
+        }
+        int version = buffer.getInt();
+        if (version != 1 && version != VERSION) {
+            throw new PduException("Unsupported capture log version " + version + " in " + segment);
+        }
+        return version;
+    }
+
+    /**
+     * Read the record at the buffer's position, and move past it.
+     *
+     * @return the record, or null if it's torn or corrupt
+     */
+    private static CaptureRecord readRecord(File segment, ByteBuffer buffer, CRC32 crc, int version) {
+        int offset = buffer.position();
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        int fixedLength = version == 1 ? V1_RECORD_FIXED_LENGTH : RECORD_FIXED_LENGTH;
+        if (length < fixedLength || length > buffer.remaining()) {
+            log.warn("Torn record at {} in {}", offset, segment);
+            return null;
+        }
+        ByteBuffer body = buffer.slice();
+        body.limit(length);
+        crc.reset();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            log.warn("Bad checksum at {} in {}", offset, segment);
+            return null;
+        }
+        buffer.position(buffer.position() + length);
+
+        int pduId = body.getShort() & 0xffff;
+        int pduVersion = body.getShort() & 0xffff;
+        long timestamp = body.getLong();
+        long userId = body.getLong();
+        CaptureRecord.Kind kind = CaptureRecord.Kind.PDU;
+        long layout = 0;
+        if (version > 1) {
+            int kindId = body.get();
+            if (kindId < 0 || kindId >= CaptureRecord.Kind.values().length) {
+                log.warn("Unknown record kind {} at {} in {}", kindId, offset, segment);
+                return null;
+            }
+            kind = CaptureRecord.Kind.values()[kindId];
+            layout = body.getLong();
+        }
+        byte[] name = new byte[body.getShort() & 0xffff];
+        body.get(name);
+        return new CaptureRecord(
+            segment, offset, RECORD_PREFIX_LENGTH + length, kind, layout, pduId, pduVersion, timestamp, userId,
+            new String(name, StandardCharsets.UTF_8), body.slice().asReadOnlyBuffer()
+        );
+    }
+}
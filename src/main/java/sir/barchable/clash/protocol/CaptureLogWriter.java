@@ -0,0 +1,465 @@
+package sir.barchable.clash.protocol;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sir.barchable.util.ThreadPools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static sir.barchable.clash.protocol.CaptureLog.*;
+
+/**
+ * Append PDUs to a {@link CaptureLog}.
+ * <p>
+ * {@link #append} just queues the PDU, so it's safe to call from a pipe thread. A background thread writes the queue
+ * out, and syncs the segment once for everything it found waiting, rather than once per record. When a segment
+ * reaches the size limit the writer moves on to a new one. Each writer starts a new segment, so it never appends
+ * after a record torn by an earlier crash.
+ * <p>
+ * Work that turns a PDU into records, like compressing it, can be queued with {@link #submit} to run on the
+ * background thread too.
+ *
+ * @author Sir Barchable
+ */
+public class CaptureLogWriter implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(CaptureLogWriter.class);
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Records that can be waiting to be written before we start dropping them.
+     */
+    private static final int QUEUE_SIZE = 1024;
+
+    /**
+     * Tells the writer thread to stop.
+     */
+    private static final Entry CLOSE = new Entry(null, 0, null, 0, 0, null, null);
+
+    /**
+     * Produces records on the writer thread. See {@link #submit}.
+     */
+    public interface Encoder {
+        /**
+         * Called on the writer thread.
+         *
+         * @param sink takes the records, which are written in the order they're added
+         */
+        void encode(RecordSink sink) throws IOException;
+    }
+
+    /**
+     * Takes the records produced by an {@link Encoder}.
+     */
+    public interface RecordSink {
+        /**
+         * Add a record, with the same arguments as {@link #append(CaptureRecord.Kind, long, Pdu, long, long, String,
+         * Object) append}.
+         */
+        void append(
+            CaptureRecord.Kind kind, long layout, Pdu pdu, long timestamp, long userId, String name, Object attachment
+        );
+    }
+
+    /**
+     * Told about records once they're safely on disk.
+     */
+    public interface CommitListener {
+        /**
+         * Called on the writer thread after a record has been synced.
+         *
+         * @param segment the segment the record is in
+         * @param offset the position of the record in the segment
+         * @param length the length of the record
+         * @param attachment the attachment passed to {@link #append}
+         */
+        void committed(File segment, long offset, int length, Object attachment);
+
+        /**
+         * Called on the writer thread when a record couldn't be written.
+         *
+         * @param attachment the attachment passed to {@link #append}
+         */
+        default void failed(Object attachment) { }
+    }
+
+    private final File dir;
+    private final long segmentSize;
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread writer;
+    private volatile boolean closed;
+    private volatile boolean blockWhenFull;
+    private volatile CommitListener commitListener;
+
+    /**
+     * Records and encoders lost to write and encode errors.
+     */
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * The segment being written, or null if we need a new one.
+     */
+    private FileChannel segment;
+    private File segmentFile;
+    private long segmentLength;
+    private int segmentNumber;
+
+    public CaptureLogWriter(File dir) throws FileNotFoundException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param dir where to write the segments
+     * @param segmentSize start a new segment when a record would take the current one over this size
+     */
+    public CaptureLogWriter(File dir, long segmentSize) throws FileNotFoundException {
+        if (!dir.isDirectory()) {
+            throw new FileNotFoundException(dir.getName());
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        for (File file : getSegments(dir)) {
+            segmentNumber = Math.max(segmentNumber, segmentNumber(file));
+        }
+        writer = ThreadPools.newThreadFactory("Capture", true).newThread(this::run);
+        writer.start();
+    }
+
+    /**
+     * The directory the segments are written to.
+     */
+    public File getDir() {
+        return dir;
+    }
+
+    public void setCommitListener(CommitListener commitListener) {
+        this.commitListener = commitListener;
+    }
+
+    /**
+     * The number of records that couldn't be written, and encoders that failed, since the writer was opened. PDUs
+     * dropped because the queue was full aren't counted, as {@link #append} has already said so.
+     */
+    public int getFailureCount() {
+        return failures.get();
+    }
+
+    /**
+     * Wait for space when the queue is full, rather than dropping the PDU. For bulk loads, not pipe threads.
+     */
+    public void setBlockWhenFull(boolean blockWhenFull) {
+        this.blockWhenFull = blockWhenFull;
+    }
+
+    /**
+     * Queue a PDU to be written.
+     *
+     * @param timestamp capture time, in millis since the epoch
+     * @param userId id of the player the PDU is about, or 0 if unknown
+     * @param name name of the village the PDU is about
+     * @return true if the PDU was queued, false if the queue was full and the PDU was dropped
+     */
+    public boolean append(Pdu pdu, long timestamp, long userId, String name) {
+        return append(pdu, timestamp, userId, name, null);
+    }
+
+    /**
+     * Queue a PDU to be written, with something to pass on to the {@link CommitListener} once it's been written.
+     *
+     * @see #append(Pdu, long, long, String)
+     */
+    public boolean append(Pdu pdu, long timestamp, long userId, String name, Object attachment) {
+        return append(CaptureRecord.Kind.PDU, 0, pdu, timestamp, userId, name, attachment);
+    }
+
+    /**
+     * Queue a record of any kind to be written.
+     *
+     * @param kind what the payload of the PDU holds
+     * @param layout the layout hash for layouts and sightings, or 0
+     * @see #append(Pdu, long, long, String, Object)
+     */
+    public boolean append(
+        CaptureRecord.Kind kind, long layout, Pdu pdu, long timestamp, long userId, String name, Object attachment
+    ) {
+        if (closed) {
+            throw new IllegalStateException("Closed");
+        }
+        return enqueue(newEntry(kind, layout, pdu, timestamp, userId, name, attachment), pdu);
+    }
+
+    /**
+     * Queue an encoder to be run on the writer thread. The records it produces are written in its place in the queue.
+     * If it throws, whatever it had produced is written, and the error is logged.
+     *
+     * @return true if the encoder was queued, false if the queue was full and it was dropped
+     */
+    public boolean submit(Encoder encoder) {
+        if (closed) {
+            throw new IllegalStateException("Closed");
+        }
+        return enqueue(new Entry(encoder), "encoder");
+    }
+
+    private static Entry newEntry(
+        CaptureRecord.Kind kind, long layout, Pdu pdu, long timestamp, long userId, String name, Object attachment
+    ) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xffff) {
+            throw new IllegalArgumentException("Name too long");
+        }
+        return new Entry(kind, layout, pdu, timestamp, userId, nameBytes, attachment);
+    }
+
+    /**
+     * @param what what's being queued, for the log
+     */
+    private boolean enqueue(Entry entry, Object what) {
+        if (blockWhenFull) {
+            try {
+                queue.put(entry);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        } else if (!queue.offer(entry)) {
+            log.warn("Capture queue full, dropping {}", what);
+            return false;
+        }
+        return true;
+    }
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch);
+            if (batch.remove(CLOSE)) {
+                running = false;
+            }
+            List<Entry> records = encode(batch);
+            try {
+                write(records);
+            } catch (IOException e) {
+                log.error("Couldn't write {} captured PDUs", records.size(), e);
+                closeSegment();
+                failed(records);
+            }
+            batch.clear();
+        }
+        closeSegment();
+    }
+
+    /**
+     * Run the encoders in a batch, replacing each with the records it produces.
+     */
+    private List<Entry> encode(List<Entry> batch) {
+        List<Entry> records = new ArrayList<>(batch.size());
+        for (Entry entry : batch) {
+            if (entry.encoder == null) {
+                records.add(entry);
+                continue;
+            }
+            try {
+                entry.encoder.encode(
+                    (kind, layout, pdu, timestamp, userId, name, attachment) ->
+                        records.add(newEntry(kind, layout, pdu, timestamp, userId, name, attachment))
+                );
+            } catch (IOException | RuntimeException e) {
+                log.warn("Couldn't encode captured PDU", e);
+                failures.incrementAndGet();
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Count the records of a batch that couldn't be written, and tell the listener.
+     */
+    private void failed(List<Entry> batch) {
+        failures.addAndGet(batch.size());
+        CommitListener listener = commitListener;
+        if (listener != null) {
+            for (Entry entry : batch) {
+                try {
+                    listener.failed(entry.attachment);
+                } catch (RuntimeException e) {
+                    log.warn("Error handling failure of {}", entry.pdu, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a batch of records, then sync.
+     */
+    private void write(List<Entry> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ByteBuffer[] record = new ByteBuffer[2];
+        for (Entry entry : batch) {
+            record[0] = encodeHeader(entry);
+            record[1] = entry.pdu.getPayloadBuffer();
+            long length = record[0].remaining() + record[1].remaining();
+            if (segment != null && segmentLength + length > segmentSize) {
+                // Roll over. A record bigger than a whole segment gets a segment to itself.
+                segment.force(false);
+                closeSegment();
+            }
+            if (segment == null) {
+                openSegment();
+            }
+            long remaining = length;
+            while (remaining > 0) {
+                remaining -= segment.write(record);
+            }
+            entry.segment = segmentFile;
+            entry.offset = segmentLength;
+            entry.length = (int) length;
+            segmentLength += length;
+        }
+        segment.force(false);
+
+        CommitListener listener = commitListener;
+        if (listener != null) {
+            for (Entry entry : batch) {
+                try {
+                    listener.committed(entry.segment, entry.offset, entry.length, entry.attachment);
+                } catch (RuntimeException e) {
+                    log.warn("Error handling commit of {}", entry.pdu, e);
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer encodeHeader(Entry entry) {
+        Pdu pdu = entry.pdu;
+        int bodyLength = RECORD_FIXED_LENGTH + entry.name.length + pdu.getPayloadLength();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_PREFIX_LENGTH + RECORD_FIXED_LENGTH + entry.name.length);
+        header.putInt(bodyLength);
+        header.putInt(0);
+        header.putShort((short) pdu.getId());
+        header.putShort((short) pdu.getVersion());
+        header.putLong(entry.timestamp);
+        header.putLong(entry.userId);
+        header.put((byte) entry.kind.ordinal());
+        header.putLong(entry.layout);
+        header.putShort((short) entry.name.length);
+        header.put(entry.name);
+
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), RECORD_PREFIX_LENGTH, header.position() - RECORD_PREFIX_LENGTH);
+        crc.update(pdu.getPayloadBuffer());
+        header.putInt(4, (int) crc.getValue());
+        header.flip();
+        return header;
+    }
+
+    private void openSegment() throws IOException {
+        File file = new File(dir, segmentName(++segmentNumber));
+        segment = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segmentFile = file;
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_LENGTH);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining()) {
+            segment.write(header);
+        }
+        segmentLength = SEGMENT_HEADER_LENGTH;
+        log.debug("Capturing to {}", file);
+    }
+
+    private void closeSegment() {
+        if (segment != null) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                log.warn("Couldn't close capture segment: {}", e.toString());
+            }
+            segment = null;
+        }
+    }
+
+    /**
+     * Write out everything queued so far, and stop. Check {@link #getFailureCount()} afterwards to see whether
+     * everything made it to disk.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(CLOSE);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted closing capture log");
+        }
+    }
+
+    private static class Entry {
+        private final CaptureRecord.Kind kind;
+        private final long layout;
+        private final Pdu pdu;
+        private final long timestamp;
+        private final long userId;
+        private final byte[] name;
+        private final Object attachment;
+
+        /**
+         * Produces the records, if this isn't one.
+         */
+        private final Encoder encoder;
+
+        /**
+         * Where the record was written.
+         */
+        private File segment;
+        private long offset;
+        private int length;
+
+        Entry(
+            CaptureRecord.Kind kind, long layout, Pdu pdu, long timestamp, long userId, byte[] name, Object attachment
+        ) {
+            this.kind = kind;
+            this.layout = layout;
+            this.pdu = pdu;
+            this.timestamp = timestamp;
+            this.userId = userId;
+            this.name = name;
+            this.attachment = attachment;
+            this.encoder = null;
+        }
+
+        Entry(Encoder encoder) {
+            this.kind = null;
+            this.layout = 0;
+            this.pdu = null;
+            this.timestamp = 0;
+            this.userId = 0;
+            this.name = null;
+            this.attachment = null;
+            this.encoder = encoder;
+        }
+    }
+}
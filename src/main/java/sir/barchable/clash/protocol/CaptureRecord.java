@@ -0,0 +1,154 @@
+package sir.barchable.clash.protocol;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * A PDU read back from a {@link CaptureLog}, with who it was about and when it was saved.
+ *
+ * @author Sir Barchable
+ */
+public final class CaptureRecord {
+    /**
+     * What the payload of a record holds. Stored as the ordinal, so only add to the end.
+     */
+    public enum Kind {
+        /**
+         * A PDU, as captured.
+         */
+        PDU,
+
+        /**
+         * A village layout, stored once however many times it's seen. The payload is the deflated village JSON.
+         */
+        LAYOUT,
+
+        /**
+         * A village layout, as a {@link sir.barchable.util.Delta} from an earlier one. The payload is the layout hash
+         * of the base, then the delta of the village JSON.
+         */
+        LAYOUT_DELTA,
+
+        /**
+         * A village PDU with the village left out. The layout hash says which layout record has it. The payload is the
+         * length of the message, the message, then a {@link sir.barchable.util.Delta} from the village JSON of the
+         * layout to the village JSON of the sighting, which has its own timers.
+         */
+        SIGHTING
+    }
+
+    private final File segment;
+    private final long offset;
+    private final int length;
+    private final Kind kind;
+    private final long layout;
+    private final int pduId;
+    private final int pduVersion;
+    private final long timestamp;
+    private final long userId;
+    private final String name;
+    private final ByteBuffer payload;
+
+    CaptureRecord(
+        File segment, long offset, int length, Kind kind, long layout,
+        int pduId, int pduVersion, long timestamp, long userId, String name, ByteBuffer payload
+    ) {
+        this.segment = segment;
+        this.offset = offset;
+        this.length = length;
+        this.kind = kind;
+        this.layout = layout;
+        this.pduId = pduId;
+        this.pduVersion = pduVersion;
+        this.timestamp = timestamp;
+        this.userId = userId;
+        this.name = name;
+        this.payload = payload;
+    }
+
+    /**
+     * A copy of a record at a different offset, for records read on their own.
+     */
+    CaptureRecord(CaptureRecord record, long offset) {
+        this(
+            record.segment, offset, record.length, record.kind, record.layout,
+            record.pduId, record.pduVersion, record.timestamp, record.userId, record.name, record.payload
+        );
+    }
+
+    /**
+     * The segment file the record is in.
+     */
+    public File getSegment() {
+        return segment;
+    }
+
+    /**
+     * The position of the record in its segment.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * The length of the record in its segment, header and all.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * The hash of the village layout the record holds or refers to, or 0 if it isn't a layout or sighting.
+     */
+    public long getLayout() {
+        return layout;
+    }
+
+    public Pdu.Type getType() {
+        return Pdu.Type.valueOf(pduId);
+    }
+
+    /**
+     * When the PDU was saved, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * The id of the player the village belongs to, or 0 if it couldn't be determined.
+     */
+    public long getUserId() {
+        return userId;
+    }
+
+    /**
+     * The name of the village, or "anon" if it couldn't be determined.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public int getPayloadLength() {
+        return payload.remaining();
+    }
+
+    /**
+     * Get the PDU. The payload is a view of the segment, not a copy. For layouts and sightings it isn't the payload
+     * the PDU was captured with; see {@link Kind}.
+     */
+    public Pdu getPdu() {
+        Pdu pdu = new Pdu(pduId, payload);
+        pdu.setVersion(pduVersion);
+        return pdu;
+    }
+
+    @Override
+    public String toString() {
+        return "CaptureRecord[" + kind + ", " + getType() + ", " + name + ", " + segment.getName() + "@" + offset + ']';
+    }
+}
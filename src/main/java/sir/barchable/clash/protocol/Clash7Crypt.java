@@ -3,6 +3,7 @@ package sir.barchable.clash.protocol;
 import sir.barchable.util.Cipher;
 import sir.barchable.util.RC4;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -29,6 +30,16 @@ public class Clash7Crypt implements Cipher {
         return rc4.encrypt(b);
     }
 
+    @Override
+    public void encrypt(byte[] b, int off, int len) {
+        rc4.encrypt(b, off, len);
+    }
+
+    @Override
+    public void encrypt(ByteBuffer b) {
+        rc4.encrypt(b);
+    }
+
     @Override
     public void setKey(byte[] nonce) {
         byte[] key = concat(BASE_KEY, nonce);
@@ -0,0 +1,31 @@
+package sir.barchable.clash.protocol;
+
+import java.io.IOException;
+
+/**
+ * Reads and writes values of one protocol type. Codecs are compiled from the protocol definition by a
+ * {@link CodecFactory}, and produce the same values and bytes as {@link MessageReader} and {@link MessageWriter}.
+ *
+ * @author Sir Barchable
+ */
+public interface Codec {
+    /**
+     * Read a value.
+     *
+     * @return the value, or null if the type is optional and the value isn't present
+     */
+    Object read(MessageInputStream in) throws IOException;
+
+    /**
+     * Write a value.
+     */
+    void write(Object o, MessageOutputStream out) throws IOException;
+
+    /**
+     * Read past a value without keeping it. Codecs for values that are expensive to read, like zipped strings, skip
+     * them without reading them.
+     */
+    default void skip(MessageInputStream in) throws IOException {
+        read(in);
+    }
+}
@@ -0,0 +1,166 @@
+package sir.barchable.clash.protocol;
+
+import sir.barchable.clash.protocol.Protocol.StructDefinition.FieldDefinition;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * What's been decoded from one PDU so far: the message, and anything parsed out of it, like the village JSON. The
+ * filters and taps that look at a PDU share the context, so the PDU is decoded once however many of them read it.
+ * <p>
+ * Get it with {@link Pdu#getDecodeContext()}, or from a message with {@link Message#getDecodeContext()}. A PDU is
+ * handled by one thread at a time as it goes down a filter chain, and the context isn't thread safe.
+ *
+ * @author Sir Barchable
+ */
+public final class DecodeContext {
+    private final Pdu pdu;
+
+    /**
+     * The message, or null if it hasn't been decoded.
+     */
+    private Message message;
+
+    /**
+     * Was the whole message read, or just a prefix?
+     */
+    private boolean complete;
+
+    /**
+     * Values derived from the message, by key.
+     */
+    private Map<String, Object> values;
+
+    DecodeContext(Pdu pdu) {
+        this.pdu = pdu;
+    }
+
+    /**
+     * Get the whole message.
+     */
+    public Message getMessage(MessageFactory messageFactory) {
+        if (!complete) {
+            setMessage(messageFactory.fromPdu(pdu), true);
+        }
+        return message;
+    }
+
+    /**
+     * Get a message that has at least the named fields, reusing a message that has already been decoded if it has
+     * them.
+     *
+     * @param fields top level field names
+     */
+    public Message getMessage(MessageFactory messageFactory, Collection<String> fields) {
+        if (!hasFields(fields)) {
+            getMessage(messageFactory, messageFactory.getCodecFactory().getCodecForId(pdu.getId(), fields), fields);
+        }
+        return message;
+    }
+
+    /**
+     * Get a message that has at least the named fields. A message that has already been decoded is reused if it has
+     * them, otherwise the PDU is decoded with the codec.
+     *
+     * @param codec a codec that reads the fields, from {@link CodecFactory#getCodecForId(int, Collection)}
+     * @param fields top level field names, or null for all fields
+     */
+    public Message getMessage(MessageFactory messageFactory, Codec codec, Collection<String> fields) {
+        if (!hasFields(fields)) {
+            Codec fullCodec = messageFactory.getCodecFactory().getCodecForId(pdu.getId());
+            setMessage(messageFactory.fromPdu(pdu, codec), codec == fullCodec);
+        }
+        return message;
+    }
+
+    private boolean hasFields(Collection<String> fields) {
+        if (complete) {
+            return true;
+        }
+        if (message == null || fields == null) {
+            return false;
+        }
+        Map<String, Object> decoded = message.getFields();
+        for (String field : fields) {
+            // Names that aren't fields of the message can't be decoded, so don't count them
+            if (!decoded.containsKey(field) && isField(field)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isField(String name) {
+        for (FieldDefinition field : message.getDefinition().getFields()) {
+            if (name.equals(field.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void setMessage(Message message, boolean complete) {
+        message.setDecodeContext(this);
+        this.message = message;
+        this.complete = complete;
+        // Anything derived from an earlier decode is still good, as the PDU hasn't changed
+    }
+
+    /**
+     * Hand what's been decoded so far to the context of a copy of the PDU: a copy of the message, if it's been decoded
+     * whole, and the named values, which are shared rather than copied.
+     */
+    void copyTo(DecodeContext copy, String... keys) {
+        if (complete) {
+            copy.setMessage(message.copy(), true);
+        }
+        for (String key : keys) {
+            Object value = get(key);
+            if (value != null) {
+                copy.put(key, value);
+            }
+        }
+    }
+
+    /**
+     * Get a value derived from the message.
+     *
+     * @return the value, or null if there isn't one
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(String key) {
+        return values == null ? null : (T) values.get(key);
+    }
+
+    public void put(String key, Object value) {
+        if (values == null) {
+            values = new HashMap<>();
+        }
+        values.put(key, value);
+    }
+
+    /**
+     * Get a value derived from the message, deriving it the first time it's asked for.
+     */
+    public <T> T computeIfAbsent(String key, Supplier<T> decoder) {
+        T value = get(key);
+        if (value == null) {
+            value = decoder.get();
+            put(key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Get a value derived from a message, sharing it through the message's decode context if it has one.
+     *
+     * @see #computeIfAbsent(String, Supplier)
+     */
+    public static <T> T computeIfAbsent(Message message, String key, Supplier<T> decoder) {
+        DecodeContext context = message.getDecodeContext();
+        return context == null ? decoder.get() : context.computeIfAbsent(key, decoder);
+    }
+}
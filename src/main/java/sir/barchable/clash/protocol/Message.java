@@ -21,6 +21,11 @@ public class Message {
     private StructDefinition definition;
     private Map<String, Object> fields;
 
+    /**
+     * The context of the PDU the message was decoded from, if it was.
+     */
+    private DecodeContext decodeContext;
+
     Message(TypeFactory typeFactory, String typeName) {
         this(typeFactory, typeName, null);
     }
@@ -40,6 +45,20 @@ public class Message {
         }
     }
 
+    /**
+     * The decode context of the PDU this message came from, for sharing values derived from the message with other
+     * readers of the PDU.
+     *
+     * @return the context, or null if the message wasn't decoded through one
+     */
+    public DecodeContext getDecodeContext() {
+        return decodeContext;
+    }
+
+    void setDecodeContext(DecodeContext decodeContext) {
+        this.decodeContext = decodeContext;
+    }
+
     public StructDefinition getDefinition() {
         return definition;
     }
@@ -130,6 +149,38 @@ public class Message {
         return fields;
     }
 
+    /**
+     * A deep copy of the message, that can be changed without changing this one.
+     */
+    public Message copy() {
+        return new Message(typeFactory, typeName, copyFields(fields));
+    }
+
+    private static Map<String, Object> copyFields(Map<?, ?> fields) {
+        Map<String, Object> copy = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> field : fields.entrySet()) {
+            copy.put((String) field.getKey(), copyValue(field.getValue()));
+        }
+        return copy;
+    }
+
+    private static Object copyValue(Object value) {
+        if (value instanceof Map) {
+            return copyFields((Map<?, ?>) value);
+        } else if (value instanceof Object[]) {
+            Object[] array = ((Object[]) value).clone();
+            for (int i = 0; i < array.length; i++) {
+                array[i] = copyValue(array[i]);
+            }
+            return array;
+        } else if (value instanceof byte[]) {
+            return ((byte[]) value).clone();
+        } else {
+            // Strings and boxed primitives
+            return value;
+        }
+    }
+
     public String getTypeName() {
         return typeName;
     }
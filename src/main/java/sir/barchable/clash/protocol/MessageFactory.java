@@ -6,6 +6,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Optional;
 
@@ -19,11 +20,13 @@ public class MessageFactory {
     private TypeFactory typeFactory;
     private MessageReader reader;
     private MessageWriter writer;
+    private CodecFactory codecFactory;
 
     public MessageFactory(TypeFactory typeFactory) {
         this.typeFactory = typeFactory;
         this.reader = new MessageReader(typeFactory);
         this.writer = new MessageWriter(typeFactory);
+        this.codecFactory = new CodecFactory(typeFactory);
     }
 
     public MessageReader getMessageReader() {
@@ -38,6 +41,10 @@ public class MessageFactory {
         return typeFactory;
     }
 
+    public CodecFactory getCodecFactory() {
+        return codecFactory;
+    }
+
     /**
      * New empty message.
      *
@@ -71,17 +78,35 @@ public class MessageFactory {
         }
     }
 
+    /**
+     * Read a message with a particular codec, such as one from {@link CodecFactory#getCodecForId(int, java.util.Collection)}
+     * that only reads some of the fields.
+     */
+    public Message fromPdu(Pdu pdu, Codec codec) {
+        TypeFactory.Type type = typeFactory.getStructTypeForId(pdu.getId());
+        if (type == null) {
+            throw new PduException("No type definition for " + pdu.getType());
+        }
+        try (ByteArrayInputStream in = new ByteArrayInputStream(pdu.getPayload())) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> fields = (Map<String, Object>) codec.read(new MessageInputStream(in));
+            return new Message(typeFactory, type.getName(), fields);
+        } catch (TypeException | IOException e) {
+            throw new PduException(e);
+        }
+    }
+
     /**
      * Deserialize a message.
      */
     public Message fromStream(Pdu.Type pduType, InputStream in) {
-        Optional<String> structName = typeFactory.getStructNameForId(pduType.id());
-        if (structName.isPresent()) {
+        TypeFactory.Type type = typeFactory.getStructTypeForId(pduType.id());
+        if (type != null) {
             try {
-                String name = structName.get();
-                TypeFactory.Type type = typeFactory.resolveType(name);
-                Map<String, Object> fields = (Map<String, Object>) reader.readValue(type, MessageInputStream.toMessageInputStream(in));
-                return new Message(typeFactory, name, fields);
+                Codec codec = codecFactory.getCodec(type);
+                @SuppressWarnings("unchecked")
+                Map<String, Object> fields = (Map<String, Object>) codec.read(MessageInputStream.toMessageInputStream(in));
+                return new Message(typeFactory, type.getName(), fields);
             } catch (TypeException | IOException e) {
                 throw new PduException(e);
             }
@@ -102,10 +127,38 @@ public class MessageFactory {
         MessageOutputStream out = new MessageOutputStream(sink);
         try {
             TypeFactory.Type type = typeFactory.resolveType(message.getDefinition().getName());
-            writer.write(type, message.getFields(), out);
+            codecFactory.getCodec(type).write(message.getFields(), out);
+            // Commit a trailing bit field, if there is one
+            out.flush();
             return new Pdu(type.getStructDefinition().getId(), sink.toByteArray());
         } catch (IOException e) {
             throw new PduException(e);
         }
     }
+
+    /**
+     * Encode a message once, to be sent many times with different values in a few of its fields.
+     *
+     * @param fields the names of the top level fields that change: INT or LONG fields, or structs that start and end
+     * on a byte boundary
+     * @throws TypeException if one of the fields can't be changed in a template
+     */
+    public MessageTemplate toTemplate(Message message, String... fields) {
+        TypeFactory.Type type = typeFactory.resolveType(message.getDefinition().getName());
+        return codecFactory.writeTemplate(type, message.getFields(), Arrays.asList(fields));
+    }
+
+    /**
+     * Make a template of a message that's already encoded, without decoding it. Only as much of the message as it
+     * takes to find the fields is read, and zipped strings are skipped rather than unzipped.
+     *
+     * @see #toTemplate(Message, String...)
+     */
+    public MessageTemplate toTemplate(Pdu pdu, String... fields) {
+        TypeFactory.Type type = typeFactory.getStructTypeForId(pdu.getId());
+        if (type == null) {
+            throw new PduException("No type definition for " + pdu.getType());
+        }
+        return codecFactory.readTemplate(type, pdu.getPayload(), Arrays.asList(fields));
+    }
 }
@@ -1,13 +1,15 @@
 package sir.barchable.clash.protocol;
 
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sir.barchable.util.BitInputStream;
 import sir.barchable.util.Bits;
 
 import java.io.*;
-import java.util.zip.InflaterInputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -58,19 +60,17 @@ public class MessageInputStream extends InputStream {
         return ch;
     }
 
+    private byte[] buffer = new byte[8];
+
     public int readInt() throws IOException {
-        int ch1 = in.read();
-        int ch2 = in.read();
-        int ch3 = in.read();
-        int ch4 = in.read();
-        if ((ch1 | ch2 | ch3 | ch4) < 0) {
-            throw new EOFException();
-        }
-        return (ch1 << 24) + (ch2 << 16) + (ch3 << 8) + ch4;
+        readArray(buffer, 0, 4);
+        return
+            ((buffer[0] & 255) << 24) +
+            ((buffer[1] & 255) << 16) +
+            ((buffer[2] & 255) << 8) +
+            ((buffer[3] & 255));
     }
 
-    private byte[] buffer = new byte[8];
-
     public long readLong() throws IOException {
         readArray(buffer);
         return
@@ -112,15 +112,50 @@ public class MessageInputStream extends InputStream {
 
         // Read zipped data
         byte[] zipped = readArray(new byte[length - 4]);
-        InflaterInputStream zipStream = new InflaterInputStream(new ByteArrayInputStream(zipped));
-        ByteArrayOutputStream out = new ByteArrayOutputStream(unzippedLength);
 
-        // Unzip it
-        IOUtils.copy(zipStream, out);
-        byte[] unzipped = out.toByteArray();
+        // Unzip it straight into a buffer of the advertised size
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(zipped);
+            byte[] unzipped = new byte[unzippedLength];
+            int n = 0;
+            while (!inflater.finished()) {
+                if (n == unzipped.length) {
+                    // The advertised length was a lie
+                    unzipped = Arrays.copyOf(unzipped, Math.max(64, unzipped.length * 2));
+                }
+                int count = inflater.inflate(unzipped, n, unzipped.length - n);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new EOFException("Unexpected end of ZLIB input stream");
+                }
+                n += count;
+            }
 
-        // Decode the string
-        return new String(unzipped, UTF_8);
+            // Decode the string
+            return new String(unzipped, 0, n, UTF_8);
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Read past a zipped string without unzipping it.
+     */
+    public void skipZipString() throws IOException {
+        int length = readInt();
+        checkLength(length);
+        if (length != 0xffffffff) {
+            long remaining = length;
+            while (remaining > 0) {
+                long count = in.skip(remaining);
+                if (count <= 0) {
+                    throw new EOFException();
+                }
+                remaining -= count;
+            }
+        }
     }
 
     public byte[] readArray(byte[] a) throws IOException {
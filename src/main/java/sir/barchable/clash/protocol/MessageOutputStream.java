@@ -26,15 +26,23 @@ public class MessageOutputStream extends OutputStream {
         out.writeBit(bit);
     }
 
-    public void writeInt(int v) throws IOException {
-        out.write(v >>> 24);
-        out.write(v >>> 16 & 0xff);
-        out.write(v >>> 8 & 0xff);
-        out.write(v & 0xff);
+    /**
+     * Commit any outstanding bit writes, as the next byte, int or string write would.
+     */
+    public void flushBits() throws IOException {
+        out.flushBits();
     }
 
     private byte buffer[] = new byte[8];
 
+    public void writeInt(int v) throws IOException {
+        buffer[0] = (byte) (v >>> 24);
+        buffer[1] = (byte) (v >>> 16);
+        buffer[2] = (byte) (v >>> 8);
+        buffer[3] = (byte) (v);
+        out.write(buffer, 0, 4);
+    }
+
     public final void writeLong(long v) throws IOException {
         buffer[0] = (byte) (v >>> 56);
         buffer[1] = (byte) (v >>> 48);
@@ -9,9 +9,9 @@ import sir.barchable.clash.protocol.Protocol.StructDefinition.FieldDefinition;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
 
 /**
  * @author Sir Barchable
@@ -42,11 +42,11 @@ public class MessageReader {
      * @return a map of field names -> field values, or null if the message ID isn't recognized
      */
     public Map<String, Object> readMessage(Pdu pdu) {
-        Optional<String> messageName = typeFactory.getStructNameForId(pdu.getId());
-        if (messageName.isPresent()) {
+        TypeFactory.Type type = typeFactory.getStructTypeForId(pdu.getId());
+        if (type != null) {
             try {
                 MessageInputStream in = new MessageInputStream(new ByteArrayInputStream(pdu.getPayload()));
-                return (Map<String, Object>) readValue(messageName.get(), in);
+                return (Map<String, Object>) readValue(type, in);
             } catch (IOException e) {
                 throw new PduException(e);
             }
@@ -117,9 +117,10 @@ public class MessageReader {
             }
         } else {
             Object[] messages = new Object[length];
+            TypeFactory.Type elementType = typeFactory.resolveType(definition.getName());
             for (int i = 0; i < length; i++) {
                 try {
-                    messages[i] = readValue(definition.getName(), in);
+                    messages[i] = readValue(elementType, in);
                 } catch (PduException e) {
                     throw new PduException("Could not read element " + i + " of " + definition.getName() + "[]", e);
                 }
@@ -160,9 +161,12 @@ public class MessageReader {
 
             // Read fields
             StructDefinition struct = definition.getStructDefinition();
-            for (FieldDefinition field : struct.getFields()) {
+            List<FieldDefinition> structFields = struct.getFields();
+            TypeFactory.Type[] fieldTypes = definition.getFieldTypes();
+            for (int i = 0; i < fieldTypes.length; i++) {
+                FieldDefinition field = structFields.get(i);
                 fieldIndex++;
-                Object value = readValue(field.getType(), in);
+                Object value = readValue(fieldTypes[i], in);
                 if (field.getName() != null || allFields) {
                     fields.put(field.getName() != null ? field.getName() : "field" + fieldIndex, value);
                 }
@@ -177,9 +181,12 @@ public class MessageReader {
                 Extension extension = struct.getExtension(id);
                 if (extension != null) {
                     // Read extension to the struct
-                    for (FieldDefinition field : extension.getFields()) {
+                    List<FieldDefinition> extensionFields = extension.getFields();
+                    TypeFactory.Type[] extensionFieldTypes = definition.getExtensionFieldTypes(extension);
+                    for (int i = 0; i < extensionFieldTypes.length; i++) {
+                        FieldDefinition field = extensionFields.get(i);
                         fieldIndex++;
-                        Object value = readValue(field.getType(), in);
+                        Object value = readValue(extensionFieldTypes[i], in);
                         if (field.getName() != null || allFields) {
                             fields.put(field.getName() != null ? field.getName() : "field" + fieldIndex, value);
                         }
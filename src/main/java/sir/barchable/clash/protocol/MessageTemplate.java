@@ -0,0 +1,179 @@
+package sir.barchable.clash.protocol;
+
+import sir.barchable.clash.protocol.TypeFactory.Primitive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A message encoded once, with the positions of some of its fields noted so they can be changed without encoding the
+ * whole message again. Saves deflating the village JSON of a home every time its time stamp changes.
+ * <p>
+ * Fixed width fields are overwritten in place. Struct fields, like the attacker of an enemy home, are encoded on
+ * their own and spliced in between the bytes around them.
+ * <p>
+ * Templates are immutable, and can be shared between threads.
+ *
+ * @author Sir Barchable
+ * @see MessageFactory#toTemplate(Message, String...)
+ * @see MessageFactory#toTemplate(Pdu, String...)
+ */
+public class MessageTemplate {
+    private final int id;
+    private final byte[] payload;
+
+    /**
+     * Field name -> slot, in payload order.
+     */
+    private final Map<String, Slot> slots;
+
+    /**
+     * @param id the message ID
+     * @param payload the encoded message
+     * @param slots field name -> where the field is in the payload, in payload order
+     */
+    MessageTemplate(int id, byte[] payload, Map<String, Slot> slots) {
+        this.id = id;
+        this.payload = payload;
+        this.slots = slots;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * The names of the fields that can be changed.
+     */
+    public Set<String> getFields() {
+        return Collections.unmodifiableSet(slots.keySet());
+    }
+
+    /**
+     * The length of the encoded message.
+     */
+    public int size() {
+        return payload.length;
+    }
+
+    /**
+     * A PDU containing the message as it was encoded.
+     */
+    public Pdu toPdu() {
+        return new Pdu(id, payload.clone());
+    }
+
+    /**
+     * A PDU containing the message with some of the fields changed.
+     *
+     * @param values field name -> new value: an Integer for INT fields, a Long for LONG fields and a field map for
+     * struct fields
+     * @throws IllegalArgumentException if the template can't change one of the fields
+     */
+    public Pdu toPdu(Map<String, ?> values) {
+        byte[] patched = payload.clone();
+        List<Slot> splices = new ArrayList<>();
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            String field = entry.getKey();
+            Object value = entry.getValue();
+            Slot slot = slots.get(field);
+            if (slot == null) {
+                throw new IllegalArgumentException("Field " + field + " isn't in the template");
+            }
+            if (slot.width == Primitive.INT && value instanceof Integer) {
+                putInt(patched, slot.start, (Integer) value);
+            } else if (slot.width == Primitive.LONG && value instanceof Long) {
+                long v = (Long) value;
+                putInt(patched, slot.start, (int) (v >>> 32));
+                putInt(patched, slot.start + 4, (int) v);
+            } else if (slot.codec != null && value instanceof Map) {
+                splices.add(slot);
+            } else {
+                throw new IllegalArgumentException("Bad value for field " + field);
+            }
+        }
+        if (splices.isEmpty()) {
+            return new Pdu(id, patched);
+        }
+
+        ByteArrayOutputStream sink = new ByteArrayOutputStream(payload.length + 1024);
+        MessageOutputStream out = new MessageOutputStream(sink);
+        int from = 0;
+        try {
+            for (Map.Entry<String, Slot> entry : slots.entrySet()) {
+                Slot slot = entry.getValue();
+                if (splices.contains(slot)) {
+                    sink.write(patched, from, slot.start - from);
+                    slot.codec.write(values.get(entry.getKey()), out);
+                    // The slot ends on a byte boundary
+                    out.flushBits();
+                    from = slot.end;
+                }
+            }
+        } catch (IOException e) {
+            throw new PduException(e);
+        }
+        sink.write(patched, from, patched.length - from);
+        return new Pdu(id, sink.toByteArray());
+    }
+
+    /**
+     * Big endian, like {@link MessageOutputStream#writeInt(int)}.
+     */
+    private static void putInt(byte[] bytes, int offset, int v) {
+        bytes[offset] = (byte) (v >>> 24);
+        bytes[offset + 1] = (byte) (v >>> 16);
+        bytes[offset + 2] = (byte) (v >>> 8);
+        bytes[offset + 3] = (byte) v;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageTemplate[" + Pdu.Type.valueOf(id) + ", " + payload.length + " bytes, " + slots.keySet() + ']';
+    }
+
+    /**
+     * Where a field is in the payload.
+     */
+    static class Slot {
+        private final int start;
+        private final int end;
+
+        /**
+         * INT or LONG for a fixed width field, null for a struct.
+         */
+        private final Primitive width;
+
+        /**
+         * Writes the struct, or null for a fixed width field.
+         */
+        private final Codec codec;
+
+        /**
+         * A fixed width field.
+         */
+        Slot(int start, Primitive width) {
+            this.start = start;
+            this.end = start + (width == Primitive.LONG ? 8 : 4);
+            this.width = width;
+            this.codec = null;
+        }
+
+        /**
+         * A struct field.
+         *
+         * @param end the offset of the byte after the struct
+         */
+        Slot(int start, int end, Codec codec) {
+            this.start = start;
+            this.end = end;
+            this.width = null;
+            this.codec = codec;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import sir.barchable.clash.protocol.Protocol.StructDefinition.FieldDefinition;
 import java.io.IOException;
 import java.lang.reflect.Array;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -124,14 +125,17 @@ public class MessageWriter {
             struct = Collections.emptyMap();
         }
         int fieldIndex = 0;
-        for (FieldDefinition fieldDefinition : type.getStructDefinition().getFields()) {
+        List<FieldDefinition> fields = type.getStructDefinition().getFields();
+        TypeFactory.Type[] fieldTypes = type.getFieldTypes();
+        for (int i = 0; i < fieldTypes.length; i++) {
+            FieldDefinition fieldDefinition = fields.get(i);
             fieldIndex++;
             String key = fieldDefinition.getName();
             if (key == null) {
                 key = "field" + fieldIndex;
             }
             Object value = struct.get(key);
-            TypeFactory.Type fieldType = typeFactory.resolveType(fieldDefinition.getType());
+            TypeFactory.Type fieldType = fieldTypes[i];
             if (value == null && fieldDefinition.getDefault() != null) {
                 value = fieldType.valueOf(fieldDefinition.getDefault());
             }
@@ -145,13 +149,16 @@ public class MessageWriter {
         if (id != null && id instanceof Integer) {
             Protocol.StructDefinition.Extension extension = type.getStructDefinition().getExtension((Integer) id);
             if (extension != null) {
-                for (FieldDefinition fieldDefinition : extension.getFields()) {
+                List<FieldDefinition> extensionFields = extension.getFields();
+                TypeFactory.Type[] extensionFieldTypes = type.getExtensionFieldTypes(extension);
+                for (int i = 0; i < extensionFieldTypes.length; i++) {
+                    FieldDefinition fieldDefinition = extensionFields.get(i);
                     fieldIndex++;
                     String key = fieldDefinition.getName();
                     if (key == null) {
                         key = "field" + fieldIndex;
                     }
-                    TypeFactory.Type fieldType = typeFactory.resolveType(fieldDefinition.getType());
+                    TypeFactory.Type fieldType = extensionFieldTypes[i];
                     Object value = struct.get(key);
                     if (value == null && fieldDefinition.getDefault() != null) {
                         value = fieldType.valueOf(fieldDefinition.getDefault());
@@ -1,5 +1,7 @@
 package sir.barchable.clash.protocol;
 
+import java.nio.ByteBuffer;
+
 /**
  * Clash of Clans Protocol Data Unit.
  *
@@ -165,6 +167,30 @@ public class Pdu {
 
         private int id;
 
+        /**
+         * Types indexed by id - {@link #MIN_ID}.
+         */
+        private static final Type[] TYPES_BY_ID;
+        private static final int MIN_ID;
+
+        static {
+            int min = Integer.MAX_VALUE;
+            int max = 0;
+            for (Type e : values()) {
+                if (e != Unknown) {
+                    min = Math.min(min, e.id);
+                    max = Math.max(max, e.id);
+                }
+            }
+            MIN_ID = min;
+            TYPES_BY_ID = new Type[max - min + 1];
+            for (Type e : values()) {
+                if (e != Unknown && TYPES_BY_ID[e.id - min] == null) {
+                    TYPES_BY_ID[e.id - min] = e;
+                }
+            }
+        }
+
         Type(int id) {
             this.id = id;
         }
@@ -174,9 +200,11 @@ public class Pdu {
         }
 
         public static Type valueOf(int id) {
-            for (Type e : Type.values()) {
-                if (e.id() == id) {
-                    return e;
+            int i = id - MIN_ID;
+            if (i >= 0 && i < TYPES_BY_ID.length) {
+                Type type = TYPES_BY_ID[i];
+                if (type != null) {
+                    return type;
                 }
             }
             return Unknown;
@@ -188,17 +216,38 @@ public class Pdu {
         Server
     }
 
+    private static final byte[] EMPTY = new byte[0];
+
     int id;
     int version;
-    byte[] payload;
+
+    /**
+     * The payload. Read-only, positioned at zero.
+     */
+    private ByteBuffer payload;
+
+    /**
+     * The array backing the payload, if we have one.
+     */
+    private byte[] payloadArray;
+
+    /**
+     * What's been decoded from the PDU, created on demand. Dropped when the PDU changes.
+     */
+    private DecodeContext decodeContext;
 
     public Pdu() {
-        payload = new byte[0];
+        setPayload(EMPTY);
     }
 
     public Pdu(int id, byte[] payload) {
         this.id = id;
-        this.payload = payload;
+        setPayload(payload);
+    }
+
+    public Pdu(int id, ByteBuffer payload) {
+        this.id = id;
+        setPayload(payload);
     }
 
     public int getId() {
@@ -211,6 +260,7 @@ public class Pdu {
 
     public void setId(int id) {
         this.id = id;
+        this.decodeContext = null;
     }
 
     public int getVersion() {
@@ -221,16 +271,75 @@ public class Pdu {
         this.version = version;
     }
 
+    /**
+     * Get the payload as an array. This is the array the PDU was built with, if any, so no copy is made; if the PDU
+     * was built from a buffer the array is copied out once and cached.
+     */
     public byte[] getPayload() {
-        return payload;
+        if (payloadArray == null) {
+            byte[] a = new byte[payload.remaining()];
+            payload.duplicate().get(a);
+            payloadArray = a;
+        }
+        return payloadArray;
+    }
+
+    /**
+     * Get a read-only view of the payload. Each call returns an independent view, so callers are free to move the
+     * position and limit.
+     */
+    public ByteBuffer getPayloadBuffer() {
+        return payload.duplicate();
+    }
+
+    public int getPayloadLength() {
+        return payload.remaining();
     }
 
     public void setPayload(byte[] payload) {
-        this.payload = payload;
+        this.payloadArray = payload;
+        this.payload = ByteBuffer.wrap(payload).asReadOnlyBuffer();
+        this.decodeContext = null;
+    }
+
+    /**
+     * Set the payload to the remaining bytes of a buffer. The bytes aren't copied, so the buffer contents shouldn't
+     * be changed afterwards.
+     */
+    public void setPayload(ByteBuffer payload) {
+        this.payloadArray = null;
+        this.payload = payload.slice().asReadOnlyBuffer();
+        this.decodeContext = null;
+    }
+
+    /**
+     * Get the decodes of this PDU that the filters looking at it share.
+     */
+    public DecodeContext getDecodeContext() {
+        if (decodeContext == null) {
+            decodeContext = new DecodeContext(this);
+        }
+        return decodeContext;
+    }
+
+    /**
+     * Copy the PDU to hand to another thread. What's been decoded from it comes along, so the other thread doesn't
+     * decode it again: a copy of the message, if it's been decoded whole, and the named values derived from it. The
+     * values are shared between the threads, so they mustn't be changed.
+     *
+     * @param keys the keys of the derived values to hand over
+     */
+    public Pdu copy(String... keys) {
+        Pdu copy = new Pdu(id, payload);
+        copy.version = version;
+        if (decodeContext != null) {
+            decodeContext.copyTo(copy.getDecodeContext(), keys);
+        }
+        return copy;
     }
 
     public int getLength() {
-        return 7 + payload.length;
+        return 7 + payload.remaining();
     }
 
     public Origin getOrigin() {
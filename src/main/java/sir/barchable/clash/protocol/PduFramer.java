@@ -0,0 +1,103 @@
+package sir.barchable.clash.protocol;
+
+import sir.barchable.util.Cipher;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental PDU framing for non-blocking I/O. Where {@link PduInputStream} and {@link PduOutputStream} block until a
+ * whole PDU has been transferred, the framer works on whatever bytes have arrived so far, cutting complete PDUs from
+ * the front of a buffer and leaving partial ones in place until the rest turns up.
+ * <p>
+ * Like the streams, a framer owns a stream cipher, so use one framer per direction.
+ *
+ * @author Sir Barchable
+ */
+public class PduFramer {
+    /**
+     * id (2), length (3), version (2).
+     */
+    public static final int HEADER_LENGTH = 7;
+
+    /**
+     * The length field is three bytes wide.
+     */
+    public static final int MAX_PAYLOAD_LENGTH = 0xffffff;
+
+    private Cipher cipher;
+
+    /**
+     * Creates a framer with a newly initialized stream cipher.
+     * Call {@link #setKey(byte[])} after key exchange to reinitialize the stream cipher.
+     */
+    public PduFramer() {
+        this(new Clash7Crypt());
+    }
+
+    public PduFramer(Cipher cipher) {
+        this.cipher = cipher;
+    }
+
+    /**
+     * Peek at the header at the front of a buffer to find the total length of the next PDU.
+     *
+     * @param in the buffer, ready for reading
+     * @return the length of the PDU including the header, or -1 if the header hasn't arrived yet
+     */
+    public static int frameLength(ByteBuffer in) {
+        if (in.remaining() < HEADER_LENGTH) {
+            return -1;
+        }
+        int p = in.position();
+        int length = (in.get(p + 2) & 0xff) << 16 | (in.get(p + 3) & 0xff) << 8 | in.get(p + 4) & 0xff;
+        return HEADER_LENGTH + length;
+    }
+
+    /**
+     * Cut a PDU from the front of a buffer.
+     *
+     * @param in the buffer, ready for reading. If a PDU is returned the position is advanced past it, otherwise the
+     *           buffer is left untouched.
+     * @return the decrypted PDU, or null if the buffer doesn't hold a complete PDU yet
+     */
+    public Pdu read(ByteBuffer in) {
+        int frameLength = frameLength(in);
+        if (frameLength == -1 || in.remaining() < frameLength) {
+            return null;
+        }
+        int id = (in.get() & 0xff) << 8 | in.get() & 0xff;
+        in.position(in.position() + 3);
+        int version = (in.get() & 0xff) << 8 | in.get() & 0xff;
+        byte[] payload = new byte[frameLength - HEADER_LENGTH];
+        in.get(payload);
+        cipher.encrypt(payload, 0, payload.length);
+        Pdu pdu = new Pdu(id, payload);
+        pdu.version = version;
+        return pdu;
+    }
+
+    /**
+     * Encrypt a PDU into a new buffer. The payload is copied straight into the buffer and encrypted there.
+     *
+     * @return a buffer holding the header and encrypted payload, ready for writing to a channel
+     */
+    public ByteBuffer write(Pdu pdu) {
+        int length = pdu.getPayloadLength();
+        if (length > MAX_PAYLOAD_LENGTH) {
+            throw new PduException("Payload too long (" + length + ")");
+        }
+        ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + length);
+        out.putShort((short) pdu.getId());
+        out.put((byte) (length >>> 16));
+        out.putShort((short) length);
+        out.putShort((short) pdu.getVersion());
+        out.put(pdu.getPayloadBuffer());
+        cipher.encrypt(out.array(), out.arrayOffset() + HEADER_LENGTH, length);
+        out.flip();
+        return out;
+    }
+
+    public void setKey(byte[] nonce) {
+        cipher.setKey(nonce);
+    }
+}
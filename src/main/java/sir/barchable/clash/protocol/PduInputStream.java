@@ -6,13 +6,26 @@ import java.io.*;
 
 /**
  * Read Clash PDUs.
+ * <p>
+ * Reads from the underlying stream go through a small window buffer, so headers are parsed from memory rather than a
+ * byte at a time. Payloads are read straight into the array that backs the PDU and decrypted in place, so a PDU costs
+ * one copy however large it is.
  *
  * @author Sir Barchable
  */
 public class PduInputStream implements Closeable {
+    /**
+     * Size of the read window. Big enough to hold a burst of small PDUs.
+     */
+    private static final int WINDOW_SIZE = 8 * 1024;
+
     private InputStream in;
     private Cipher cipher;
 
+    private final byte[] window = new byte[WINDOW_SIZE];
+    private int windowStart;
+    private int windowEnd;
+
     /**
      * Creates a PDU input stream with a newly initialized stream cipher.
      * Call {@link #setKey(byte[])} after key exchange to reinitialize the stream cipher.
@@ -29,39 +42,53 @@ public class PduInputStream implements Closeable {
     }
 
     public final Pdu read() throws IOException {
-        Pdu pdu = new Pdu();
-        pdu.id = readUInt2();
-        int length = readUInt3();
-        pdu.version = readUInt2();
-        pdu.payload = cipher.encrypt(readBytes(length));
+        fill(PduFramer.HEADER_LENGTH);
+        byte[] w = window;
+        int p = windowStart;
+        int id = (w[p] & 0xff) << 8 | w[p + 1] & 0xff;
+        int length = (w[p + 2] & 0xff) << 16 | (w[p + 3] & 0xff) << 8 | w[p + 4] & 0xff;
+        int version = (w[p + 5] & 0xff) << 8 | w[p + 6] & 0xff;
+        windowStart += PduFramer.HEADER_LENGTH;
+
+        byte[] payload = readBytes(length);
+        cipher.encrypt(payload, 0, length);
+
+        Pdu pdu = new Pdu(id, payload);
+        pdu.version = version;
         return pdu;
     }
 
-    private int readUInt3() throws IOException {
-        int ch1 = in.read();
-        int ch2 = in.read();
-        int ch3 = in.read();
-        if ((ch1 | ch2 | ch3) < 0) {
-            throw new EOFException();
+    /**
+     * Make sure the window holds at least n bytes.
+     */
+    private void fill(int n) throws IOException {
+        if (windowEnd - windowStart >= n) {
+            return;
         }
-        return (ch1 << 24) | (ch2 << 8) | ch3;
-    }
-
-    public final int readUInt2() throws IOException {
-        int ch1 = in.read();
-        int ch2 = in.read();
-        if ((ch1 | ch2) < 0) {
-            throw new EOFException();
+        // Slide what we have to the start of the window
+        System.arraycopy(window, windowStart, window, 0, windowEnd - windowStart);
+        windowEnd -= windowStart;
+        windowStart = 0;
+        while (windowEnd < n) {
+            int count = in.read(window, windowEnd, window.length - windowEnd);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            windowEnd += count;
         }
-        return (ch1 << 8) | ch2;
     }
 
+    /**
+     * Read bytes, taking what we can from the window and the remainder directly from the underlying stream.
+     */
     private byte[] readBytes(int len) throws IOException {
         if (len < 0) {
             throw new IndexOutOfBoundsException();
         }
         byte[] b = new byte[len];
-        int n = 0;
+        int n = Math.min(len, windowEnd - windowStart);
+        System.arraycopy(window, windowStart, b, 0, n);
+        windowStart += n;
         while (n < len) {
             int count = in.read(b, n, len - n);
             if (count < 0) {
@@ -72,6 +99,28 @@ public class PduInputStream implements Closeable {
         return b;
     }
 
+    /**
+     * The number of bytes that can be read without blocking.
+     */
+    public int available() throws IOException {
+        return windowEnd - windowStart + in.available();
+    }
+
+    /**
+     * Can a whole PDU be read without blocking?
+     */
+    public boolean isPduAvailable() throws IOException {
+        int available = available();
+        if (available < PduFramer.HEADER_LENGTH) {
+            return false;
+        }
+        // We know there's a header's worth of bytes waiting so this won't block
+        fill(PduFramer.HEADER_LENGTH);
+        int p = windowStart;
+        int length = (window[p + 2] & 0xff) << 16 | (window[p + 3] & 0xff) << 8 | window[p + 4] & 0xff;
+        return available >= PduFramer.HEADER_LENGTH + length;
+    }
+
     public void setKey(byte[] nonce) {
         cipher.setKey(nonce);
     }
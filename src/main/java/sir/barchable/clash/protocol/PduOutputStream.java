@@ -5,17 +5,66 @@ import sir.barchable.util.Cipher;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import static sir.barchable.clash.protocol.PduFramer.HEADER_LENGTH;
+import static sir.barchable.clash.protocol.PduFramer.MAX_PAYLOAD_LENGTH;
 
 /**
  * Write Clash PDUs.
+ * <p>
+ * Each PDU is assembled, header and cipher text, in a write buffer, so it goes to the underlying stream in a single
+ * write. PDUs too big for the buffer are encrypted into a buffer of their own and written along with the header,
+ * gathering if we're writing to a channel.
+ * <p>
+ * By default the stream is flushed after every PDU. With {@link FlushPolicy#BUFFERED} PDUs accumulate in the write
+ * buffer until {@link #flush()} is called or a size or age threshold is reached. There's no timer behind the age
+ * threshold, it's checked on write, so whoever is writing has to flush when they run out of PDUs to write.
  *
  * @author Sir Barchable
  *         Date: 6/04/15
  */
 public class PduOutputStream implements Closeable {
+    /**
+     * Size of the write buffer.
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    public enum FlushPolicy {
+        /**
+         * Flush after every PDU.
+         */
+        EACH_PDU,
+
+        /**
+         * Hold PDUs until {@link #flush()}, or until the size or age threshold is reached.
+         */
+        BUFFERED
+    }
+
     private OutputStream out;
+    private GatheringByteChannel channel;
     private Cipher cipher;
 
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+
+    private FlushPolicy flushPolicy = FlushPolicy.EACH_PDU;
+    private int flushSize = BUFFER_SIZE;
+    private long flushDelay = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * When the oldest unflushed PDU was written.
+     */
+    private long bufferedSince;
+
+    /**
+     * Bytes written since the last flush.
+     */
+    private int unflushed;
+
     /**
      * Creates a PDU output stream with a newly initialized stream cipher.
      * Call {@link #setKey(byte[])} after key exchange to reinitialize the stream cipher.
@@ -31,23 +80,123 @@ public class PduOutputStream implements Closeable {
         this.cipher = cipher;
     }
 
+    /**
+     * Creates a PDU output stream that writes to a channel, with a newly initialized stream cipher.
+     *
+     * @param channel a blocking channel to write to
+     */
+    public PduOutputStream(GatheringByteChannel channel) {
+        this(channel, new Clash7Crypt());
+    }
+
+    public PduOutputStream(GatheringByteChannel channel, Cipher cipher) {
+        this.channel = channel;
+        this.cipher = cipher;
+    }
+
     public void write(Pdu pdu) throws IOException {
-        writeShort(pdu.getId());
-        writeUInt3(pdu.getPayload().length);
-        writeShort(pdu.getVersion());
-        out.write(cipher.encrypt(pdu.getPayload()));
-        out.flush();
+        int length = pdu.getPayloadLength();
+        if (length > MAX_PAYLOAD_LENGTH) {
+            throw new PduException("Payload too long (" + length + ")");
+        }
+        if (buffer.remaining() < HEADER_LENGTH + length) {
+            drain();
+        }
+        if (unflushed == 0) {
+            bufferedSince = System.nanoTime();
+        }
+
+        buffer.putShort((short) pdu.getId());
+        buffer.put((byte) (length >>> 16));
+        buffer.putShort((short) length);
+        buffer.putShort((short) pdu.getVersion());
+
+        if (length <= buffer.remaining()) {
+            // Encrypt in the write buffer
+            int p = buffer.position();
+            buffer.put(pdu.getPayloadBuffer());
+            cipher.encrypt(buffer.array(), p, length);
+        } else {
+            // Too big for the write buffer. Encrypt a copy and send it out behind the header.
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            payload.put(pdu.getPayloadBuffer());
+            cipher.encrypt(payload.array(), 0, length);
+            payload.flip();
+            buffer.flip();
+            writeFully(buffer, payload);
+            buffer.clear();
+        }
+        unflushed += HEADER_LENGTH + length;
+
+        if (flushPolicy == FlushPolicy.EACH_PDU
+            || unflushed >= flushSize
+            || System.nanoTime() - bufferedSince >= flushDelay) {
+            flush();
+        }
+    }
+
+    /**
+     * Write out the contents of the write buffer.
+     */
+    private void drain() throws IOException {
+        if (buffer.position() > 0) {
+            buffer.flip();
+            writeFully(buffer, null);
+            buffer.clear();
+        }
+    }
+
+    private void writeFully(ByteBuffer header, ByteBuffer payload) throws IOException {
+        if (channel != null) {
+            gather[0] = header;
+            gather[1] = payload;
+            int count = payload == null ? 1 : 2;
+            long remaining = header.remaining() + (payload == null ? 0 : payload.remaining());
+            while (remaining > 0) {
+                remaining -= channel.write(gather, 0, count);
+            }
+            gather[1] = null;
+        } else {
+            out.write(header.array(), header.position(), header.remaining());
+            header.position(header.limit());
+            if (payload != null) {
+                out.write(payload.array(), payload.position(), payload.remaining());
+                payload.position(payload.limit());
+            }
+        }
+    }
+
+    /**
+     * Write out any buffered PDUs and flush the underlying stream.
+     */
+    public void flush() throws IOException {
+        drain();
+        if (out != null) {
+            out.flush();
+        }
+        unflushed = 0;
     }
 
-    private void writeUInt3(int v) throws IOException {
-        out.write(v >>> 16);
-        out.write(v >>> 8);
-        out.write(v);
+    public FlushPolicy getFlushPolicy() {
+        return flushPolicy;
     }
 
-    private void writeShort(int v) throws IOException {
-        out.write(v >>> 8);
-        out.write(v);
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * Flush buffered PDUs once this many bytes have been written since the last flush.
+     */
+    public void setFlushSize(int flushSize) {
+        this.flushSize = flushSize;
+    }
+
+    /**
+     * Flush buffered PDUs on write once the oldest has been waiting this long.
+     */
+    public void setFlushDelay(long delay, TimeUnit unit) {
+        this.flushDelay = unit.toNanos(delay);
     }
 
     public void setKey(byte[] nonce) {
@@ -56,6 +205,14 @@ public class PduOutputStream implements Closeable {
 
     @Override
     public void close() throws IOException {
-        out.close();
+        try {
+            drain();
+        } finally {
+            if (channel != null) {
+                channel.close();
+            } else {
+                out.close();
+            }
+        }
     }
 }
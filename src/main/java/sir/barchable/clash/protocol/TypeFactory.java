@@ -10,6 +10,9 @@ import sir.barchable.util.Json;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -52,6 +55,12 @@ public class TypeFactory {
      */
     private Map<String, Type> typeDefinitions = new LinkedHashMap<>();
 
+    /**
+     * Struct types indexed by message ID - {@link #minId}. Message IDs are clustered, so this stays small.
+     */
+    private Type[] typesById = new Type[0];
+    private int minId;
+
     public enum Primitive {
         BOOLEAN(Boolean::valueOf),
         BYTE(Byte::valueOf),
@@ -112,15 +121,75 @@ public class TypeFactory {
         // Now resolve and cache types
         for (StructDefinition structDefinition : protocol.getMessages()) {
             // Cache field types
-            for (FieldDefinition fieldDefinition : structDefinition.getFields()) {
-                String typeName = fieldDefinition.getType();
-                if (!typeDefinitions.containsKey(typeName)) {
-                    typeDefinitions.put(typeName, resolveType(typeName));
+            cacheFieldTypes(structDefinition.getFields());
+            List<Extension> extensions = structDefinition.getExtensions();
+            if (extensions != null) {
+                for (Extension extension : extensions) {
+                    cacheFieldTypes(extension.getFields());
                 }
             }
             // Cache the struct type
             typeDefinitions.put(structDefinition.getName(), resolveType(structDefinition.getName()));
         }
+
+        // Resolve the fields of each struct once, so the reader and writer don't have to do it per field
+        Map<String, Type[]> fieldTypes = new HashMap<>();
+        Map<String, Map<Integer, Type[]>> extensionFieldTypes = new HashMap<>();
+        for (StructDefinition structDefinition : structDefinitions.values()) {
+            fieldTypes.put(structDefinition.getName(), resolveFieldTypes(structDefinition.getFields()));
+            List<Extension> extensions = structDefinition.getExtensions();
+            if (extensions != null && !extensions.isEmpty()) {
+                Map<Integer, Type[]> types = new HashMap<>();
+                for (Extension extension : extensions) {
+                    types.put(extension.getId(), resolveFieldTypes(extension.getFields()));
+                }
+                extensionFieldTypes.put(structDefinition.getName(), types);
+            }
+        }
+        for (Type type : typeDefinitions.values()) {
+            if (type.structDefinition != null) {
+                String name = type.structDefinition.getName();
+                type.fieldTypes = fieldTypes.get(name);
+                type.extensionFieldTypes = extensionFieldTypes.getOrDefault(name, Collections.emptyMap());
+            }
+        }
+
+        // Index the message types by ID
+        int maxId = 0;
+        minId = Integer.MAX_VALUE;
+        for (StructDefinition structDefinition : structDefinitions.values()) {
+            Integer id = structDefinition.getId();
+            if (id != null) {
+                minId = Math.min(minId, id);
+                maxId = Math.max(maxId, id);
+            }
+        }
+        if (maxId > 0) {
+            typesById = new Type[maxId - minId + 1];
+            for (StructDefinition structDefinition : structDefinitions.values()) {
+                Integer id = structDefinition.getId();
+                if (id != null && typesById[id - minId] == null) {
+                    typesById[id - minId] = typeDefinitions.get(structDefinition.getName());
+                }
+            }
+        }
+    }
+
+    private void cacheFieldTypes(List<FieldDefinition> fields) {
+        for (FieldDefinition fieldDefinition : fields) {
+            String typeName = fieldDefinition.getType();
+            if (!typeDefinitions.containsKey(typeName)) {
+                typeDefinitions.put(typeName, resolveType(typeName));
+            }
+        }
+    }
+
+    private Type[] resolveFieldTypes(List<FieldDefinition> fields) {
+        Type[] types = new Type[fields.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = resolveType(fields.get(i).getType());
+        }
+        return types;
     }
 
     private void checkFields(List<FieldDefinition> fields) {
@@ -137,6 +206,13 @@ public class TypeFactory {
         }
     }
 
+    /**
+     * All the struct definitions in the protocol, in definition order.
+     */
+    public Collection<StructDefinition> getStructDefinitions() {
+        return Collections.unmodifiableCollection(structDefinitions.values());
+    }
+
     /**
      * Find the message name for a given message ID.
      *
@@ -144,24 +220,27 @@ public class TypeFactory {
      * @return the message name if defined
      */
     public Optional<String> getStructNameForId(int messageId) {
-        if (messageId <= 0) {
-            throw new TypeException("Illegal ID " + messageId);
-        }
-        for (StructDefinition definition: structDefinitions.values()) {
-            if (definition.getId() != null && definition.getId() == messageId) {
-                return Optional.ofNullable(definition.getName());
-            }
-        }
-        return Optional.empty();
+        Type type = getStructTypeForId(messageId);
+        return type == null ? Optional.empty() : Optional.of(type.getName());
     }
 
     public StructDefinition getStructDefinitionForId(int messageId) {
-        Optional<String> messageName = getStructNameForId(messageId);
-        if (messageName.isPresent()) {
-            return structDefinitions.get(messageName.get());
-        } else {
-            return null;
+        Type type = getStructTypeForId(messageId);
+        return type == null ? null : type.getStructDefinition();
+    }
+
+    /**
+     * Find the struct type for a given message ID.
+     *
+     * @param messageId the message ID to search for
+     * @return the resolved struct type, or null if there's no message with that ID
+     */
+    public Type getStructTypeForId(int messageId) {
+        if (messageId <= 0) {
+            throw new TypeException("Illegal ID " + messageId);
         }
+        int i = messageId - minId;
+        return i >= 0 && i < typesById.length ? typesById[i] : null;
     }
 
     /**
@@ -265,6 +344,12 @@ public class TypeFactory {
         private StructDefinition structDefinition;
         private Primitive primitiveType;
 
+        /**
+         * Field types of the struct, resolved during init. Null if this type was resolved after init.
+         */
+        private Type[] fieldTypes;
+        private Map<Integer, Type[]> extensionFieldTypes;
+
         public Type(boolean optional, String name, boolean array, int length, StructDefinition structDefinition) {
             this.optional = optional;
             this.name = name;
@@ -313,6 +398,29 @@ public class TypeFactory {
             return primitiveType;
         }
 
+        /**
+         * The resolved types of the struct fields, in field order.
+         */
+        Type[] getFieldTypes() {
+            if (fieldTypes != null) {
+                return fieldTypes;
+            }
+            return resolveFieldTypes(structDefinition.getFields());
+        }
+
+        /**
+         * The resolved types of the fields of an extension to the struct, in field order.
+         */
+        Type[] getExtensionFieldTypes(Extension extension) {
+            if (extensionFieldTypes != null) {
+                Type[] types = extensionFieldTypes.get(extension.getId());
+                if (types != null) {
+                    return types;
+                }
+            }
+            return resolveFieldTypes(extension.getFields());
+        }
+
         public Object valueOf(String dflt) {
             if (isPrimitive()) {
                 return primitiveType.fromString(dflt);
@@ -0,0 +1,236 @@
+package sir.barchable.clash.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sir.barchable.clash.protocol.Pdu;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run a filter off the forwarding path. Each PDU is passed straight back to the caller to be forwarded, and a copy is
+ * queued for the delegate filter, which runs later on a worker from a shared pool.
+ * <p>
+ * Each session gets a bounded queue of its own. PDUs from a session reach the delegate one at a time, in the order
+ * they arrived from either pipe, with the session bound to the worker thread so {@link ProxySession#getSession()}
+ * works as it would on a pipe thread. Whatever the delegate returns is ignored, so it can watch the traffic but not
+ * change or drop it.
+ * <p>
+ * What happens when a queue fills up depends on the {@link OverflowPolicy}.
+ *
+ * @author Sir Barchable
+ */
+public class AsyncPduFilter implements PduFilter {
+    private static final Logger log = LoggerFactory.getLogger(AsyncPduFilter.class);
+
+    /**
+     * What to do with a PDU when its session's queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait for space. Nothing is dropped, but a slow delegate holds up the traffic. Don't use this with the
+         * {@link NioProxy}, where waiting stalls every session on the event loop.
+         */
+        BLOCK,
+
+        /**
+         * Drop the arriving PDU.
+         */
+        DROP_NEWEST,
+
+        /**
+         * Drop the PDU at the head of the queue to make room for the arriving one.
+         */
+        DROP_OLDEST
+    }
+
+    private final PduFilter delegate;
+    private final Executor executor;
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    /**
+     * Queues by session. Weak keys, so the queue goes when the session does. A queue holds its session only while
+     * it has work.
+     */
+    private final Map<ProxySession, Lane> lanes = new WeakHashMap<>();
+
+    /**
+     * Count of PDUs that were dropped without being filtered.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param delegate the filter to run
+     * @param executor source of worker threads, shared by all sessions
+     * @param capacity maximum number of PDUs waiting for each session
+     * @param policy what to do when a queue is full
+     */
+    public AsyncPduFilter(PduFilter delegate, Executor executor, int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        this.delegate = delegate;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    @Override
+    public Pdu filter(Pdu pdu) throws IOException {
+        // The delegate gets a copy, so it can't race with the write. The payload is read-only and isn't copied.
+        Pdu copy = new Pdu(pdu.getId(), pdu.getPayloadBuffer());
+        copy.setVersion(pdu.getVersion());
+
+        ProxySession session = ProxySession.getSession();
+        getLane(session).offer(new Task(session, copy));
+        return pdu;
+    }
+
+    /**
+     * The number of PDUs dropped because a queue was full, or because the worker pool refused them.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Wait for the queue of a session to empty. Call this at the end of a session, before looking at the results of
+     * the analysis.
+     *
+     * @return true if the queue emptied, false if we timed out
+     */
+    public boolean awaitIdle(ProxySession session, long timeout, TimeUnit unit) throws InterruptedException {
+        Lane lane;
+        synchronized (lanes) {
+            lane = lanes.get(session);
+        }
+        return lane == null || lane.awaitIdle(unit.toNanos(timeout));
+    }
+
+    private Lane getLane(ProxySession session) {
+        synchronized (lanes) {
+            Lane lane = lanes.get(session);
+            if (lane == null) {
+                lane = new Lane();
+                lanes.put(session, lane);
+            }
+            return lane;
+        }
+    }
+
+    private void drop(Task task) {
+        long count = dropped.incrementAndGet();
+        if (count == 1) {
+            log.warn("Analysis queue full, dropping {}", task.pdu);
+        } else {
+            log.debug("Analysis queue full, dropping {} ({} so far)", task.pdu, count);
+        }
+    }
+
+    /**
+     * A queued PDU and the session it came from.
+     */
+    private static class Task {
+        private final ProxySession session;
+        private final Pdu pdu;
+
+        Task(ProxySession session, Pdu pdu) {
+            this.session = session;
+            this.pdu = pdu;
+        }
+    }
+
+    /**
+     * The queue for one session. At most one worker drains it at a time.
+     */
+    private class Lane implements Runnable {
+        private final ArrayDeque<Task> queue = new ArrayDeque<>();
+
+        /**
+         * Is a worker scheduled or running?
+         */
+        private boolean scheduled;
+
+        synchronized void offer(Task task) throws IOException {
+            while (queue.size() >= capacity) {
+                switch (policy) {
+                    case BLOCK:
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException("Interrupted waiting for the analysis queue");
+                        }
+                        break;
+
+                    case DROP_NEWEST:
+                        drop(task);
+                        return;
+
+                    case DROP_OLDEST:
+                        drop(queue.poll());
+                        break;
+                }
+            }
+            queue.add(task);
+            if (!scheduled) {
+                scheduled = true;
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // Shutting down
+                    scheduled = false;
+                    queue.clear();
+                    drop(task);
+                }
+            }
+        }
+
+        synchronized boolean awaitIdle(long nanos) throws InterruptedException {
+            long deadline = System.nanoTime() + nanos;
+            while (scheduled) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            Task task;
+            while ((task = next()) != null) {
+                ProxySession.setSession(task.session);
+                try {
+                    delegate.filter(task.pdu);
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Unexpected exception from filter", e);
+                } finally {
+                    ProxySession.setSession(null);
+                }
+            }
+        }
+
+        /**
+         * Take the next task, or retire the worker if there isn't one.
+         */
+        private synchronized Task next() {
+            Task task = queue.poll();
+            if (task == null) {
+                scheduled = false;
+            }
+            // Wake blocked producers, and anyone waiting for us to go idle
+            notifyAll();
+            return task;
+        }
+    }
+}
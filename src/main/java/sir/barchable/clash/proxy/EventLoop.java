@@ -0,0 +1,116 @@
+package sir.barchable.clash.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A thread that waits on a {@link Selector} and dispatches ready keys to the {@link Handler} attached to them.
+ * <p>
+ * Channels must only be registered, and interest sets changed, from the loop thread. Other threads hand work to the
+ * loop with {@link #execute(Runnable)}.
+ *
+ * @author Sir Barchable
+ */
+class EventLoop implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(EventLoop.class);
+
+    /**
+     * Key attachment.
+     */
+    interface Handler {
+        /**
+         * Called on the loop thread when the key is ready.
+         */
+        void ready(SelectionKey key);
+
+        /**
+         * Called on the loop thread when the loop shuts down with the key still registered.
+         */
+        void close();
+    }
+
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Selector selector;
+    private final Thread thread;
+
+    EventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * Run a task on the loop thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void run() {
+        try {
+            while (running.get()) {
+                selector.select();
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        log.warn("Unexpected exception from task", e);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()) {
+                        ((Handler) key.attachment()).ready(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn("{} terminated: {}", thread.getName(), e.toString());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                ((Handler) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Stop the loop and close any channels still registered with it.
+     */
+    @Override
+    public void close() {
+        if (running.compareAndSet(true, false)) {
+            selector.wakeup();
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
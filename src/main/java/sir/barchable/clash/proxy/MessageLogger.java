@@ -1,5 +1,6 @@
 package sir.barchable.clash.proxy;
 
+import sir.barchable.clash.protocol.Message;
 import sir.barchable.clash.protocol.PduException;
 import sir.barchable.clash.protocol.Pdu.Type;
 import sir.barchable.util.Json;
@@ -8,6 +9,9 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
 
 import static sir.barchable.clash.protocol.Pdu.Type.EndClientTurn;
 
@@ -30,37 +34,56 @@ public class MessageLogger {
     }
 
     public MessageTap tapFor(Type messageType, String field) {
-        return (message) -> {
-            if (message.getType() == messageType) {
+        return new MessageTap() {
+            @Override
+            public void onMessage(Message message) {
+                if (message.getType() == messageType) {
 
-                // Hack to ignore empty EndClientTurns...
-                if (messageType == EndClientTurn) {
-                    Object[] commands = (Object[]) message.get("commands");
-                    if (commands == null || commands.length == 0) {
-                        return;
+                    // Hack to ignore empty EndClientTurns...
+                    if (messageType == EndClientTurn) {
+                        Object[] commands = (Object[]) message.get("commands");
+                        if (commands == null || commands.length == 0) {
+                            return;
+                        }
                     }
-                }
 
-                Object value = message;
-                if (field != null) {
-                    value = message.get(field);
-                }
-                if (value != null) {
-                    try {
-                        out.write(String.valueOf(messageType));
-                        out.write(":");
-                        if (field != null) {
-                            out.write(field);
+                    Object value = message;
+                    if (field != null) {
+                        value = message.get(field);
+                    }
+                    if (value != null) {
+                        try {
+                            out.write(String.valueOf(messageType));
+                            out.write(":");
+                            if (field != null) {
+                                out.write(field);
+                            }
+                            out.write(" ");
+                            Json.writePretty(value, out);
+                            out.write('\n');
+                            out.flush();
+                        } catch (IOException e) {
+                            throw new PduException(e);
                         }
-                        out.write(" ");
-                        Json.writePretty(value, out);
-                        out.write('\n');
-                        out.flush();
-                    } catch (IOException e) {
-                        throw new PduException(e);
                     }
                 }
             }
+
+            @Override
+            public Set<Type> getMessageTypes() {
+                return EnumSet.of(messageType);
+            }
+
+            @Override
+            public Set<String> getFields() {
+                if (field == null) {
+                    return null;
+                }
+                Set<String> fields = new HashSet<>();
+                fields.add(field);
+                fields.add("commands");
+                return fields;
+            }
         };
     }
 }
@@ -2,43 +2,85 @@ package sir.barchable.clash.proxy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import sir.barchable.clash.model.json.Replay;
-import sir.barchable.clash.model.json.WarVillage;
+import sir.barchable.clash.model.LayoutCodec;
+import sir.barchable.clash.model.VillageIndex;
+import sir.barchable.clash.model.json.VillageParser;
 import sir.barchable.clash.protocol.*;
+import sir.barchable.clash.protocol.CaptureLogWriter.RecordSink;
+import sir.barchable.clash.protocol.CaptureRecord.Kind;
 import sir.barchable.clash.protocol.Pdu.Type;
-import sir.barchable.util.Json;
+import sir.barchable.util.LruCache;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import static sir.barchable.clash.protocol.Pdu.Type.*;
-import static sir.barchable.util.NoopCipher.NOOP_CIPHER;
 
 /**
- * Save PDU message payloads to a directory.
+ * Save PDU messages to a {@link CaptureLog} in a directory, and add them to its {@link VillageIndex}. The work of
+ * saving a village happens on the capture log's writer thread, not the thread that hands over the PDU.
+ * <p>
+ * The same bases get scouted over and over, so villages aren't saved whole. Each distinct layout (see
+ * {@link sir.barchable.clash.model.json.VillageParser#layoutHash}) is saved once, and each sighting is saved as the
+ * message without the village, pointing at its layout. When a player we've seen this session changes their layout,
+ * say by upgrading a building, the new layout is saved as a delta from their last one if that's smaller.
+ * <p>
+ * A layout is stored as it was first seen. Each sighting keeps its own timers (collectors, construction...) as a delta
+ * from the village JSON of its layout, so it's read back as it was captured.
  *
  * @author Sir Barchable
  *         Date: 25/04/15
  */
-public class MessageSaver implements PduFilter {
+public class MessageSaver implements PduFilter, Closeable {
     private static final Logger log = LoggerFactory.getLogger(MessageSaver.class);
 
+    /**
+     * Longest chain of deltas before a layout is saved in full again, to bound the work of reading one back.
+     */
+    private static final int MAX_DELTA_CHAIN = 16;
+
+    /**
+     * How much recent layout JSON to keep for taking deltas from.
+     */
+    private static final long LAST_LAYOUT_CACHE_SIZE = 16 * 1024 * 1024;
+
     private MessageFactory messageFactory;
-    private File saveDir;
+    private CaptureLogWriter captureLog;
+    private VillageIndex index;
     private Set<Type> types;
 
+    /**
+     * The village JSON of layouts that have been queued to be written, but aren't in the index yet, by layout hash.
+     * Only used on the writer thread.
+     */
+    private final Map<Long, String> pendingLayouts = new HashMap<>();
+
+    /**
+     * The last layout queued for each player, by user id, until it's in the log. A delta taken from one of these is
+     * written after it in the same batch, so if one is lost, so is the other. Only used on the writer thread.
+     */
+    private final Map<Long, SavedLayout> pendingLastLayouts = new HashMap<>();
+
+    /**
+     * The last layout we've saved for each player, by user id. Only layouts that are safely in the log are kept, so a
+     * delta is never taken from a layout that didn't make it. Only used on the writer thread.
+     */
+    private final LruCache<Long, SavedLayout> lastLayouts = new LruCache<>(
+        LAST_LAYOUT_CACHE_SIZE, layout -> 2L * layout.json.length()
+    );
+
     /**
      * Construct a MessageSaver for village messages.
      *
      * @param saveDir where to save the messages
      */
-    public MessageSaver(MessageFactory messageFactory, File saveDir) throws FileNotFoundException {
+    public MessageSaver(MessageFactory messageFactory, File saveDir) throws IOException {
         this(
             messageFactory,
             saveDir,
@@ -52,82 +94,253 @@ public class MessageSaver implements PduFilter {
      * @param saveDir where to save the messages to
      * @param types the IDs of the PDUs to save
      */
-    public MessageSaver(MessageFactory messageFactory, File saveDir, Type... types) throws FileNotFoundException {
-        if (!saveDir.exists()) {
-            throw new FileNotFoundException(saveDir.getName());
-        }
+    public MessageSaver(MessageFactory messageFactory, File saveDir, Type... types) throws IOException {
+        this(messageFactory, new CaptureLogWriter(saveDir), types);
+    }
+
+    /**
+     * Construct a MessageSaver that writes to a capture log. The log's {@link VillageIndex} is kept up to date as
+     * messages are written.
+     *
+     * @param captureLog where to save the messages to. Closed when the saver is closed.
+     * @param types the IDs of the PDUs to save
+     */
+    public MessageSaver(MessageFactory messageFactory, CaptureLogWriter captureLog, Type... types) throws IOException {
         this.messageFactory = messageFactory;
-        this.saveDir = saveDir;
+        this.captureLog = captureLog;
+        this.index = VillageIndex.open(captureLog.getDir(), messageFactory);
         this.types = new HashSet<>(Arrays.asList(types));
+        captureLog.setCommitListener(new CaptureLogWriter.CommitListener() {
+            @Override
+            public void committed(File segment, long offset, int length, Object attachment) {
+                MessageSaver.this.committed(segment, offset, length, (Saved) attachment);
+            }
+
+            @Override
+            public void failed(Object attachment) {
+                MessageSaver.this.failed((Saved) attachment);
+            }
+        });
     }
 
     @Override
     public Pdu filter(Pdu pdu) throws IOException {
-        Type type = Type.valueOf(pdu.getId());
         try {
-            if (types.contains(type)) {
-                String villageName = guessName(pdu);
-                String name = String.format("%s[%3$s]%2$tF-%2$tH-%2$tM-%2$tS.pdu", type, new Date(), villageName);
-                File file = new File(saveDir, name);
-                try (PduOutputStream out = new PduOutputStream(new FileOutputStream(file), NOOP_CIPHER)) {
-                    out.write(pdu);
-                }
-            }
-        } catch (PduException | IOException e) {
+            save(pdu, System.currentTimeMillis());
+        } catch (RuntimeException e) {
             log.error("Couldn't save village", e);
         }
         return pdu;
     }
 
     /**
-     * Try to extract the village name from a PDU.
+     * Queue a PDU to be saved, if it's one of the types we save. The PDU is only copied here; it's taken apart and
+     * compressed on the capture log's writer thread.
      *
-     * @return the {@link #sanitize(String) sanitized} village name, or "anon" if it can't be determined
+     * @param timestamp when the PDU was captured, in millis since the epoch
+     * @return true if the PDU was queued
      */
-    private String guessName(Pdu pdu) {
-        String villageName = "anon";
+    public boolean save(Pdu pdu, long timestamp) {
+        return save(pdu, timestamp, null);
+    }
 
-        try {
-            Message message = messageFactory.fromPdu(pdu);
-            switch (message.getType()) {
-                case OwnHomeData:
-                case VisitedHomeData:
-                case EnemyHomeData:
-                    Message user = message.getMessage("user");
-                    villageName = user.getString("userName");
-                    break;
-
-                case WarHomeData:
-                    WarVillage warVillage = Json.valueOf(message.getString("homeVillage"), WarVillage.class);
-                    villageName = warVillage.name;
-                    break;
-
-                case HomeBattleReplayData:
-                    Replay replay = Json.valueOf(message.getString("replay"), Replay.class);
-                    villageName = replay.defender.name;
-                    break;
+    /**
+     * Queue a PDU to be saved, if it's one of the types we save, and say when it's safely in the log.
+     *
+     * @param timestamp when the PDU was captured, in millis since the epoch
+     * @param committed run on the writer thread once the village has been synced to the log, or null. Not run if the
+     * village can't be written.
+     * @return true if the PDU was queued
+     */
+    public boolean save(Pdu pdu, long timestamp, Runnable committed) {
+        if (!types.contains(pdu.getType())) {
+            return false;
+        }
+        // The PDU's decode context belongs to the pipe thread, so the writer gets a copy of what the analyzers decoded
+        Pdu copy = pdu.copy(VillageParser.SUMMARY_KEY);
+        return captureLog.submit(sink -> encode(copy, timestamp, committed, sink));
+    }
+
+    /**
+     * Turn a PDU into records, on the writer thread. A village that can't be split into a layout and a sighting is
+     * saved whole.
+     */
+    private void encode(Pdu pdu, long timestamp, Runnable committed, RecordSink sink) {
+        if (pdu.getType() != HomeBattleReplayData) {
+            // A village is taken apart whole, so decode it whole once, for the description as well
+            try {
+                pdu.getDecodeContext().getMessage(messageFactory);
+            } catch (PduException e) {
+                log.warn("Couldn't decode {}: {}", pdu, e.toString());
+            }
+        }
+        VillageIndex.Entry village = VillageIndex.describe(messageFactory, pdu, timestamp);
+        if (village.getLayout() != 0) {
+            try {
+                saveSighting(pdu, village, committed, sink);
+                return;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Couldn't save {} as a sighting, saving it whole: {}", village, e.toString());
+            }
+        }
+        sink.append(
+            Kind.PDU, 0, pdu, timestamp, village.getUserId(), village.getName(), new Saved(village, null, committed)
+        );
+    }
+
+    private void saveSighting(
+        Pdu pdu, VillageIndex.Entry village, Runnable committed, RecordSink sink
+    ) throws IOException {
+        long layout = village.getLayout();
+        Message message = pdu.getDecodeContext().getMessage(messageFactory);
+        String json = message.getString("homeVillage");
+        String layoutJson = pendingLayouts.get(layout);
+        if (layoutJson == null) {
+            if (index.hasLayout(layout)) {
+                layoutJson = index.getLayout(layout);
+            } else {
+                saveLayout(pdu, village, json, sink);
+                layoutJson = json;
             }
-        } catch (RuntimeException | IOException e) {
-            log.warn("Couldn't extract name from pdu {}: {}", pdu.getId(), e.toString());
         }
+        // Done with the decoded message, so no need to copy it
+        message.set("homeVillage", (Object) null);
+        byte[] payload = LayoutCodec.encodeSighting(messageFactory.toPdu(message).getPayload(), layoutJson, json);
+        Pdu record = new Pdu(pdu.getId(), payload);
+        record.setVersion(pdu.getVersion());
+        sink.append(
+            Kind.SIGHTING, layout, record, village.getTimestamp(), village.getUserId(), village.getName(),
+            new Saved(village.as(Kind.SIGHTING), null, committed)
+        );
+    }
+
+    /**
+     * Save a new layout, as a delta from the player's last layout if that's smaller.
+     */
+    private void saveLayout(Pdu pdu, VillageIndex.Entry village, String json, RecordSink sink) {
+        long userId = village.getUserId();
+        Kind kind = Kind.LAYOUT;
+        byte[] payload = LayoutCodec.encodeLayout(json);
+        int depth = 0;
+        SavedLayout last = null;
+        if (userId != 0) {
+            last = pendingLastLayouts.get(userId);
+            if (last == null) {
+                last = lastLayouts.get(userId);
+            }
+        }
+        if (last != null && last.depth < MAX_DELTA_CHAIN) {
+            byte[] delta = LayoutCodec.encodeDelta(last.layout, last.json, json);
+            if (delta.length < payload.length) {
+                kind = Kind.LAYOUT_DELTA;
+                payload = delta;
+                depth = last.depth + 1;
+            }
+        }
+
+        Pdu record = new Pdu(pdu.getId(), payload);
+        record.setVersion(pdu.getVersion());
+        long layout = village.getLayout();
+        SavedLayout saved = new SavedLayout(layout, json, depth);
+        sink.append(
+            kind, layout, record, village.getTimestamp(), userId, village.getName(),
+            new Saved(village.as(kind), saved, null)
+        );
+        pendingLayouts.put(layout, json);
+        if (userId != 0) {
+            pendingLastLayouts.put(userId, saved);
+        }
+        log.debug("Saving {} {} for {}", kind, Long.toHexString(layout), village.getName());
+    }
 
-        return sanitize(villageName);
+    /**
+     * Index a saved record, once it's safely in the log.
+     */
+    private void committed(File segment, long offset, int length, Saved saved) {
+        VillageIndex.Entry entry = saved.entry;
+        try {
+            index.append(entry.at(CaptureLog.segmentNumber(segment), offset, length));
+        } catch (IOException e) {
+            log.warn("Couldn't index village: {}", e.toString());
+        } finally {
+            if (saved.layout != null) {
+                pendingLayouts.remove(entry.getLayout());
+                if (entry.getUserId() != 0) {
+                    pendingLastLayouts.remove(entry.getUserId(), saved.layout);
+                    lastLayouts.put(entry.getUserId(), saved.layout);
+                }
+            }
+        }
+        if (saved.committed != null) {
+            saved.committed.run();
+        }
     }
 
     /**
-     * Make a string file system friendly.
+     * Forget a layout that didn't make it into the log, so the next sighting of it writes it in full.
      */
-    private String sanitize(String s) {
-        int len = s.length();
-        StringBuilder sb = new StringBuilder(len);
-        for (int i = 0; i < len; i++) {
-            char ch = s.charAt(i);
-            if ( ch < ' ' || ":\\/]".indexOf(ch) != -1) {
-                sb.append('_');
-            } else {
-                sb.append(ch);
+    private void failed(Saved saved) {
+        if (saved.layout != null) {
+            VillageIndex.Entry entry = saved.entry;
+            pendingLayouts.remove(entry.getLayout());
+            if (entry.getUserId() != 0) {
+                pendingLastLayouts.remove(entry.getUserId());
+                lastLayouts.remove(entry.getUserId());
             }
         }
-        return sb.toString();
+    }
+
+    /**
+     * Write out the queued PDUs.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            captureLog.close();
+        } finally {
+            index.close();
+        }
+    }
+
+    /**
+     * What the commit listener needs to know about a record.
+     */
+    private static class Saved {
+        private final VillageIndex.Entry entry;
+
+        /**
+         * The layout, if the record is one.
+         */
+        private final SavedLayout layout;
+
+        /**
+         * Run once the record is in the log, or null.
+         */
+        private final Runnable committed;
+
+        Saved(VillageIndex.Entry entry, SavedLayout layout, Runnable committed) {
+            this.entry = entry;
+            this.layout = layout;
+            this.committed = committed;
+        }
+    }
+
+    /**
+     * A layout, as it was saved.
+     */
+    private static class SavedLayout {
+        private final long layout;
+        private final String json;
+
+        /**
+         * Number of deltas from a full layout.
+         */
+        private final int depth;
+
+        SavedLayout(long layout, String json, int depth) {
+            this.layout = layout;
+            this.json = json;
+            this.depth = depth;
+        }
     }
 }
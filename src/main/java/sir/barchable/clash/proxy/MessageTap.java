@@ -1,6 +1,9 @@
 package sir.barchable.clash.proxy;
 
 import sir.barchable.clash.protocol.Message;
+import sir.barchable.clash.protocol.Pdu;
+
+import java.util.Set;
 
 /**
  * @author Sir Barchable
@@ -8,4 +11,25 @@ import sir.barchable.clash.protocol.Message;
  */
 public interface MessageTap {
     void onMessage(Message message);
+
+    /**
+     * The message types this tap wants to see. The {@link MessageTapFilter} won't decode messages of other types unless
+     * another tap wants them, and won't pass them to this tap.
+     *
+     * @return the types, or null for all types
+     */
+    default Set<Pdu.Type> getMessageTypes() {
+        return null;
+    }
+
+    /**
+     * The fields this tap reads, as top level field names or paths of the form field.subfield... Decoding may stop
+     * after the last of these, so fields that follow will be missing from the message. Names that aren't in a message
+     * are ignored.
+     *
+     * @return the field names, or null for all fields
+     */
+    default Set<String> getFields() {
+        return null;
+    }
 }
@@ -5,12 +5,21 @@ import org.slf4j.LoggerFactory;
 import sir.barchable.clash.protocol.*;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static sir.barchable.clash.protocol.Pdu.Type.Unknown;
 
 /**
  * A filter that deserializes Pdus and hands them off to a {@link MessageTap} for analysis.
+ * <p>
+ * Only PDUs that a tap {@link MessageTap#getMessageTypes() wants} are decoded, and only as far as the last of the
+ * {@link MessageTap#getFields() fields} the taps read. Everything else is passed through untouched. The message is
+ * decoded through the PDU's {@link DecodeContext}, so later filters can reuse it.
  *
  * @author Sir Barchable
  *         Date: 18/04/15
@@ -19,22 +28,56 @@ public class MessageTapFilter implements PduFilter {
     private static final Logger log = LoggerFactory.getLogger(MessageTapFilter.class);
 
     private MessageFactory messageFactory;
-    private MessageTap[] taps;
+
+    /**
+     * How to decode each message type and who to give it to. Types nobody wants are missing.
+     */
+    private Map<Pdu.Type, Dispatch> dispatch = new EnumMap<>(Pdu.Type.class);
 
     public MessageTapFilter(MessageFactory messageFactory, MessageTap... taps) {
         this.messageFactory = messageFactory;
-        this.taps = taps;
+
+        TypeFactory typeFactory = messageFactory.getTypeFactory();
+        for (Pdu.Type type : Pdu.Type.values()) {
+            if (type == Unknown || typeFactory.getStructTypeForId(type.id()) == null) {
+                continue;
+            }
+            List<MessageTap> interested = new ArrayList<>();
+            Set<String> fields = new HashSet<>();
+            for (MessageTap tap : taps) {
+                Set<Pdu.Type> tapTypes = tap.getMessageTypes();
+                if (tapTypes == null || tapTypes.contains(type)) {
+                    interested.add(tap);
+                    Set<String> tapFields = tap.getFields();
+                    if (fields != null) {
+                        if (tapFields == null) {
+                            fields = null;
+                        } else {
+                            fields.addAll(tapFields);
+                        }
+                    }
+                }
+            }
+            if (!interested.isEmpty()) {
+                Codec codec = messageFactory.getCodecFactory().getCodecForId(type.id(), fields);
+                dispatch.put(type, new Dispatch(codec, fields, interested.toArray(new MessageTap[interested.size()])));
+            }
+        }
     }
 
     @Override
     public Pdu filter(Pdu pdu) throws IOException {
+        Pdu.Type type = pdu.getType();
         try {
-            if (pdu.getType() == Unknown) {
+            if (type == Unknown) {
                 log.warn("Unknown PDU type {}", pdu.getId());
             } else {
-                Message message = messageFactory.fromPdu(pdu);
-                for (MessageTap tap : taps) {
-                    tap.onMessage(message);
+                Dispatch d = dispatch.get(type);
+                if (d != null) {
+                    Message message = pdu.getDecodeContext().getMessage(messageFactory, d.codec, d.fields);
+                    for (MessageTap tap : d.taps) {
+                        tap.onMessage(message);
+                    }
                 }
             }
         } catch (PduException e) {
@@ -46,4 +89,16 @@ public class MessageTapFilter implements PduFilter {
         }
         return pdu;
     }
+
+    private static class Dispatch {
+        private final Codec codec;
+        private final Set<String> fields;
+        private final MessageTap[] taps;
+
+        Dispatch(Codec codec, Set<String> fields, MessageTap[] taps) {
+            this.codec = codec;
+            this.fields = fields;
+            this.taps = taps;
+        }
+    }
 }
@@ -0,0 +1,78 @@
+package sir.barchable.clash.proxy;
+
+import sir.barchable.clash.protocol.MessageFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking proxy core. Where {@link ProxySession#newSession} ties up two pipe threads for the life of each
+ * connection, this multiplexes all sessions over a small, fixed set of {@link EventLoop} threads. Filters see the same
+ * PDUs in the same order, and {@link ProxySession#getSession()} works as usual from inside them.
+ *
+ * @author Sir Barchable
+ */
+public class NioProxy implements Closeable {
+    private final MessageFactory messageFactory;
+    private final PduFilter[] filters;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * @param messageFactory used to decode the key exchange
+     * @param threads the number of event loop threads
+     * @param filters the filters to run PDUs through
+     */
+    public NioProxy(MessageFactory messageFactory, int threads, PduFilter... filters) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads < 1");
+        }
+        this.messageFactory = messageFactory;
+        this.filters = filters;
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop("Event loop " + (i + 1));
+        }
+    }
+
+    /**
+     * Proxy a connection from a client to a clash server. This returns immediately; the session is handed to one of
+     * the event loops, which owns both channels from then on.
+     *
+     * @param clientChannel a connection accepted from a client
+     * @param serverAddress where to connect to the real server
+     * @return a future that completes with the session when the connections have closed
+     */
+    public CompletableFuture<ProxySession> newSession(SocketChannel clientChannel, InetSocketAddress serverAddress) throws IOException {
+        SocketChannel serverChannel = SocketChannel.open();
+        try {
+            clientChannel.configureBlocking(false);
+            serverChannel.configureBlocking(false);
+            serverChannel.connect(serverAddress);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+
+        EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        NioSession session = new NioSession(
+            new ProxySession(messageFactory, filters), loop, clientChannel, serverChannel, serverAddress.toString()
+        );
+        loop.execute(session::register);
+        return session.getCompletion();
+    }
+
+    /**
+     * Stop the event loops, closing all sessions.
+     */
+    @Override
+    public void close() {
+        for (EventLoop loop : loops) {
+            loop.close();
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package sir.barchable.clash.proxy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sir.barchable.clash.protocol.Pdu;
+import sir.barchable.clash.protocol.PduFramer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+import static java.nio.channels.SelectionKey.*;
+
+/**
+ * The non-blocking equivalent of the two {@link Pipe}s in a {@link ProxySession}. All methods run on the owning
+ * {@link EventLoop} thread.
+ * <p>
+ * Key exchange follows the blocking session: PDUs run through the filter chain plus a {@link KeyTap} until the key is
+ * known, then all four stream ciphers are re-keyed and the plain filter chain takes over.
+ *
+ * @author Sir Barchable
+ */
+class NioSession {
+    private static final Logger log = LoggerFactory.getLogger(NioSession.class);
+
+    /**
+     * Initial size of the read buffers. They grow to fit the largest PDU seen.
+     */
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Stop reading from a source when this many bytes are waiting to be written to its sink...
+     */
+    private static final int HIGH_WATER = 1024 * 1024;
+
+    /**
+     * ...and start again when the backlog drops below this.
+     */
+    private static final int LOW_WATER = 64 * 1024;
+
+    private final ProxySession session;
+    private final EventLoop loop;
+    private final Endpoint client;
+    private final Endpoint server;
+    private final KeyTap keyTap = new KeyTap();
+    private final CompletableFuture<ProxySession> completion = new CompletableFuture<>();
+
+    /**
+     * The filter chain with the key tap attached until key exchange completes, then the plain chain.
+     */
+    private PduFilter filter;
+
+    private boolean closed;
+
+    NioSession(ProxySession session, EventLoop loop, SocketChannel clientChannel, SocketChannel serverChannel, String serverName) {
+        this.session = session;
+        this.loop = loop;
+        this.client = new Endpoint(clientChannel.socket().toString(), clientChannel);
+        this.server = new Endpoint(serverName, serverChannel);
+        client.peer = server;
+        server.peer = client;
+        this.filter = session.getFilterChain().addAfter(new MessageTapFilter(session.getMessageFactory(), keyTap));
+    }
+
+    /**
+     * Completes with the session when both connections have closed.
+     */
+    CompletableFuture<ProxySession> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * Register the channels with the loop. The client isn't read until the server connection is up.
+     */
+    void register() {
+        try {
+            client.key = client.channel.register(loop.getSelector(), 0, client);
+            if (server.channel.isConnected()) {
+                server.key = server.channel.register(loop.getSelector(), 0, server);
+                connected();
+            } else {
+                server.key = server.channel.register(loop.getSelector(), OP_CONNECT, server);
+            }
+        } catch (IOException e) {
+            log.info("Could not register {}: {}", client.name, e.toString());
+            close();
+        }
+    }
+
+    private void connected() {
+        log.debug("Connected to {}", server.name);
+        client.key.interestOps(OP_READ);
+        server.key.interestOps(OP_READ);
+    }
+
+    /**
+     * Frame, filter, and forward PDUs from a source endpoint to its peer.
+     */
+    private void forward(Endpoint source) throws IOException {
+        ByteBuffer in = source.inbound;
+        in.flip();
+
+        Pdu pdu;
+        while (!closed && (pdu = source.framer.read(in)) != null) {
+            ProxySession.setSession(session);
+            try {
+                Pdu filteredPdu = filter.filter(pdu);
+                if (filteredPdu != null) {
+                    source.peer.send(filteredPdu);
+                }
+            } finally {
+                ProxySession.setSession(null);
+            }
+
+            if (filter != session.getFilterChain() && keyTap.getKey() != null) {
+                // Re-key the streams
+                byte[] key = keyTap.getKey();
+                client.setKey(key);
+                server.setKey(key);
+                filter = session.getFilterChain();
+            }
+        }
+
+        int frameLength = PduFramer.frameLength(in);
+        if (frameLength > in.capacity()) {
+            // Grow to fit the pending PDU
+            source.inbound = ByteBuffer.allocate(frameLength).put(in);
+        } else {
+            in.compact();
+        }
+    }
+
+    /**
+     * Close both connections and complete the session.
+     */
+    private void close() {
+        if (!closed) {
+            closed = true;
+            client.closeChannel();
+            server.closeChannel();
+            completion.complete(session);
+        }
+    }
+
+    /**
+     * One side of the session.
+     */
+    private class Endpoint implements EventLoop.Handler {
+        private final String name;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        private Endpoint peer;
+
+        /**
+         * Decrypts PDUs read from this endpoint.
+         */
+        private final PduFramer framer = new PduFramer();
+
+        /**
+         * Encrypts PDUs written to this endpoint.
+         */
+        private final PduFramer sinkFramer = new PduFramer();
+
+        private ByteBuffer inbound = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private long pending;
+
+        /**
+         * Close the session once the outbound queue has drained?
+         */
+        private boolean closeWhenFlushed;
+
+        /**
+         * Reading suspended because the peer is backed up?
+         */
+        private boolean paused;
+
+        Endpoint(String name, SocketChannel channel) {
+            this.name = name;
+            this.channel = channel;
+        }
+
+        @Override
+        public void ready(SelectionKey key) {
+            try {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    connected();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                }
+            } catch (IOException e) {
+                log.debug("{} IOException: {}", name, e.toString());
+                NioSession.this.close();
+            } catch (RuntimeException e) {
+                // It broke unexpectedly
+                log.debug("{} closed with exception", name, e);
+                NioSession.this.close();
+            }
+        }
+
+        private void read() throws IOException {
+            if (channel.read(inbound) == -1) {
+                log.debug("{} at EOF", name);
+                key.interestOps(key.interestOps() & ~OP_READ);
+                // Close the sink on source EOF
+                if (peer.outbound.isEmpty()) {
+                    NioSession.this.close();
+                } else {
+                    peer.closeWhenFlushed = true;
+                }
+            } else {
+                forward(this);
+            }
+        }
+
+        /**
+         * Queue a PDU for writing. Tries an immediate write if nothing is queued ahead of it.
+         */
+        void send(Pdu pdu) throws IOException {
+            ByteBuffer buffer = sinkFramer.write(pdu);
+            if (outbound.isEmpty() && channel.isConnected()) {
+                channel.write(buffer);
+                if (!buffer.hasRemaining()) {
+                    return;
+                }
+            }
+            outbound.add(buffer);
+            pending += buffer.remaining();
+            key.interestOps(key.interestOps() | OP_WRITE);
+            if (pending > HIGH_WATER) {
+                peer.pause();
+            }
+        }
+
+        /**
+         * Write as much of the outbound queue as the channel will take.
+         */
+        private void flush() throws IOException {
+            long written = channel.write(outbound.toArray(new ByteBuffer[outbound.size()]));
+            pending -= written;
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                outbound.poll();
+            }
+            if (outbound.isEmpty()) {
+                key.interestOps(key.interestOps() & ~OP_WRITE);
+                if (closeWhenFlushed) {
+                    NioSession.this.close();
+                    return;
+                }
+            }
+            if (pending < LOW_WATER) {
+                peer.resume();
+            }
+        }
+
+        private void pause() {
+            if (!paused) {
+                paused = true;
+                key.interestOps(key.interestOps() & ~OP_READ);
+            }
+        }
+
+        private void resume() {
+            if (paused) {
+                paused = false;
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | OP_READ);
+                }
+            }
+        }
+
+        void setKey(byte[] key) {
+            framer.setKey(key);
+            sinkFramer.setKey(key);
+        }
+
+        void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        @Override
+        public void close() {
+            NioSession.this.close();
+        }
+    }
+}
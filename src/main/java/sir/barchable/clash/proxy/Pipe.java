@@ -9,6 +9,10 @@ import java.io.IOException;
 
 /**
  * A filtered pipe for clash streams.
+ * <p>
+ * The sink is flushed whenever the source runs dry, so if the sink is set to
+ * {@link PduOutputStream.FlushPolicy#BUFFERED} a burst of PDUs goes out in one write, without holding back the last
+ * PDU of the burst.
  *
  * @author Sir Barchable
  *         Date: 15/04/15
@@ -59,7 +63,12 @@ class Pipe {
         if (filteredPdu != null) {
             // Write
             sink.write(filteredPdu);
-        };
+        }
+
+        // Send what we've got unless there's more to come straight away
+        if (!source.isPduAvailable()) {
+            sink.flush();
+        }
     }
 
     public String getName() {
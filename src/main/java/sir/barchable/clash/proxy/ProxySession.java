@@ -6,10 +6,13 @@ import sir.barchable.clash.model.SessionState;
 import sir.barchable.clash.protocol.Connection;
 import sir.barchable.clash.protocol.MessageFactory;
 import sir.barchable.clash.protocol.PduException;
+import sir.barchable.clash.protocol.PduOutputStream.FlushPolicy;
+import sir.barchable.util.ThreadPools;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -30,6 +33,11 @@ public class ProxySession {
 
     private SessionState sessionState = new SessionState();
 
+    /**
+     * Source of pipe threads.
+     */
+    private ThreadFactory pipeThreads = ThreadPools.newThreadFactory("Pipe", true);
+
     /**
      * When the pipe threads finish they wait here.
      */
@@ -42,6 +50,13 @@ public class ProxySession {
         this.filterChain = new PduFilterChain(filters);
     }
 
+    /**
+     * A session without blocking connections. Used by the {@link NioProxy}, which drives its own I/O.
+     */
+    ProxySession(MessageFactory messageFactory, PduFilter... filters) {
+        this(messageFactory, null, null, filters);
+    }
+
     /**
      * Get the session that your thread is participating in.
      *
@@ -60,6 +75,24 @@ public class ProxySession {
      */
     private static final InheritableThreadLocal<ProxySession> localSession = new InheritableThreadLocal<>();
 
+    /**
+     * Bind a session to the calling thread. Threads that service many sessions, such as the {@link NioProxy} event
+     * loops, use this to switch sessions before running filters.
+     *
+     * @param session the session, or null to clear the binding
+     */
+    static void setSession(ProxySession session) {
+        localSession.set(session);
+    }
+
+    MessageFactory getMessageFactory() {
+        return messageFactory;
+    }
+
+    PduFilterChain getFilterChain() {
+        return filterChain;
+    }
+
     /**
      * Proxy a connection from a client to a clash server. This will block until processing completes, or until the
      * calling thread is interrupted.
@@ -67,7 +100,22 @@ public class ProxySession {
      * Normal completion is usually the result of an EOF on one of the input streams.
      */
     public static ProxySession newSession(MessageFactory messageFactory, Connection clientConnection, Connection serverConnection, PduFilter... filters) throws IOException {
+        return newSession(null, messageFactory, clientConnection, serverConnection, filters);
+    }
+
+    /**
+     * Proxy a connection, taking the pipe threads from the supplied factory. Pass a virtual thread factory to avoid
+     * tying up two OS threads for each session.
+     *
+     * @param pipeThreads source of pipe threads, or null for the default daemon platform threads
+     * @see #newSession(MessageFactory, Connection, Connection, PduFilter...)
+     * @see ThreadPools#newVirtualThreadFactory(String)
+     */
+    public static ProxySession newSession(ThreadFactory pipeThreads, MessageFactory messageFactory, Connection clientConnection, Connection serverConnection, PduFilter... filters) throws IOException {
         ProxySession session = new ProxySession(messageFactory, clientConnection, serverConnection, filters);
+        if (pipeThreads != null) {
+            session.pipeThreads = pipeThreads;
+        }
         localSession.set(session);
         try {
             session.start();
@@ -101,6 +149,10 @@ public class ProxySession {
         clientConnection.setKey(key);
         serverConnection.setKey(key);
 
+        // The pipes flush when their input runs dry, so we can batch the output
+        clientConnection.getOut().setFlushPolicy(FlushPolicy.BUFFERED);
+        serverConnection.getOut().setFlushPolicy(FlushPolicy.BUFFERED);
+
         // Proxy messages from client -> server
         runPipe(clientPipe);
 
@@ -116,7 +168,7 @@ public class ProxySession {
     }
 
     private void runPipe(Pipe pipe) {
-        Thread t = new Thread(() -> {
+        Thread t = pipeThreads.newThread(() -> {
             try {
                 while (running.get()) {
                     pipe.filterThrough(filterChain);
@@ -130,8 +182,8 @@ public class ProxySession {
                 log.debug("{} closed with exception", pipe.getName(), e);
             }
             latch.countDown();
-        }, "Pipe thread for " + pipe.getName());
-        t.setDaemon(true);
+        });
+        t.setName("Pipe thread for " + pipe.getName());
         t.start();
     }
 
@@ -14,6 +14,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -56,11 +57,22 @@ public class ServerSession {
 
     private boolean dirty;
 
-    private ServerSession(ClashServices services, Connection clientConnection, Main.ServerCommand command) throws IOException {
+    private ServerSession(
+        ClashServices services,
+        VillageRepository villages,
+        Connection clientConnection,
+        Main.ServerCommand command
+    ) throws IOException {
         this.messageFactory = services.getMessageFactory();
         this.clientConnection = clientConnection;
         this.loadoutManager = new LoadoutManager(services.getLogic(), new File(services.getWorkingDir(), "loadouts"));
-        this.villageManager = new VillageManager(messageFactory, loadoutManager, command.getHomeFile(), new File(services.getWorkingDir(), "villages"));
+        this.villageManager = new VillageManager(messageFactory, loadoutManager, command.getHomeFile(), villages);
+
+        // Pick up anything the proxy has saved since the last session
+        int added = villages.refresh();
+        if (added > 0) {
+            log.info("{} new villages", added);
+        }
 
         String loadout = command.getLoadout();
         if (command.getLoadout() != null) {
@@ -87,9 +99,32 @@ public class ServerSession {
      * Serve a clash session. This will block until processing completes, or until the calling thread is interrupted.
      * <p>
      * Normal completion is usually the result of an EOF on the input stream.
+     *
+     * @param villages saved villages to visit and attack, shared with other sessions
+     */
+    public static ServerSession newSession(
+        ClashServices services,
+        VillageRepository villages,
+        Connection clientConnection,
+        Main.ServerCommand command
+    ) throws IOException {
+        return newSession(Thread::new, services, villages, clientConnection, command);
+    }
+
+    /**
+     * Serve a clash session, running the request loop on a thread from the supplied factory.
+     *
+     * @param threadFactory source of the request loop thread
+     * @see #newSession(ClashServices, VillageRepository, Connection, Main.ServerCommand)
      */
-    public static ServerSession newSession(ClashServices services, Connection clientConnection, Main.ServerCommand command) throws IOException {
-        ServerSession session = new ServerSession(services, clientConnection, command);
+    public static ServerSession newSession(
+        ThreadFactory threadFactory,
+        ClashServices services,
+        VillageRepository villages,
+        Connection clientConnection,
+        Main.ServerCommand command
+    ) throws IOException {
+        ServerSession session = new ServerSession(services, villages, clientConnection, command);
         localSession.set(session);
         try {
 
@@ -98,7 +133,8 @@ public class ServerSession {
             // which can stop processing by closing the input stream.
             //
 
-            Thread t = new Thread(session::run, clientConnection.getName() + " server");
+            Thread t = threadFactory.newThread(session::run);
+            t.setName(clientConnection.getName() + " server");
             t.start();
             t.join();
 
@@ -184,7 +220,7 @@ public class ServerSession {
             // Send the home village
             //
 
-            clientConnection.getOut().write(messageFactory.toPdu(loadHome()));
+            clientConnection.getOut().write(loadHome());
 
             //
             // The request loop handles further PDUs
@@ -220,7 +256,7 @@ public class ServerSession {
                 // Create a response
                 //
 
-                Message response = null;
+                Pdu response = null;
 
                 switch (pdu.getType()) {
                     case EndClientTurn:
@@ -232,7 +268,7 @@ public class ServerSession {
                         break;
 
                     case KeepAlive:
-                        response = messageFactory.newMessage(ServerKeepAlive);
+                        response = messageFactory.toPdu(messageFactory.newMessage(ServerKeepAlive));
                         break;
 
                     default:
@@ -244,7 +280,7 @@ public class ServerSession {
                 //
 
                 if (response != null) {
-                    connection.getOut().write(messageFactory.toPdu(response));
+                    connection.getOut().write(response);
                 }
             }
 
@@ -258,8 +294,8 @@ public class ServerSession {
         }
     }
 
-    private Message endTurn(Message message) throws IOException {
-        Message response = null;
+    private Pdu endTurn(Message message) throws IOException {
+        Pdu response = null;
         Message[] commands = message.getArray("commands");
         if (commands != null) {
             commandLoop: for (Message command : commands) {
@@ -328,6 +364,7 @@ public class ServerSession {
                 break;
         }
 
+        villageManager.homeVillageChanged();
         dirty = true;
     }
 
@@ -371,34 +408,23 @@ public class ServerSession {
         if (building != null) {
             building.x = x;
             building.y = y;
+            villageManager.homeVillageChanged();
             dirty = true;
         }
     }
 
-    private Message loadHome() throws IOException {
-        Message village = villageManager.getOwnHomeData();
+    private Pdu loadHome() throws IOException {
         // Set remaining shield to 0 to avoid annoying attack confirmation dialog
-        village.set("remainingShield", 0);
-
-        return village;
-    }
-
-    private void applyLoadout(Message village) throws IOException {
-        if (loadout != null) {
-            loadoutManager.applyLoadOut(village, loadout);
-        }
+        return villageManager.getOwnHomePdu(0);
     }
 
     private int nextVillage;
 
-    private Message loadEnemy() throws IOException {
-        Message village = villageManager.loadEnemyVillage(nextVillage++, war);
+    private Pdu loadEnemy() throws IOException {
+        Pdu village = villageManager.loadEnemyPdu(nextVillage++, war, loadout);
         if (village == null) {
             throw new ResourceException("No enemy villages. Have you captured some data with the proxy?");
         }
-        village.set("timeStamp", (int) (System.currentTimeMillis() / 1000));
-        applyLoadout(village);
-
         return village;
     }
 
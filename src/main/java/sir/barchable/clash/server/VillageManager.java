@@ -8,33 +8,42 @@ import sir.barchable.clash.model.json.Replay;
 import sir.barchable.clash.model.json.Village;
 import sir.barchable.clash.model.json.WarVillage;
 import sir.barchable.clash.model.json.WarVillage.Building;
+import sir.barchable.clash.protocol.CaptureLog;
 import sir.barchable.clash.protocol.Message;
 import sir.barchable.clash.protocol.MessageFactory;
+import sir.barchable.clash.protocol.MessageTemplate;
+import sir.barchable.clash.protocol.Pdu;
 import sir.barchable.clash.protocol.PduOutputStream;
 import sir.barchable.clash.proxy.MessageSaver;
 import sir.barchable.util.Json;
+import sir.barchable.util.LruCache;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.util.*;
-import java.util.regex.Pattern;
 
-import static sir.barchable.clash.protocol.Pdu.Type.EnemyHomeData;
+import static sir.barchable.clash.protocol.Pdu.Type.*;
 import static sir.barchable.util.NoopCipher.NOOP_CIPHER;
 
 /**
- * Load saved villages from the specified directory. Villages are typically saved by a
+ * Load saved villages from a {@link VillageRepository}. Villages are typically saved to a {@link CaptureLog} by a
  * {@link MessageSaver} hooked into the proxy when the {@code -s} save flag is passed on startup.
+ * <p>
+ * Villages are sent from {@link MessageTemplate templates}, encoded once with only the time stamp, shield and
+ * attacker filled in per response, so the village JSON isn't inflated or deflated again every time a village is sent.
  *
  * @author Sir Barchable
  */
 public class VillageManager {
     private static final Logger log = LoggerFactory.getLogger(VillageManager.class);
-    private static final Pattern VISITED_HOME_PATTERN = Pattern.compile("(HomeBattleReplay|((Enemy|Visited|War)Home))Data.*\\.pdu");
+
+    /**
+     * Roughly how many bytes of encoded enemy villages to keep.
+     */
+    private static final long ENEMY_TEMPLATE_CACHE_SIZE = 16 * 1024 * 1024;
+
     private LayoutManager layoutManager;
     private LoadoutManager loadoutManager;
 
@@ -42,24 +51,43 @@ public class VillageManager {
     private File homeFile;
     private Village homeVillage;
     private Message ownHomeData;
-    private File[] enemyHomes;
+    private VillageRepository enemyHomes;
 
-    public VillageManager(MessageFactory messageFactory, LoadoutManager loadoutManager, File homeFile, File villageDir) throws IOException {
+    /**
+     * The encoded home, or null if the home village has changed since it was encoded.
+     */
+    private MessageTemplate ownHomeTemplate;
+
+    /**
+     * Encoded enemy homes, without the attacker, by village and layout. Cleared when the number of villages changes,
+     * because that changes the wrapping of the village index.
+     */
+    private final LruCache<String, MessageTemplate> enemyTemplates = new LruCache<>(
+        ENEMY_TEMPLATE_CACHE_SIZE, MessageTemplate::size
+    );
+    private int enemyTemplatesSize;
+
+    /**
+     * The attacker's resources with each loadout applied, by loadout name.
+     */
+    private final Map<String, Map<String, Object>> attackerResources = new HashMap<>();
+
+    public VillageManager(
+        MessageFactory messageFactory,
+        LoadoutManager loadoutManager,
+        File homeFile,
+        VillageRepository enemyHomes
+    ) throws IOException {
         this.messageFactory = messageFactory;
         this.loadoutManager = loadoutManager;
         this.layoutManager = new LayoutManager();
+        this.enemyHomes = enemyHomes;
 
         this.homeFile = homeFile;
         try (FileInputStream in = new FileInputStream(homeFile)) {
             ownHomeData = messageFactory.fromStream(in);
             homeVillage = Json.valueOf(ownHomeData.getString("homeVillage"), Village.class);
         }
-
-        enemyHomes = Files.walk(villageDir.toPath())
-            .map(Path::toFile)
-            .filter(file -> VISITED_HOME_PATTERN.matcher(file.getName()).matches())
-            .toArray(File[]::new);
-
     }
 
     /**
@@ -71,22 +99,50 @@ public class VillageManager {
         return ownHomeData;
     }
 
+    /**
+     * Encode the user's home. The encoding is reused until {@link #homeVillageChanged()} is called.
+     *
+     * @param remainingShield the shield time to send
+     */
+    public Pdu getOwnHomePdu(int remainingShield) throws IOException {
+        if (ownHomeTemplate == null) {
+            ownHomeData.set("homeVillage", Json.toString(homeVillage));
+            ownHomeTemplate = messageFactory.toTemplate(ownHomeData, "timeStamp", "remainingShield");
+        }
+        Map<String, Object> values = new HashMap<>();
+        values.put("timeStamp", (int) (System.currentTimeMillis() / 1000));
+        values.put("remainingShield", remainingShield);
+        return ownHomeTemplate.toPdu(values);
+    }
+
+    /**
+     * The user's home village. Call {@link #homeVillageChanged()} after changing it.
+     */
     public Village getHomeVillage() {
         return homeVillage;
     }
 
+    /**
+     * Note a change to the home village, so it's encoded again the next time it's sent.
+     */
+    public void homeVillageChanged() {
+        ownHomeTemplate = null;
+    }
+
     /**
      * Create a new enemy village structure.
      */
     private Message newEnemyPrototype() throws IOException {
         Message village = messageFactory.newMessage(EnemyHomeData);
-        village.set("timeStamp", (int) (System.currentTimeMillis() / 1000));
         village.set("age", 0);
         return village;
     }
 
     /**
      * Load the nth saved enemy home. The index will be wrapped if it is longer than the array length.
+     * <p>
+     * Saved villages are converted to enemy homes once, by the {@link VillageRepository}, and kept in that form.
+     * Only the attacker and the time stamp are filled in here.
      *
      * @param villageIndex the index of the home to load
      * @param war load the war layout?
@@ -96,51 +152,103 @@ public class VillageManager {
         if (villageIndex < 0) {
             throw new IllegalArgumentException();
         }
-        if (enemyHomes.length == 0) {
+        int size = enemyHomes.size();
+        if (size == 0) {
             return null;
         }
-        File villageFile = enemyHomes[villageIndex % enemyHomes.length];
-        try (FileInputStream in = new FileInputStream(villageFile)) {
-            log.debug("loading village {}", villageFile);
-            Message village = messageFactory.fromStream(in);
-
-            // Convert if necessary
-            switch (village.getType()) {
-                case EnemyHomeData:
-                    village = filterEnemyHome(village, war);
-                    break;
-
-                case VisitedHomeData:
-                    village = visitedHomeToEnemyHome(village, war);
-                    break;
-
-                case WarHomeData:
-                    village = warHomeToEnemyHome(village);
-                    break;
-
-                case HomeBattleReplayData:
-                    village = replayToEnemyHome(village);
-                    break;
-            }
+        Message village = messageFactory.fromPdu(enemyHomes.loadConverted(villageIndex % size, war, this::toEnemyHome));
+
+        // Attacker values from home data
+        village.set("attacker", ownHomeData.get("user"));
+        village.set("attackerResources", ownHomeData.get("resources"));
+        village.set("timeStamp", (int) (System.currentTimeMillis() / 1000));
+        return village;
+    }
 
-            return village;
+    /**
+     * Load the nth saved enemy home, ready to send, with the attacker's army replaced by a loadout. The converted
+     * village is never decoded: the time stamp is written over, and the attacker spliced in.
+     *
+     * @param villageIndex the index of the home to load
+     * @param war load the war layout?
+     * @param loadout the name of the loadout to attack with, or null to keep the army from the home data
+     * @return the village, or null if there are no saved enemy villages
+     */
+    public Pdu loadEnemyPdu(int villageIndex, boolean war, String loadout) throws IOException {
+        if (villageIndex < 0) {
+            throw new IllegalArgumentException();
         }
+        int size = enemyHomes.size();
+        if (size == 0) {
+            return null;
+        }
+        if (size != enemyTemplatesSize) {
+            enemyTemplates.clear();
+            enemyTemplatesSize = size;
+        }
+        int n = villageIndex % size;
+        String key = n + (war ? "-war" : "-home");
+        MessageTemplate template = enemyTemplates.get(key);
+        if (template == null) {
+            Pdu village = enemyHomes.loadConverted(n, war, this::toEnemyHome);
+            template = messageFactory.toTemplate(village, "timeStamp", "attacker", "attackerResources");
+            enemyTemplates.put(key, template);
+        }
+        Map<String, Object> values = new HashMap<>();
+        values.put("timeStamp", (int) (System.currentTimeMillis() / 1000));
+        values.put("attacker", ownHomeData.getFields("user"));
+        values.put("attackerResources", getAttackerResources(loadout));
+        return template.toPdu(values);
     }
 
-    private Message filterEnemyHome(Message enemyVillage, boolean war) throws IOException {
-        Message homeVillage = getOwnHomeData();
+    /**
+     * The attacker's resources, with the army replaced by a loadout. Worked out once per loadout.
+     *
+     * @param loadout the name of the loadout, or null to keep the army from the home data
+     */
+    private Map<String, Object> getAttackerResources(String loadout) {
+        if (loadout == null) {
+            return ownHomeData.getFields("resources");
+        }
+        return attackerResources.computeIfAbsent(loadout, name -> {
+            Message attack = messageFactory.newMessage(EnemyHomeData);
+            // A copy, as the loadout replaces the army in it
+            attack.set("attackerResources", ownHomeData.copy().get("resources"));
+            loadoutManager.applyLoadOut(attack, name);
+            return attack.getFields("attackerResources");
+        });
+    }
+
+    /**
+     * Convert a saved village to an enemy home, without the attacker.
+     */
+    private Message toEnemyHome(Message village, boolean war) throws IOException {
+        switch (village.getType()) {
+            case EnemyHomeData:
+                return filterEnemyHome(village, war);
+
+            case VisitedHomeData:
+                return visitedHomeToEnemyHome(village, war);
+
+            case WarHomeData:
+                return warHomeToEnemyHome(village);
+
+            case HomeBattleReplayData:
+                return replayToEnemyHome(village);
+
+            default:
+                throw new LogicException("Can't attack a " + village.getType());
+        }
+    }
 
+    private Message filterEnemyHome(Message enemyVillage, boolean war) throws IOException {
         if (war) {
             setWarLayout(enemyVillage);
         }
-
-        enemyVillage.set("attacker", homeVillage.get("user"));
-        enemyVillage.set("attackerResources", homeVillage.get("resources"));
         return enemyVillage;
     }
 
     private Message visitedHomeToEnemyHome(Message visitedVillage, boolean war) throws IOException {
-        Message homeVillage = getOwnHomeData();
         Message enemyVillage = newEnemyPrototype();
 
         // Copy data from visited -> enemy
@@ -151,8 +259,6 @@ public class VillageManager {
         }
         enemyVillage.set("user", visitedVillage.get("user"));
         enemyVillage.set("resources", visitedVillage.get("resources"));
-        enemyVillage.set("attacker", homeVillage.get("user"));
-        enemyVillage.set("attackerResources", homeVillage.get("resources"));
         return enemyVillage;
     }
 
@@ -171,7 +277,6 @@ public class VillageManager {
     }
 
     private Message warHomeToEnemyHome(Message village) throws IOException {
-        Message homeVillage = getOwnHomeData();
         Message enemyVillage = newEnemyPrototype();
         enemyVillage.set("homeId", village.get("homeId"));
 
@@ -192,16 +297,11 @@ public class VillageManager {
         clan.set("clanName", warVillage.alliance_name);
         clan.set("badge", warVillage.badge_id);
         enemyVillage.set("user", user.getFields());
-
-        // Attacker values from home data
-        enemyVillage.set("attacker", homeVillage.get("user"));
-        enemyVillage.set("attackerResources", homeVillage.get("resources"));
         return enemyVillage;
     }
 
     private Message replayToEnemyHome(Message replayMessage) throws IOException {
         Replay replay = Json.valueOf(replayMessage.getString("replay"), Replay.class);
-        Message homeVillage = getOwnHomeData();
         Message enemyVillage = newEnemyPrototype();
         WarVillage warVillage = replay.defender;
 
@@ -239,10 +339,6 @@ public class VillageManager {
         clan.set("clanName", warVillage.alliance_name);
         clan.set("badge", warVillage.badge_id);
         user.set("castleLevel", 5);
-
-        // Attacker values from home data
-        enemyVillage.set("attacker", homeVillage.get("user"));
-        enemyVillage.set("attackerResources", homeVillage.get("resources"));
         return enemyVillage;
     }
 
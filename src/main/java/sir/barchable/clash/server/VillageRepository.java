@@ -0,0 +1,293 @@
+package sir.barchable.clash.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sir.barchable.clash.Import;
+import sir.barchable.clash.model.VillageIndex;
+import sir.barchable.clash.protocol.Message;
+import sir.barchable.clash.protocol.MessageFactory;
+import sir.barchable.clash.protocol.Pdu;
+import sir.barchable.clash.protocol.PduInputStream;
+import sir.barchable.clash.protocol.PduOutputStream;
+import sir.barchable.util.LruCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static sir.barchable.util.NoopCipher.NOOP_CIPHER;
+
+/**
+ * The villages saved by the proxy that can be attacked, shared by all server sessions.
+ * <p>
+ * Villages are listed and looked up through the {@link VillageIndex} of the capture log, so startup doesn't depend on
+ * the size of the archive. Decoded villages are kept in an LRU cache bounded by their approximate size, so moving
+ * back and forth through the villages doesn't decode them again. Callers get a copy of the cached village, which is
+ * theirs to change.
+ * <p>
+ * Villages saved to individual .pdu files by older versions of the proxy are listed after the indexed villages, unless
+ * they've been {@link Import imported} into the log.
+ * <p>
+ * Villages converted for attack by the server are cached too, encoded, in memory and in the {@value #CONVERTED_DIR}
+ * directory under the village directory, so each village is only converted once, and isn't decoded again to be sent.
+ *
+ * @author Sir Barchable
+ */
+public class VillageRepository {
+    private static final Logger log = LoggerFactory.getLogger(VillageRepository.class);
+    private static final Pattern VISITED_HOME_PATTERN = Pattern.compile(
+        "(HomeBattleReplay|((Enemy|Visited|War)Home))Data.*\\.pdu"
+    );
+
+    public static final long DEFAULT_CACHE_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Where converted villages are kept. Change the version when the conversion changes, to leave the old ones behind.
+     */
+    static final String CONVERTED_DIR = "converted-v1";
+
+    /**
+     * Turns a saved village into the form it's sent in.
+     */
+    public interface Converter {
+        /**
+         * @param village a saved village, for the converter to change as it likes
+         * @param war convert the war layout, rather than the home layout
+         */
+        Message convert(Message village, boolean war) throws IOException;
+    }
+
+    private final MessageFactory messageFactory;
+    private final File villageDir;
+    private final File convertedDir;
+    private final VillageIndex index;
+    private final List<File> pduFiles;
+
+    /**
+     * Decoded villages, by index entry or file.
+     */
+    private final LruCache<Object, Message> cache;
+
+    /**
+     * Encoded converted villages, by file name.
+     */
+    private final LruCache<String, Pdu> convertedCache;
+
+    /**
+     * @param villageDir the capture log directory
+     * @param cacheSize roughly how many bytes of decoded villages to keep in memory, and of converted villages
+     */
+    public VillageRepository(MessageFactory messageFactory, File villageDir, long cacheSize) throws IOException {
+        this.messageFactory = messageFactory;
+        this.cache = new LruCache<>(cacheSize, VillageRepository::estimateSize);
+        this.convertedCache = new LruCache<>(cacheSize, pdu -> 64 + pdu.getPayloadLength());
+        this.index = VillageIndex.open(villageDir, messageFactory);
+        this.villageDir = villageDir;
+        this.convertedDir = new File(villageDir, CONVERTED_DIR);
+        Set<String> imported = Import.getImported(villageDir);
+        try (Stream<Path> walk = Files.walk(villageDir.toPath())) {
+            this.pduFiles = walk
+                .map(Path::toFile)
+                .filter(file -> VISITED_HOME_PATTERN.matcher(file.getName()).matches())
+                .filter(file -> !imported.contains(Import.importedKey(villageDir, file)))
+                .collect(Collectors.toList());
+        }
+        if (!pduFiles.isEmpty()) {
+            log.info("{} villages in .pdu files. Use the import command to add them to the index.", pduFiles.size());
+        }
+    }
+
+    public VillageIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Pick up villages the proxy has saved since the last refresh.
+     *
+     * @return the number of new villages
+     */
+    public int refresh() throws IOException {
+        return index.refresh();
+    }
+
+    /**
+     * The number of villages that can be attacked. The player's own homes, saved at login, aren't counted.
+     */
+    public int size() {
+        return index.getAttackableCount() + pduFiles.size();
+    }
+
+    /**
+     * Load the nth village that can be attacked: indexed villages in index order, then .pdu files.
+     *
+     * @return a copy of the village message, as it was captured
+     */
+    public Message load(int n) throws IOException {
+        Object source = getSource(n);
+        return source instanceof VillageIndex.Entry ? load((VillageIndex.Entry) source) : load((File) source);
+    }
+
+    /**
+     * The index entry or .pdu file of the nth village.
+     */
+    private Object getSource(int n) {
+        int indexed = index.getAttackableCount();
+        return n < indexed ? index.getAttackable(n) : pduFiles.get(n - indexed);
+    }
+
+    private Message load(File file) throws IOException {
+        Message village = cache.get(file);
+        if (village != null) {
+            return village.copy();
+        }
+        log.debug("loading village {}", file);
+        try (PduInputStream in = new PduInputStream(new FileInputStream(file), NOOP_CIPHER)) {
+            return decode(file, messageFactory.fromPdu(in.read()));
+        }
+    }
+
+    /**
+     * Load an indexed village.
+     *
+     * @return a copy of the village message, as it was captured
+     */
+    public Message load(VillageIndex.Entry entry) throws IOException {
+        Message village = cache.get(entry);
+        if (village != null) {
+            return village.copy();
+        }
+        log.debug("loading village {}", entry);
+        return decode(entry, index.load(entry));
+    }
+
+    /**
+     * Load the nth village, converted and encoded. Conversions are cached in memory and on disk, so the converter is
+     * called once per village and layout.
+     *
+     * @param war load the war layout
+     * @return the converted village. The PDU shares its payload with the cache, so the payload mustn't be changed.
+     */
+    public Pdu loadConverted(int n, boolean war, Converter converter) throws IOException {
+        Object source = getSource(n);
+        String key = convertedName(source, war);
+        Pdu village = convertedCache.get(key);
+        if (village == null) {
+            File file = new File(convertedDir, key);
+            if (file.isFile()) {
+                try (PduInputStream in = new PduInputStream(new FileInputStream(file), NOOP_CIPHER)) {
+                    village = in.read();
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Couldn't read converted village {}: {}", file, e.toString());
+                }
+            }
+            if (village == null) {
+                log.debug("converting village {}", source);
+                village = messageFactory.toPdu(converter.convert(load(n), war));
+                saveConverted(file, village);
+            }
+            convertedCache.put(key, village);
+        }
+        // A decode context of its own, for the caller
+        return new Pdu(village.getId(), village.getPayloadBuffer());
+    }
+
+    /**
+     * The file name of a converted village. Records in the log never change, but the log might be deleted and started
+     * again, so a record is named by its capture time and player as well as its position. A .pdu file might be
+     * replaced, so it's named by its modification time as well as its path.
+     */
+    private String convertedName(Object source, boolean war) {
+        String name;
+        if (source instanceof VillageIndex.Entry) {
+            VillageIndex.Entry entry = (VillageIndex.Entry) source;
+            name = String.format(
+                "%08d-%012d-%d-%x", entry.getSegment(), entry.getOffset(), entry.getTimestamp(), entry.getUserId()
+            );
+        } else {
+            File file = (File) source;
+            String path = villageDir.toPath().relativize(file.toPath()).toString();
+            name = path.replaceFirst("\\.pdu$", "").replace(File.separatorChar, '_') + "-" + file.lastModified();
+        }
+        return name + (war ? "-war.converted" : "-home.converted");
+    }
+
+    /**
+     * Write a converted village to disk. Written to a temporary file and moved into place, so another session
+     * never reads half a file.
+     */
+    private void saveConverted(File file, Pdu village) {
+        try {
+            if (!convertedDir.isDirectory()) {
+                Files.createDirectories(convertedDir.toPath());
+            }
+            File temp = File.createTempFile("converting", ".tmp", convertedDir);
+            try {
+                try (PduOutputStream out = new PduOutputStream(new FileOutputStream(temp), NOOP_CIPHER)) {
+                    out.write(village);
+                }
+                Files.move(
+                    temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE
+                );
+            } finally {
+                Files.deleteIfExists(temp.toPath());
+            }
+        } catch (IOException e) {
+            log.warn("Couldn't save converted village {}: {}", file, e.toString());
+        }
+    }
+
+    /**
+     * Cache a freshly decoded village.
+     *
+     * @return the village, for the caller to keep
+     */
+    private Message decode(Object key, Message village) {
+        // Cache a copy, which doesn't hang on to the PDU it was decoded from
+        cache.put(key, village.copy());
+        return village;
+    }
+
+    /**
+     * Roughly how much heap a decoded message takes. The village JSON strings make up most of it.
+     */
+    static long estimateSize(Message message) {
+        return estimateSize((Object) message.getFields());
+    }
+
+    private static long estimateSize(Object value) {
+        if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        } else if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        } else if (value instanceof Map) {
+            long size = 48;
+            for (Object field : ((Map<?, ?>) value).values()) {
+                size += 32 + estimateSize(field);
+            }
+            return size;
+        } else if (value instanceof Object[]) {
+            long size = 16;
+            for (Object element : (Object[]) value) {
+                size += 4 + estimateSize(element);
+            }
+            return size;
+        } else {
+            return 16;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "VillageRepository[" + size() + " villages, cache " + cache + ']';
+    }
+}
@@ -1,7 +1,11 @@
 package sir.barchable.util;
 
+import java.nio.ByteBuffer;
+
 /**
  * Interface for ciphers.
+ * <p>
+ * The ciphers we deal with are symmetric stream ciphers, so decryption is just encryption applied to cipher text.
  *
  * @author Sir Barchable
  *         Date: 7/05/15
@@ -16,6 +20,43 @@ public interface Cipher {
      */
     byte[] encrypt(byte[] b);
 
+    /**
+     * Encrypt a range of a byte[] in place.
+     *
+     * @param b the bytes to encrypt
+     * @param off the start of the range
+     * @param len the length of the range
+     */
+    default void encrypt(byte[] b, int off, int len) {
+        byte[] range = new byte[len];
+        System.arraycopy(b, off, range, 0, len);
+        System.arraycopy(encrypt(range), 0, b, off, len);
+    }
+
+    /**
+     * Encrypt the remaining bytes of a buffer in place, advancing the position to the limit. Works on direct buffers as
+     * well as heap buffers; the default implementation copies direct buffers through a scratch array, so implementations
+     * should override it where they can.
+     *
+     * @param b the bytes to encrypt
+     */
+    default void encrypt(ByteBuffer b) {
+        if (b.hasArray()) {
+            encrypt(b.array(), b.arrayOffset() + b.position(), b.remaining());
+            b.position(b.limit());
+        } else {
+            byte[] scratch = new byte[Math.min(b.remaining(), 8192)];
+            while (b.hasRemaining()) {
+                int n = Math.min(b.remaining(), scratch.length);
+                int p = b.position();
+                b.get(scratch, 0, n);
+                encrypt(scratch, 0, n);
+                b.position(p);
+                b.put(scratch, 0, n);
+            }
+        }
+    }
+
     /**
      * Set the key for encryption.
      */
@@ -0,0 +1,144 @@
+package sir.barchable.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary deltas: a target byte array described as copies of ranges of a base array, and runs of new bytes.
+ * <p>
+ * The base is indexed in fixed size blocks. The target is scanned for blocks that match the base, and each match is
+ * stretched in both directions as far as the bytes agree, so scattered small edits cost a few bytes each.
+ * <p>
+ * Delta format, a list of:
+ * <pre>
+ *     byte 0, int offset, int length   copy bytes from the base
+ *     byte 1, int length, bytes        insert new bytes
+ * </pre>
+ *
+ * @author Sir Barchable
+ */
+public final class Delta {
+    private static final int BLOCK_SIZE = 16;
+    private static final int COPY = 0;
+    private static final int INSERT = 1;
+
+    /**
+     * Static API.
+     */
+    private Delta() { }
+
+    /**
+     * Describe the target as a delta from the base.
+     */
+    public static byte[] diff(byte[] base, byte[] target) {
+        Map<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK_SIZE <= base.length; i += BLOCK_SIZE) {
+            blocks.putIfAbsent(hash(base, i), i);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            int pending = 0;
+            int i = 0;
+            while (i + BLOCK_SIZE <= target.length) {
+                Integer match = blocks.get(hash(target, i));
+                if (match == null || !matches(base, match, target, i)) {
+                    i++;
+                    continue;
+                }
+                // Stretch the match back into the pending insert, and forward as far as it goes
+                int baseStart = match;
+                int targetStart = i;
+                while (baseStart > 0 && targetStart > pending && base[baseStart - 1] == target[targetStart - 1]) {
+                    baseStart--;
+                    targetStart--;
+                }
+                int baseEnd = match + BLOCK_SIZE;
+                int targetEnd = i + BLOCK_SIZE;
+                while (baseEnd < base.length && targetEnd < target.length && base[baseEnd] == target[targetEnd]) {
+                    baseEnd++;
+                    targetEnd++;
+                }
+                insert(out, target, pending, targetStart);
+                out.writeByte(COPY);
+                out.writeInt(baseStart);
+                out.writeInt(baseEnd - baseStart);
+                i = pending = targetEnd;
+            }
+            insert(out, target, pending, target.length);
+        } catch (IOException e) {
+            // Not from a byte array
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Rebuild the target from the base and a delta.
+     *
+     * @throws IllegalArgumentException if the delta doesn't fit the base
+     */
+    public static byte[] apply(byte[] base, byte[] delta) {
+        ByteArrayOutputStream target = new ByteArrayOutputStream(base.length + delta.length);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(delta))) {
+            int op;
+            while ((op = in.read()) >= 0) {
+                if (op == COPY) {
+                    int offset = in.readInt();
+                    int length = in.readInt();
+                    if (offset < 0 || length < 0 || offset + length > base.length) {
+                        throw new IllegalArgumentException("Copy out of range");
+                    }
+                    target.write(base, offset, length);
+                } else if (op == INSERT) {
+                    int length = in.readInt();
+                    if (length < 0 || length > in.available()) {
+                        throw new IllegalArgumentException("Insert out of range");
+                    }
+                    byte[] inserted = new byte[length];
+                    in.readFully(inserted);
+                    target.write(inserted, 0, inserted.length);
+                } else {
+                    throw new IllegalArgumentException("Bad delta op " + op);
+                }
+            }
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Truncated delta");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return target.toByteArray();
+    }
+
+    private static void insert(DataOutputStream out, byte[] target, int from, int to) throws IOException {
+        if (to > from) {
+            out.writeByte(INSERT);
+            out.writeInt(to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    private static int hash(byte[] bytes, int offset) {
+        int hash = 1;
+        for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash;
+    }
+
+    private static boolean matches(byte[] base, int baseOffset, byte[] target, int targetOffset) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (base[baseOffset + i] != target[targetOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
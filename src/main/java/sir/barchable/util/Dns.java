@@ -3,6 +3,7 @@ package sir.barchable.util;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xbill.DNS.*;
+import org.xbill.DNS.Record;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -0,0 +1,114 @@
+package sir.barchable.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watch a file or a directory tree, and run a task on a background thread when it changes.
+ * <p>
+ * Changes usually come in bursts (a file being copied, a directory being unpacked) so the task waits until there have
+ * been no changes for a quiet period. Directories created under a watched directory after the watcher starts aren't
+ * watched.
+ *
+ * @author Sir Barchable
+ */
+public class FileWatcher implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(FileWatcher.class);
+
+    private final Path path;
+    private final boolean directory;
+    private final long quietMillis;
+    private final Runnable task;
+    private final WatchService watchService;
+
+    /**
+     * Start watching.
+     *
+     * @param file the file or directory to watch
+     * @param quietPeriod how long to wait after the last change before running the task
+     * @param task what to do when the file changes
+     */
+    public FileWatcher(File file, long quietPeriod, TimeUnit unit, Runnable task) throws IOException {
+        this.path = file.toPath().toAbsolutePath().normalize();
+        this.directory = Files.isDirectory(path);
+        this.quietMillis = unit.toMillis(quietPeriod);
+        this.task = task;
+        this.watchService = path.getFileSystem().newWatchService();
+
+        if (directory) {
+            try (Stream<Path> walk = Files.walk(path)) {
+                walk.filter(Files::isDirectory).forEach(this::register);
+            }
+        } else {
+            // Watch the parent, to see the file being replaced
+            register(path.getParent());
+        }
+
+        ThreadPools.newThreadFactory("Watch", true).newThread(this::run).start();
+        log.debug("Watching {}", path);
+    }
+
+    private void register(Path dir) {
+        try {
+            dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        } catch (IOException e) {
+            log.warn("Can't watch {}: {}", dir, e.toString());
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                if (!isChange(watchService.take())) {
+                    continue;
+                }
+                // Wait for things to settle down
+                WatchKey key;
+                while ((key = watchService.poll(quietMillis, TimeUnit.MILLISECONDS)) != null) {
+                    isChange(key);
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.warn("Error handling change to {}", path, e);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("Stopped watching {}", path);
+        }
+    }
+
+    /**
+     * Drain the events from a key.
+     *
+     * @return true if any of the events were for the watched path
+     */
+    private boolean isChange(WatchKey key) {
+        boolean change = false;
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                change = true;
+            } else {
+                Path changed = dir.resolve((Path) event.context());
+                change |= directory ? changed.startsWith(path) : changed.equals(path);
+            }
+        }
+        key.reset();
+        return change;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
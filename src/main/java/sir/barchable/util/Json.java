@@ -1,6 +1,7 @@
 package sir.barchable.util;
 
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectWriter;
@@ -57,6 +58,13 @@ public final class Json {
         return mapper.readValue(json, type);
     }
 
+    /**
+     * A streaming parser, for reading JSON without binding it.
+     */
+    public static JsonParser newParser(String json) throws IOException {
+        return mapper.getFactory().createParser(json);
+    }
+
     public static <T> T read(InputStream in, Class<T> type) throws IOException {
         return mapper.readValue(in, type);
     }
@@ -0,0 +1,116 @@
+package sir.barchable.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.ToLongFunction;
+
+/**
+ * A least recently used cache, bounded by the total weight of its values rather than their number. Thread safe.
+ *
+ * @author Sir Barchable
+ */
+public class LruCache<K, V> {
+    private final long maxWeight;
+    private final ToLongFunction<V> weigher;
+
+    /**
+     * Least recently used first.
+     */
+    private final LinkedHashMap<K, Weighted<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxWeight the most the values in the cache can weigh
+     * @param weigher weighs a value, e.g. its approximate size in bytes
+     */
+    public LruCache(long maxWeight, ToLongFunction<V> weigher) {
+        this.maxWeight = maxWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * @return the cached value, or null if it isn't in the cache
+     */
+    public synchronized V get(K key) {
+        Weighted<V> entry = map.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * Cache a value, dropping the least recently used values to make room. Values heavier than the whole cache
+     * aren't cached.
+     */
+    public synchronized void put(K key, V value) {
+        long valueWeight = weigher.applyAsLong(value);
+        Weighted<V> old = map.remove(key);
+        if (old != null) {
+            weight -= old.weight;
+        }
+        if (valueWeight > maxWeight) {
+            return;
+        }
+        Iterator<Weighted<V>> lru = map.values().iterator();
+        while (weight + valueWeight > maxWeight) {
+            weight -= lru.next().weight;
+            lru.remove();
+        }
+        map.put(key, new Weighted<>(value, valueWeight));
+        weight += valueWeight;
+    }
+
+    /**
+     * Drop a value from the cache, if it's there.
+     */
+    public synchronized void remove(K key) {
+        Weighted<V> old = map.remove(key);
+        if (old != null) {
+            weight -= old.weight;
+        }
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * The total weight of the cached values.
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "LruCache[size=" + map.size() + ", weight=" + weight + ", hits=" + hits + ", misses=" + misses + ']';
+    }
+
+    private static class Weighted<V> {
+        private final V value;
+        private final long weight;
+
+        Weighted(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
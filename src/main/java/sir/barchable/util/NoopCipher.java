@@ -1,5 +1,7 @@
 package sir.barchable.util;
 
+import java.nio.ByteBuffer;
+
 /**
  * No-op {@link Cipher}. Simply clones the input byte[] during encryption.
  *
@@ -19,6 +21,16 @@ public class NoopCipher implements Cipher {
         return b.clone();
     }
 
+    @Override
+    public void encrypt(byte[] b, int off, int len) {
+        // nothing to do
+    }
+
+    @Override
+    public void encrypt(ByteBuffer b) {
+        b.position(b.limit());
+    }
+
     @Override
     public void setKey(byte[] nonce) {
         // nothing to do
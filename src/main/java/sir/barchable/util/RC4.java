@@ -1,40 +1,97 @@
 package sir.barchable.util;
 
+import java.nio.ByteBuffer;
+
+/**
+ * RC4 stream cipher.
+ * <p>
+ * The state is held in an int[] rather than a byte[] so the keystream loop doesn't need to mask off sign extension on
+ * every lookup. All the encrypt methods except {@link #encrypt(byte[])} work in place and don't allocate.
+ */
 public class RC4 {
     public RC4(byte[] key) {
         setKey(key);
     }
-    private byte[] state = new byte[256];
+    private final int[] state = new int[256];
     private int x, y;
 
     public void setKey(byte[] key) {
         x = y = 0;
 
         for (int i = 0; i < 256; ++i) {
-            state[i] = (byte) i;
+            state[i] = i;
         }
 
         for (int i = 0, j = 0, k = 0; i < 256; ++i) {
             k = (key[j] + state[i] + k) & 0xff;
-            byte temp = state[i]; state[i] = state[k]; state[k] = temp;
+            int temp = state[i]; state[i] = state[k]; state[k] = temp;
             j = (j + 1) % key.length;
         }
     }
 
     public byte[] encrypt(byte[] clearText) {
-        byte[] cipherText = new byte[clearText.length];
-        for (int i = 0; i < clearText.length; ++i) {
-            cipherText[i] = (byte) (clearText[i] ^ state[next()]);
-        }
+        byte[] cipherText = clearText.clone();
+        encrypt(cipherText, 0, cipherText.length);
         return cipherText;
     }
 
+    /**
+     * Encrypt a range of a byte[] in place.
+     */
+    public void encrypt(byte[] b, int off, int len) {
+        int[] s = state;
+        int x = this.x;
+        int y = this.y;
+        for (int i = off, end = off + len; i < end; ++i) {
+            x = (x + 1) & 0xff;
+            int sx = s[x];
+            y = (y + sx) & 0xff;
+            int sy = s[y];
+            s[x] = sy;
+            s[y] = sx;
+            b[i] ^= s[(sx + sy) & 0xff];
+        }
+        this.x = x;
+        this.y = y;
+    }
+
+    /**
+     * Encrypt the remaining bytes of a buffer in place. Heap buffers are processed through their backing array; direct
+     * buffers are processed with absolute gets and puts, without a copy to the heap. The position is advanced to the
+     * limit.
+     */
+    public void encrypt(ByteBuffer b) {
+        int position = b.position();
+        int limit = b.limit();
+        if (b.hasArray()) {
+            encrypt(b.array(), b.arrayOffset() + position, limit - position);
+        } else {
+            int[] s = state;
+            int x = this.x;
+            int y = this.y;
+            for (int i = position; i < limit; ++i) {
+                x = (x + 1) & 0xff;
+                int sx = s[x];
+                y = (y + sx) & 0xff;
+                int sy = s[y];
+                s[x] = sy;
+                s[y] = sx;
+                b.put(i, (byte) (b.get(i) ^ s[(sx + sy) & 0xff]));
+            }
+            this.x = x;
+            this.y = y;
+        }
+        b.position(limit);
+    }
+
     private int next() {
-        byte temp;
         x = (x + 1) & 0xff;
-        y = (y + state[x]) & 0xff;
-        temp = state[x]; state[x] = state[y]; state[y] = temp;
-        return (state[x] + state[y]) & 0xff;
+        int sx = state[x];
+        y = (y + sx) & 0xff;
+        int sy = state[y];
+        state[x] = sy;
+        state[y] = sx;
+        return (sx + sy) & 0xff;
     }
 
     public byte[] generate(int length) {
@@ -1,5 +1,6 @@
 package sir.barchable.util;
 
+import java.lang.reflect.Method;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -15,17 +16,74 @@ public class ThreadPools {
      * @param prefix thread name prefix (suffix will be the creation count)
      */
     public static ExecutorService newExecutor(String prefix) {
+        return newExecutor(newThreadFactory(prefix, false));
+    }
+
+    /**
+     * Executor that creates threads on demand from a factory but does not reuse them.
+     *
+     * @param threadFactory the source of threads
+     */
+    public static ExecutorService newExecutor(ThreadFactory threadFactory) {
         return new ThreadPoolExecutor(
             0,
             Integer.MAX_VALUE,
             0L, TimeUnit.SECONDS,
             new SynchronousQueue<>(),
-            new ThreadFactory() {
-                private AtomicInteger count = new AtomicInteger();
-                public Thread newThread(Runnable r) {
-                    return new Thread(r, prefix + "-" + count.incrementAndGet());
-                }
-            }
+            threadFactory
         );
     }
+
+    /**
+     * Factory for platform threads.
+     *
+     * @param prefix thread name prefix (suffix will be the creation count)
+     * @param daemon create daemon threads?
+     */
+    public static ThreadFactory newThreadFactory(String prefix, boolean daemon) {
+        return new ThreadFactory() {
+            private AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+                t.setDaemon(daemon);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Does this JVM support virtual threads (JDK 21+)?
+     */
+    public static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Factory for virtual threads. Virtual threads are cheap enough to create one per blocking task, so the number
+     * of connections a server can hold isn't limited by the number of OS threads.
+     * <p>
+     * We build for Java 8, so the JDK 21 builder API is called reflectively.
+     *
+     * @param prefix thread name prefix (suffix will be the creation count)
+     * @throws UnsupportedOperationException if the JVM doesn't have virtual threads
+     * @see #hasVirtualThreads()
+     */
+    public static ThreadFactory newVirtualThreadFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            Method name = builderType.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, prefix + "-", 1L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (NoSuchMethodException | ClassNotFoundException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Couldn't create virtual thread factory", e);
+        }
+    }
 }
@@ -0,0 +1,118 @@
+package sir.barchable.clash;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sir.barchable.clash.VillageStats.Defense;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Sir Barchable
+ */
+public class ClanStatsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testHistory() {
+        ClanStats stats = new ClanStats();
+        stats.record("Clan", 1, new VillageStats("One", new Defense(1000, 5000, 100)));
+        stats.record("Clan", 1, new VillageStats("One", new Defense(900, 6000, 120)));
+        stats.record("Clan", 1, new VillageStats("Uno", new Defense(1100, 5500, 110)));
+
+        ClanStats.History history = stats.getPlayer(1);
+        Assert.assertEquals("Uno", history.getUserName());
+        Assert.assertEquals(3, history.getCount());
+        assertDefense(1100, 5500, 110, history.getLatest());
+        assertDefense(900, 5000, 100, history.getMin());
+        assertDefense(1100, 6000, 120, history.getMax());
+        assertDefense(100, 500, 10, history.getTrend());
+        Assert.assertNull(stats.getPlayer(2));
+    }
+
+    @Test
+    public void testClanChange() {
+        ClanStats stats = new ClanStats();
+        stats.record("Clan", 1, new VillageStats("One", new Defense(1000, 5000, 100)));
+        stats.record("Clan", 2, new VillageStats("Two", new Defense(2000, 8000, 200)));
+        stats.record("Other Clan", 1, new VillageStats("One", new Defense(1100, 5000, 100)));
+
+        ClanStats.History history = stats.getPlayer(1);
+        Assert.assertEquals("Other Clan", history.getClanName());
+        Assert.assertEquals(2, history.getCount());
+        Assert.assertEquals(1, stats.getClan("Clan").size());
+        Assert.assertEquals(1, stats.getClan("Other Clan").size());
+        assertDefense(2000, 8000, 200, stats.getTotal("Clan"));
+        assertDefense(1100, 5000, 100, stats.getTotal("Other Clan"));
+    }
+
+    @Test
+    public void testConcurrentRecord() throws Exception {
+        ClanStats stats = new ClanStats();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int thread = 0; thread < 4; thread++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    stats.record("Clan", i % 10, new VillageStats("Player", new Defense(i, 0, 1)));
+                }
+            });
+        }
+        executor.shutdown();
+        Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(10, stats.getClan("Clan").size());
+        for (ClanStats.History history : stats.getClan("Clan")) {
+            Assert.assertEquals(400, history.getCount());
+        }
+        Assert.assertEquals(10, stats.getTotal("Clan").getDps());
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        File file = new File(folder.getRoot(), "clan-stats.json");
+        Assert.assertTrue(ClanStats.load(file).getClanNames().isEmpty());
+
+        ClanStats stats = new ClanStats();
+        stats.record("Clan", 1, new VillageStats("One", new Defense(1000, 5000, 100)));
+        stats.record("Clan", 1, new VillageStats("One", new Defense(1200, 5000, 90)));
+        stats.record("Other Clan", 2, new VillageStats("Two", new Defense(2000, 8000, 200)));
+        stats.save(file);
+
+        ClanStats loaded = ClanStats.load(file);
+        Assert.assertEquals(stats.getClanNames(), loaded.getClanNames());
+        ClanStats.History history = loaded.getPlayer(1);
+        Assert.assertEquals(2, history.getCount());
+        assertDefense(1000, 5000, 90, history.getMin());
+        assertDefense(200, 0, -10, history.getTrend());
+        assertDefense(2000, 8000, 200, loaded.getTotal("Other Clan"));
+
+        // Keeps building on the loaded history
+        loaded.record("Clan", 1, new VillageStats("One", new Defense(1300, 5000, 95)));
+        Assert.assertEquals(3, loaded.getPlayer(1).getCount());
+        assertDefense(300, 0, -5, loaded.getPlayer(1).getTrend());
+    }
+
+    @Test
+    public void testLoadCorrupt() throws Exception {
+        File file = new File(folder.getRoot(), "clan-stats.json");
+        Files.write(file.toPath(), "[{\"clanName\": \"Clan\", ".getBytes(StandardCharsets.UTF_8));
+
+        ClanStats loaded = ClanStats.load(file);
+        Assert.assertTrue(loaded.getClanNames().isEmpty());
+        Assert.assertFalse(file.exists());
+        Assert.assertTrue(new File(folder.getRoot(), "clan-stats.json.bad").isFile());
+    }
+
+    private static void assertDefense(int hp, int wallHp, int dps, Defense defense) {
+        Assert.assertEquals(hp, defense.getHp());
+        Assert.assertEquals(wallHp, defense.getWallHp());
+        Assert.assertEquals(dps, defense.getDps());
+    }
+}
@@ -0,0 +1,64 @@
+package sir.barchable.clash;
+
+import ch.qos.logback.classic.Level;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+import sir.barchable.clash.model.LogicGenerator;
+import sir.barchable.clash.protocol.*;
+import sir.barchable.clash.proxy.ProxySessions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full analysis of a home data message, from PDU to village stats: decode, JSON binding and logic lookups. The
+ * analyzer's log output is turned off, so the benchmark measures the analysis rather than the console.
+ * <p>
+ * Run {@link #main(String[])} from the test classpath.
+ *
+ * @author Sir Barchable
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VillageAnalyzerBenchmark {
+    @Param({"OwnHomeData", "EnemyHomeData", "WarHomeData"})
+    private String messageType;
+
+    private MessageFactory messageFactory;
+    private VillageAnalyzer analyzer;
+    private Pdu pdu;
+
+    @Setup
+    public void setUp() {
+        ((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(VillageAnalyzer.class)).setLevel(Level.WARN);
+
+        TypeFactory typeFactory = new TypeFactory();
+        messageFactory = new MessageFactory(typeFactory);
+        analyzer = new VillageAnalyzer(new LogicGenerator(1).newLogic());
+        Message message = new VillageGenerator(typeFactory, 1).newHomeMessage(Pdu.Type.valueOf(messageType));
+        pdu = messageFactory.toPdu(message);
+        ProxySessions.bindNewSession(messageFactory);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ProxySessions.unbind();
+    }
+
+    @Benchmark
+    public Message analyze() {
+        Message message = messageFactory.fromPdu(pdu);
+        analyzer.onMessage(message);
+        return message;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(VillageAnalyzerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
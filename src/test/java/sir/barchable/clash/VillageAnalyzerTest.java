@@ -0,0 +1,93 @@
+package sir.barchable.clash;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import sir.barchable.clash.model.Logic;
+import sir.barchable.clash.model.LogicGenerator;
+import sir.barchable.clash.protocol.Message;
+import sir.barchable.clash.protocol.MessageFactory;
+import sir.barchable.clash.protocol.Pdu;
+import sir.barchable.clash.protocol.TypeFactory;
+import sir.barchable.clash.proxy.ProxySession;
+import sir.barchable.clash.proxy.ProxySessions;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Run generated villages through the analyzer. Also keeps the benchmark fixtures honest.
+ *
+ * @author Sir Barchable
+ */
+public class VillageAnalyzerTest {
+    private TypeFactory typeFactory = new TypeFactory();
+    private MessageFactory messageFactory = new MessageFactory(typeFactory);
+    private VillageGenerator villageGenerator = new VillageGenerator(typeFactory, 1);
+    private VillageAnalyzer analyzer = new VillageAnalyzer(new LogicGenerator(1).newLogic());
+
+    @After
+    public void tearDown() {
+        ProxySessions.unbind();
+    }
+
+    @Test
+    public void testTrailingOptionalField() {
+        // EnemyHomeData ends with an optional field, so a null is a lone bit at the end of the payload
+        Message message = villageGenerator.newHomeMessage(Pdu.Type.EnemyHomeData);
+        message.set("field17", null);
+        Message copy = messageFactory.fromPdu(messageFactory.toPdu(message));
+        Assert.assertTrue(copy.getFields().containsKey("field17"));
+        Assert.assertNull(copy.get("field17"));
+    }
+
+    @Test
+    public void testClanStats() {
+        ProxySession session = ProxySessions.bindNewSession(messageFactory);
+        for (Pdu.Type type : new Pdu.Type[] {Pdu.Type.OwnHomeData, Pdu.Type.EnemyHomeData, Pdu.Type.WarHomeData}) {
+            Message message = villageGenerator.newHomeMessage(type);
+            // Through the wire format, as the proxy would see it
+            analyzer.onMessage(messageFactory.fromPdu(messageFactory.toPdu(message)));
+        }
+        Assert.assertNotEquals(0, session.getSessionState().getUserId());
+        int villages = 0;
+        for (String name : session.getSessionState().getAttributeNames()) {
+            if (name.startsWith(VillageAnalyzer.CLAN_STATS_PREFIX)) {
+                villages += ((Map<?, ?>) session.getSessionState().getAttribute(name)).size();
+            }
+        }
+        Assert.assertEquals(3, villages);
+    }
+
+    @Test
+    public void testLogicSwap() {
+        Message message = messageFactory.fromPdu(messageFactory.toPdu(villageGenerator.newHomeMessage(Pdu.Type.EnemyHomeData)));
+        Logic first = new LogicGenerator(1).newLogic();
+        Logic second = new LogicGenerator(2).newLogic();
+        AtomicReference<Logic> logic = new AtomicReference<>(first);
+        VillageAnalyzer swappingAnalyzer = new VillageAnalyzer(logic::get);
+
+        int before = hitpoints(swappingAnalyzer, message);
+        Assert.assertEquals(hitpoints(new VillageAnalyzer(first), message), before);
+        logic.set(second);
+        int after = hitpoints(swappingAnalyzer, message);
+        Assert.assertEquals(hitpoints(new VillageAnalyzer(second), message), after);
+        Assert.assertNotEquals(before, after);
+    }
+
+    private int hitpoints(VillageAnalyzer analyzer, Message message) {
+        ProxySession session = ProxySessions.bindNewSession(messageFactory);
+        try {
+            analyzer.onMessage(message);
+            for (String name : session.getSessionState().getAttributeNames()) {
+                if (name.startsWith(VillageAnalyzer.CLAN_STATS_PREFIX)) {
+                    Map<?, ?> clanStats = (Map<?, ?>) session.getSessionState().getAttribute(name);
+                    return ((VillageStats) clanStats.values().iterator().next()).getDefense().getHp();
+                }
+            }
+            throw new AssertionError("No stats");
+        } finally {
+            ProxySessions.unbind();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package sir.barchable.clash;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import sir.barchable.clash.model.LogicGenerator;
+import sir.barchable.clash.model.Unit;
+import sir.barchable.clash.model.json.Village;
+import sir.barchable.clash.model.json.WarVillage;
+import sir.barchable.clash.protocol.Message;
+import sir.barchable.clash.protocol.MessageGenerator;
+import sir.barchable.clash.protocol.Pdu;
+import sir.barchable.clash.protocol.TypeFactory;
+import sir.barchable.util.Json;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static sir.barchable.clash.model.ObjectType.*;
+
+/**
+ * Generate random villages, and the home data messages that carry them, that a {@link VillageAnalyzer} can make sense
+ * of against the logic from a {@link LogicGenerator}.
+ * <p>
+ * Villages are about the size of a town hall 9 base, so the zip strings and JSON are a realistic size.
+ *
+ * @author Sir Barchable
+ */
+public class VillageGenerator {
+    private final MessageGenerator messageGenerator;
+    private final Random random;
+
+    /**
+     * Number of walls in a village.
+     */
+    private int wallCount = 250;
+
+    /**
+     * Number of buildings in a village, not counting walls.
+     */
+    private int buildingCount = 70;
+
+    public VillageGenerator(TypeFactory typeFactory, long seed) {
+        this.messageGenerator = new MessageGenerator(typeFactory, seed);
+        this.random = new Random(seed);
+    }
+
+    public VillageGenerator setWallCount(int wallCount) {
+        this.wallCount = wallCount;
+        return this;
+    }
+
+    public VillageGenerator setBuildingCount(int buildingCount) {
+        this.buildingCount = buildingCount;
+        return this;
+    }
+
+    public Village newVillage() {
+        Village village = new Village();
+        village.buildings = new Village.Building[wallCount + buildingCount];
+        for (int i = 0; i < village.buildings.length; i++) {
+            Village.Building building = new Village.Building();
+            if (i < wallCount) {
+                building.data = WALL;
+            } else if (i == wallCount) {
+                building.data = TOWN_HALL;
+            } else {
+                building.data = TROOP_HOUSING + random.nextInt(LogicGenerator.BUILDING_TYPES);
+            }
+            building.lvl = random.nextInt(LogicGenerator.BUILDING_LEVELS);
+            building.x = random.nextInt(44);
+            building.y = random.nextInt(44);
+            // Positions in the saved layouts
+            building.lmx = building.l1x = building.l2x = building.l3x = building.l4x = building.l5x = building.x;
+            building.lmy = building.l1y = building.l2y = building.l3y = building.l4y = building.l5y = building.y;
+            int typeId = building.data;
+            if (typeId == GOLD_MINE || typeId == ELIXIR_PUMP || typeId == DARK_ELIXIR_PUMP) {
+                building.res_time = random.nextInt(100000);
+                if (random.nextInt(10) == 0) {
+                    building.boost_t = random.nextInt(3600);
+                }
+            }
+            village.buildings[i] = building;
+        }
+        village.obstacles = new Village.Building[0];
+        village.traps = new Village.Building[0];
+        village.decos = new Village.Building[0];
+        village.respawnVars = new Village.RespawnVars();
+        village.respawnVars.time_to_gembox_drop = random.nextInt(1000000);
+        village.respawnVars.time_in_gembox_period = random.nextInt(1000000);
+        return village;
+    }
+
+    public WarVillage newWarVillage() {
+        WarVillage village = new WarVillage();
+        village.buildings = new WarVillage.Building[wallCount + buildingCount];
+        for (int i = 0; i < village.buildings.length; i++) {
+            WarVillage.Building building = new WarVillage.Building();
+            building.data = i < wallCount ? WALL : TROOP_HOUSING + random.nextInt(LogicGenerator.BUILDING_TYPES);
+            building.lvl = random.nextInt(LogicGenerator.BUILDING_LEVELS);
+            building.x = random.nextInt(44);
+            building.y = random.nextInt(44);
+            village.buildings[i] = building;
+        }
+        village.obstacles = new WarVillage.Building[0];
+        village.traps = new WarVillage.Building[0];
+        village.decos = new WarVillage.Building[0];
+        village.avatar_id_high = random.nextInt(100);
+        village.avatar_id_low = random.nextInt();
+        village.name = "Village" + random.nextInt(1000);
+        village.alliance_name = "Clan" + random.nextInt(10);
+        village.alliance_units = new Unit[] {
+            new Unit(BARBARIAN + random.nextInt(LogicGenerator.CHARACTER_TYPES), 1 + random.nextInt(10), random.nextInt(5))
+        };
+        return village;
+    }
+
+    /**
+     * A home data message with a generated village.
+     *
+     * @param type one of OwnHomeData, VisitedHomeData, EnemyHomeData or WarHomeData
+     */
+    public Message newHomeMessage(Pdu.Type type) {
+        Message message = messageGenerator.newMessage(type);
+        try {
+            message.set("homeVillage", Json.toString(type == Pdu.Type.WarHomeData ? newWarVillage() : newVillage()));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+        message.set("age", random.nextInt(1000));
+
+        Map<String, Object> user = message.getFields("user");
+        user.put("userName", "Village" + random.nextInt(1000));
+        Map<String, Object> clan = new HashMap<>();
+        clan.put("clanId", random.nextLong());
+        clan.put("clanName", "Clan" + random.nextInt(10));
+        clan.put("badge", 0);
+        clan.put("field4", 0);
+        clan.put("rank", 0);
+        user.put("clan", clan);
+
+        Map<String, Object> resources = message.getFields("resources");
+        Object[] resourceCounts = new Object[6];
+        for (int i = 0; i < resourceCounts.length; i++) {
+            Map<String, Object> resourceCount = new HashMap<>();
+            resourceCount.put("type", GOLD + i);
+            resourceCount.put("value", random.nextInt(1000000));
+            resourceCounts[i] = resourceCount;
+        }
+        resources.put("resourceCounts", resourceCounts);
+        Object[] allianceUnits = new Object[random.nextInt(5)];
+        for (int i = 0; i < allianceUnits.length; i++) {
+            Map<String, Object> unit = new HashMap<>();
+            unit.put("typeId", BARBARIAN + random.nextInt(LogicGenerator.CHARACTER_TYPES));
+            unit.put("count", random.nextInt(10));
+            unit.put("level", random.nextInt(5));
+            allianceUnits[i] = unit;
+        }
+        resources.put("allianceUnits", allianceUnits);
+        return message;
+    }
+}
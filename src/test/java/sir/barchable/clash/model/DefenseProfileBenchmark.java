@@ -0,0 +1,73 @@
+package sir.barchable.clash.model;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import sir.barchable.clash.VillageGenerator;
+import sir.barchable.clash.model.json.Village;
+import sir.barchable.clash.protocol.TypeFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Summing the defenses of a 300 building village: with a {@link DefenseProfile}, and building by building through
+ * name and column lookups, the way the village analyzer used to.
+ * <p>
+ * Run {@link #main(String[])} from the test classpath.
+ *
+ * @author Sir Barchable
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DefenseProfileBenchmark {
+    private Logic logic;
+    private ColumnHandle damage;
+    private ColumnHandle hitpoints;
+    private DefenseProfile profile;
+    private Village village;
+
+    @Setup
+    public void setUp() {
+        logic = new LogicGenerator(1).newLogic();
+        damage = logic.getColumn("buildings", "Damage");
+        hitpoints = logic.getColumn("buildings", "Hitpoints");
+        profile = new DefenseProfile(logic);
+        village = new VillageGenerator(new TypeFactory(), 1).setWallCount(230).setBuildingCount(70).newVillage();
+    }
+
+    @Benchmark
+    public int sumByProfile() {
+        DefenseProfile.Totals totals = profile.sum(village.buildings, false);
+        return totals.getDps() + totals.getHp() + totals.getWallHp();
+    }
+
+    @Benchmark
+    public int sumByLookup() {
+        int dps = 0;
+        int hp = 0;
+        int wallHp = 0;
+        for (Village.Building building : village.buildings) {
+            int typeId = building.data;
+            String buildingName = logic.getSubTypeName(typeId);
+            int level = building.lvl == null || building.lvl == -1 ? 0 : building.lvl;
+            if (!"Tesla Tower".equals(buildingName)) {
+                dps += damage.getInt(typeId, level);
+                if (typeId == ObjectType.WALL) {
+                    wallHp += hitpoints.getInt(typeId, level);
+                } else {
+                    hp += hitpoints.getInt(typeId, level);
+                }
+            }
+        }
+        return dps + hp + wallHp;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(DefenseProfileBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,67 @@
+package sir.barchable.clash.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+import sir.barchable.clash.model.json.Village;
+import sir.barchable.clash.model.json.WarVillage;
+
+import static sir.barchable.clash.model.ObjectType.*;
+
+/**
+ * @author Sir Barchable
+ */
+public class DefenseProfileTest {
+    private Logic logic = new LogicGenerator(1).newLogic();
+    private DefenseProfile profile = new DefenseProfile(logic);
+
+    @Test
+    public void testSum() {
+        Village.Building[] buildings = {
+            building(TOWN_HALL, 4), building(WALL, 2), building(WALL, null), building(TESLA_TOWER, 3),
+            building(CANNON, -1), building(BARBARIAN, 1)
+        };
+
+        DefenseProfile.Totals totals = profile.sum(buildings, false);
+        Assert.assertEquals(5, totals.getTownHallLevel());
+        Assert.assertEquals(hp(TOWN_HALL, 4) + hp(CANNON, 0), totals.getHp());
+        Assert.assertEquals(hp(WALL, 2) + hp(WALL, 0), totals.getWallHp());
+        Assert.assertEquals(dps(TOWN_HALL, 4) + dps(WALL, 2) + dps(WALL, 0) + dps(CANNON, 0), totals.getDps());
+        Assert.assertEquals(1, totals.getUnknownCount());
+        Assert.assertEquals(BARBARIAN, totals.getUnknownType());
+
+        DefenseProfile.Totals withTeslas = profile.sum(buildings, true);
+        Assert.assertEquals(totals.getHp() + hp(TESLA_TOWER, 3), withTeslas.getHp());
+        Assert.assertEquals(totals.getDps() + dps(TESLA_TOWER, 3), withTeslas.getDps());
+    }
+
+    @Test
+    public void testWarSum() {
+        WarVillage.Building cannon = new WarVillage.Building();
+        cannon.data = CANNON;
+        cannon.lvl = 7;
+        DefenseProfile.Totals totals = profile.sum(new WarVillage.Building[] {cannon}, true);
+        Assert.assertEquals(hp(CANNON, 7), totals.getHp());
+        Assert.assertEquals(dps(CANNON, 7), totals.getDps());
+        Assert.assertEquals(0, totals.getTownHallLevel());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadLevel() {
+        profile.sum(new Village.Building[] {building(CANNON, LogicGenerator.BUILDING_LEVELS)}, false);
+    }
+
+    private int hp(int typeId, int level) {
+        return logic.getInt(typeId, "Hitpoints", level);
+    }
+
+    private int dps(int typeId, int level) {
+        return logic.getInt(typeId, "Damage", level);
+    }
+
+    private static Village.Building building(int typeId, Integer level) {
+        Village.Building building = new Village.Building();
+        building.data = typeId;
+        building.lvl = level;
+        return building;
+    }
+}
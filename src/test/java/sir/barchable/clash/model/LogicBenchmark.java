@@ -0,0 +1,76 @@
+package sir.barchable.clash.model;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+import static sir.barchable.clash.model.ObjectType.*;
+
+/**
+ * Property lookups against a synthetic {@link Logic}: through a {@link ColumnHandle}, the way the village analyzer sums
+ * building stats, by type id and column name, and by full type name and subtype name. Also the loot calculator's
+ * storage limits, which are read for every village.
+ * <p>
+ * Run {@link #main(String[])} from the test classpath.
+ *
+ * @author Sir Barchable
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogicBenchmark {
+    private Logic logic;
+    private ColumnHandle hitpoints;
+    private LootCalculator lootCalculator;
+    private LootCalculator.Loot loot;
+    private int level;
+
+    @Setup
+    public void setUp() {
+        logic = new LogicGenerator(1).newLogic();
+        hitpoints = logic.getColumn("buildings", "Hitpoints");
+        lootCalculator = new LootCalculator(logic);
+        loot = new LootCalculator.Loot(1000000, 1000000, 10000);
+        level = LogicGenerator.BUILDING_LEVELS / 2;
+    }
+
+    @Benchmark
+    public int getIntByHandle() {
+        return hitpoints.getInt(CANNON, level);
+    }
+
+    @Benchmark
+    public int getIntById() {
+        return logic.getInt(CANNON, "Hitpoints", level);
+    }
+
+    @Benchmark
+    public int getIntByName() {
+        return logic.getInt("globals:WAR_LOOT_PERCENTAGE", "NumberValue");
+    }
+
+    @Benchmark
+    public int getTypeIdByName() {
+        return logic.getTypeId("characters", "Character12");
+    }
+
+    @Benchmark
+    public LootCalculator.Loot calculateStorageLoot() {
+        return lootCalculator.calculateAvailableStorageLoot(loot, LogicGenerator.TOWN_HALL_LEVELS - 1);
+    }
+
+    @Benchmark
+    public String getSubTypeName() {
+        return logic.getSubTypeName(CANNON);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(LogicBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,197 @@
+package sir.barchable.clash.model;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static sir.barchable.clash.model.ObjectType.*;
+
+/**
+ * Build a synthetic {@link Logic} with the tables and columns the analyzers look up, so tests and benchmarks can run
+ * without the game assets.
+ * <p>
+ * The values are random. The shape follows the real csv files: wide rows with the interesting columns scattered among
+ * filler, and one line per object level.
+ *
+ * @author Sir Barchable
+ */
+public class LogicGenerator {
+    /**
+     * Number of columns in each table. The real building table has about this many.
+     */
+    private static final int COLUMNS = 80;
+
+    /**
+     * Buildings with names the analyzers care about. The rest are named after their index.
+     */
+    private static final Map<Integer, String> BUILDING_NAMES = new LinkedHashMap<Integer, String>() {{
+        put(TOWN_HALL, "Town Hall");
+        put(ELIXIR_PUMP, "Elixir Pump");
+        put(ELIXIR_STORAGE, "Elixir Storage");
+        put(GOLD_MINE, "Gold Mine");
+        put(GOLD_STORAGE, "Gold Storage");
+        put(WALL, "Wall");
+        put(TESLA_TOWER, "Tesla Tower");
+        put(DARK_ELIXIR_PUMP, "Dark Elixir Pump");
+        put(DARK_ELIXIR_STORAGE, "Dark Elixir Storage");
+    }};
+
+    private static final String[] RESOURCE_NAMES = {
+        "Diamonds", "Gold", "Elixir", "DarkElixir", "WarGold", "WarElixir", "WarDarkElixir"
+    };
+
+    private static final String[] GLOBAL_NAMES = {
+        "RESOURCE_PRODUCTION_BOOST_MULTIPLIER",
+        "RESOURCE_PRODUCTION_LOOT_PERCENTAGE",
+        "RESOURCE_PRODUCTION_LOOT_PERCENTAGE_DARK_ELIXIR",
+        "WAR_LOOT_PERCENTAGE"
+    };
+
+    /**
+     * Number of building types, from {@link ObjectType#TROOP_HOUSING} to {@link ObjectType#AIR_BLASTER}.
+     */
+    public static final int BUILDING_TYPES = 29;
+
+    /**
+     * Levels of each building.
+     */
+    public static final int BUILDING_LEVELS = 12;
+
+    /**
+     * Number of character types, from {@link ObjectType#BARBARIAN}.
+     */
+    public static final int CHARACTER_TYPES = 15;
+
+    /**
+     * Number of town hall levels.
+     */
+    public static final int TOWN_HALL_LEVELS = 10;
+
+    private final Random random;
+
+    public LogicGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public Logic newLogic() {
+        Map<String, List<Logic.Data>> dataMap = new LinkedHashMap<>();
+
+        List<Logic.Data> buildings = new ArrayList<>();
+        String[] header = header("Damage", "Hitpoints", "ProducesResource", "ResourcePerHour", "ResourceMax");
+        for (int i = 0; i < BUILDING_TYPES; i++) {
+            int typeId = TROOP_HOUSING + i;
+            String name = BUILDING_NAMES.getOrDefault(typeId, "Building" + i);
+            String produces = null;
+            if (typeId == GOLD_MINE) {
+                produces = "Gold";
+            } else if (typeId == ELIXIR_PUMP) {
+                produces = "Elixir";
+            } else if (typeId == DARK_ELIXIR_PUMP) {
+                produces = "DarkElixir";
+            }
+            List<Object[]> lines = new ArrayList<>();
+            for (int level = 0; level < BUILDING_LEVELS; level++) {
+                lines.add(line(
+                    header, name, level,
+                    "Damage", random.nextInt(200),
+                    "Hitpoints", 100 + random.nextInt(5000),
+                    "ProducesResource", produces,
+                    "ResourcePerHour", produces == null ? null : 200 + random.nextInt(3000),
+                    "ResourceMax", produces == null ? null : 1000 + random.nextInt(100000)
+                ));
+            }
+            buildings.add(new Logic.Data(header, lines));
+        }
+        dataMap.put("buildings", buildings);
+
+        dataMap.put("resources", named(RESOURCE_NAMES));
+
+        String[] characterNames = new String[CHARACTER_TYPES];
+        for (int i = 0; i < CHARACTER_TYPES; i++) {
+            characterNames[i] = "Character" + i;
+        }
+        dataMap.put("characters", named(characterNames));
+
+        List<Logic.Data> globals = new ArrayList<>();
+        header = header("NumberValue");
+        for (String name : GLOBAL_NAMES) {
+            List<Object[]> lines = new ArrayList<>();
+            lines.add(line(header, name, 0, "NumberValue", 1 + random.nextInt(100)));
+            globals.add(new Logic.Data(header, lines));
+        }
+        dataMap.put("globals", globals);
+
+        List<Logic.Data> townHallLevels = new ArrayList<>();
+        header = header(
+            "ResourceStorageLootPercentage", "ResourceStorageLootCap",
+            "DarkElixirStorageLootPercentage", "DarkElixirStorageLootCap"
+        );
+        for (int i = 1; i <= TOWN_HALL_LEVELS; i++) {
+            List<Object[]> lines = new ArrayList<>();
+            lines.add(line(
+                header, Integer.toString(i), 0,
+                "ResourceStorageLootPercentage", 1 + random.nextInt(100),
+                "ResourceStorageLootCap", 1000 + random.nextInt(500000),
+                "DarkElixirStorageLootPercentage", 1 + random.nextInt(100),
+                "DarkElixirStorageLootCap", 100 + random.nextInt(5000)
+            ));
+            townHallLevels.add(new Logic.Data(header, lines));
+        }
+        dataMap.put("townhall_levels", townHallLevels);
+
+        return new Logic(dataMap);
+    }
+
+    /**
+     * A header with the named columns spread among filler columns.
+     */
+    private String[] header(String... columns) {
+        String[] header = new String[COLUMNS];
+        header[0] = "Name";
+        for (int i = 1; i < COLUMNS; i++) {
+            header[i] = "Column" + i;
+        }
+        int stride = (COLUMNS - 1) / (columns.length + 1);
+        for (int i = 0; i < columns.length; i++) {
+            header[stride * (i + 1)] = columns[i];
+        }
+        return header;
+    }
+
+    /**
+     * A line of values for the named columns. Only the first level of an object has a name, as in the csv files.
+     */
+    private Object[] line(String[] header, String name, int level, Object... columnValues) {
+        Object[] line = new Object[header.length];
+        if (level == 0) {
+            line[0] = name;
+        }
+        for (int i = 1; i < header.length; i++) {
+            line[i] = random.nextInt(1000);
+        }
+        for (int i = 0; i < columnValues.length; i += 2) {
+            for (int j = 0; j < header.length; j++) {
+                if (header[j].equals(columnValues[i])) {
+                    line[j] = columnValues[i + 1];
+                }
+            }
+        }
+        return line;
+    }
+
+    /**
+     * A table of single level objects with nothing but names.
+     */
+    private List<Logic.Data> named(String[] names) {
+        String[] header = header();
+        List<Logic.Data> table = new ArrayList<>();
+        for (String name : names) {
+            List<Object[]> lines = new ArrayList<>();
+            lines.add(line(header, name, 0));
+            table.add(new Logic.Data(header, lines));
+        }
+        return table;
+    }
+}
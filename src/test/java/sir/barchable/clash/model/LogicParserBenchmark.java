@@ -0,0 +1,140 @@
+package sir.barchable.clash.model;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Logic loading, without the game assets: parsing a csv file about the size of buildings.csv, opening a
+ * {@link LogicSnapshot} of the same table and reading the table back from it, and feeding a deflated jar entry through
+ * the {@link LogicParser.PatchStream} the way the LZMA decoder consumes it, a byte at a time, with and without a buffer
+ * in between.
+ * <p>
+ * Run {@link #main(String[])} from the test classpath.
+ *
+ * @author Sir Barchable
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogicParserBenchmark {
+    private static final int OBJECTS = 100;
+    private static final int LEVELS = 12;
+    private static final int COLUMNS = 80;
+    private static final byte[] KEY = {0};
+
+    private byte[] csv;
+    private byte[] entry;
+    private File snapshot;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(1);
+        StringBuilder s = new StringBuilder();
+        s.append("\"Name\"");
+        for (int i = 1; i < COLUMNS; i++) {
+            s.append(",\"Column").append(i).append('"');
+        }
+        s.append("\n\"String\"");
+        for (int i = 1; i < COLUMNS; i++) {
+            s.append(i % 4 == 0 ? ",\"String\"" : ",\"int\"");
+        }
+        s.append('\n');
+        for (int object = 0; object < OBJECTS; object++) {
+            for (int level = 0; level < LEVELS; level++) {
+                if (level == 0) {
+                    s.append("\"Object").append(object).append('"');
+                }
+                for (int i = 1; i < COLUMNS; i++) {
+                    s.append(',');
+                    if (level == 0 || random.nextBoolean()) {
+                        if (i % 4 == 0) {
+                            s.append("\"value").append(random.nextInt(100)).append('"');
+                        } else {
+                            s.append(random.nextInt(100000));
+                        }
+                    }
+                }
+                s.append('\n');
+            }
+        }
+        csv = s.toString().getBytes(StandardCharsets.UTF_8);
+
+        snapshot = File.createTempFile("logic", ".snapshot");
+        LogicSnapshot.write(new Logic(Collections.singletonList(parseCsv())), KEY, snapshot);
+
+        // Stands in for the LZMA data, which is what the jar deflates
+        byte[] lzma = new byte[1024 * 1024];
+        random.nextBytes(lzma);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        try (DeflaterOutputStream out = new DeflaterOutputStream(sink)) {
+            out.write(lzma);
+        }
+        entry = sink.toByteArray();
+    }
+
+    @TearDown
+    public void tearDown() {
+        snapshot.delete();
+    }
+
+    @Benchmark
+    public LogicTable parseCsv() throws IOException {
+        return LogicParser.loadLogicFile("buildings", new ByteArrayInputStream(csv));
+    }
+
+    @Benchmark
+    public Logic openSnapshot() throws IOException {
+        return LogicSnapshot.read(snapshot, KEY);
+    }
+
+    @Benchmark
+    public Collection<LogicTable> readSnapshot() throws IOException {
+        return LogicSnapshot.read(snapshot, KEY).getTables();
+    }
+
+    @Benchmark
+    public int readPatchedByteAtATime() throws IOException {
+        return drain(new LogicParser.PatchStream(newEntryStream()));
+    }
+
+    @Benchmark
+    public int readPatchedBuffered() throws IOException {
+        return drain(new BufferedInputStream(new LogicParser.PatchStream(newEntryStream()), 64 * 1024));
+    }
+
+    private InputStream newEntryStream() {
+        return new InflaterInputStream(new ByteArrayInputStream(entry));
+    }
+
+    private int drain(InputStream in) throws IOException {
+        int sum = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            sum += c;
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(LogicParserBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,92 @@
+package sir.barchable.clash.model;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static sir.barchable.clash.model.ObjectType.*;
+
+/**
+ * @author Sir Barchable
+ */
+public class LogicParserTest {
+    private static final String CHARACTERS_CSV =
+        "\"Name\",\"Hitpoints\",\"Damage\",\"TrainingResource\"\n" +
+        "\"String\",\"int\",\"int\",\"String\"\n" +
+        "\"Barbarian\",45,8,\"Elixir\"\n" +
+        ",54,,\n" +
+        ",65,11,\n" +
+        "\"Archer\",20,,\"Elixir\"\n" +
+        ",23,9,\"DarkElixir\"\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPatchStream() throws IOException {
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i + 1);
+        }
+
+        // Byte at a time
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        InputStream in = new LogicParser.PatchStream(new ByteArrayInputStream(data));
+        int c;
+        while ((c = in.read()) != -1) {
+            expected.write(c);
+        }
+        byte[] patched = expected.toByteArray();
+        Assert.assertEquals(data.length + 4, patched.length);
+        Assert.assertArrayEquals(new byte[] {8, 0, 0, 0, 0, 9}, Arrays.copyOfRange(patched, 7, 13));
+
+        // Bulk, in chunks that start and end inside the patch
+        for (int chunk = 1; chunk < 16; chunk++) {
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            in = new LogicParser.PatchStream(new ByteArrayInputStream(data));
+            byte[] buffer = new byte[chunk];
+            int n;
+            while ((n = in.read(buffer, 0, chunk)) != -1) {
+                actual.write(buffer, 0, n);
+            }
+            Assert.assertArrayEquals("chunk " + chunk, patched, actual.toByteArray());
+        }
+    }
+
+    @Test
+    public void testLoadLogicFile() throws IOException {
+        LogicTable table = LogicParser.loadLogicFile(
+            "characters", new ByteArrayInputStream(CHARACTERS_CSV.getBytes(StandardCharsets.UTF_8))
+        );
+        Assert.assertEquals(2, table.size());
+        Assert.assertEquals(3, table.getLevels(0));
+        Logic logic = new Logic(Collections.singletonList(table));
+        Assert.assertEquals(54, logic.getInt(BARBARIAN, "Hitpoints", 1));
+        Assert.assertEquals(8, logic.getInt(BARBARIAN, "Damage", 1));
+        Assert.assertEquals("DarkElixir", logic.getString(ARCHER, "TrainingResource", 1));
+    }
+
+    @Test
+    public void testLoadLogicFromDir() throws IOException {
+        File dir = folder.newFolder("logic");
+        Files.write(new File(dir, "characters.csv").toPath(), CHARACTERS_CSV.getBytes(StandardCharsets.UTF_8));
+        Files.write(
+            new File(dir, "globals.csv").toPath(),
+            "\"Name\",\"NumberValue\"\n\"String\",\"int\"\n\"WAR_LOOT_PERCENTAGE\",10\n".getBytes(StandardCharsets.UTF_8)
+        );
+        Logic logic = LogicParser.loadLogic(dir);
+        Assert.assertEquals(65, logic.getInt("characters:Barbarian", "Hitpoints", 2));
+        Assert.assertEquals(10, logic.getInt("globals:WAR_LOOT_PERCENTAGE", "NumberValue"));
+    }
+}
@@ -0,0 +1,98 @@
+package sir.barchable.clash.model;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sir.barchable.clash.ResourceException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * @author Sir Barchable
+ */
+public class LogicSnapshotTest {
+    private static final byte[] KEY = {1, 2, 3};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        List<LogicTable> tables = new ArrayList<>(new LogicGenerator(1).newLogic().getTables());
+        tables.add(
+            new LogicTable.Builder(
+                "flags",
+                new String[] {"Name", "Flag", "Label"},
+                new Logic.Data.Type[] {Logic.Data.Type.STRING, Logic.Data.Type.BOOLEAN, Logic.Data.Type.STRING}
+            )
+                .addLine(new Object[] {"A", true, "\u00e9t\u00e9"})
+                .addLine(new Object[] {null, false, null})
+                .addLine(new Object[] {"B", null, null})
+                .build()
+        );
+        Logic logic = new Logic(tables);
+
+        File file = folder.newFile();
+        LogicSnapshot.write(logic, KEY, file);
+        Logic copy = LogicSnapshot.read(file, KEY);
+        Assert.assertNotNull(copy);
+
+        Assert.assertEquals(logic.getTables().size(), copy.getTables().size());
+        Iterator<LogicTable> copies = copy.getTables().iterator();
+        for (LogicTable table : logic.getTables()) {
+            LogicTable tableCopy = copies.next();
+            Assert.assertEquals(table.getName(), tableCopy.getName());
+            Assert.assertEquals(table.size(), tableCopy.size());
+            for (int i = 0; i < table.size(); i++) {
+                Assert.assertEquals(table.getObjectName(i), tableCopy.getObjectName(i));
+                Assert.assertArrayEquals(table.getHeader(), tableCopy.getHeader());
+                Assert.assertTrue(
+                    table.getName() + ":" + i,
+                    Arrays.deepEquals(table.getData(i).getLines().toArray(), tableCopy.getData(i).getLines().toArray())
+                );
+            }
+        }
+        Assert.assertEquals(
+            logic.getInt("globals:WAR_LOOT_PERCENTAGE", "NumberValue"),
+            copy.getInt("globals:WAR_LOOT_PERCENTAGE", "NumberValue")
+        );
+    }
+
+    @Test
+    public void testStaleKey() throws IOException {
+        File file = folder.newFile();
+        LogicSnapshot.write(new LogicGenerator(1).newLogic(), KEY, file);
+        Assert.assertNull(LogicSnapshot.read(file, new byte[] {1, 2, 4}));
+        Assert.assertNull(LogicSnapshot.read(new File(folder.getRoot(), "missing"), KEY));
+    }
+
+    @Test(expected = ResourceException.class)
+    public void testTruncated() throws IOException {
+        File file = folder.newFile();
+        LogicSnapshot.write(new LogicGenerator(1).newLogic(), KEY, file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+        LogicSnapshot.read(file, KEY);
+    }
+
+    @Test
+    public void testHash() throws IOException {
+        File dir = folder.newFolder("logic");
+        File csv = new File(dir, "globals.csv");
+        Files.write(csv.toPath(), "a".getBytes(StandardCharsets.UTF_8));
+        byte[] hash = LogicSnapshot.hash(dir);
+        Assert.assertArrayEquals(hash, LogicSnapshot.hash(dir));
+        Files.write(csv.toPath(), "b".getBytes(StandardCharsets.UTF_8));
+        Assert.assertFalse(Arrays.equals(hash, LogicSnapshot.hash(dir)));
+    }
+}
@@ -0,0 +1,205 @@
+package sir.barchable.clash.model;
+
+import org.junit.Assert;
+import org.junit.Test;
+import sir.barchable.clash.server.LogicException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static sir.barchable.clash.model.ObjectType.*;
+
+/**
+ * @author Sir Barchable
+ */
+public class LogicTest {
+    private static final String[] HEADER = {"Name", "Hitpoints", "Damage", "TrainingResource"};
+    private static final Logic.Data.Type[] TYPES = {
+        Logic.Data.Type.STRING, Logic.Data.Type.INT, Logic.Data.Type.INT, Logic.Data.Type.STRING
+    };
+
+    /**
+     * Two characters. Higher levels leave cells empty when the value doesn't change, as in the csv files.
+     */
+    private Logic newLogic() {
+        LogicTable characters = new LogicTable.Builder("characters", HEADER, TYPES)
+            .addLine(new Object[] {"Barbarian", 45, 8, "Elixir"})
+            .addLine(new Object[] {null, 54, null, null})
+            .addLine(new Object[] {null, 65, 11, null})
+            .addLine(new Object[] {"Archer", 20, null, "Elixir"})
+            .addLine(new Object[] {null, 23, 9, "DarkElixir"})
+            .build();
+        return new Logic(Collections.singletonList(characters));
+    }
+
+    @Test
+    public void testLevelFallback() {
+        Logic logic = newLogic();
+        Assert.assertEquals(54, logic.getInt(BARBARIAN, "Hitpoints", 1));
+        Assert.assertEquals(8, logic.getInt(BARBARIAN, "Damage", 1));
+        Assert.assertEquals(11, logic.getInt(BARBARIAN, "Damage", 2));
+        Assert.assertEquals("Elixir", logic.getString(BARBARIAN, "TrainingResource", 2));
+        // Missing at the first level too
+        Assert.assertEquals(0, logic.getInt(ARCHER, "Damage", 0));
+        Assert.assertEquals("DarkElixir", logic.getString(ARCHER, "TrainingResource", 1));
+        Assert.assertEquals(2, logic.getMaxLevel(BARBARIAN));
+        Assert.assertEquals("Archer", logic.getSubTypeName(ARCHER));
+        Assert.assertEquals(ARCHER, logic.getTypeId("characters", "archer"));
+        Assert.assertEquals(23, logic.getInt("characters:Archer", "Hitpoints", 1));
+    }
+
+    @Test
+    public void testColumnHandle() {
+        Logic logic = newLogic();
+        ColumnHandle hitpoints = logic.getColumn("characters", "Hitpoints");
+        ColumnHandle trainingResource = logic.getColumn("characters", "TrainingResource");
+        for (int typeId : new int[] {BARBARIAN, ARCHER}) {
+            for (int level = 0; level <= logic.getMaxLevel(typeId); level++) {
+                Assert.assertEquals(logic.getInt(typeId, "Hitpoints", level), hitpoints.getInt(typeId, level));
+                Assert.assertEquals(
+                    logic.getString(typeId, "TrainingResource", level), trainingResource.getString(typeId, level)
+                );
+            }
+        }
+    }
+
+    @Test(expected = LogicException.class)
+    public void testHandleTypeOutOfRange() {
+        newLogic().getColumn("characters", "Hitpoints").getInt(GOBLIN, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHandleLevelOutOfRange() {
+        newLogic().getColumn("characters", "Hitpoints").getInt(ARCHER, 2);
+    }
+
+    @Test(expected = LogicException.class)
+    public void testNoColumn() {
+        newLogic().getColumn("characters", "Speed");
+    }
+
+    @Test
+    public void testFromData() {
+        // The row form converts to the same table
+        List<Object[]> barbarian = new ArrayList<>(Arrays.asList(
+            new Object[] {"Barbarian", 45, 8, "Elixir"},
+            new Object[] {null, 54, null, null},
+            new Object[] {null, 65, 11, null}
+        ));
+        List<Object[]> archer = new ArrayList<>(Arrays.asList(
+            new Object[] {"Archer", 20, null, "Elixir"},
+            new Object[] {null, 23, 9, "DarkElixir"}
+        ));
+        Map<String, List<Logic.Data>> dataMap = new LinkedHashMap<>();
+        dataMap.put("characters", Arrays.asList(new Logic.Data(HEADER, barbarian), new Logic.Data(HEADER, archer)));
+        Logic fromData = new Logic(dataMap);
+        Logic fromBuilder = newLogic();
+        for (int typeId : new int[] {BARBARIAN, ARCHER}) {
+            for (int level = 0; level <= fromBuilder.getMaxLevel(typeId); level++) {
+                for (String column : new String[] {"Hitpoints", "Damage"}) {
+                    Assert.assertEquals(fromBuilder.getInt(typeId, column, level), fromData.getInt(typeId, column, level));
+                }
+                Assert.assertEquals(
+                    fromBuilder.getString(typeId, "TrainingResource", level),
+                    fromData.getString(typeId, "TrainingResource", level)
+                );
+            }
+        }
+    }
+
+    @Test
+    public void testNameLookups() {
+        LogicTable characters = new LogicTable.Builder("characters", HEADER, TYPES)
+            .addLine(new Object[] {"Barbarian", 45, 8, "Elixir"})
+            .addLine(new Object[] {"Warrior Girl", 900, 94, "Elixir"})
+            .addLine(new Object[] {"Barbarian", 1, 1, "Elixir"})
+            .build();
+        LogicTable townHallLevels = new LogicTable.Builder("townhall_levels", HEADER, TYPES)
+            .addLine(new Object[] {"1", 1500, 0, null})
+            .addLine(new Object[] {"2", 1600, 0, null})
+            .build();
+        Logic logic = new Logic(Arrays.asList(characters, townHallLevels));
+
+        // First object wins
+        Assert.assertEquals(BARBARIAN, logic.getTypeId("characters:Barbarian"));
+        Assert.assertEquals(BARBARIAN, logic.getTypeId("characters", "BARBARIAN"));
+        Assert.assertEquals(45, logic.getInt("characters:Barbarian", "Hitpoints"));
+        // A plain type name is the first object
+        Assert.assertEquals(45, logic.getInt("characters", "Hitpoints"));
+        // Aliases
+        Assert.assertEquals(BARBARIAN + 1, logic.getTypeId("characters", "valkyrie"));
+
+        Assert.assertEquals(1600, logic.getInt("townhall_levels:2", "Hitpoints"));
+        Assert.assertEquals(
+            1600, logic.getColumn("townhall_levels", "Hitpoints").getInt(logic.getTownHallLevelTypeId(2))
+        );
+    }
+
+    @Test(expected = LogicException.class)
+    public void testNoSubType() {
+        newLogic().getInt("characters:Goblin", "Hitpoints");
+    }
+
+    @Test(expected = LogicException.class)
+    public void testNoTownHallLevel() {
+        newLogic().getTownHallLevelTypeId(1);
+    }
+
+    @Test
+    public void testLazyLoading() throws Exception {
+        Map<String, LogicTable> source = new LinkedHashMap<>();
+        for (LogicTable table : new LogicGenerator(1).newLogic().getTables()) {
+            source.put(table.getName(), table);
+        }
+        Map<String, AtomicInteger> loads = new ConcurrentHashMap<>();
+        Logic logic = new Logic(source.keySet(), name -> {
+            loads.computeIfAbsent(name, key -> new AtomicInteger()).incrementAndGet();
+            return source.get(name);
+        });
+        Assert.assertTrue(loads.isEmpty());
+
+        // Lots of threads racing for the same tables
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return logic.getInt(CANNON, "Hitpoints") + logic.getInt("globals:WAR_LOOT_PERCENTAGE", "NumberValue");
+                }));
+            }
+            start.countDown();
+            for (Future<Integer> result : results) {
+                Assert.assertEquals(results.get(0).get(), result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList("buildings", "globals")), loads.keySet());
+        Assert.assertEquals(1, loads.get("buildings").get());
+        Assert.assertEquals(1, loads.get("globals").get());
+
+        logic.warmUp(Collections.singletonList("characters"));
+        Assert.assertEquals(1, loads.get("characters").get());
+        Assert.assertNull(loads.get("townhall_levels"));
+        logic.getTownHallLevelTypeId(1);
+        Assert.assertEquals(1, loads.get("townhall_levels").get());
+    }
+
+    @Test(expected = LogicException.class)
+    public void testWarmUpUnknownTable() {
+        newLogic().warmUp(Collections.singletonList("faq"));
+    }
+}
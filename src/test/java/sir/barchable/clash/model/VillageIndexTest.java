@@ -0,0 +1,125 @@
+package sir.barchable.clash.model;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sir.barchable.clash.VillageGenerator;
+import sir.barchable.clash.protocol.CaptureLogWriter;
+import sir.barchable.clash.protocol.Message;
+import sir.barchable.clash.protocol.MessageFactory;
+import sir.barchable.clash.protocol.Pdu;
+import sir.barchable.clash.protocol.TypeFactory;
+import sir.barchable.clash.proxy.MessageSaver;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * @author Sir Barchable
+ */
+public class VillageIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TypeFactory typeFactory = new TypeFactory();
+    private MessageFactory messageFactory = new MessageFactory(typeFactory);
+    private VillageGenerator villageGenerator = new VillageGenerator(typeFactory, 1);
+
+    @Test
+    public void testIndexOnSave() throws Exception {
+        Message enemy = villageGenerator.newHomeMessage(Pdu.Type.EnemyHomeData);
+        enemy.getMessage("user").set("userId", 1234L);
+        Message visited = villageGenerator.newHomeMessage(Pdu.Type.VisitedHomeData);
+        visited.getMessage("user").set("userId", 5678L);
+
+        File dir = folder.getRoot();
+        try (MessageSaver saver = new MessageSaver(messageFactory, dir)) {
+            saver.save(messageFactory.toPdu(enemy), 1000);
+            saver.save(messageFactory.toPdu(visited), 2000);
+        }
+        Assert.assertTrue(new File(dir, VillageIndex.INDEX_NAME).length() > 0);
+
+        VillageIndex index = VillageIndex.open(dir, messageFactory);
+        Assert.assertEquals(2, index.size());
+
+        VillageIndex.Entry entry = index.findByUserId(1234L).get(0);
+        Assert.assertEquals(Pdu.Type.EnemyHomeData, entry.getType());
+        Assert.assertEquals(1000, entry.getTimestamp());
+        Assert.assertEquals(enemy.getMessage("user").getString("userName"), entry.getName());
+        String clanName = (String) enemy.getMessage("user").getFields("clan").get("clanName");
+        Assert.assertEquals(clanName, entry.getClanName());
+        Assert.assertTrue(index.findByClan(clanName.toUpperCase()).contains(entry));
+        Assert.assertTrue(entry.getTownHallLevel() > 0);
+        Assert.assertTrue(index.findByTownHallLevel(entry.getTownHallLevel()).contains(entry));
+
+        List<VillageIndex.Entry> later = index.findBetween(1500, 3000);
+        Assert.assertEquals(1, later.size());
+        Assert.assertEquals(5678L, later.get(0).getUserId());
+
+        Assert.assertArrayEquals(
+            messageFactory.toPdu(enemy).getPayload(), messageFactory.toPdu(index.load(entry)).getPayload()
+        );
+    }
+
+    @Test
+    public void testAttackable() throws Exception {
+        File dir = folder.getRoot();
+        try (MessageSaver saver = new MessageSaver(messageFactory, dir)) {
+            saver.save(messageFactory.toPdu(villageGenerator.newHomeMessage(Pdu.Type.OwnHomeData)), 1);
+            saver.save(messageFactory.toPdu(villageGenerator.newHomeMessage(Pdu.Type.EnemyHomeData)), 2);
+        }
+        VillageIndex index = VillageIndex.open(dir, messageFactory);
+        Assert.assertEquals(2, index.size());
+        Assert.assertEquals(1, index.getAttackableCount());
+        Assert.assertEquals(Pdu.Type.EnemyHomeData, index.getAttackable(0).getType());
+    }
+
+    @Test
+    public void testCatchUp() throws Exception {
+        File dir = folder.getRoot();
+        // Written without an index
+        try (CaptureLogWriter writer = new CaptureLogWriter(dir)) {
+            writer.setBlockWhenFull(true);
+            for (int i = 0; i < 3; i++) {
+                writer.append(messageFactory.toPdu(villageGenerator.newHomeMessage(Pdu.Type.EnemyHomeData)), i, i, "");
+            }
+        }
+        VillageIndex index = VillageIndex.open(dir, messageFactory);
+        Assert.assertEquals(3, index.size());
+
+        // Reopening reads the index, and doesn't add anything twice
+        index = VillageIndex.open(dir, messageFactory);
+        Assert.assertEquals(3, index.size());
+        Assert.assertEquals(0, index.refresh());
+
+        // New records are picked up by a refresh
+        try (MessageSaver saver = new MessageSaver(messageFactory, new CaptureLogWriter(dir), Pdu.Type.EnemyHomeData)) {
+            saver.save(messageFactory.toPdu(villageGenerator.newHomeMessage(Pdu.Type.EnemyHomeData)), 10);
+        }
+        Assert.assertEquals(1, index.refresh());
+        Assert.assertEquals(4, index.size());
+    }
+
+    @Test
+    public void testTornIndex() throws Exception {
+        File dir = folder.getRoot();
+        try (MessageSaver saver = new MessageSaver(messageFactory, dir)) {
+            for (int i = 0; i < 2; i++) {
+                saver.save(messageFactory.toPdu(villageGenerator.newHomeMessage(Pdu.Type.EnemyHomeData)), i);
+            }
+        }
+        File indexFile = new File(dir, VillageIndex.INDEX_NAME);
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        // The torn entry is cut off and indexed again from the log
+        VillageIndex index = VillageIndex.open(dir, messageFactory);
+        Assert.assertEquals(2, index.size());
+        index = VillageIndex.open(dir, messageFactory);
+        Assert.assertEquals(2, index.size());
+        Assert.assertEquals(0, index.refresh());
+    }
+}
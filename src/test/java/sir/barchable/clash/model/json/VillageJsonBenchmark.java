@@ -0,0 +1,66 @@
+package sir.barchable.clash.model.json;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import sir.barchable.clash.VillageGenerator;
+import sir.barchable.clash.protocol.TypeFactory;
+import sir.barchable.util.Json;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading village JSON: binding it to the {@link Village} and {@link WarVillage} POJOs, and streaming the fields the
+ * analyzers use with a {@link VillageParser}.
+ * <p>
+ * Run {@link #main(String[])} from the test classpath.
+ *
+ * @author Sir Barchable
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VillageJsonBenchmark {
+    private String villageJson;
+    private String warVillageJson;
+
+    @Setup
+    public void setUp() throws IOException {
+        VillageGenerator generator = new VillageGenerator(new TypeFactory(), 1);
+        villageJson = Json.toString(generator.newVillage());
+        warVillageJson = Json.toString(generator.newWarVillage());
+    }
+
+    @Benchmark
+    public Village readVillage() throws IOException {
+        return Json.valueOf(villageJson, Village.class);
+    }
+
+    @Benchmark
+    public WarVillage readWarVillage() throws IOException {
+        return Json.valueOf(warVillageJson, WarVillage.class);
+    }
+
+    @Benchmark
+    public int streamVillage() throws IOException {
+        int[] sum = new int[1];
+        VillageParser.parse(villageJson, building -> sum[0] += building.data + building.level);
+        return sum[0];
+    }
+
+    @Benchmark
+    public int streamWarVillage() throws IOException {
+        int[] sum = new int[1];
+        VillageParser.parse(warVillageJson, building -> sum[0] += building.data + building.level);
+        return sum[0];
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(VillageJsonBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,123 @@
+package sir.barchable.clash.model.json;
+
+import org.junit.Assert;
+import org.junit.Test;
+import sir.barchable.clash.VillageGenerator;
+import sir.barchable.clash.model.DefenseProfile;
+import sir.barchable.clash.model.LogicGenerator;
+import sir.barchable.clash.model.Unit;
+import sir.barchable.clash.protocol.TypeFactory;
+import sir.barchable.util.Json;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Check the streamed fields against the bound POJOs.
+ *
+ * @author Sir Barchable
+ */
+public class VillageParserTest {
+    private VillageGenerator villageGenerator = new VillageGenerator(new TypeFactory(), 1);
+    private DefenseProfile profile = new DefenseProfile(new LogicGenerator(1).newLogic());
+
+    @Test
+    public void testHomeVillage() throws IOException {
+        Village village = villageGenerator.newVillage();
+        village.buildings[0].lvl = -1;
+        village.buildings[1].lvl = null;
+        village.buildings[2].const_t = 100;
+
+        List<Village.Building> streamed = new ArrayList<>();
+        DefenseProfile.Totals totals = new DefenseProfile.Totals();
+        VillageParser.Summary summary = VillageParser.parse(Json.toString(village), building -> {
+            profile.add(totals, building.data, building.level, false);
+            // The fields are reused, so copy them
+            Village.Building copy = new Village.Building();
+            copy.data = building.data;
+            copy.lvl = building.level;
+            copy.res_time = building.hasResTime ? building.resTime : null;
+            copy.const_t = building.underConstruction ? 0 : null;
+            copy.boost_t = building.boosted ? 0 : null;
+            streamed.add(copy);
+        });
+
+        Assert.assertEquals(village.buildings.length, streamed.size());
+        for (int i = 0; i < streamed.size(); i++) {
+            Village.Building expected = village.buildings[i];
+            Village.Building actual = streamed.get(i);
+            Assert.assertEquals(expected.data, actual.data);
+            Assert.assertEquals(expected.lvl == null ? 0 : Math.max(expected.lvl, 0), (int) actual.lvl);
+            Assert.assertEquals(expected.res_time, actual.res_time);
+            Assert.assertEquals(expected.const_t != null, actual.const_t != null);
+            Assert.assertEquals(expected.boost_t != null, actual.boost_t != null);
+        }
+
+        DefenseProfile.Totals bound = profile.sum(village.buildings, false);
+        Assert.assertEquals(bound.getHp(), totals.getHp());
+        Assert.assertEquals(bound.getWallHp(), totals.getWallHp());
+        Assert.assertEquals(bound.getDps(), totals.getDps());
+        Assert.assertEquals(bound.getTownHallLevel(), totals.getTownHallLevel());
+        Assert.assertEquals(bound.getTownHallLevel(), summary.townHallLevel);
+
+        Assert.assertEquals(village.respawnVars.time_to_gembox_drop, summary.timeToGemboxDrop);
+        Assert.assertEquals(village.respawnVars.time_in_gembox_period, summary.timeInGemboxPeriod);
+    }
+
+    @Test
+    public void testLayoutHash() throws IOException {
+        Village village = villageGenerator.newVillage();
+        long hash = VillageParser.layoutHash(Json.toString(village));
+
+        // Timers and order don't count
+        village.buildings[village.buildings.length - 1].res_time = 12345;
+        village.respawnVars.time_to_gembox_drop++;
+        Village.Building first = village.buildings[0];
+        village.buildings[0] = village.buildings[1];
+        village.buildings[1] = first;
+        Assert.assertEquals(hash, VillageParser.layoutHash(Json.toString(village)));
+
+        // Levels and positions do
+        village.buildings[0].lvl++;
+        long upgraded = VillageParser.layoutHash(Json.toString(village));
+        Assert.assertNotEquals(hash, upgraded);
+        village.buildings[0].x++;
+        long moved = VillageParser.layoutHash(Json.toString(village));
+        Assert.assertNotEquals(upgraded, moved);
+
+        // So do the other layouts
+        village.buildings[0].l1x = village.buildings[0].x + 1;
+        long rearranged = VillageParser.layoutHash(Json.toString(village));
+        Assert.assertNotEquals(moved, rearranged);
+        village.war_layout = village.war_layout == null ? 1 : village.war_layout + 1;
+        Assert.assertNotEquals(rearranged, VillageParser.layoutHash(Json.toString(village)));
+    }
+
+    @Test
+    public void testWarVillage() throws IOException {
+        WarVillage village = villageGenerator.newWarVillage();
+        int[] count = new int[1];
+        VillageParser.Summary summary = VillageParser.parse(Json.toString(village), building -> count[0]++);
+        Assert.assertEquals(village.buildings.length, count[0]);
+        Assert.assertEquals(village.name, summary.name);
+        Assert.assertEquals(village.alliance_name, summary.allianceName);
+        Assert.assertEquals(village.avatar_id_high, summary.avatarIdHigh);
+        Assert.assertEquals(village.avatar_id_low, summary.avatarIdLow);
+        Assert.assertEquals(village.alliance_units.length, summary.allianceUnits.size());
+        Unit expected = village.alliance_units[0];
+        Unit actual = summary.allianceUnits.get(0);
+        Assert.assertEquals(expected.getId(), actual.getId());
+        Assert.assertEquals(expected.getCnt(), actual.getCnt());
+        Assert.assertEquals(expected.getLvl(), actual.getLvl());
+    }
+
+    @Test
+    public void testReadString() throws IOException {
+        String json = "{\"attacker\":{\"name\":\"a\",\"units\":[{\"name\":\"x\"}]},\"defender\":{\"level\":3,\"name\":\"d\"}}";
+        Assert.assertEquals("d", VillageParser.readString(json, "defender", "name"));
+        Assert.assertNull(VillageParser.readString(json, "defender", "clan"));
+        Assert.assertNull(VillageParser.readString(json, "name"));
+        Assert.assertNull(VillageParser.readString(json, "defender", "level"));
+    }
+}
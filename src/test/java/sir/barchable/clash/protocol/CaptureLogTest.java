@@ -0,0 +1,198 @@
+package sir.barchable.clash.protocol;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * @author Sir Barchable
+ */
+public class CaptureLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File dir = folder.getRoot();
+        try (CaptureLogWriter writer = new CaptureLogWriter(dir, 1000)) {
+            for (int i = 0; i < 20; i++) {
+                Pdu pdu = newPdu(Pdu.Type.EnemyHomeData.id(), i, 100 + i);
+                pdu.setVersion(i);
+                Assert.assertTrue(writer.append(pdu, 1000L + i, 1L << 32 | i, "Village " + i));
+            }
+        }
+
+        List<File> segments = CaptureLog.getSegments(dir);
+        Assert.assertTrue("Rolled over", segments.size() > 1);
+        for (File segment : segments) {
+            Assert.assertTrue(segment.length() <= 1000);
+        }
+
+        List<CaptureRecord> records = scan(dir);
+        Assert.assertEquals(20, records.size());
+        for (int i = 0; i < 20; i++) {
+            CaptureRecord record = records.get(i);
+            Assert.assertEquals(Pdu.Type.EnemyHomeData, record.getType());
+            Assert.assertEquals(1000L + i, record.getTimestamp());
+            Assert.assertEquals(1L << 32 | i, record.getUserId());
+            Assert.assertEquals("Village " + i, record.getName());
+            Pdu pdu = record.getPdu();
+            Assert.assertEquals(i, pdu.getVersion());
+            Assert.assertArrayEquals(newPdu(0, i, 100 + i).getPayload(), pdu.getPayload());
+        }
+    }
+
+    @Test
+    public void testNewWriterNewSegment() throws Exception {
+        File dir = folder.getRoot();
+        try (CaptureLogWriter writer = new CaptureLogWriter(dir)) {
+            writer.append(newPdu(1, 1, 10), 1, 1, "one");
+        }
+        try (CaptureLogWriter writer = new CaptureLogWriter(dir)) {
+            writer.append(newPdu(2, 2, 10), 2, 2, "two");
+        }
+        Assert.assertEquals(2, CaptureLog.getSegments(dir).size());
+        List<CaptureRecord> records = scan(dir);
+        Assert.assertEquals(2, records.size());
+        Assert.assertEquals("two", records.get(1).getName());
+    }
+
+    @Test
+    public void testSubmit() throws Exception {
+        File dir = folder.getRoot();
+        Thread caller = Thread.currentThread();
+        List<Thread> encoders = new ArrayList<>();
+        int failures;
+        try (CaptureLogWriter writer = new CaptureLogWriter(dir)) {
+            writer.append(newPdu(1, 1, 10), 1, 1, "one");
+            writer.submit(sink -> {
+                encoders.add(Thread.currentThread());
+                sink.append(CaptureRecord.Kind.LAYOUT, 22, newPdu(2, 2, 10), 2, 2, "two", null);
+                sink.append(CaptureRecord.Kind.SIGHTING, 22, newPdu(2, 3, 10), 2, 2, "three", null);
+            });
+            writer.submit(sink -> {
+                throw new IOException("Failed");
+            });
+            writer.append(newPdu(4, 4, 10), 4, 4, "four");
+            writer.close();
+            failures = writer.getFailureCount();
+        }
+        Assert.assertEquals(1, encoders.size());
+        Assert.assertNotSame(caller, encoders.get(0));
+        Assert.assertEquals(1, failures);
+
+        List<CaptureRecord> records = scan(dir);
+        Assert.assertEquals(4, records.size());
+        Assert.assertEquals("two", records.get(1).getName());
+        Assert.assertEquals(CaptureRecord.Kind.SIGHTING, records.get(2).getKind());
+        Assert.assertEquals(22, records.get(2).getLayout());
+        Assert.assertEquals("four", records.get(3).getName());
+    }
+
+    @Test
+    public void testWriteFailure() throws Exception {
+        File dir = folder.newFolder("gone");
+        List<Object> committed = new ArrayList<>();
+        List<Object> failed = new ArrayList<>();
+        CaptureLogWriter writer = new CaptureLogWriter(dir);
+        writer.setCommitListener(new CaptureLogWriter.CommitListener() {
+            @Override
+            public void committed(File segment, long offset, int length, Object attachment) {
+                committed.add(attachment);
+            }
+
+            @Override
+            public void failed(Object attachment) {
+                failed.add(attachment);
+            }
+        });
+        // Nowhere to put the segment
+        Assert.assertTrue(dir.delete());
+        writer.append(newPdu(1, 1, 10), 1, 1, "one", "one");
+        writer.close();
+
+        Assert.assertEquals(1, writer.getFailureCount());
+        Assert.assertTrue(committed.isEmpty());
+        Assert.assertEquals(Collections.singletonList("one"), failed);
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        File dir = folder.getRoot();
+        try (CaptureLogWriter writer = new CaptureLogWriter(dir)) {
+            for (int i = 0; i < 3; i++) {
+                writer.append(newPdu(1, i, 50), i, i, "v" + i);
+            }
+        }
+        File segment = CaptureLog.getSegments(dir).get(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // Lose the end of the last record
+            file.setLength(file.length() - 10);
+        }
+        Assert.assertEquals(2, scan(dir).size());
+
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // Corrupt the payload of the second record
+            file.seek(file.length() - 100);
+            file.write(0xff ^ file.readByte());
+        }
+        Assert.assertEquals(1, scan(dir).size());
+    }
+
+    @Test
+    public void testVersion1() throws Exception {
+        // A version 1 segment, without the record kind and layout hash
+        byte[] name = "old".getBytes(StandardCharsets.UTF_8);
+        byte[] payload = newPdu(0, 1, 20).getPayload();
+        ByteBuffer body = ByteBuffer.allocate(2 + 2 + 8 + 8 + 2 + name.length + payload.length);
+        body.putShort((short) Pdu.Type.WarHomeData.id()).putShort((short) 3).putLong(100).putLong(200);
+        body.putShort((short) name.length).put(name).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+        File segment = new File(folder.getRoot(), CaptureLog.segmentName(1));
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(segment))) {
+            out.writeInt(CaptureLog.MAGIC);
+            out.writeInt(1);
+            out.writeInt(body.capacity());
+            out.writeInt((int) crc.getValue());
+            out.write(body.array());
+        }
+
+        List<CaptureRecord> records = scan(folder.getRoot());
+        Assert.assertEquals(1, records.size());
+        CaptureRecord record = records.get(0);
+        Assert.assertEquals(CaptureRecord.Kind.PDU, record.getKind());
+        Assert.assertEquals(Pdu.Type.WarHomeData, record.getType());
+        Assert.assertEquals("old", record.getName());
+        Assert.assertArrayEquals(payload, record.getPdu().getPayload());
+        record = CaptureLog.read(segment, record.getOffset(), record.getLength());
+        Assert.assertEquals(200, record.getUserId());
+    }
+
+    private static List<CaptureRecord> scan(File dir) throws IOException {
+        List<CaptureRecord> records = new ArrayList<>();
+        CaptureLog.scan(dir, records::add);
+        return records;
+    }
+
+    private static Pdu newPdu(int id, int seed, int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (seed + i);
+        }
+        return new Pdu(id, payload);
+    }
+}
@@ -0,0 +1,92 @@
+package sir.barchable.clash.protocol;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import sir.barchable.clash.VillageGenerator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode and encode with the interpreter ({@link MessageReader}, {@link MessageWriter}) and with the compiled codecs.
+ * Home data messages carry a generated village of realistic size, so the zip string is included in the cost. Other
+ * messages are randomly generated.
+ * <p>
+ * Run {@link #main(String[])} from the test classpath.
+ *
+ * @author Sir Barchable
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"OwnHomeData", "EnemyHomeData", "WarHomeData", "EndClientTurn"})
+    private String messageType;
+
+    private MessageReader reader;
+    private MessageWriter writer;
+    private TypeFactory.Type type;
+    private Codec codec;
+    private Map<String, Object> fields;
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws IOException {
+        TypeFactory typeFactory = new TypeFactory();
+        reader = new MessageReader(typeFactory);
+        writer = new MessageWriter(typeFactory);
+        CodecFactory codecFactory = new CodecFactory(typeFactory);
+
+        Pdu.Type pduType = Pdu.Type.valueOf(messageType);
+        Message message;
+        if (pduType == Pdu.Type.EndClientTurn) {
+            message = new MessageGenerator(typeFactory, 1).setMaxArrayLength(20).newMessage(pduType);
+        } else {
+            message = new VillageGenerator(typeFactory, 1).newHomeMessage(pduType);
+        }
+        type = typeFactory.resolveType(message.getTypeName());
+        codec = codecFactory.getCodec(type);
+        fields = message.getFields();
+        payload = encodeCompiled();
+    }
+
+    @Benchmark
+    public Object decodeInterpreted() throws IOException {
+        return reader.readValue(type, new MessageInputStream(new ByteArrayInputStream(payload)));
+    }
+
+    @Benchmark
+    public Object decodeCompiled() throws IOException {
+        return codec.read(new MessageInputStream(new ByteArrayInputStream(payload)));
+    }
+
+    @Benchmark
+    public byte[] encodeInterpreted() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        MessageOutputStream out = new MessageOutputStream(sink);
+        writer.write(type, fields, out);
+        out.flush();
+        return sink.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encodeCompiled() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        MessageOutputStream out = new MessageOutputStream(sink);
+        codec.write(fields, out);
+        out.flush();
+        return sink.toByteArray();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
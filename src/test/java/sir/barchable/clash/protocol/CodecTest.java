@@ -0,0 +1,121 @@
+package sir.barchable.clash.protocol;
+
+import org.junit.Assert;
+import org.junit.Test;
+import sir.barchable.clash.protocol.Protocol.StructDefinition;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compiled codecs have to be byte for byte interchangeable with the interpreter.
+ *
+ * @author Sir Barchable
+ */
+public class CodecTest {
+    private TypeFactory typeFactory = new TypeFactory();
+    private MessageReader reader = new MessageReader(typeFactory);
+    private MessageWriter writer = new MessageWriter(typeFactory);
+    private CodecFactory codecFactory = new CodecFactory(typeFactory);
+
+    @Test
+    public void testMatchesInterpreter() throws IOException {
+        MessageGenerator generator = new MessageGenerator(typeFactory, 1);
+        for (StructDefinition definition : typeFactory.getStructDefinitions()) {
+            TypeFactory.Type type = typeFactory.resolveType(definition.getName());
+            Codec codec = codecFactory.getCodec(type);
+            for (int i = 0; i < 20; i++) {
+                Map<String, Object> fields = generator.newStruct(definition);
+
+                byte[] interpreted = write(out -> writer.write(type, fields, out));
+                byte[] compiled = write(out -> codec.write(fields, out));
+                Assert.assertArrayEquals(definition.getName(), interpreted, compiled);
+
+                Object interpretedValue = reader.readValue(type, in(interpreted));
+                Object compiledValue = codec.read(in(compiled));
+                Assert.assertEquals(definition.getName(), normalize(interpretedValue), normalize(compiledValue));
+            }
+        }
+    }
+
+    @Test
+    public void testMissingFields() throws IOException {
+        // Empty structs are written with defaults, or fail in the same way
+        for (StructDefinition definition : typeFactory.getStructDefinitions()) {
+            TypeFactory.Type type = typeFactory.resolveType(definition.getName());
+            Map<String, Object> empty = new LinkedHashMap<>();
+            Object interpreted = writeOrFail(out -> writer.write(type, empty, out));
+            Object compiled = writeOrFail(out -> codecFactory.getCodec(type).write(empty, out));
+            if (interpreted instanceof byte[]) {
+                Assert.assertArrayEquals(definition.getName(), (byte[]) interpreted, (byte[]) compiled);
+            } else {
+                Assert.assertEquals(definition.getName(), interpreted, compiled);
+            }
+        }
+    }
+
+    /**
+     * The bytes written, or the failure message.
+     */
+    private static Object writeOrFail(Write write) {
+        try {
+            return write(write);
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+    }
+
+    @Test
+    public void testMessageFactory() {
+        MessageFactory messageFactory = new MessageFactory(typeFactory);
+        Message message = new MessageGenerator(typeFactory, 2).newMessage(Pdu.Type.EndClientTurn);
+        Pdu pdu = messageFactory.toPdu(message);
+        Assert.assertEquals(Pdu.Type.EndClientTurn, pdu.getType());
+        Assert.assertEquals(normalize(message.getFields()), normalize(messageFactory.fromPdu(pdu).getFields()));
+        Assert.assertEquals(normalize(message.getFields()), normalize(reader.readMessage(pdu)));
+    }
+
+    private interface Write {
+        void write(MessageOutputStream out) throws IOException;
+    }
+
+    private static byte[] write(Write write) throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        MessageOutputStream out = new MessageOutputStream(sink);
+        write.write(out);
+        out.flush();
+        return sink.toByteArray();
+    }
+
+    private static MessageInputStream in(byte[] bytes) {
+        return new MessageInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Arrays to lists, so values can be compared with equals().
+     */
+    private static Object normalize(Object o) {
+        if (o instanceof Map) {
+            Map<Object, Object> map = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet()) {
+                map.put(entry.getKey(), normalize(entry.getValue()));
+            }
+            // Order matters too
+            return new ArrayList<>(map.entrySet());
+        } else if (o != null && o.getClass().isArray()) {
+            List<Object> list = new ArrayList<>();
+            for (int i = 0; i < Array.getLength(o); i++) {
+                list.add(normalize(Array.get(o, i)));
+            }
+            return list;
+        } else {
+            return o;
+        }
+    }
+}
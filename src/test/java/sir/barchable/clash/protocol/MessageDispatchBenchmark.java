@@ -0,0 +1,95 @@
+package sir.barchable.clash.protocol;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import sir.barchable.util.Json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per message dispatch cost: mapping a PDU id to its type and struct definition, and a full decode/encode of a small
+ * message. The linear scans are what the id lookups used to cost, for comparison.
+ * <p>
+ * Run {@link #main(String[])} from the test classpath.
+ *
+ * @author Sir Barchable
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDispatchBenchmark {
+    private TypeFactory typeFactory;
+    private MessageFactory messageFactory;
+    private Protocol protocol;
+    private Message message;
+    private Pdu pdu;
+    private int id;
+
+    @Setup
+    public void setUp() throws IOException {
+        try (InputStream in = Protocol.class.getResourceAsStream("Protocol.json")) {
+            protocol = Json.read(in, Protocol.class);
+        }
+        typeFactory = new TypeFactory(protocol);
+        messageFactory = new MessageFactory(typeFactory);
+
+        message = messageFactory.newMessage(Pdu.Type.EndClientTurn);
+        message.set("tick", 1234);
+        message.set("checksum", 5678);
+        pdu = messageFactory.toPdu(message);
+        // One of the later ids, to be fair to the scans
+        id = Pdu.Type.EndClientTurn.id();
+    }
+
+    @Benchmark
+    public Pdu.Type pduTypeLinear() {
+        for (Pdu.Type e : Pdu.Type.values()) {
+            if (e.id() == id) {
+                return e;
+            }
+        }
+        return Pdu.Type.Unknown;
+    }
+
+    @Benchmark
+    public Pdu.Type pduType() {
+        return Pdu.Type.valueOf(id);
+    }
+
+    @Benchmark
+    public Optional<String> structNameLinear() {
+        for (Protocol.StructDefinition definition : protocol.getMessages()) {
+            if (definition.getId() != null && definition.getId() == id) {
+                return Optional.ofNullable(definition.getName());
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Benchmark
+    public TypeFactory.Type structType() {
+        return typeFactory.getStructTypeForId(id);
+    }
+
+    @Benchmark
+    public Message decode() {
+        return messageFactory.fromPdu(pdu);
+    }
+
+    @Benchmark
+    public Pdu encode() {
+        return messageFactory.toPdu(message);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(MessageDispatchBenchmark.class.getSimpleName()).build()).run();
+    }
+}
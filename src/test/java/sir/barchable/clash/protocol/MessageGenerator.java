@@ -0,0 +1,162 @@
+package sir.barchable.clash.protocol;
+
+import sir.barchable.clash.protocol.Protocol.StructDefinition;
+import sir.barchable.clash.protocol.Protocol.StructDefinition.Extension;
+import sir.barchable.clash.protocol.Protocol.StructDefinition.FieldDefinition;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generate random field values for protocol structs, for tests and benchmarks that need messages of every shape
+ * without captured traffic.
+ *
+ * @author Sir Barchable
+ */
+public class MessageGenerator {
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789 {}\":,";
+
+    private final TypeFactory typeFactory;
+    private final Random random;
+
+    /**
+     * Maximum length of dynamically sized arrays.
+     */
+    private int maxArrayLength = 4;
+
+    /**
+     * Maximum length of strings.
+     */
+    private int maxStringLength = 20;
+
+    public MessageGenerator(TypeFactory typeFactory, long seed) {
+        this.typeFactory = typeFactory;
+        this.random = new Random(seed);
+    }
+
+    public MessageGenerator setMaxArrayLength(int maxArrayLength) {
+        this.maxArrayLength = maxArrayLength;
+        return this;
+    }
+
+    public MessageGenerator setMaxStringLength(int maxStringLength) {
+        this.maxStringLength = maxStringLength;
+        return this;
+    }
+
+    /**
+     * A random message of the given type.
+     */
+    public Message newMessage(Pdu.Type type) {
+        StructDefinition definition = typeFactory.getStructDefinitionForId(type.id());
+        return new Message(typeFactory, definition.getName(), newStruct(definition));
+    }
+
+    /**
+     * Random fields for a struct. If the struct has extensions one is chosen at random.
+     */
+    public Map<String, Object> newStruct(StructDefinition definition) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        int fieldIndex = putFields(fields, definition.getFields(), 0);
+        List<Extension> extensions = definition.getExtensions();
+        if (extensions != null && !extensions.isEmpty()) {
+            Extension extension = extensions.get(random.nextInt(extensions.size()));
+            fields.put(TypeFactory.ID_FIELD, extension.getId());
+            putFields(fields, extension.getFields(), fieldIndex);
+        }
+        return fields;
+    }
+
+    private int putFields(Map<String, Object> fields, List<FieldDefinition> definitions, int fieldIndex) {
+        for (FieldDefinition definition : definitions) {
+            fieldIndex++;
+            String name = definition.getName();
+            fields.put(
+                name != null ? name : TypeFactory.ANONYMOUS_FIELD_PREFIX + fieldIndex,
+                newValue(typeFactory.resolveType(definition.getType()))
+            );
+        }
+        return fieldIndex;
+    }
+
+    public Object newValue(TypeFactory.Type type) {
+        if (type.isOptional() && random.nextBoolean()) {
+            return null;
+        }
+        if (type.isArray()) {
+            int length = type.getLength() > 0 ? type.getLength() : random.nextInt(maxArrayLength + 1);
+            if (type.isPrimitive()) {
+                switch (type.getPrimitiveType()) {
+                    case BYTE:
+                        byte[] bytes = new byte[length];
+                        random.nextBytes(bytes);
+                        return bytes;
+
+                    case INT:
+                        int[] ints = new int[length];
+                        for (int i = 0; i < length; i++) {
+                            ints[i] = random.nextInt();
+                        }
+                        return ints;
+
+                    case LONG:
+                        long[] longs = new long[length];
+                        for (int i = 0; i < length; i++) {
+                            longs[i] = random.nextLong();
+                        }
+                        return longs;
+
+                    case STRING:
+                        String[] strings = new String[length];
+                        for (int i = 0; i < length; i++) {
+                            strings[i] = newString();
+                        }
+                        return strings;
+
+                    default:
+                        throw new IllegalArgumentException("Can't generate arrays of " + type.getPrimitiveType());
+                }
+            } else {
+                Object[] structs = new Object[length];
+                for (int i = 0; i < length; i++) {
+                    structs[i] = newStruct(type.getStructDefinition());
+                }
+                return structs;
+            }
+        }
+        if (type.isPrimitive()) {
+            switch (type.getPrimitiveType()) {
+                case BOOLEAN:
+                    return random.nextBoolean();
+
+                case BYTE:
+                    return (byte) random.nextInt();
+
+                case INT:
+                    return random.nextInt();
+
+                case LONG:
+                    return random.nextLong();
+
+                case STRING:
+                case ZIP_STRING:
+                    return newString();
+
+                default:
+                    throw new IllegalArgumentException("Can't generate " + type.getPrimitiveType());
+            }
+        }
+        return newStruct(type.getStructDefinition());
+    }
+
+    private String newString() {
+        int length = random.nextInt(maxStringLength + 1);
+        StringBuilder s = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            s.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return s.toString();
+    }
+}
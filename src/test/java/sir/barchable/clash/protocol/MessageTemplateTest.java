@@ -0,0 +1,83 @@
+package sir.barchable.clash.protocol;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Sir Barchable
+ */
+public class MessageTemplateTest {
+    private TypeFactory typeFactory = new TypeFactory();
+    private MessageFactory messageFactory = new MessageFactory(typeFactory);
+    private MessageGenerator generator = new MessageGenerator(typeFactory, 1);
+
+    @Test
+    public void testPatch() {
+        for (Pdu.Type type : new Pdu.Type[] {Pdu.Type.OwnHomeData, Pdu.Type.EnemyHomeData}) {
+            for (int i = 0; i < 10; i++) {
+                Message message = generator.newMessage(type);
+                MessageTemplate template = messageFactory.toTemplate(message, "timeStamp", "age", "homeId");
+                Assert.assertArrayEquals(messageFactory.toPdu(message).getPayload(), template.toPdu().getPayload());
+
+                Map<String, Object> values = new HashMap<>();
+                values.put("timeStamp", 1431000000 + i);
+                values.put("age", -i);
+                values.put("homeId", 0x0102030405060708L * i);
+                Pdu patched = template.toPdu(values);
+                message.getFields().putAll(values);
+                Assert.assertEquals(type.id(), patched.getId());
+                Assert.assertArrayEquals(messageFactory.toPdu(message).getPayload(), patched.getPayload());
+            }
+        }
+    }
+
+    @Test
+    public void testSplice() {
+        for (int i = 0; i < 10; i++) {
+            Message message = generator.newMessage(Pdu.Type.EnemyHomeData);
+            MessageTemplate template = messageFactory.toTemplate(message, "timeStamp", "attacker", "attackerResources");
+            Message attacker = generator.newMessage(Pdu.Type.EnemyHomeData);
+
+            Map<String, Object> values = new HashMap<>();
+            values.put("timeStamp", 1431000000 + i);
+            values.put("attacker", attacker.getFields("user"));
+            values.put("attackerResources", attacker.getFields("resources"));
+            Pdu patched = template.toPdu(values);
+            message.getFields().putAll(values);
+            Assert.assertArrayEquals(messageFactory.toPdu(message).getPayload(), patched.getPayload());
+        }
+    }
+
+    @Test
+    public void testFromPdu() {
+        for (int i = 0; i < 10; i++) {
+            Message message = generator.newMessage(Pdu.Type.EnemyHomeData);
+            Pdu pdu = messageFactory.toPdu(message);
+            MessageTemplate template = messageFactory.toTemplate(pdu, "timeStamp", "attacker", "homeId");
+            Assert.assertArrayEquals(pdu.getPayload(), template.toPdu().getPayload());
+
+            Map<String, Object> values = new HashMap<>();
+            values.put("timeStamp", 1431000000 + i);
+            values.put("homeId", (long) i);
+            values.put("attacker", generator.newMessage(Pdu.Type.EnemyHomeData).getFields("user"));
+            Pdu patched = template.toPdu(values);
+            message.getFields().putAll(values);
+            Assert.assertArrayEquals(messageFactory.toPdu(message).getPayload(), patched.getPayload());
+        }
+    }
+
+    @Test(expected = TypeException.class)
+    public void testVariableWidthField() {
+        messageFactory.toTemplate(generator.newMessage(Pdu.Type.EnemyHomeData), "homeVillage");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongWidth() {
+        MessageTemplate template = messageFactory.toTemplate(generator.newMessage(Pdu.Type.EnemyHomeData), "homeId");
+        template.toPdu(Collections.singletonMap("homeId", 1));
+    }
+}
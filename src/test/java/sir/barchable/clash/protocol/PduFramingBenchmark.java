@@ -0,0 +1,87 @@
+package sir.barchable.clash.protocol;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Framing cost per PDU, header and stream cipher included, through the blocking streams and the non-blocking framer.
+ * The ciphers live as long as the benchmark, as they would for a connection, so key setup isn't counted.
+ * <p>
+ * Run {@link #main(String[])} from the test classpath.
+ *
+ * @author Sir Barchable
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PduFramingBenchmark {
+    /**
+     * A keep-alive, a typical command message, and a home village.
+     */
+    @Param({"0", "200", "20000"})
+    private int payloadLength;
+
+    private Pdu pdu;
+    private byte[] frame;
+    private ByteBuffer frameBuffer;
+
+    private ByteArrayOutputStream sink;
+    private PduOutputStream out;
+    private Clash7Crypt inCipher;
+    private PduFramer readFramer;
+    private PduFramer writeFramer;
+
+    @Setup
+    public void setUp() throws IOException {
+        byte[] payload = new byte[payloadLength];
+        new Random(1).nextBytes(payload);
+        pdu = new Pdu(Pdu.Type.EndClientTurn.id(), payload);
+        frame = new PduFramer().write(pdu).array();
+        frameBuffer = ByteBuffer.wrap(frame);
+
+        sink = new ByteArrayOutputStream(frame.length);
+        out = new PduOutputStream(sink);
+        inCipher = new Clash7Crypt();
+        readFramer = new PduFramer();
+        writeFramer = new PduFramer();
+    }
+
+    @Benchmark
+    public int writeStream() throws IOException {
+        sink.reset();
+        out.write(pdu);
+        return sink.size();
+    }
+
+    @Benchmark
+    public Pdu readStream() throws IOException {
+        return new PduInputStream(new ByteArrayInputStream(frame), inCipher).read();
+    }
+
+    @Benchmark
+    public ByteBuffer writeFramer() {
+        return writeFramer.write(pdu);
+    }
+
+    @Benchmark
+    public Pdu readFramer() {
+        frameBuffer.rewind();
+        return readFramer.read(frameBuffer);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(PduFramingBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,177 @@
+package sir.barchable.clash.protocol;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.Random;
+
+/**
+ * Round trip PDUs through the streams and the framer.
+ *
+ * @author Sir Barchable
+ */
+public class PduStreamTest {
+    private static final int[] LENGTHS = {0, 1, 100, 8 * 1024, 70000, 10};
+
+    private Pdu[] pdus() {
+        Random random = new Random(1);
+        Pdu[] pdus = new Pdu[LENGTHS.length];
+        for (int i = 0; i < pdus.length; i++) {
+            byte[] payload = new byte[LENGTHS[i]];
+            random.nextBytes(payload);
+            pdus[i] = new Pdu(Pdu.Type.OwnHomeData.id() + i, payload);
+            pdus[i].setVersion(i);
+        }
+        return pdus;
+    }
+
+    private byte[] write(Pdu[] pdus) throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        PduOutputStream out = new PduOutputStream(sink);
+        for (Pdu pdu : pdus) {
+            out.write(pdu);
+        }
+        return sink.toByteArray();
+    }
+
+    private void assertPduEquals(Pdu expected, Pdu actual) {
+        Assert.assertEquals(expected.getId(), actual.getId());
+        Assert.assertEquals(expected.getVersion(), actual.getVersion());
+        Assert.assertArrayEquals(expected.getPayload(), actual.getPayload());
+    }
+
+    @Test
+    public void testStreamRoundTrip() throws IOException {
+        Pdu[] pdus = pdus();
+        // Trickle the input through a few bytes at a time to exercise the read window
+        InputStream trickle = new FilterInputStream(new ByteArrayInputStream(write(pdus))) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+        PduInputStream in = new PduInputStream(trickle);
+        for (Pdu pdu : pdus) {
+            assertPduEquals(pdu, in.read());
+        }
+        try {
+            in.read();
+            Assert.fail("Expected EOF");
+        } catch (EOFException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFramerRoundTrip() throws IOException {
+        Pdu[] pdus = pdus();
+        ByteBuffer buffer = ByteBuffer.wrap(write(pdus));
+
+        PduFramer framer = new PduFramer();
+        for (Pdu pdu : pdus) {
+            assertPduEquals(pdu, framer.read(buffer));
+        }
+        Assert.assertNull(framer.read(buffer));
+
+        // And back again
+        PduFramer sinkFramer = new PduFramer();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (Pdu pdu : pdus) {
+            ByteBuffer out = sinkFramer.write(pdu);
+            bytes.write(out.array(), out.position(), out.remaining());
+        }
+        Assert.assertArrayEquals(write(pdus), bytes.toByteArray());
+    }
+
+    @Test
+    public void testPartialFrame() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] {0, 1, 0, 0, 5, 0});
+        Assert.assertEquals(-1, PduFramer.frameLength(buffer));
+        Assert.assertNull(new PduFramer().read(buffer));
+        Assert.assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void testPayloadBufferIsReadOnly() {
+        Pdu pdu = new Pdu(1, new byte[] {1, 2, 3});
+        ByteBuffer payload = pdu.getPayloadBuffer();
+        Assert.assertTrue(payload.isReadOnly());
+        Assert.assertEquals(3, payload.remaining());
+        payload.get();
+        // Views are independent
+        Assert.assertEquals(3, pdu.getPayloadBuffer().remaining());
+    }
+
+    @Test
+    public void testBufferedWrites() throws IOException {
+        Pdu[] pdus = pdus();
+        int[] writes = new int[1];
+        ByteArrayOutputStream sink = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                writes[0]++;
+                super.write(b, off, len);
+            }
+        };
+        PduOutputStream out = new PduOutputStream(sink);
+        out.setFlushPolicy(PduOutputStream.FlushPolicy.BUFFERED);
+        out.setFlushSize(Integer.MAX_VALUE);
+        out.setFlushDelay(1, TimeUnit.DAYS);
+
+        // Small PDUs wait for a flush
+        out.write(pdus[1]);
+        out.write(pdus[2]);
+        Assert.assertEquals(0, sink.size());
+        out.flush();
+        Assert.assertEquals(1, writes[0]);
+
+        // And the output is the same as unbuffered
+        for (Pdu pdu : pdus) {
+            out.write(pdu);
+        }
+        out.flush();
+        Pdu[] all = new Pdu[pdus.length + 2];
+        all[0] = pdus[1];
+        all[1] = pdus[2];
+        System.arraycopy(pdus, 0, all, 2, pdus.length);
+        Assert.assertArrayEquals(write(all), sink.toByteArray());
+    }
+
+    @Test
+    public void testChannelWrites() throws IOException {
+        Pdu[] pdus = pdus();
+        Path file = Files.createTempFile("pdus", ".pdu");
+        try {
+            try (PduOutputStream out = new PduOutputStream(FileChannel.open(file, StandardOpenOption.WRITE))) {
+                for (Pdu pdu : pdus) {
+                    out.write(pdu);
+                }
+            }
+            Assert.assertArrayEquals(write(pdus), Files.readAllBytes(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testPduAvailable() throws IOException {
+        byte[] bytes = write(pdus());
+        // The first PDU is empty, the second holds one byte
+        PduInputStream in = new PduInputStream(new ByteArrayInputStream(bytes, 0, 7 + 7 + 1 - 1));
+        Assert.assertTrue(in.isPduAvailable());
+        in.read();
+        Assert.assertFalse(in.isPduAvailable());
+    }
+}
@@ -18,4 +18,25 @@ public class TypeParserTest {
         Assert.assertFalse(type.isArray());
         Assert.assertEquals(0, type.getLength());
     }
+
+    @Test
+    public void testStructForId() {
+        TypeFactory.Type type = typeParser.getStructTypeForId(Pdu.Type.EndClientTurn.id());
+        Assert.assertEquals("EndClientTurn", type.getName());
+        Assert.assertEquals("EndClientTurn", typeParser.getStructNameForId(Pdu.Type.EndClientTurn.id()).get());
+        Assert.assertSame(type.getStructDefinition(), typeParser.getStructDefinitionForId(Pdu.Type.EndClientTurn.id()));
+        Assert.assertFalse(typeParser.getStructNameForId(1).isPresent());
+        Assert.assertNull(typeParser.getStructTypeForId(Integer.MAX_VALUE));
+        // Field types are resolved up front
+        Assert.assertSame(typeParser.resolveType("CommandComponent[]"), type.getFieldTypes()[2]);
+    }
+
+    @Test
+    public void testPduTypeForId() {
+        for (Pdu.Type type : Pdu.Type.values()) {
+            Assert.assertSame(type, Pdu.Type.valueOf(type.id()));
+        }
+        Assert.assertSame(Pdu.Type.Unknown, Pdu.Type.valueOf(1));
+        Assert.assertSame(Pdu.Type.Unknown, Pdu.Type.valueOf(Integer.MAX_VALUE));
+    }
 }
@@ -0,0 +1,61 @@
+package sir.barchable.clash.protocol;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import sir.barchable.clash.VillageGenerator;
+import sir.barchable.util.Json;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inflate and deflate of the zip strings that carry village JSON.
+ * <p>
+ * Run {@link #main(String[])} from the test classpath.
+ *
+ * @author Sir Barchable
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZipStringBenchmark {
+    /**
+     * Walls in the village. The default village has 250.
+     */
+    @Param({"0", "250"})
+    private int wallCount;
+
+    private String json;
+    private byte[] zipped;
+
+    @Setup
+    public void setUp() throws IOException {
+        json = Json.toString(new VillageGenerator(new TypeFactory(), 1).setWallCount(wallCount).newVillage());
+        zipped = deflate();
+    }
+
+    @Benchmark
+    public String inflate() throws IOException {
+        return new MessageInputStream(new ByteArrayInputStream(zipped)).readZipString();
+    }
+
+    @Benchmark
+    public byte[] deflate() throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        MessageOutputStream out = new MessageOutputStream(sink);
+        out.writeZipString(json);
+        out.flush();
+        return sink.toByteArray();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ZipStringBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,106 @@
+package sir.barchable.clash.proxy;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import sir.barchable.clash.protocol.MessageFactory;
+import sir.barchable.clash.protocol.Pdu;
+import sir.barchable.clash.protocol.TypeFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static sir.barchable.clash.proxy.AsyncPduFilter.OverflowPolicy.*;
+
+/**
+ * @author Sir Barchable
+ */
+public class AsyncPduFilterTest {
+    private MessageFactory messageFactory = new MessageFactory(new TypeFactory());
+    private ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown() {
+        ProxySession.setSession(null);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testOrderAndSession() throws Exception {
+        ProxySession session = new ProxySession(messageFactory);
+        List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+        List<ProxySession> sessions = Collections.synchronizedList(new ArrayList<>());
+        AsyncPduFilter filter = new AsyncPduFilter(pdu -> {
+            seen.add(pdu.getId());
+            sessions.add(ProxySession.getSession());
+            return null;
+        }, executor, 1000, BLOCK);
+
+        ProxySession.setSession(session);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            Pdu pdu = new Pdu(i, new byte[0]);
+            // Forwarded untouched, even though the delegate drops everything
+            Assert.assertSame(pdu, filter.filter(pdu));
+            expected.add(i);
+        }
+
+        Assert.assertTrue(filter.awaitIdle(session, 5, TimeUnit.SECONDS));
+        Assert.assertEquals(expected, seen);
+        Assert.assertEquals(Collections.nCopies(500, session), sessions);
+        Assert.assertEquals(0, filter.getDropped());
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        Assert.assertEquals(Collections.singletonList(0), overflow(DROP_NEWEST));
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        Assert.assertEquals(Collections.singletonList(4), overflow(DROP_OLDEST));
+    }
+
+    /**
+     * Queue five PDUs behind a stuck delegate, with room for one.
+     *
+     * @return the ids the delegate saw after it was released, excluding the one it was stuck on
+     */
+    private List<Integer> overflow(AsyncPduFilter.OverflowPolicy policy) throws Exception {
+        ProxySession session = new ProxySession(messageFactory);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> seen = Collections.synchronizedList(new ArrayList<>());
+        AsyncPduFilter filter = new AsyncPduFilter(pdu -> {
+            if (pdu.getId() == -1) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            } else {
+                seen.add(pdu.getId());
+            }
+            return pdu;
+        }, executor, 1, policy);
+
+        ProxySession.setSession(session);
+        filter.filter(new Pdu(-1, new byte[0]));
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 5; i++) {
+            filter.filter(new Pdu(i, new byte[0]));
+        }
+        Assert.assertEquals(4, filter.getDropped());
+
+        release.countDown();
+        Assert.assertTrue(filter.awaitIdle(session, 5, TimeUnit.SECONDS));
+        return seen;
+    }
+}
@@ -0,0 +1,150 @@
+package sir.barchable.clash.proxy;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sir.barchable.clash.VillageGenerator;
+import sir.barchable.clash.model.VillageIndex;
+import sir.barchable.clash.model.json.Village;
+import sir.barchable.clash.model.json.VillageParser;
+import sir.barchable.clash.protocol.CaptureLog;
+import sir.barchable.clash.protocol.CaptureRecord;
+import sir.barchable.clash.protocol.CaptureRecord.Kind;
+import sir.barchable.clash.protocol.Message;
+import sir.barchable.clash.protocol.MessageFactory;
+import sir.barchable.clash.protocol.Pdu;
+import sir.barchable.clash.protocol.TypeFactory;
+import sir.barchable.util.Json;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Sir Barchable
+ */
+public class MessageSaverTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TypeFactory typeFactory = new TypeFactory();
+    private MessageFactory messageFactory = new MessageFactory(typeFactory);
+    private VillageGenerator villageGenerator = new VillageGenerator(typeFactory, 1);
+
+    @Test
+    public void testSave() throws Exception {
+        Message enemy = villageGenerator.newHomeMessage(Pdu.Type.EnemyHomeData);
+        enemy.getMessage("user").set("userId", 1234L);
+        Message war = villageGenerator.newHomeMessage(Pdu.Type.WarHomeData);
+        VillageParser.Summary warVillage = VillageParser.parse(war.getString("homeVillage"), building -> { });
+
+        try (MessageSaver saver = new MessageSaver(messageFactory, folder.getRoot())) {
+            saver.filter(messageFactory.toPdu(enemy));
+            saver.filter(messageFactory.toPdu(war));
+            // Not a village
+            saver.filter(new Pdu(Pdu.Type.KeepAlive.id(), new byte[0]));
+        }
+
+        // A layout and a sighting for each village
+        List<CaptureRecord> records = new ArrayList<>();
+        CaptureLog.scan(folder.getRoot(), records::add);
+        Assert.assertEquals(4, records.size());
+        Assert.assertEquals(Kind.LAYOUT, records.get(0).getKind());
+        Assert.assertEquals(Kind.SIGHTING, records.get(1).getKind());
+        Assert.assertEquals(records.get(0).getLayout(), records.get(1).getLayout());
+
+        CaptureRecord record = records.get(1);
+        Assert.assertEquals(Pdu.Type.EnemyHomeData, record.getType());
+        Assert.assertEquals(1234L, record.getUserId());
+        Assert.assertEquals(enemy.getMessage("user").getString("userName"), record.getName());
+
+        record = records.get(3);
+        Assert.assertEquals(Pdu.Type.WarHomeData, record.getType());
+        Assert.assertEquals(warVillage.name, record.getName());
+        long userId = (long) warVillage.avatarIdHigh << 32 | warVillage.avatarIdLow & 0xffffffffL;
+        Assert.assertEquals(userId, record.getUserId());
+
+        // Put back together
+        try (VillageIndex index = VillageIndex.open(folder.getRoot(), messageFactory)) {
+            Assert.assertEquals(2, index.size());
+            assertSamePayload(enemy, index.load(index.get(0)));
+            assertSamePayload(war, index.load(index.get(1)));
+        }
+    }
+
+    @Test
+    public void testDeduplicate() throws Exception {
+        Village village = villageGenerator.newVillage();
+        Message enemy = villageGenerator.newHomeMessage(Pdu.Type.EnemyHomeData);
+        enemy.getMessage("user").set("userId", 1234L);
+        enemy.set("homeVillage", Json.toString(village));
+        Message again = enemy.copy();
+        again.set("age", 4321);
+        // Same layout, with its own timers
+        Integer resTime = village.buildings[0].res_time;
+        village.buildings[0].res_time = 12345;
+        again.set("homeVillage", Json.toString(village));
+        village.buildings[0].res_time = resTime;
+        village.buildings[village.buildings.length - 1].lvl++;
+        Message upgraded = enemy.copy();
+        upgraded.set("homeVillage", Json.toString(village));
+
+        try (MessageSaver saver = new MessageSaver(messageFactory, folder.getRoot())) {
+            saver.save(messageFactory.toPdu(enemy), 1);
+            saver.save(messageFactory.toPdu(again), 2);
+            saver.save(messageFactory.toPdu(upgraded), 3);
+        }
+
+        List<Kind> kinds = new ArrayList<>();
+        CaptureLog.scan(folder.getRoot(), record -> kinds.add(record.getKind()));
+        Assert.assertEquals(5, kinds.size());
+        Assert.assertEquals(Kind.LAYOUT, kinds.get(0));
+        Assert.assertEquals(Kind.SIGHTING, kinds.get(1));
+        Assert.assertEquals(Kind.SIGHTING, kinds.get(2));
+        Assert.assertEquals(Kind.LAYOUT_DELTA, kinds.get(3));
+        Assert.assertEquals(Kind.SIGHTING, kinds.get(4));
+
+        // A new saver knows the layouts that are already in the log
+        try (MessageSaver saver = new MessageSaver(messageFactory, folder.getRoot())) {
+            saver.save(messageFactory.toPdu(upgraded), 4);
+        }
+        kinds.clear();
+        CaptureLog.scan(folder.getRoot(), record -> kinds.add(record.getKind()));
+        Assert.assertEquals(6, kinds.size());
+        Assert.assertEquals(Kind.SIGHTING, kinds.get(5));
+
+        // With the index gone, it's rebuilt from the log
+        Assert.assertTrue(new File(folder.getRoot(), VillageIndex.INDEX_NAME).delete());
+        try (VillageIndex index = VillageIndex.open(folder.getRoot(), messageFactory)) {
+            Assert.assertEquals(4, index.size());
+            Assert.assertEquals(2, index.getLayoutCount());
+            assertSamePayload(enemy, index.load(index.get(0)));
+            assertSamePayload(again, index.load(index.get(1)));
+            assertSamePayload(upgraded, index.load(index.get(2)));
+            assertSamePayload(upgraded, index.load(index.get(3)));
+            Assert.assertEquals(index.get(0).getTownHallLevel(), index.get(3).getTownHallLevel());
+        }
+    }
+
+    @Test
+    public void testCommitted() throws Exception {
+        Message enemy = villageGenerator.newHomeMessage(Pdu.Type.EnemyHomeData);
+        Message empty = villageGenerator.newHomeMessage(Pdu.Type.EnemyHomeData);
+        empty.set("homeVillage", (Object) null);
+        List<String> committed = Collections.synchronizedList(new ArrayList<>());
+
+        try (MessageSaver saver = new MessageSaver(messageFactory, folder.getRoot())) {
+            Assert.assertTrue(saver.save(messageFactory.toPdu(enemy), 1, () -> committed.add("sighting")));
+            Assert.assertTrue(saver.save(messageFactory.toPdu(empty), 2, () -> committed.add("whole")));
+            Assert.assertFalse(saver.save(new Pdu(Pdu.Type.KeepAlive.id(), new byte[0]), 3, () -> committed.add("no")));
+        }
+        Assert.assertEquals(Arrays.asList("sighting", "whole"), committed);
+    }
+
+    private void assertSamePayload(Message expected, Message actual) {
+        Assert.assertArrayEquals(messageFactory.toPdu(expected).getPayload(), messageFactory.toPdu(actual).getPayload());
+    }
+}
@@ -0,0 +1,142 @@
+package sir.barchable.clash.proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import sir.barchable.clash.protocol.DecodeContext;
+import sir.barchable.clash.protocol.Message;
+import sir.barchable.clash.protocol.MessageFactory;
+import sir.barchable.clash.protocol.Pdu;
+import sir.barchable.clash.protocol.TypeFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * @author Sir Barchable
+ */
+public class MessageTapFilterTest {
+    private MessageFactory messageFactory = new MessageFactory(new TypeFactory());
+
+    private static class RecordingTap implements MessageTap {
+        private final Set<Pdu.Type> types;
+        private final Set<String> fields;
+        private final List<Message> messages = new ArrayList<>();
+
+        RecordingTap(Set<Pdu.Type> types, Set<String> fields) {
+            this.types = types;
+            this.fields = fields;
+        }
+
+        @Override
+        public void onMessage(Message message) {
+            messages.add(message);
+        }
+
+        @Override
+        public Set<Pdu.Type> getMessageTypes() {
+            return types;
+        }
+
+        @Override
+        public Set<String> getFields() {
+            return fields;
+        }
+    }
+
+    private Pdu endClientTurn() {
+        Message message = messageFactory.newMessage(Pdu.Type.EndClientTurn);
+        message.set("tick", 1);
+        message.set("checksum", 2);
+        return messageFactory.toPdu(message);
+    }
+
+    @Test
+    public void testSkipsUnwantedTypes() throws IOException {
+        RecordingTap tap = new RecordingTap(EnumSet.of(Pdu.Type.OwnHomeData), null);
+        MessageTapFilter filter = new MessageTapFilter(messageFactory, tap);
+        Pdu pdu = endClientTurn();
+        Assert.assertSame(pdu, filter.filter(pdu));
+        Assert.assertTrue(tap.messages.isEmpty());
+    }
+
+    @Test
+    public void testDecodesPrefix() throws IOException {
+        RecordingTap tickTap = new RecordingTap(EnumSet.of(Pdu.Type.EndClientTurn), Collections.singleton("tick"));
+        new MessageTapFilter(messageFactory, tickTap).filter(endClientTurn());
+        Assert.assertEquals(1, tickTap.messages.size());
+        Message message = tickTap.messages.get(0);
+        Assert.assertEquals(Integer.valueOf(1), message.getInt("tick"));
+        Assert.assertFalse(message.getFields().containsKey("checksum"));
+
+        // Every tap gets everything any of them asked for
+        RecordingTap checksumTap = new RecordingTap(null, new HashSet<>(Arrays.asList("checksum", "nonsense")));
+        tickTap.messages.clear();
+        new MessageTapFilter(messageFactory, tickTap, checksumTap).filter(endClientTurn());
+        Assert.assertEquals(Integer.valueOf(2), tickTap.messages.get(0).getInt("checksum"));
+        Assert.assertFalse(checksumTap.messages.get(0).getFields().containsKey("commands"));
+    }
+
+    @Test
+    public void testUndeclaredTapSeesEverything() throws IOException {
+        List<Message> messages = new ArrayList<>();
+        new MessageTapFilter(messageFactory, messages::add).filter(endClientTurn());
+        Assert.assertEquals(1, messages.size());
+        Assert.assertTrue(messages.get(0).getFields().containsKey("commands"));
+    }
+
+    @Test
+    public void testSharedDecode() throws IOException {
+        RecordingTap tickTap = new RecordingTap(null, Collections.singleton("tick"));
+        RecordingTap nonsenseTap = new RecordingTap(null, new HashSet<>(Arrays.asList("tick", "nonsense")));
+        RecordingTap commandsTap = new RecordingTap(null, Collections.singleton("commands"));
+        PduFilterChain chain = new PduFilterChain(
+            new MessageTapFilter(messageFactory, tickTap),
+            new MessageTapFilter(messageFactory, nonsenseTap),
+            new MessageTapFilter(messageFactory, commandsTap)
+        );
+        Pdu pdu = endClientTurn();
+        chain.filter(pdu);
+
+        // Decoded once for the first two filters, and again for the field they didn't read
+        Assert.assertSame(tickTap.messages.get(0), nonsenseTap.messages.get(0));
+        Assert.assertNotSame(tickTap.messages.get(0), commandsTap.messages.get(0));
+        Assert.assertSame(commandsTap.messages.get(0), pdu.getDecodeContext().getMessage(messageFactory));
+
+        // Derived values are shared too, until the PDU changes
+        Message message = commandsTap.messages.get(0);
+        Assert.assertSame(message.getDecodeContext(), pdu.getDecodeContext());
+        Object value = new Object();
+        Assert.assertSame(value, DecodeContext.computeIfAbsent(message, "key", () -> value));
+        Assert.assertSame(value, DecodeContext.computeIfAbsent(message, "key", Object::new));
+        pdu.setPayload(pdu.getPayload());
+        Assert.assertNull(pdu.getDecodeContext().get("key"));
+    }
+
+    @Test
+    public void testCopy() throws IOException {
+        Pdu pdu = endClientTurn();
+        Object value = new Object();
+        pdu.getDecodeContext().put("key", value);
+        pdu.getDecodeContext().put("other", new Object());
+
+        // Only decoded in part, so the copy decodes its own
+        pdu.getDecodeContext().getMessage(messageFactory, Collections.singleton("tick"));
+        Pdu copy = pdu.copy("key");
+        Assert.assertSame(value, copy.getDecodeContext().get("key"));
+        Assert.assertNull(copy.getDecodeContext().get("other"));
+        Assert.assertTrue(copy.getDecodeContext().getMessage(messageFactory).getFields().containsKey("commands"));
+
+        // Decoded whole, so the copy gets a copy of the message
+        Message message = pdu.getDecodeContext().getMessage(messageFactory);
+        copy = pdu.copy();
+        Message copied = copy.getDecodeContext().getMessage(messageFactory, Collections.singleton("tick"));
+        Assert.assertNotSame(message, copied);
+        Assert.assertArrayEquals(pdu.getPayload(), messageFactory.toPdu(copied).getPayload());
+    }
+}
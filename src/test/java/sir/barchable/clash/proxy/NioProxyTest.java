@@ -0,0 +1,90 @@
+package sir.barchable.clash.proxy;
+
+import org.junit.Assert;
+import org.junit.Test;
+import sir.barchable.clash.protocol.*;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static sir.barchable.clash.protocol.Pdu.Type.*;
+
+/**
+ * Run a key exchange and a few messages through the non-blocking proxy.
+ *
+ * @author Sir Barchable
+ */
+public class NioProxyTest {
+    private MessageFactory messageFactory = new MessageFactory(new TypeFactory());
+
+    @Test
+    public void testKeyExchange() throws Exception {
+        List<Pdu.Type> seen = Collections.synchronizedList(new ArrayList<>());
+        PduFilter recorder = pdu -> {
+            seen.add(pdu.getType());
+            return pdu;
+        };
+
+        try (
+            NioProxy proxy = new NioProxy(messageFactory, 2, recorder);
+            ServerSocket server = new ServerSocket(0);
+            ServerSocketChannel listener = ServerSocketChannel.open()
+        ) {
+            listener.bind(new InetSocketAddress("localhost", 0));
+
+            try (Connection clientConnection = new Connection(new Socket("localhost", listener.socket().getLocalPort()))) {
+                SocketChannel accepted = listener.accept();
+                CompletableFuture<ProxySession> done = proxy.newSession(
+                    accepted, new InetSocketAddress("localhost", server.getLocalPort())
+                );
+
+                try (Connection serverConnection = new Connection(server.accept())) {
+                    // Client logs in
+                    Message login = messageFactory.newMessage(Login);
+                    login.set("clientSeed", 42);
+                    login.set("field15", new byte[5]);
+                    clientConnection.getOut().write(messageFactory.toPdu(login));
+                    Message serverLogin = messageFactory.fromPdu(serverConnection.getIn().read());
+                    Assert.assertEquals(42, (int) serverLogin.getInt("clientSeed"));
+
+                    // Server sends the nonce
+                    byte[] nonce = new byte[24];
+                    nonce[0] = 1;
+                    Message encryption = messageFactory.newMessage(Encryption);
+                    encryption.set("serverRandom", nonce);
+                    serverConnection.getOut().write(messageFactory.toPdu(encryption));
+                    Assert.assertEquals(Encryption, clientConnection.getIn().read().getType());
+
+                    // Both ends re-key
+                    byte[] key = new Clash7Random(42).scramble(nonce);
+                    clientConnection.setKey(key);
+                    serverConnection.setKey(key);
+
+                    // Traffic flows under the new key
+                    clientConnection.getOut().write(messageFactory.toPdu(messageFactory.newMessage(KeepAlive)));
+                    Assert.assertEquals(KeepAlive, serverConnection.getIn().read().getType());
+                    serverConnection.getOut().write(messageFactory.toPdu(messageFactory.newMessage(ServerKeepAlive)));
+                    Assert.assertEquals(ServerKeepAlive, clientConnection.getIn().read().getType());
+                }
+
+                // Server hangs up, so the session should end
+                ProxySession session = done.get(5, TimeUnit.SECONDS);
+                Assert.assertNotNull(session.getSessionState());
+            }
+        }
+
+        Assert.assertEquals(
+            Arrays.asList(Login, Encryption, KeepAlive, ServerKeepAlive),
+            seen
+        );
+    }
+}
@@ -0,0 +1,172 @@
+package sir.barchable.clash.proxy;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import sir.barchable.clash.protocol.Connection;
+import sir.barchable.clash.protocol.Pdu;
+import sir.barchable.clash.protocol.PduOutputStream;
+import sir.barchable.util.ThreadPools;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Push PDUs through thousands of blocking proxy sessions, each with a pipe thread per direction, and compare memory
+ * and round trip latency for platform and virtual pipe threads.
+ * <p>
+ * Skipped unless run with {@code -Dload.test=true}. The virtual thread run also needs Java 21:
+ * <pre>
+ *     mvn test -Dtest=PipeLoadTest -Dload.test=true -Dload.test.sessions=5000
+ * </pre>
+ * Each session holds four sockets, so raise the open file limit to suit.
+ *
+ * @author Sir Barchable
+ */
+public class PipeLoadTest {
+    private static final Logger log = LoggerFactory.getLogger(PipeLoadTest.class);
+
+    private int sessions = Integer.getInteger("load.test.sessions", 2000);
+    private int samples = Integer.getInteger("load.test.samples", 10000);
+
+    @Before
+    public void checkEnabled() {
+        Assume.assumeTrue(Boolean.getBoolean("load.test"));
+    }
+
+    @Test
+    public void testPlatformThreads() throws Exception {
+        run("platform", ThreadPools.newThreadFactory("Pipe", true));
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        Assume.assumeTrue(ThreadPools.hasVirtualThreads());
+        run("virtual", ThreadPools.newVirtualThreadFactory("Pipe"));
+    }
+
+    private void run(String mode, ThreadFactory pipeThreads) throws Exception {
+        System.gc();
+        long heapBefore = usedHeap();
+        long rssBefore = rss();
+        long start = System.nanoTime();
+
+        List<Session> open = new ArrayList<>();
+        try (ServerSocket listener = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress())) {
+            for (int i = 0; i < sessions; i++) {
+                open.add(new Session(listener, pipeThreads));
+            }
+            long setupMillis = (System.nanoTime() - start) / 1000000;
+
+            // Round trips from client -> server -> client through randomly chosen sessions
+            Pdu ping = new Pdu(Pdu.Type.KeepAlive.id(), new byte[64]);
+            long[] latencies = new long[samples];
+            for (int i = 0; i < samples; i++) {
+                Session session = open.get(i * 7919 % open.size());
+                long t = System.nanoTime();
+                session.client.getOut().write(ping);
+                session.server.getOut().write(session.server.getIn().read());
+                session.client.getIn().read();
+                latencies[i] = System.nanoTime() - t;
+            }
+            Arrays.sort(latencies);
+
+            System.gc();
+            log.info(
+                "{} threads: {} sessions set up in {}ms, heap +{}MB, rss +{}MB, round trip p50 {}us, p99 {}us, max {}us",
+                mode,
+                sessions,
+                setupMillis,
+                (usedHeap() - heapBefore) >> 20,
+                (rss() - rssBefore) >> 20,
+                latencies[samples / 2] / 1000,
+                latencies[samples * 99 / 100] / 1000,
+                latencies[samples - 1] / 1000
+            );
+        } finally {
+            for (Session session : open) {
+                session.close();
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Resident set size from /proc, or 0 if we're not on Linux. Platform thread stacks don't show up in the heap.
+     */
+    private static long rss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // ignore
+        }
+        return 0;
+    }
+
+    /**
+     * client &lt;-> proxy &lt;-> server, with a pipe thread for each direction through the proxy.
+     */
+    private static class Session {
+        private Connection client;
+        private Connection proxyClient;
+        private Connection proxyServer;
+        private Connection server;
+
+        Session(ServerSocket listener, ThreadFactory pipeThreads) throws IOException {
+            client = new Connection(new Socket(listener.getInetAddress(), listener.getLocalPort()));
+            proxyClient = new Connection(listener.accept());
+            proxyServer = new Connection(new Socket(listener.getInetAddress(), listener.getLocalPort()));
+            server = new Connection(listener.accept());
+
+            proxyClient.getOut().setFlushPolicy(PduOutputStream.FlushPolicy.BUFFERED);
+            proxyServer.getOut().setFlushPolicy(PduOutputStream.FlushPolicy.BUFFERED);
+
+            PduFilterChain chain = new PduFilterChain();
+            startPipe(pipeThreads, new Pipe("up", proxyClient.getIn(), proxyServer.getOut()), chain);
+            startPipe(pipeThreads, new Pipe("down", proxyServer.getIn(), proxyClient.getOut()), chain);
+        }
+
+        private static void startPipe(ThreadFactory pipeThreads, Pipe pipe, PduFilter filter) {
+            pipeThreads.newThread(() -> {
+                try {
+                    while (true) {
+                        pipe.filterThrough(filter);
+                    }
+                } catch (EOFException e) {
+                    // done
+                } catch (IOException e) {
+                    // closed
+                }
+            }).start();
+        }
+
+        void close() {
+            for (Connection connection : Arrays.asList(client, server, proxyClient, proxyServer)) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
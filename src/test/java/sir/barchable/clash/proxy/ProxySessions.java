@@ -0,0 +1,29 @@
+package sir.barchable.clash.proxy;
+
+import sir.barchable.clash.protocol.MessageFactory;
+
+/**
+ * Sessions for tests and benchmarks that drive taps directly, without connections.
+ *
+ * @author Sir Barchable
+ */
+public class ProxySessions {
+    private ProxySessions() { }
+
+    /**
+     * Create a session with no connections and bind it to the calling thread, so that
+     * {@link ProxySession#getSession()} finds it.
+     */
+    public static ProxySession bindNewSession(MessageFactory messageFactory) {
+        ProxySession session = new ProxySession(messageFactory);
+        ProxySession.setSession(session);
+        return session;
+    }
+
+    /**
+     * Clear the session binding of the calling thread.
+     */
+    public static void unbind() {
+        ProxySession.setSession(null);
+    }
+}
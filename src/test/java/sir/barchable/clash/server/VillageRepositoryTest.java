@@ -0,0 +1,124 @@
+package sir.barchable.clash.server;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import sir.barchable.clash.Import;
+import sir.barchable.clash.VillageGenerator;
+import sir.barchable.clash.protocol.Message;
+import sir.barchable.clash.protocol.MessageFactory;
+import sir.barchable.clash.protocol.Pdu;
+import sir.barchable.clash.protocol.PduOutputStream;
+import sir.barchable.clash.protocol.TypeFactory;
+import sir.barchable.clash.proxy.MessageSaver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static sir.barchable.util.NoopCipher.NOOP_CIPHER;
+
+/**
+ * @author Sir Barchable
+ */
+public class VillageRepositoryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TypeFactory typeFactory = new TypeFactory();
+    private MessageFactory messageFactory = new MessageFactory(typeFactory);
+    private VillageGenerator villageGenerator = new VillageGenerator(typeFactory, 1);
+
+    @Test
+    public void testLoadConverted() throws Exception {
+        File dir = folder.getRoot();
+        try (MessageSaver saver = new MessageSaver(messageFactory, dir)) {
+            saver.save(messageFactory.toPdu(villageGenerator.newHomeMessage(Pdu.Type.VisitedHomeData)), 1);
+        }
+
+        AtomicInteger conversions = new AtomicInteger();
+        VillageRepository.Converter converter = (village, war) -> {
+            conversions.incrementAndGet();
+            Message enemy = messageFactory.newMessage(Pdu.Type.EnemyHomeData);
+            enemy.set("homeVillage", village.getString("homeVillage") + (war ? " war" : " home"));
+            return enemy;
+        };
+
+        VillageRepository repository = new VillageRepository(messageFactory, dir, VillageRepository.DEFAULT_CACHE_SIZE);
+        Pdu home = repository.loadConverted(0, false, converter);
+        Assert.assertEquals(Pdu.Type.EnemyHomeData, home.getType());
+        Assert.assertTrue(loadConverted(repository, false, converter).endsWith(" home"));
+        Assert.assertTrue(loadConverted(repository, true, converter).endsWith(" war"));
+        Assert.assertEquals(2, conversions.get());
+
+        // A new repository picks up the conversions from disk
+        repository = new VillageRepository(messageFactory, dir, VillageRepository.DEFAULT_CACHE_SIZE);
+        Assert.assertTrue(loadConverted(repository, true, converter).endsWith(" war"));
+        Assert.assertEquals(2, conversions.get());
+        Assert.assertEquals(1, repository.size());
+    }
+
+    @Test
+    public void testRecreatedLog() throws Exception {
+        File dir = folder.getRoot();
+        Message first = villageGenerator.newHomeMessage(Pdu.Type.EnemyHomeData);
+        try (MessageSaver saver = new MessageSaver(messageFactory, dir)) {
+            saver.save(messageFactory.toPdu(first), 1);
+        }
+        VillageRepository.Converter converter = (village, war) -> village;
+        VillageRepository repository = new VillageRepository(messageFactory, dir, VillageRepository.DEFAULT_CACHE_SIZE);
+        Assert.assertEquals(first.getString("homeVillage"), loadConverted(repository, false, converter));
+
+        // Start the log again, leaving the conversions behind
+        for (File file : dir.listFiles(File::isFile)) {
+            Assert.assertTrue(file.delete());
+        }
+        Message second = villageGenerator.newHomeMessage(Pdu.Type.EnemyHomeData);
+        try (MessageSaver saver = new MessageSaver(messageFactory, dir)) {
+            saver.save(messageFactory.toPdu(second), 2);
+        }
+        repository = new VillageRepository(messageFactory, dir, VillageRepository.DEFAULT_CACHE_SIZE);
+        Assert.assertEquals(second.getString("homeVillage"), loadConverted(repository, false, converter));
+    }
+
+    @Test
+    public void testSkipOwnHome() throws Exception {
+        File dir = folder.getRoot();
+        Message own = villageGenerator.newHomeMessage(Pdu.Type.OwnHomeData);
+        Message enemy = villageGenerator.newHomeMessage(Pdu.Type.EnemyHomeData);
+        try (MessageSaver saver = new MessageSaver(messageFactory, dir)) {
+            saver.save(messageFactory.toPdu(own), 1);
+            saver.save(messageFactory.toPdu(enemy), 2);
+        }
+
+        VillageRepository repository = new VillageRepository(messageFactory, dir, VillageRepository.DEFAULT_CACHE_SIZE);
+        Assert.assertEquals(2, repository.getIndex().size());
+        Assert.assertEquals(1, repository.size());
+        Assert.assertEquals(Pdu.Type.EnemyHomeData, repository.load(0).getType());
+    }
+
+    @Test
+    public void testSkipImportedPdus() throws Exception {
+        File dir = folder.getRoot();
+        File file = new File(dir, "VisitedHomeData-1.pdu");
+        try (PduOutputStream out = new PduOutputStream(new FileOutputStream(file), NOOP_CIPHER)) {
+            out.write(messageFactory.toPdu(villageGenerator.newHomeMessage(Pdu.Type.VisitedHomeData)));
+        }
+        Assert.assertEquals(1, new VillageRepository(messageFactory, dir, VillageRepository.DEFAULT_CACHE_SIZE).size());
+
+        Import.recordImported(dir, Collections.singleton(file));
+        Assert.assertEquals(0, new VillageRepository(messageFactory, dir, VillageRepository.DEFAULT_CACHE_SIZE).size());
+    }
+
+    /**
+     * The village JSON of the first converted village.
+     */
+    private String loadConverted(
+        VillageRepository repository, boolean war, VillageRepository.Converter converter
+    ) throws IOException {
+        return messageFactory.fromPdu(repository.loadConverted(0, war, converter)).getString("homeVillage");
+    }
+}
@@ -0,0 +1,44 @@
+package sir.barchable.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * @author Sir Barchable
+ */
+public class DeltaTest {
+    @Test
+    public void testSmallEdits() {
+        byte[] base = new byte[20000];
+        new Random(1).nextBytes(base);
+        byte[] target = base.clone();
+        // Scattered edits
+        for (int i = 100; i < target.length; i += 2000) {
+            target[i]++;
+        }
+        byte[] delta = Delta.diff(base, target);
+        Assert.assertTrue("delta is " + delta.length + " bytes", delta.length < 500);
+        Assert.assertArrayEquals(target, Delta.apply(base, delta));
+    }
+
+    @Test
+    public void testInsertAndDelete() {
+        byte[] base = "{\"buildings\":[{\"data\":1000001,\"lvl\":5},{\"data\":1000010,\"lvl\":2}]}".getBytes(UTF_8);
+        byte[] target = "{\"buildings\":[{\"data\":1000001,\"lvl\":6},{\"data\":1000010}],\"x\":1}".getBytes(UTF_8);
+        Assert.assertArrayEquals(target, Delta.apply(base, Delta.diff(base, target)));
+        Assert.assertArrayEquals(base, Delta.apply(target, Delta.diff(target, base)));
+        Assert.assertArrayEquals(new byte[0], Delta.apply(base, Delta.diff(base, new byte[0])));
+        Assert.assertArrayEquals(target, Delta.apply(new byte[0], Delta.diff(new byte[0], target)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongBase() {
+        byte[] base = new byte[1000];
+        byte[] delta = Delta.diff(base, base);
+        Delta.apply(new byte[10], delta);
+    }
+}
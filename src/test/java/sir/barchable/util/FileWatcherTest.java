@@ -0,0 +1,48 @@
+package sir.barchable.util;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Sir Barchable
+ */
+public class FileWatcherTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplaceFile() throws Exception {
+        File file = folder.newFile("logic.apk");
+        File other = folder.newFile("other.txt");
+        CountDownLatch changed = new CountDownLatch(1);
+        AtomicInteger runs = new AtomicInteger();
+        try (FileWatcher ignored = new FileWatcher(file, 200, TimeUnit.MILLISECONDS, () -> {
+            runs.incrementAndGet();
+            changed.countDown();
+        })) {
+            write(other, "not watched");
+            Assert.assertFalse(changed.await(1, TimeUnit.SECONDS));
+
+            // A burst of changes runs the task once
+            for (int i = 0; i < 5; i++) {
+                write(file, "version " + i);
+            }
+            Assert.assertTrue(changed.await(10, TimeUnit.SECONDS));
+            Thread.sleep(500);
+            Assert.assertEquals(1, runs.get());
+        }
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.write(file.toPath(), content.getBytes("UTF-8"));
+    }
+}
@@ -0,0 +1,43 @@
+package sir.barchable.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Sir Barchable
+ */
+public class LruCacheTest {
+    private LruCache<String, String> cache = new LruCache<>(10, String::length);
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        // Touch a, so b is the oldest
+        Assert.assertEquals("aaaa", cache.get("a"));
+        cache.put("c", "cccc");
+
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals("aaaa", cache.get("a"));
+        Assert.assertEquals("cccc", cache.get("c"));
+        Assert.assertEquals(8, cache.getWeight());
+        Assert.assertEquals(3, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testReplace() {
+        cache.put("a", "aaaa");
+        cache.put("a", "aa");
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(2, cache.getWeight());
+    }
+
+    @Test
+    public void testTooHeavy() {
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbbbbbbbbbb");
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals("aaaa", cache.get("a"));
+    }
+}
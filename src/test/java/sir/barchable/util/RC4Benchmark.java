@@ -0,0 +1,133 @@
+package sir.barchable.util;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * RC4 throughput, comparing the original byte[] state cipher with the int[] state cipher over heap arrays, heap
+ * buffers and direct buffers.
+ * <p>
+ * Run {@link #main(String[])} from the test classpath.
+ *
+ * @author Sir Barchable
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RC4Benchmark {
+    private static final byte[] KEY = "fhsd6f86f67rt8fw78fw789we78r9789wer6renonce".getBytes(UTF_8);
+
+    @Param({"100", "10240", "1048576"})
+    private int size;
+
+    private byte[] array;
+    private ByteBuffer heapBuffer;
+    private ByteBuffer directBuffer;
+
+    private ByteStateRC4 byteStateRC4;
+    private RC4 rc4;
+
+    @Setup
+    public void setUp() {
+        array = new byte[size];
+        new Random(1).nextBytes(array);
+        heapBuffer = ByteBuffer.wrap(array.clone());
+        directBuffer = ByteBuffer.allocateDirect(size);
+        directBuffer.put(array).flip();
+
+        byteStateRC4 = new ByteStateRC4(KEY);
+        rc4 = new RC4(KEY);
+    }
+
+    @Benchmark
+    public byte[] byteStateCopy() {
+        return byteStateRC4.encrypt(array);
+    }
+
+    @Benchmark
+    public byte[] byteStateInPlace() {
+        byteStateRC4.encrypt(array, 0, array.length);
+        return array;
+    }
+
+    @Benchmark
+    public byte[] intStateCopy() {
+        return rc4.encrypt(array);
+    }
+
+    @Benchmark
+    public byte[] intStateInPlace() {
+        rc4.encrypt(array, 0, array.length);
+        return array;
+    }
+
+    @Benchmark
+    public ByteBuffer intStateHeapBuffer() {
+        heapBuffer.clear();
+        rc4.encrypt(heapBuffer);
+        return heapBuffer;
+    }
+
+    @Benchmark
+    public ByteBuffer intStateDirectBuffer() {
+        directBuffer.clear();
+        rc4.encrypt(directBuffer);
+        return directBuffer;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(RC4Benchmark.class.getSimpleName()).build()).run();
+    }
+
+    /**
+     * The original RC4, with the state in a byte[], for comparison.
+     */
+    static class ByteStateRC4 {
+        private byte[] state = new byte[256];
+        private int x, y;
+
+        ByteStateRC4(byte[] key) {
+            for (int i = 0; i < 256; ++i) {
+                state[i] = (byte) i;
+            }
+            for (int i = 0, j = 0, k = 0; i < 256; ++i) {
+                k = (key[j] + state[i] + k) & 0xff;
+                byte temp = state[i]; state[i] = state[k]; state[k] = temp;
+                j = (j + 1) % key.length;
+            }
+        }
+
+        byte[] encrypt(byte[] clearText) {
+            byte[] cipherText = new byte[clearText.length];
+            for (int i = 0; i < clearText.length; ++i) {
+                cipherText[i] = (byte) (clearText[i] ^ state[next()]);
+            }
+            return cipherText;
+        }
+
+        void encrypt(byte[] b, int off, int len) {
+            for (int i = off, end = off + len; i < end; ++i) {
+                b[i] ^= state[next()];
+            }
+        }
+
+        private int next() {
+            byte temp;
+            x = (x + 1) & 0xff;
+            y = (y + state[x]) & 0xff;
+            temp = state[x]; state[x] = state[y]; state[y] = temp;
+            return (state[x] + state[y]) & 0xff;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package sir.barchable.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Check the RC4 variants against a known answer and against each other.
+ *
+ * @author Sir Barchable
+ */
+public class RC4Test {
+    private static final byte[] KEY = "Key".getBytes(UTF_8);
+
+    @Test
+    public void testKnownAnswer() {
+        byte[] cipherText = new RC4(KEY).encrypt("Plaintext".getBytes(UTF_8));
+        Assert.assertArrayEquals(
+            new byte[] {(byte) 0xbb, (byte) 0xf3, 0x16, (byte) 0xe8, (byte) 0xd9, 0x40, (byte) 0xaf, 0x0a, (byte) 0xd3},
+            cipherText
+        );
+    }
+
+    @Test
+    public void testVariantsAgree() {
+        byte[] clearText = new byte[10000];
+        new Random(1).nextBytes(clearText);
+        byte[] expected = new RC4(KEY).encrypt(clearText);
+
+        byte[] inPlace = clearText.clone();
+        RC4 rc4 = new RC4(KEY);
+        // Odd sized chunks to check the state carries across calls
+        for (int off = 0; off < inPlace.length; off += 333) {
+            rc4.encrypt(inPlace, off, Math.min(333, inPlace.length - off));
+        }
+        Assert.assertArrayEquals(expected, inPlace);
+
+        ByteBuffer heap = ByteBuffer.wrap(clearText.clone());
+        new RC4(KEY).encrypt(heap);
+        Assert.assertFalse(heap.hasRemaining());
+        Assert.assertArrayEquals(expected, heap.array());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(clearText.length);
+        direct.put(clearText).flip();
+        new RC4(KEY).encrypt(direct);
+        Assert.assertFalse(direct.hasRemaining());
+        byte[] directBytes = new byte[clearText.length];
+        direct.flip();
+        direct.get(directBytes);
+        Assert.assertArrayEquals(expected, directBytes);
+
+        // The interface default should agree too
+        ByteBuffer viaDefault = ByteBuffer.allocateDirect(clearText.length);
+        viaDefault.put(clearText).flip();
+        Cipher cipher = new Cipher() {
+            private RC4 rc4 = new RC4(KEY);
+
+            @Override
+            public byte[] encrypt(byte[] b) {
+                return rc4.encrypt(b);
+            }
+
+            @Override
+            public void setKey(byte[] key) {
+                rc4 = new RC4(key);
+            }
+        };
+        cipher.encrypt(viaDefault);
+        viaDefault.flip();
+        viaDefault.get(directBytes);
+        Assert.assertArrayEquals(expected, directBytes);
+    }
+}